@@ -50,6 +50,7 @@ public class ComplexSubstitutionModelParser extends AbstractXMLObjectParser {
     public static final String BSSVS_SCALAR = "bssvsScalar";
     public static final String CHECK_CONDITIONING = "checkConditioning";
     public static final String NORMALIZED = "normalized";
+    public static final String KRYLOV_TOLERANCE = "krylovTolerance";
 
     public static final int maxRandomizationTries = 100;
 
@@ -100,15 +101,18 @@ public class ComplexSubstitutionModelParser extends AbstractXMLObjectParser {
         boolean checkConditioning = xo.getAttribute(CHECK_CONDITIONING, true);
 
         if (!xo.hasChildNamed(INDICATOR)) {
+            ComplexSubstitutionModel model;
             if (!checkConditioning) {
-                return new ComplexSubstitutionModel(COMPLEX_SUBSTITUTION_MODEL, dataType, freqModel, ratesParameter) {
+                model = new ComplexSubstitutionModel(COMPLEX_SUBSTITUTION_MODEL, dataType, freqModel, ratesParameter) {
                     protected EigenSystem getDefaultEigenSystem(int stateCount) {
                         return new ComplexColtEigenSystem(stateCount, false, ColtEigenSystem.defaultMaxConditionNumber, ColtEigenSystem.defaultMaxIterations);
                     }
                 };
             } else {
-                return new ComplexSubstitutionModel(COMPLEX_SUBSTITUTION_MODEL, dataType, freqModel, ratesParameter);
+                model = new ComplexSubstitutionModel(COMPLEX_SUBSTITUTION_MODEL, dataType, freqModel, ratesParameter);
             }
+            parseKrylovTolerance(xo, model);
+            return model;
         }
 
         cxo = xo.getChild(INDICATOR);
@@ -164,10 +168,22 @@ public class ComplexSubstitutionModelParser extends AbstractXMLObjectParser {
             model.setNormalization(false);
             Logger.getLogger("dr.app.beagle.evomodel").info("\tNormalization: false");
         }
+        parseKrylovTolerance(xo, model);
         Logger.getLogger("dr.app.beagle.evomodel").info("\t\tPlease cite: Edwards, Suchard et al. (2011)\n");
         return model;
     }
 
+    private void parseKrylovTolerance(XMLObject xo, ComplexSubstitutionModel model) throws XMLParseException {
+        if (xo.hasAttribute(KRYLOV_TOLERANCE)) {
+            double tolerance = xo.getDoubleAttribute(KRYLOV_TOLERANCE);
+            if (tolerance <= 0.0) {
+                throw new XMLParseException("The " + KRYLOV_TOLERANCE + " attribute in " + getParserName() + " element must be positive.");
+            }
+            model.setKrylovTolerance(tolerance);
+            Logger.getLogger("dr.app.beagle.evomodel").info("\tKrylov subspace exponentials with tolerance " + tolerance);
+        }
+    }
+
     //************************************************************************
     // AbstractXMLObjectParser implementation
     //************************************************************************
@@ -207,5 +223,6 @@ public class ComplexSubstitutionModelParser extends AbstractXMLObjectParser {
             AttributeRule.newDoubleRule(BSSVS_SCALAR, true),
             AttributeRule.newBooleanRule(CHECK_CONDITIONING, true),
             AttributeRule.newBooleanRule(NORMALIZED, true),
+            AttributeRule.newDoubleRule(KRYLOV_TOLERANCE, true),
     };
 }
@@ -0,0 +1,145 @@
+/*
+ * MultiPartitionTreeLikelihoodParser.java
+ *
+ * Copyright (c) 2002-2013 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.evomodel.parsers;
+
+import dr.app.beagle.evomodel.branchmodel.BranchModel;
+import dr.app.beagle.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.app.beagle.evomodel.sitemodel.GammaSiteRateModel;
+import dr.app.beagle.evomodel.substmodel.FrequencyModel;
+import dr.app.beagle.evomodel.substmodel.SubstitutionModel;
+import dr.app.beagle.evomodel.treelikelihood.MultiPartitionTreeLikelihood;
+import dr.app.beagle.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.evolution.alignment.PatternList;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Likelihood;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static dr.evomodelxml.treelikelihood.MultiPartitionTreeLikelihoodParser.*;
+
+/**
+ * Computes several partitions which share a tree, a site model and a clock in a single BEAGLE instance, with
+ * one traversal, one set of transition matrices and one rescaling for them all.
+ */
+public class MultiPartitionTreeLikelihoodParser extends AbstractXMLObjectParser {
+
+    public String getParserName() {
+        return MULTI_PARTITION_TREE_LIKELIHOOD;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        boolean useAmbiguities = xo.getAttribute(BeagleTreeLikelihoodParser.USE_AMBIGUITIES, false);
+
+        TreeModel treeModel = (TreeModel) xo.getChild(TreeModel.class);
+        GammaSiteRateModel siteRateModel = (GammaSiteRateModel) xo.getChild(GammaSiteRateModel.class);
+
+        FrequencyModel rootFreqModel = (FrequencyModel) xo.getChild(FrequencyModel.class);
+
+        BranchModel branchModel = (BranchModel) xo.getChild(BranchModel.class);
+        if (branchModel == null) {
+            SubstitutionModel substitutionModel = (SubstitutionModel) xo.getChild(SubstitutionModel.class);
+            if (substitutionModel == null) {
+                substitutionModel = siteRateModel.getSubstitutionModel();
+            }
+            if (substitutionModel == null) {
+                throw new XMLParseException("No substitution model available for MultiPartitionTreeLikelihood: " + xo.getId());
+            }
+            branchModel = new HomogeneousBranchModel(substitutionModel, rootFreqModel);
+        }
+
+        BranchRateModel branchRateModel = (BranchRateModel) xo.getChild(BranchRateModel.class);
+
+        PartialsRescalingScheme scalingScheme = PartialsRescalingScheme.DEFAULT;
+        if (xo.hasAttribute(BeagleTreeLikelihoodParser.SCALING_SCHEME)) {
+            scalingScheme = PartialsRescalingScheme.parseFromString(xo.getStringAttribute(BeagleTreeLikelihoodParser.SCALING_SCHEME));
+            if (scalingScheme == null)
+                throw new XMLParseException("Unknown scaling scheme '" + xo.getStringAttribute(BeagleTreeLikelihoodParser.SCALING_SCHEME) + "' in " +
+                        "MultiPartitionTreeLikelihood object '" + xo.getId());
+        }
+
+        List<PatternList> patternLists = new ArrayList<PatternList>();
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            if (xo.getChild(i) instanceof XMLObject && ((XMLObject) xo.getChild(i)).getName().equals(PARTITION)) {
+                XMLObject cxo = (XMLObject) xo.getChild(i);
+                PatternList patternList = (PatternList) cxo.getChild(PatternList.class);
+                names.add(getPartitionName(cxo, patternList, xo.getId(), patternLists.size()));
+                patternLists.add(patternList);
+            }
+        }
+
+        MultiPartitionTreeLikelihood treeLikelihood = new MultiPartitionTreeLikelihood(
+                patternLists,
+                siteRateModel,
+                treeModel,
+                branchModel,
+                branchRateModel,
+                null,
+                useAmbiguities,
+                scalingScheme
+        );
+        for (int i = 0; i < names.size(); i++) {
+            treeLikelihood.setPartitionName(i, names.get(i));
+        }
+        return treeLikelihood;
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "This element represents the likelihood of several patternlists on a tree given a shared site model, " +
+                "computed in a single BEAGLE instance.";
+    }
+
+    public Class getReturnType() {
+        return Likelihood.class;
+    }
+
+    public static final XMLSyntaxRule[] rules = {
+            AttributeRule.newBooleanRule(BeagleTreeLikelihoodParser.USE_AMBIGUITIES, true),
+            AttributeRule.newStringRule(BeagleTreeLikelihoodParser.SCALING_SCHEME, true),
+            new ElementRule(PARTITION, new XMLSyntaxRule[]{
+                    AttributeRule.newStringRule(NAME, true),
+                    new ElementRule(PatternList.class)
+            }, 1, Integer.MAX_VALUE),
+            new ElementRule(TreeModel.class),
+            new ElementRule(GammaSiteRateModel.class),
+            new ElementRule(BranchModel.class, true),
+            new ElementRule(SubstitutionModel.class, true),
+            new ElementRule(BranchRateModel.class, true),
+            new ElementRule(FrequencyModel.class, true),
+    };
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * TransformedPartialsTreeLikelihoodParser.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.evomodel.parsers;
+
+import dr.app.beagle.evomodel.sitemodel.GammaSiteRateModel;
+import dr.app.beagle.evomodel.substmodel.BaseSubstitutionModel;
+import dr.app.beagle.evomodel.substmodel.SubstitutionModel;
+import dr.app.beagle.evomodel.treelikelihood.TransformedPartialsTreeLikelihood;
+import dr.evolution.alignment.PatternList;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Likelihood;
+import dr.xml.*;
+
+/**
+ * Parses a transformedPartialsTreeLikelihood element into a TransformedPartialsTreeLikelihood.
+ */
+public class TransformedPartialsTreeLikelihoodParser extends AbstractXMLObjectParser {
+
+    public static final String TRANSFORMED_PARTIALS_TREE_LIKELIHOOD = "transformedPartialsTreeLikelihood";
+
+    public String getParserName() {
+        return TRANSFORMED_PARTIALS_TREE_LIKELIHOOD;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        PatternList patternList = (PatternList) xo.getChild(PatternList.class);
+        TreeModel treeModel = (TreeModel) xo.getChild(TreeModel.class);
+        GammaSiteRateModel siteRateModel = (GammaSiteRateModel) xo.getChild(GammaSiteRateModel.class);
+
+        SubstitutionModel substitutionModel = (SubstitutionModel) xo.getChild(SubstitutionModel.class);
+        if (substitutionModel == null) {
+            substitutionModel = siteRateModel.getSubstitutionModel();
+        }
+        if (!(substitutionModel instanceof BaseSubstitutionModel)) {
+            throw new XMLParseException("The substitution model in " + getParserName() + " element '" + xo.getId() +
+                    "' cannot transform partials.");
+        }
+
+        BranchRateModel branchRateModel = (BranchRateModel) xo.getChild(BranchRateModel.class);
+
+        return new TransformedPartialsTreeLikelihood(patternList, treeModel,
+                (BaseSubstitutionModel) substitutionModel, siteRateModel, branchRateModel);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "This element represents the likelihood of a patternlist on a tree given the site model, with the " +
+                "partials carried up each branch by the substitution model without its transition probabilities.";
+    }
+
+    public Class getReturnType() {
+        return Likelihood.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            new ElementRule(PatternList.class),
+            new ElementRule(TreeModel.class),
+            new ElementRule(GammaSiteRateModel.class),
+            new ElementRule(SubstitutionModel.class, true),
+            new ElementRule(BranchRateModel.class, true),
+    };
+}
@@ -30,6 +30,7 @@ import dr.inference.model.AbstractModel;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
+import dr.math.KrylovMatrixExponential;
 
 import java.util.Arrays;
 
@@ -146,8 +147,12 @@ public abstract class BaseSubstitutionModel extends AbstractModel
     protected void storeState() {
 
         storedUpdateMatrix = updateMatrix;
+        storedUpdateEigenDecomposition = updateEigenDecomposition;
 
-        System.arraycopy(relativeRates, 0, storedRelativeRates, 0, rateCount);
+        // wrapper models such as the product chain keep their rates in the wrapped models
+        if (relativeRates != null) {
+            System.arraycopy(relativeRates, 0, storedRelativeRates, 0, rateCount);
+        }
 
         if (eigenDecomposition != null) {
             storedEigenDecomposition = eigenDecomposition.copy();
@@ -160,6 +165,8 @@ public abstract class BaseSubstitutionModel extends AbstractModel
     protected void restoreState() {
 
         updateMatrix = storedUpdateMatrix;
+        updateEigenDecomposition = storedUpdateEigenDecomposition;
+        updateKrylovMatrix = true;
 
         // To restore all this stuff just swap the pointers...
         double[] tmp1 = storedRelativeRates;
@@ -199,6 +206,11 @@ public abstract class BaseSubstitutionModel extends AbstractModel
      * @param matrix   an array to store the matrix
      */
     public void getTransitionProbabilities(double distance, double[] matrix) {
+        if (krylovExponential != null) {
+            getKrylovTransitionProbabilities(distance, matrix);
+            return;
+        }
+
         double temp;
 
         EigenDecomposition eigen = getEigenDecomposition();
@@ -236,6 +248,86 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         }
     }
 
+    /**
+     * Computes transition probabilities and transformed partials from the action of the exponential of the rate
+     * matrix on a vector, found in a Krylov subspace, instead of from its eigen-decomposition. Each action takes a
+     * few dozen products of the sparse rate matrix with a vector, O(non-zeros) each, for every step of the
+     * integration (and the number of steps grows with the distance and the norm of the rate matrix). The full
+     * transition probabilities need stateCount actions, one per column, so the saving over the O(stateCount^3)
+     * eigen-decomposition is in transformPartials, which needs only one. This suits large, sparse or irreversible
+     * rate matrices, such as discrete phylogeography over hundreds of locations, used through the
+     * TransformedPartialsTreeLikelihood. BEAGLE still asks for the eigen-decomposition.
+     * <p/>
+     * The sparse copy of the rate matrix and the eigen-decomposition are each rebuilt once after updateMatrix is
+     * set, so subclasses that override getEigenDecomposition should not use this.
+     *
+     * @param tolerance the error allowed in each action of the exponential
+     */
+    public void setKrylovTolerance(double tolerance) {
+        krylovExponential = new KrylovMatrixExponential(stateCount,
+                KrylovMatrixExponential.DEFAULT_MAX_BASIS_SIZE, tolerance);
+        krylovRates = new double[stateCount * stateCount];
+        updateKrylovMatrix = true;
+    }
+
+    /**
+     * Multiplies a vector of partial likelihoods by the transition probabilities for the given distance.
+     *
+     * @param distance the expected number of substitutions
+     * @param partials the partial likelihoods at the bottom of the branch
+     * @param out      the partial likelihoods at the top of the branch
+     */
+    public void transformPartials(double distance, double[] partials, double[] out) {
+        if (krylovExponential != null) {
+            updateKrylovMatrix();
+            krylovExponential.apply(distance, partials, out);
+            for (int i = 0; i < stateCount; i++) {
+                out[i] = Math.max(0.0, out[i]);
+            }
+            return;
+        }
+
+        double[] matrix = new double[stateCount * stateCount];
+        getTransitionProbabilities(distance, matrix);
+        double[] result = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            double sum = 0.0;
+            for (int j = 0; j < stateCount; j++) {
+                sum += matrix[i * stateCount + j] * partials[j];
+            }
+            result[i] = sum;
+        }
+        System.arraycopy(result, 0, out, 0, stateCount);
+    }
+
+    // each column of the transition probabilities is the exponential acting on a unit vector
+    protected void getKrylovTransitionProbabilities(double distance, double[] matrix) {
+        updateKrylovMatrix();
+        double[] unit = new double[stateCount];
+        double[] column = new double[stateCount];
+        for (int j = 0; j < stateCount; j++) {
+            unit[j] = 1.0;
+            krylovExponential.apply(distance, unit, column);
+            unit[j] = 0.0;
+            for (int i = 0; i < stateCount; i++) {
+                matrix[i * stateCount + j] = Math.abs(column[i]);
+            }
+        }
+    }
+
+    // updateMatrix is cleared by whichever of the two representations is rebuilt first, which then flags the other
+    private synchronized void updateKrylovMatrix() {
+        if (updateMatrix || updateKrylovMatrix) {
+            getInfinitesimalMatrix(krylovRates);
+            krylovExponential.setMatrix(krylovRates);
+            if (updateMatrix) {
+                updateEigenDecomposition = true;
+                updateMatrix = false;
+            }
+            updateKrylovMatrix = false;
+        }
+    }
+
     /**
      * This function returns the Eigen vectors.
      *
@@ -243,7 +335,7 @@ public abstract class BaseSubstitutionModel extends AbstractModel
      */
     public EigenDecomposition getEigenDecomposition() {
         synchronized (this) {
-            if (updateMatrix) {
+            if (updateMatrix || updateEigenDecomposition) {
                 decompose();
             }
         }
@@ -274,7 +366,11 @@ public abstract class BaseSubstitutionModel extends AbstractModel
         if (eigenDecomposition != null)
             eigenDecomposition.normalizeEigenValues(normalization);
 
-        updateMatrix = false;
+        if (updateMatrix) {
+            updateKrylovMatrix = true;
+            updateMatrix = false;
+        }
+        updateEigenDecomposition = false;
     }
 
     private double setupMatrix() {
@@ -401,6 +497,11 @@ public abstract class BaseSubstitutionModel extends AbstractModel
 
     private final double q[][];
     protected EigenDecomposition eigenDecomposition;
+    protected KrylovMatrixExponential krylovExponential = null;
+    private double[] krylovRates = null;
+    private boolean updateKrylovMatrix = true;
+    private boolean updateEigenDecomposition = false;
+    private boolean storedUpdateEigenDecomposition = false;
     private EigenDecomposition storedEigenDecomposition;
 
 }
\ No newline at end of file
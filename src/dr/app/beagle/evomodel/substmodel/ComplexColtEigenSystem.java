@@ -67,20 +67,66 @@ public class ComplexColtEigenSystem extends ColtEigenSystem {
     }
 
     public void computeExponential(EigenDecomposition eigen, double distance, double[] matrix) {
-        double temp;
 
         if (eigen == null) {
             Arrays.fill(matrix, 0.0);
             return;
         }
 
+        computeExponentials(eigen, new double[]{distance}, 1, matrix);
+    }
+
+    /**
+     * Computes the exponentials for several distances from the same decomposition in one call, for example
+     * the transition probabilities of all branches of a tree.
+     *
+     * @param eigen     the decomposition
+     * @param distances the distances
+     * @param count     the number of distances to use
+     * @param matrices  receives the count matrices one after the other, each stateCount * stateCount
+     */
+    public void computeExponentials(EigenDecomposition eigen, double[] distances, int count, double[] matrices) {
+
+        final int matrixSize = stateCount * stateCount;
+
+        if (eigen == null) {
+            Arrays.fill(matrices, 0, count * matrixSize, 0.0);
+            return;
+        }
+
         double[] Evec = eigen.getEigenVectors();
         double[] Eval = eigen.getEigenValues();
-        double[] EvalImag = new double[stateCount];
-        System.arraycopy(Eval, stateCount, EvalImag, 0, stateCount);
         double[] Ievc = eigen.getInverseEigenVectors();
 
-        double[][] iexp = new double[stateCount][stateCount];
+        double[] iexp = new double[matrixSize];
+        for (int b = 0; b < count; b++) {
+            computeExponential(stateCount, Evec, Ievc, Eval, Eval, stateCount, distances[b], iexp, matrices, b * matrixSize);
+            for (int u = b * matrixSize; u < (b + 1) * matrixSize; u++) {
+                matrices[u] = Math.abs(matrices[u]);
+            }
+        }
+    }
+
+    /**
+     * Computes exp(distance * A) from the decomposition A = V D V^{-1} of a real matrix, where D is block diagonal
+     * with the real eigenvalues in 1-by-1 blocks and any complex conjugate eigenvalues in 2-by-2 blocks.  All
+     * arrays are flat and row-major, and nothing is allocated, so the same work array can be used for every
+     * branch of a tree.  Entries are not corrected for rounding, so they may come out slightly negative.
+     *
+     * @param stateCount the dimension of A
+     * @param Evec       the eigenvectors V
+     * @param Ievc       the inverse eigenvectors V^{-1}
+     * @param Eval       the real parts of the eigenvalues, starting at 0
+     * @param EvalImag   the imaginary parts of the eigenvalues, starting at imagOffset
+     * @param imagOffset the offset of the imaginary parts in EvalImag
+     * @param distance   the distance
+     * @param iexp       work array of stateCount * stateCount
+     * @param matrix     receives the exponential
+     * @param offset     the offset of the exponential in matrix
+     */
+    public static void computeExponential(int stateCount, double[] Evec, double[] Ievc,
+                                          double[] Eval, double[] EvalImag, int imagOffset,
+                                          double distance, double[] iexp, double[] matrix, int offset) {
 
 // Eigenvalues and eigenvectors of a real matrix A.
 //
@@ -95,43 +141,45 @@ public class ComplexColtEigenSystem extends ColtEigenSystem {
 // V may be badly conditioned, or even singular, so the validity of the
 // equation A = V D V^{-1} depends on the conditioning of V.
 
+        // iexp = exp(distance * D) V^{-1}
         for (int i = 0; i < stateCount; i++) {
+            final int row = i * stateCount;
 
-            if (EvalImag[i] == 0) {
+            if (EvalImag[imagOffset + i] == 0) {
                 // 1x1 block
-                temp = Math.exp(distance * Eval[i]);
+                final double temp = Math.exp(distance * Eval[i]);
                 for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = Ievc[i * stateCount + j] * temp;
+                    iexp[row + j] = Ievc[row + j] * temp;
                 }
             } else {
                 // 2x2 conjugate block
                 // If A is 2x2 with complex conjugate pair eigenvalues a +/- bi, then
                 // exp(At) = exp(at)*( cos(bt)I + \frac{sin(bt)}{b}(A - aI)).
-                int i2 = i + 1;
-                double b = EvalImag[i];
-                double expat = Math.exp(distance * Eval[i]);
-                double expatcosbt = expat * Math.cos(distance * b);
-                double expatsinbt = expat * Math.sin(distance * b);
+                final int row2 = row + stateCount;
+                final double b = EvalImag[imagOffset + i];
+                final double expat = Math.exp(distance * Eval[i]);
+                final double expatcosbt = expat * Math.cos(distance * b);
+                final double expatsinbt = expat * Math.sin(distance * b);
 
                 for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = expatcosbt * Ievc[i * stateCount + j] +
-                            expatsinbt * Ievc[i2 * stateCount + j];
-                    iexp[i2][j] = expatcosbt * Ievc[i2 * stateCount + j] -
-                            expatsinbt * Ievc[i * stateCount + j];
+                    iexp[row + j] = expatcosbt * Ievc[row + j] + expatsinbt * Ievc[row2 + j];
+                    iexp[row2 + j] = expatcosbt * Ievc[row2 + j] - expatsinbt * Ievc[row + j];
                 }
                 i++; // processed two conjugate rows
             }
         }
 
-        int u = 0;
+        // matrix = V iexp, a row at a time so that the inner loop runs along contiguous rows.  Each entry
+        // still sums over k in increasing order.
+        Arrays.fill(matrix, offset, offset + stateCount * stateCount, 0.0);
         for (int i = 0; i < stateCount; i++) {
-            for (int j = 0; j < stateCount; j++) {
-                temp = 0.0;
-                for (int k = 0; k < stateCount; k++) {
-                    temp += Evec[i * stateCount + k] * iexp[k][j];
+            final int out = offset + i * stateCount;
+            for (int k = 0; k < stateCount; k++) {
+                final double v = Evec[i * stateCount + k];
+                final int row = k * stateCount;
+                for (int j = 0; j < stateCount; j++) {
+                    matrix[out + j] += v * iexp[row + j];
                 }
-                matrix[u] = Math.abs(temp);
-                u++;
             }
         }
     }
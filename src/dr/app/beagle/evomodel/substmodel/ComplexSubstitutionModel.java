@@ -34,7 +34,9 @@ import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.math.matrixAlgebra.Vector;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Marc Suchard
@@ -57,7 +59,10 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel implement
      * @param matrix   an array to store the matrix
      */
     public void getTransitionProbabilities(double distance, double[] matrix) {
-        double temp;
+        if (krylovExponential != null) {
+            getKrylovTransitionProbabilities(distance, matrix);
+            return;
+        }
 
         EigenDecomposition eigen = getEigenDecomposition();
 
@@ -66,68 +71,73 @@ public class ComplexSubstitutionModel extends GeneralSubstitutionModel implement
             return;
         }
 
-        double[] Evec = eigen.getEigenVectors();
-        double[] Eval = eigen.getEigenValues();
-        double[] EvalImag = new double[stateCount];
-        System.arraycopy(Eval, stateCount, EvalImag, 0, stateCount);
-        double[] Ievc = eigen.getInverseEigenVectors();
-
-        double[][] iexp = new double[stateCount][stateCount];
-
-// Eigenvalues and eigenvectors of a real matrix A.
-//
-// If A is symmetric, then A = V*D*V' where the eigenvalue matrix D is diagonal
-// and the eigenvector matrix V is orthogonal. I.e. A = V D V^t and V V^t equals
-// the identity matrix.
-//
-// If A is not symmetric, then the eigenvalue matrix D is block diagonal with
-// the real eigenvalues in 1-by-1 blocks and any complex eigenvalues,
-// lambda + i*mu, in 2-by-2 blocks, [lambda, mu; -mu, lambda]. The columns
-// of V represent the eigenvectors in the sense that A*V = V*D. The matrix
-// V may be badly conditioned, or even singular, so the validity of the
-// equation A = V D V^{-1} depends on the conditioning of V.
-
-        for (int i = 0; i < stateCount; i++) {
-
-            if (EvalImag[i] == 0) {
-                // 1x1 block
-                temp = Math.exp(distance * Eval[i]);
-                for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = Ievc[i * stateCount + j] * temp;
-                }
-            } else {
-                // 2x2 conjugate block
-                // If A is 2x2 with complex conjugate pair eigenvalues a +/- bi, then
-                // exp(At) = exp(at)*( cos(bt)I + \frac{sin(bt)}{b}(A - aI)).
-                int i2 = i + 1;
-                double b = EvalImag[i];
-                double expat = Math.exp(distance * Eval[i]);
-                double expatcosbt = expat * Math.cos(distance * b);
-                double expatsinbt = expat * Math.sin(distance * b);
-
-                for (int j = 0; j < stateCount; j++) {
-                    iexp[i][j] = expatcosbt * Ievc[i * stateCount + j] +
-                            expatsinbt * Ievc[i2 * stateCount + j];
-                    iexp[i2][j] = expatcosbt * Ievc[i2 * stateCount + j] -
-                            expatsinbt * Ievc[i * stateCount + j];
-                }
-                i++; // processed two conjugate rows
+        double[] iexp = popiexp();
+        computeTransitionProbabilities(eigen, distance, iexp, matrix, 0);
+        pushiexp(iexp);
+    }
+
+    /**
+     * get the complete transition probability matrices for several distances, such as all the branches
+     * of a tree, from a single look-up of the eigen decomposition
+     *
+     * @param distances the expected numbers of substitutions
+     * @param count     the number of distances to use
+     * @param matrices  an array to store the matrices, one after the other
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
+        final int matrixSize = stateCount * stateCount;
+
+        if (krylovExponential != null) {
+            double[] matrix = new double[matrixSize];
+            for (int b = 0; b < count; b++) {
+                getKrylovTransitionProbabilities(distances[b], matrix);
+                System.arraycopy(matrix, 0, matrices, b * matrixSize, matrixSize);
             }
+            return;
         }
 
-        int u = 0;
-        for (int i = 0; i < stateCount; i++) {
-            for (int j = 0; j < stateCount; j++) {
-                temp = 0.0;
-                for (int k = 0; k < stateCount; k++) {
-                    temp += Evec[i * stateCount + k] * iexp[k][j];
-                }
-                matrix[u] = Math.abs(temp);
-                u++;
-            }
+        EigenDecomposition eigen = getEigenDecomposition();
+
+        if (eigen == null) {
+            Arrays.fill(matrices, 0, count * matrixSize, 0.0);
+            return;
+        }
+
+        double[] iexp = popiexp();
+        for (int b = 0; b < count; b++) {
+            computeTransitionProbabilities(eigen, distances[b], iexp, matrices, b * matrixSize);
+        }
+        pushiexp(iexp);
+    }
+
+    private void computeTransitionProbabilities(EigenDecomposition eigen, double distance,
+                                                double[] iexp, double[] matrices, int offset) {
+        // the eigen values hold the real parts followed by the imaginary parts
+        double[] Eval = eigen.getEigenValues();
+        ComplexColtEigenSystem.computeExponential(stateCount, eigen.getEigenVectors(), eigen.getInverseEigenVectors(),
+                Eval, Eval, stateCount, distance, iexp, matrices, offset);
+
+        final int end = offset + stateCount * stateCount;
+        for (int u = offset; u < end; u++) {
+            matrices[u] = Math.abs(matrices[u]);
         }
     }
 
+    // a pool of work matrices, so that several threads can compute transition probabilities without
+    // allocating a new one each call
+    private synchronized double[] popiexp() {
+        if (iexpPool.size() == 0) {
+            iexpPool.add(new double[stateCount * stateCount]);
+        }
+        return iexpPool.remove(iexpPool.size() - 1);
+    }
+
+    private synchronized void pushiexp(double[] iexp) {
+        iexpPool.add(iexp);
+    }
+
+    private final List<double[]> iexpPool = new ArrayList<double[]>();
+
     protected int getRateCount(int stateCount) {
         return (stateCount - 1) * stateCount;
     }
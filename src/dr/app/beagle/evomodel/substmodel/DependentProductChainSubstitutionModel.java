@@ -63,6 +63,11 @@ public class DependentProductChainSubstitutionModel extends ProductChainSubstitu
         return eigenDecomposition;
     }
 
+    protected boolean isKroneckerSum() {
+        // the dependence couples the base models
+        return false;
+    }
+
     public void getInfinitesimalMatrix(double[] out) {
         getEigenDecomposition(); // Updates rate matrix if necessary
         System.arraycopy(rateMatrix, 0, out, 0, stateCount * stateCount);
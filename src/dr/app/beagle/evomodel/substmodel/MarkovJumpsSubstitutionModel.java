@@ -52,11 +52,20 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     }
 
     public MarkovJumpsSubstitutionModel(SubstitutionModel substModel, MarkovJumpsType type) {
+        this(substModel, type, new MarkovJumpsCore(substModel.getDataType().getStateCount()));
+    }
+
+    /**
+     * Registers on the same substitution model may share a core, so that eigen-intermediates computed for a
+     * branch are reused across registers
+     */
+    public MarkovJumpsSubstitutionModel(SubstitutionModel substModel, MarkovJumpsType type,
+                                        MarkovJumpsCore markovJumpsCore) {
         super(substModel.getModelName());
         this.substModel = substModel;
         this.eigenDecomposition = substModel.getEigenDecomposition();
         stateCount = substModel.getDataType().getStateCount();
-        markovJumpsCore = new MarkovJumpsCore(stateCount);
+        this.markovJumpsCore = markovJumpsCore;
         this.type = type;
         setupStorage();
         addModel(substModel);
@@ -136,6 +145,9 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
             throw new RuntimeException("Unknown expectation type in MarkovJumps");
         }
 
+        // The substitution model builds a new decomposition whenever it changes
+        eigenDecomposition = substModel.getEigenDecomposition();
+
         if (PRECOMPUTE) {
 //            matrixMultiply(rateReg, evec, stateCount, tmp1);
 //            matrixMultiply(ievc, tmp1, stateCount, tmp2);
@@ -205,6 +217,24 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
         }
     }
 
+    /**
+     * Conditional expectation for a single pair of end states, without forming the full matrix (requires PRECOMPUTE)
+     */
+    public double computeCondStatMarkovJumps(int startingState,
+                                             int endingState,
+                                             double time,
+                                             double transitionProbability) {
+
+        if (regRateChanged) {
+            makeRateRegistrationMatrix(registration, rateReg, ievcRateRegEvec);
+        }
+
+        return markovJumpsCore.computeCondStatMarkovJumpsPrecompute(
+                eigenDecomposition.getEigenVectors(), eigenDecomposition.getInverseEigenVectors(),
+                eigenDecomposition.getEigenValues(), ievcRateRegEvec, time, startingState, endingState,
+                transitionProbability);
+    }
+
     public void computeJointStatMarkovJumps(double time,
                                             double[] countMatrix) {
 
@@ -242,7 +272,8 @@ public class MarkovJumpsSubstitutionModel extends AbstractModel {
     }
 
     protected void restoreState() {
-        // Do nothing
+        // The substitution model may have restored an earlier decomposition
+        regRateChanged = true;
     }
 
     protected void acceptState() {
@@ -94,7 +94,9 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
             stateSizes[i] = dataType.getStateCount();
             stateCount *= dataType.getStateCount();
             addModel(baseModels.get(i));
-            addModel(rateModels.get(i));
+            if (rateModels != null) {
+                addModel(rateModels.get(i));
+            }
         }
 
         pcFreqModel = new ProductChainFrequencyModel("pc",freqModels);
@@ -118,6 +120,11 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
         return citations;
     }
 
+    /**
+     * The eigen-system of the product chain is formed over the full product space, which BEAGLE needs. The
+     * transition probabilities and transformPartials (as used by TransformedPartialsTreeLikelihood) work from the
+     * eigen-systems of the base models and never call this.
+     */
     public EigenDecomposition getEigenDecomposition() {
         synchronized (this) {
             if (updateMatrix) {
@@ -127,6 +134,96 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
         return eigenDecomposition;
     }
 
+    /**
+     * The transition probabilities of a Kronecker sum of rate matrices are the Kronecker product of the transition
+     * probabilities of the base models, so they are found from the eigen-systems of the base models in
+     * O(stateCount^2) instead of O(stateCount^3) from the eigen-system of the product chain.
+     */
+    public void getTransitionProbabilities(double distance, double[] matrix) {
+        if (!isKroneckerSum()) {
+            super.getTransitionProbabilities(distance, matrix);
+            return;
+        }
+
+        double[] current = getBaseTransitionProbabilities(0, distance);
+        int currentStateSize = stateSizes[0];
+        for (int i = 1; i < numBaseModel; i++) {
+            current = KroneckerOperation.product(
+                    current, currentStateSize, currentStateSize,
+                    getBaseTransitionProbabilities(i, distance), stateSizes[i], stateSizes[i]);
+            currentStateSize *= stateSizes[i];
+        }
+        System.arraycopy(current, 0, matrix, 0, stateCount * stateCount);
+    }
+
+    /**
+     * Multiplies a vector of partial likelihoods by the transition probabilities, one base model at a time, without
+     * forming the transition probabilities of the product chain. This takes O(stateCount * the sum of the base state
+     * counts), so chains with too many states to hold their transition probabilities can still be used.
+     *
+     * @param distance the branch length
+     * @param partials the partial likelihoods at the bottom of the branch
+     * @param out      the partial likelihoods at the top of the branch
+     */
+    public void transformPartials(double distance, double[] partials, double[] out) {
+        if (!isKroneckerSum()) {
+            super.transformPartials(distance, partials, out);
+            return;
+        }
+
+        KroneckerOperation.product(getBaseTransitionProbabilities(distance), stateSizes, partials, out);
+    }
+
+    // the likelihood transforms every pattern along a branch in turn, so the base transition probabilities for the
+    // last distance are kept until the next distance or a change to the base models
+    private synchronized double[][] getBaseTransitionProbabilities(double distance) {
+        if (baseProbabilities == null || distance != baseProbabilitiesDistance) {
+            double[][] probabilities = new double[numBaseModel][];
+            for (int i = 0; i < numBaseModel; i++) {
+                probabilities[i] = getBaseTransitionProbabilities(i, distance);
+            }
+            baseProbabilities = probabilities;
+            baseProbabilitiesDistance = distance;
+        }
+        return baseProbabilities;
+    }
+
+    /**
+     * @return true if the rate matrix is the Kronecker sum of the (scaled) base model rate matrices
+     */
+    protected boolean isKroneckerSum() {
+        return true;
+    }
+
+    // the transition probabilities of one base model, from its eigen-system scaled by its rate
+    private double[] getBaseTransitionProbabilities(int index, double distance) {
+        final int size = stateSizes[index];
+        final EigenDecomposition ed = getBaseModel(index).getEigenDecomposition();
+        final double[] evec = ed.getEigenVectors();
+        final double[] ievc = ed.getInverseEigenVectors();
+        final double[] eval = scaleForProductChain(ed.getEigenValues(), index);
+
+        double[] iexp = new double[size * size];
+        for (int i = 0; i < size; i++) {
+            final double temp = Math.exp(distance * eval[i]);
+            for (int j = 0; j < size; j++) {
+                iexp[i * size + j] = ievc[i * size + j] * temp;
+            }
+        }
+
+        double[] probabilities = new double[size * size];
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                double temp = 0.0;
+                for (int k = 0; k < size; k++) {
+                    temp += evec[i * size + k] * iexp[k * size + j];
+                }
+                probabilities[i * size + j] = Math.abs(temp);
+            }
+        }
+        return probabilities;
+    }
+
     private String[] getCharacterStrings() {
         String[] strings = null;
         for (int i = numBaseModel - 1; i >= 0; i--) {
@@ -141,6 +238,12 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
         // Propogate change to higher models
         fireModelChanged(model);
         averageModel = null;
+        baseProbabilities = null;
+    }
+
+    protected void restoreState() {
+        super.restoreState();
+        baseProbabilities = null;
     }
 
     private String[] recursivelyAppendCharacterStates(DataType dataType, String[] inSubStates) {
@@ -394,5 +497,7 @@ public class ProductChainSubstitutionModel extends BaseSubstitutionModel impleme
     protected double[] rateMatrix = null;
     private final boolean forceAverageModel;
     private SubstitutionProcess averageModel = null;
+    private double[][] baseProbabilities = null;
+    private double baseProbabilitiesDistance;
 
 }
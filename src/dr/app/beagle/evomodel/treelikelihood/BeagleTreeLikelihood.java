@@ -81,6 +81,9 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
     private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
     private static final String EXTRA_BUFFER_COUNT_PROPERTY = "beagle.extra.buffer.count";
     private static final String FORCE_VECTORIZATION = "beagle.force.vectorization";
+    // the partials operations go to BEAGLE in the order of the traversal by default;
+    // -Dbeagle.operation.order=levels groups them into levels of independent operations instead
+    private static final String OPERATION_ORDER_PROPERTY = "beagle.operation.order";
 
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
@@ -156,6 +159,11 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
             // one partials buffer for each tip and two for each internal node (for store restore)
             partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
 
+            // levels of independent operations, each in its own updatePartials call, are only used if requested
+            if ("levels".equalsIgnoreCase(System.getProperty(OPERATION_ORDER_PROPERTY))) {
+                operationScheduler = new OperationScheduler(partialBufferHelper.getBufferCount());
+            }
+
             // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
             scaleBufferHelper = new BufferIndexHelper(getScaleBufferCount(), 0);
 
@@ -843,7 +851,11 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
                     }
                 }
             } else {
-                beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
+                if (operationScheduler != null) {
+                    operationScheduler.updatePartials(beagle, operations[0], operationCount[0], Beagle.NONE);
+                } else {
+                    beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
+                }
             }
 
             int rootIndex = partialBufferHelper.getOffsetIndex(root.getNumber());
@@ -1159,6 +1171,7 @@ public class BeagleTreeLikelihood extends AbstractSinglePartitionTreeLikelihood
 //    private int[] restrictedIndices;
 
     protected BufferIndexHelper partialBufferHelper;
+    private OperationScheduler operationScheduler = null;
     protected BufferIndexHelper scaleBufferHelper;
 
     protected final int tipCount;
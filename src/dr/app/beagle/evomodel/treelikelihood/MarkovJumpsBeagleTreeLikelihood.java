@@ -40,6 +40,7 @@ import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treelikelihood.TipStatesModel;
 import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.NumberColumn;
+import dr.inference.markovjumps.MarkovJumpsCore;
 import dr.inference.markovjumps.MarkovJumpsRegisterAcceptor;
 import dr.inference.markovjumps.MarkovJumpsType;
 import dr.inference.model.Parameter;
@@ -91,6 +92,12 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 
         tmpProbabilities = new double[stateCount * stateCount * categoryCount];
         condJumps = new double[categoryCount][stateCount * stateCount];
+        categoryComputedByEntry = new boolean[categoryCount];
+
+        markovJumpsCores = new MarkovJumpsCore[substitutionModelDelegate.getSubstitutionModelCount()];
+        for (int i = 0; i < markovJumpsCores.length; i++) {
+            markovJumpsCores[i] = new MarkovJumpsCore(stateCount);
+        }
     }
 
     public void addRegister(Parameter addRegisterParameter,
@@ -119,7 +126,7 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
                 if (type == MarkovJumpsType.HISTORY) {
                     throw new RuntimeException("Can only report complete history using uniformization");
                 }
-                mjModel = new MarkovJumpsSubstitutionModel(substitutionModel, type);
+                mjModel = new MarkovJumpsSubstitutionModel(substitutionModel, type, markovJumpsCores[i]);
             }
             markovjumps.add(mjModel);
             branchModelNumber.add(i);
@@ -459,11 +466,33 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
                                                        double[][] thisExpectedJumps,
                                                        int[] rateCategory) {
 
+        // With fewer patterns than states, only the entries for the observed end states are computed
+        final boolean byEntry = patternCount < stateCount;
+
         // Fill condJumps with conditional mean values for this branch
         for (int i = 0; i < categoryCount; i++) {
 
             double rate = siteRateModel.getRateForCategory(i);
-            if (rate > 0) {
+            categoryComputedByEntry[i] = byEntry && rate > 0;
+
+            if (categoryComputedByEntry[i]) {
+
+                final int matrixIndex = i * stateCount * stateCount;
+                for (int j = 0; j < patternCount; j++) {
+                    if ((rateCategory == null ? 0 : rateCategory[j]) == i) {
+                        double value = thisMarkovJumps.computeCondStatMarkovJumps(
+                                parentStates[j],
+                                childStates[j],
+                                substTime * branchRate * rate,
+                                probabilities[matrixIndex + parentStates[j] * stateCount + childStates[j]]);
+                        if (scaleByTime) {
+                            value /= branchRate * rate;
+                        }
+                        thisExpectedJumps[childNum][j] = value;
+                    }
+                }
+
+            } else if (rate > 0) {
 
                 if (categoryCount == 1) {
                     thisMarkovJumps.computeCondStatMarkovJumps(
@@ -499,7 +528,9 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
 
         for (int j = 0; j < patternCount; j++) { // Pick out values given parent and child states
             int category = rateCategory == null ? 0 : rateCategory[j];
-            thisExpectedJumps[childNum][j] = condJumps[category][parentStates[j] * stateCount + childStates[j]];
+            if (!categoryComputedByEntry[category]) {
+                thisExpectedJumps[childNum][j] = condJumps[category][parentStates[j] * stateCount + childStates[j]];
+            }
         }
     }
 
@@ -639,6 +670,8 @@ public class MarkovJumpsBeagleTreeLikelihood extends AncestralStateBeagleTreeLik
     private boolean[] scaleByTime;
     private double[] tmpProbabilities;
     private double[][] condJumps;
+    private boolean[] categoryComputedByEntry;
+    private MarkovJumpsCore[] markovJumpsCores;
     private int numRegisters;
     private int historyRegisterNumber = -1;
     private final boolean useUniformization;
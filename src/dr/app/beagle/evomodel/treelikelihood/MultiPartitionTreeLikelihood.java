@@ -52,6 +52,8 @@ import dr.evomodel.branchratemodel.DefaultBranchRateModel;
 import dr.evomodel.branchratemodel.StrictClockBranchRates;
 import dr.evomodel.tree.TreeModel;
 import dr.evomodel.treelikelihood.TipStatesModel;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.NumberColumn;
 import dr.inference.model.Model;
 import dr.inference.model.Parameter;
 import dr.inference.model.ThreadAwareLikelihood;
@@ -61,7 +63,10 @@ import java.util.*;
 import java.util.logging.Logger;
 
 /**
- * BeagleTreeLikelihoodModel - implements a Likelihood Function for sequences on a tree.
+ * MultiPartitionTreeLikelihood - implements a Likelihood Function for the sequences of several partitions
+ * on a tree. The partitions share the substitution model, the site model and the clock so they are computed
+ * in a single BEAGLE instance with one traversal, one set of transition matrices and one rescaling. The
+ * likelihood of each partition is logged alongside the total.
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
@@ -82,6 +87,9 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     private static final String RESCALE_FREQUENCY_PROPERTY = "beagle.rescale";
     private static final String EXTRA_BUFFER_COUNT_PROPERTY = "beagle.extra.buffer.count";
     private static final String FORCE_VECTORIZATION = "beagle.force.vectorization";
+    // the partials operations go to BEAGLE in the order of the traversal by default;
+    // -Dbeagle.operation.order=levels groups them into levels of independent operations instead
+    private static final String OPERATION_ORDER_PROPERTY = "beagle.operation.order";
 
     // Which scheme to use if choice not specified (or 'default' is selected):
     private static final PartialsRescalingScheme DEFAULT_RESCALING_SCHEME = PartialsRescalingScheme.DYNAMIC;
@@ -98,7 +106,7 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     private static final int RESCALE_TIMES = 1;
 
     public MultiPartitionTreeLikelihood(List<PatternList> patternLists,
-                                        List<SiteRateModel> siteRateModels,
+                                        SiteRateModel siteRateModel,
                                         TreeModel treeModel,
                                         BranchModel branchModel,
                                         BranchRateModel branchRateModel,
@@ -106,11 +114,11 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                                         boolean useAmbiguities,
                                         PartialsRescalingScheme rescalingScheme) {
 
-        this(patternLists, siteRateModels, treeModel, branchModel, branchRateModel, tipStatesModel, useAmbiguities, rescalingScheme, null);
+        this(patternLists, siteRateModel, treeModel, branchModel, branchRateModel, tipStatesModel, useAmbiguities, rescalingScheme, null);
     }
 
     public MultiPartitionTreeLikelihood(List<PatternList> patternLists,
-                                        List<SiteRateModel> siteRateModels,
+                                        SiteRateModel siteRateModel,
                                         TreeModel treeModel,
                                         BranchModel branchModel,
                                         BranchRateModel branchRateModel,
@@ -126,29 +134,27 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 
             logger.info("Using BEAGLE TreeLikelihood");
 
-            // should be a 1 to 1 correspondence of patternLists to siteModels.
-            assert(patternLists.size() == siteRateModels.size());
-
+            // The partitions share the branch model, the site model and the clock so they share
+            // the transition matrices, the traversal and the rescaling and their patterns are
+            // simply concatenated in a single BEAGLE instance.
             this.dataType = patternLists.get(0).getDataType();
             this.stateCount = dataType.getStateCount();
             partitionCount = patternLists.size();
+            partitionNames = new String[partitionCount];
 
             this.patternLists.addAll(patternLists);
             for (PatternList patternList : patternLists) {
-                // check all patternLists).
-                assert(patternList.getDataType() == dataType);
+                if (patternList.getDataType() != dataType) {
+                    throw new IllegalArgumentException("All the partitions in a MultiPartitionTreeLikelihood must have the same data type");
+                }
+                if (patternList instanceof AscertainedSitePatterns) {
+                    throw new IllegalArgumentException("Ascertained site patterns are not supported by MultiPartitionTreeLikelihood");
+                }
             }
 
-
-            this.siteRateModels.addAll(siteRateModels);
-            this.categoryCount = this.siteRateModels.get(0).getCategoryCount();
-
-            for (SiteRateModel siteRateModel : siteRateModels) {
-                // check all siteRateModels use the same number of categories
-                // (could be relaxed but this will make for easier bookkeeping).
-                assert(siteRateModel.getCategoryCount() == categoryCount);
-                addModel(siteRateModel);
-            }
+            this.siteRateModel = siteRateModel;
+            this.categoryCount = siteRateModel.getCategoryCount();
+            addModel(siteRateModel);
 
             this.branchModel = branchModel;
             addModel(this.branchModel);
@@ -176,6 +182,11 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
             // one partials buffer for each tip and two for each internal node (for store restore)
             partialBufferHelper = new BufferIndexHelper(nodeCount, tipCount);
 
+            // levels of independent operations, each in its own updatePartials call, are only used if requested
+            if ("levels".equalsIgnoreCase(System.getProperty(OPERATION_ORDER_PROPERTY))) {
+                operationScheduler = new OperationScheduler(partialBufferHelper.getBufferCount());
+            }
+
             // one scaling buffer for each internal node plus an extra for the accumulation, then doubled for store/restore
             scaleBufferHelper = new BufferIndexHelper(getScaleBufferCount(), 0);
 
@@ -201,10 +212,7 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                 extraBufferCount = extraBufferOrder.get(instanceCount % extraBufferOrder.size());
             }
 
-            substitutionModelDelegates = new SubstitutionModelDelegate[partitionCount];
-            for (int i = 0; i < partitionCount; i++) {
-                substitutionModelDelegates[i] = new SubstitutionModelDelegate(treeModel, branchModel, extraBufferCount);
-            }
+            substitutionModelDelegate = new SubstitutionModelDelegate(treeModel, branchModel, extraBufferCount);
 
             // first set the rescaling scheme to use from the parser
             this.rescalingScheme = rescalingScheme;
@@ -304,17 +312,10 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                 preferenceFlags |= BeagleFlag.PRECISION_DOUBLE.getMask();
             }
 
-            if (substitutionModelDelegates[0].canReturnComplexDiagonalization()) {
+            if (substitutionModelDelegate.canReturnComplexDiagonalization()) {
                 requirementFlags |= BeagleFlag.EIGEN_COMPLEX.getMask();
             }
 
-            int eigenModelCount = 0;
-            int matrixBufferCount = 0;
-            for (SubstitutionModelDelegate substitutionModelDelegate: substitutionModelDelegates) {
-                eigenModelCount += substitutionModelDelegate.getEigenBufferCount();
-                matrixBufferCount += substitutionModelDelegate.getMatrixBufferCount();
-            }
-
             instanceCount++;
 
             beagle = BeagleFactory.loadBeagleInstance(
@@ -323,8 +324,8 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                     compactPartialsCount,
                     stateCount,
                     patternCount,
-                    eigenModelCount,
-                    matrixBufferCount,
+                    substitutionModelDelegate.getEigenBufferCount(),
+                    substitutionModelDelegate.getMatrixBufferCount(),
                     categoryCount,
                     scaleBufferHelper.getBufferCount(), // Always allocate; they may become necessary
                     resourceList,
@@ -332,6 +333,9 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                     requirementFlags
             );
 
+            // the Java implementation of BEAGLE doesn't keep the site likelihoods, so only the total is logged
+            hasSiteLogLikelihoods = !(beagle instanceof GeneralBeagleImpl);
+
             InstanceDetails instanceDetails = beagle.getDetails();
             ResourceDetails resourceDetails = null;
 
@@ -378,42 +382,26 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 //                addModel(tipStatesModel);
             }
 
+            int[] sequenceIndices = new int[partitionCount];
             for (int i = 0; i < tipCount; i++) {
-                // Find the id of tip i in the patternList
+                // Find the id of tip i in each of the patternLists
                 String id = treeModel.getTaxonId(i);
 
-                for (PatternList patternList : patternLists) {
-                    int index = patternList.getTaxonIndex(id);
+                for (int j = 0; j < partitionCount; j++) {
+                    PatternList patternList = patternLists.get(j);
+                    sequenceIndices[j] = patternList.getTaxonIndex(id);
 
-                    if (index == -1) {
+                    if (sequenceIndices[j] == -1) {
                         throw new TaxonList.MissingTaxonException("Taxon, " + id + ", in tree, " + treeModel.getId() +
                                 ", is not found in patternList, " + patternList.getId());
-                    } else {
-                        if (tipStatesModel != null) {
-                            throw new UnsupportedOperationException("Tip error models not supported by MultiPartitionTreeLikelihood yet");
-
-//                            // using a tipPartials model.
-//                            // First set the observed states:
-//                            tipStatesModel.setStates(patternList, index, i, id);
-//
-//                            if (tipStatesModel.getModelType() == TipStatesModel.Type.PARTIALS) {
-//                                // Then set the tip partials as determined by the model:
-//                                setPartials(beagle, tipStatesModel, i);
-//                            } else {
-//                                // or the tip states:
-//                                tipStatesModel.getTipStates(i, tipStates);
-//                                beagle.setTipStates(i, tipStates);
-//                            }
-
-                        } else {
-                            if (useAmbiguities) {
-                                setPartials(beagle, index, i);
-                            } else {
-                                setStates(beagle, index, i);
-                            }
-                        }
                     }
                 }
+
+                if (useAmbiguities) {
+                    setPartials(beagle, sequenceIndices, i);
+                } else {
+                    setStates(beagle, sequenceIndices, i);
+                }
             }
 
             this.partialsRestrictions = partialsRestrictions;
@@ -447,14 +435,12 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                 everUnderflowed = false; // If false, BEAST does not rescale until first under-/over-flow.
             }
 
-            updateSubstitutionModel = new boolean[partitionCount];
-            updateSiteModel = new boolean[partitionCount];
-            for (int i = 0; i < partitionCount; i++) {
-                updateSubstitutionModel[i] = true;
-                updateSiteModel[i] = true;
-            }
+            updateSubstitutionModel = true;
+            updateSiteModel = true;
 
             patternLogLikelihoods = new double[patternCount];
+            partitionLogLikelihoods = new double[partitionCount];
+            storedPartitionLogLikelihoods = new double[partitionCount];
 
 
 
@@ -536,12 +522,12 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     /**
      * Sets the partials from a sequence in an alignment.
      *
-     * @param beagle        beagle
-     * @param sequenceIndex sequenceIndex
-     * @param nodeIndex     nodeIndex
+     * @param beagle          beagle
+     * @param sequenceIndices the index of the sequence in each partition
+     * @param nodeIndex       nodeIndex
      */
     protected final void setPartials(Beagle beagle,
-                                     int sequenceIndex,
+                                     int[] sequenceIndices,
                                      int nodeIndex) {
 
         double[] partials = new double[patternCount * stateCount * categoryCount];
@@ -549,10 +535,11 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
         boolean[] stateSet;
 
         int v = 0;
-        for (PatternList patternList : patternLists) {
+        for (int k = 0; k < partitionCount; k++) {
+            PatternList patternList = patternLists.get(k);
             for (int i = 0; i < patternList.getPatternCount(); i++) {
 
-                int state = patternList.getPatternState(sequenceIndex, i);
+                int state = patternList.getPatternState(sequenceIndices[k], i);
                 stateSet = dataType.getStateSet(state);
 
                 for (int j = 0; j < stateCount; j++) {
@@ -602,23 +589,86 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
         return patternCount;
     }
 
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public PatternList getPatternList(int partition) {
+        return patternLists.get(partition);
+    }
+
+    /**
+     * @return the log likelihood of the patterns of one partition
+     */
+    public double getPartitionLogLikelihood(int partition) {
+        // make sure the likelihood is up to date
+        getLogLikelihood();
+        if (!partitionLogLikelihoodsKnown) {
+            updatePartitionLogLikelihoods();
+            partitionLogLikelihoodsKnown = true;
+        }
+        return partitionLogLikelihoods[partition];
+    }
+
+    /**
+     * Sets the label of the log column for a partition, the id of its patterns by default.
+     */
+    public void setPartitionName(int partition, String name) {
+        partitionNames[partition] = name;
+    }
+
+    public String getPartitionName(int partition) {
+        if (partitionNames[partition] != null) {
+            return partitionNames[partition];
+        }
+        if (patternLists.get(partition).getId() != null) {
+            return patternLists.get(partition).getId();
+        }
+        return getId() + "." + (partition + 1);
+    }
+
+    // **************************************************************
+    // Loggable IMPLEMENTATION
+    // **************************************************************
+
+    /**
+     * The total likelihood followed by the likelihood of each partition, where BEAGLE can give them.
+     */
+    public LogColumn[] getColumns() {
+        if (!hasSiteLogLikelihoods) {
+            return new LogColumn[]{new LikelihoodColumn(getId())};
+        }
+        LogColumn[] columns = new LogColumn[partitionCount + 1];
+        columns[0] = new LikelihoodColumn(getId());
+        for (int i = 0; i < partitionCount; i++) {
+            final int partition = i;
+            columns[i + 1] = new NumberColumn(getPartitionName(i)) {
+                public double getDoubleValue() {
+                    return getPartitionLogLikelihood(partition);
+                }
+            };
+        }
+        return columns;
+    }
+
     /**
      * Sets the partials from a sequence in an alignment.
      *
-     * @param beagle        beagle
-     * @param sequenceIndex sequenceIndex
-     * @param nodeIndex     nodeIndex
+     * @param beagle          beagle
+     * @param sequenceIndices the index of the sequence in each partition
+     * @param nodeIndex       nodeIndex
      */
     private final void setStates(Beagle beagle,
-                                 int sequenceIndex,
+                                 int[] sequenceIndices,
                                  int nodeIndex) {
         int[] states = new int[patternCount];
 
         int k = 0;
 
-        for (PatternList patternList : patternLists) {
+        for (int i = 0; i < partitionCount; i++) {
+            PatternList patternList = patternLists.get(i);
             for (int j = 0; j < patternList.getPatternCount(); j++) {
-                states[k] = patternList.getPatternState(sequenceIndex, j);
+                states[k] = patternList.getPatternState(sequenceIndices[i], j);
                 k++;
             }
         }
@@ -701,9 +751,9 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 
             makeDirty();
 
-        } else if (siteRateModels.contains(model)) {
+        } else if (model == siteRateModel) {
 
-            updateSiteModel[siteRateModels.indexOf(model)] = true;
+            updateSiteModel = true;
             updateAllNodes();
 
         } else if (model == tipStatesModel) {
@@ -724,10 +774,8 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     @Override
     public void makeDirty() {
         super.makeDirty();
-        for (int i = 0; i < partitionCount; i++) {
-            updateSubstitutionModel[i] = true;
-            updateSiteModel[i] = true;
-        }
+        updateSubstitutionModel = true;
+        updateSiteModel = true;
         updateRestrictedNodePartials = true;
     }
 // **************************************************************
@@ -739,9 +787,9 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
      */
     protected void storeState() {
         partialBufferHelper.storeState();
-        for (SubstitutionModelDelegate substitutionModelDelegate : substitutionModelDelegates) {
-            substitutionModelDelegate.storeState();
-        }
+        substitutionModelDelegate.storeState();
+        System.arraycopy(partitionLogLikelihoods, 0, storedPartitionLogLikelihoods, 0, partitionCount);
+        storedPartitionLogLikelihoodsKnown = partitionLogLikelihoodsKnown;
 
         if (useScaleFactors || useAutoScaling) { // Only store when actually used
             scaleBufferHelper.storeState();
@@ -757,15 +805,17 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
      * Restore the additional stored state
      */
     protected void restoreState() {
-        for (int i = 0; i < partitionCount; i++) {
-            // this is required to upload the categoryRates to BEAGLE after the restore
-            updateSiteModel[i] = true;
-        }
+        // this is required to upload the categoryRates to BEAGLE after the restore
+        updateSiteModel = true;
 
         partialBufferHelper.restoreState();
-        for (SubstitutionModelDelegate substitutionModelDelegate : substitutionModelDelegates) {
-            substitutionModelDelegate.restoreState();
-        }
+        substitutionModelDelegate.restoreState();
+        double[] tmpLogLikelihoods = storedPartitionLogLikelihoods;
+        storedPartitionLogLikelihoods = partitionLogLikelihoods;
+        partitionLogLikelihoods = tmpLogLikelihoods;
+        partitionLogLikelihoodsKnown = storedPartitionLogLikelihoodsKnown;
+        // BEAGLE's site likelihoods are those of the rejected state
+        siteLogLikelihoodsKnown = false;
 
         if (useScaleFactors || useAutoScaling) {
             scaleBufferHelper.restoreState();
@@ -860,30 +910,22 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
         final NodeRef root = treeModel.getRoot();
         traverse(treeModel, root, null, true);
 
-        for (int i = 0; i < partitionCount; i++) {
-            if (updateSubstitutionModel[i]) {
-                // TODO More efficient to update only the substitution model that changed, instead of all
-                substitutionModelDelegates[i].updateSubstitutionModels(beagle);
-
-                // we are currently assuming a no-category model...
-            }
+        if (updateSubstitutionModel) {
+            substitutionModelDelegate.updateSubstitutionModels(beagle);
+        }
 
-            if (updateSiteModel[i]) {
-                double[] categoryRates = this.siteRateModels.get(i).getCategoryRates();
-                beagle.setCategoryRates(categoryRates);
-                // TODO needs category rates for each partition...
-//                beagle.setCategoryRates(i, categoryRates);
-            }
+        if (updateSiteModel) {
+            double[] categoryRates = this.siteRateModel.getCategoryRates();
+            beagle.setCategoryRates(categoryRates);
         }
 
         if (branchUpdateCount > 0) {
-            for (SubstitutionModelDelegate substitutionModelDelegate : substitutionModelDelegates) {
-                substitutionModelDelegate.updateTransitionMatrices(
-                        beagle,
-                        branchUpdateIndices,
-                        branchLengths,
-                        branchUpdateCount);
-            }
+            // the one set of matrices serves all the partitions
+            substitutionModelDelegate.updateTransitionMatrices(
+                    beagle,
+                    branchUpdateIndices,
+                    branchLengths,
+                    branchUpdateCount);
         }
 
         if (COUNT_TOTAL_OPERATIONS) {
@@ -907,7 +949,11 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                     }
                 }
             } else {
-                beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
+                if (operationScheduler != null) {
+                    operationScheduler.updatePartials(beagle, operations[0], operationCount[0], Beagle.NONE);
+                } else {
+                    beagle.updatePartials(operations[0], operationCount[0], Beagle.NONE);
+                }
             }
 
             int cumulateScaleBufferIndex = Beagle.NONE;
@@ -925,16 +971,14 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                 beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, Beagle.NONE);
             }
 
-            for (int i = 0; i < partitionCount; i++) {
-                double[] categoryWeights = this.siteRateModels.get(i).getCategoryProportions();
+            double[] categoryWeights = this.siteRateModel.getCategoryProportions();
 
-                // This should probably explicitly be the state frequencies for the root node...
-                double[] frequencies = substitutionModelDelegates[i].getRootStateFrequencies();
+            // This should probably explicitly be the state frequencies for the root node...
+            double[] frequencies = substitutionModelDelegate.getRootStateFrequencies();
 
-                // these could be set only when they change but store/restore would need to be considered
-                beagle.setCategoryWeights(i, categoryWeights);
-                beagle.setStateFrequencies(i, frequencies);
-            }
+            // these could be set only when they change but store/restore would need to be considered
+            beagle.setCategoryWeights(0, categoryWeights);
+            beagle.setStateFrequencies(0, frequencies);
 
             double[] sumLogLikelihoods = new double[1];
 
@@ -992,8 +1036,18 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 
         } while (!done);
 
-        // If these are needed...
-        //beagle.getSiteLogLikelihoods(patternLogLikelihoods);
+        if (partitionCount > 1 && !Double.isInfinite(logL)) {
+            // summed from the site likelihoods only when they are asked for (i.e., logged) as getting them
+            // from BEAGLE is a copy of every pattern
+            partitionLogLikelihoodsKnown = false;
+        } else if (partitionCount > 1) {
+            Arrays.fill(partitionLogLikelihoods, Double.NEGATIVE_INFINITY);
+            partitionLogLikelihoodsKnown = true;
+        } else {
+            partitionLogLikelihoods[0] = logL;
+            partitionLogLikelihoodsKnown = true;
+        }
+        siteLogLikelihoodsKnown = true;
 
         //********************************************************************
         // after traverse all nodes and patterns have been updated --
@@ -1002,15 +1056,70 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
             updateNode[i] = false;
         }
 
-        for (int i = 0; i < partitionCount; i++) {
-            updateSubstitutionModel[i] = false;
-            updateSiteModel[i] = false;
-        }
+        updateSubstitutionModel = false;
+        updateSiteModel = false;
         //********************************************************************
 
         return logL;
     }
 
+    /**
+     * Sums the likelihood of each partition from the likelihoods of its patterns.
+     */
+    private void updatePartitionLogLikelihoods() {
+        if (hasSiteLogLikelihoods) {
+            try {
+                if (!siteLogLikelihoodsKnown) {
+                    calculateRootLogLikelihoods();
+                }
+                beagle.getSiteLogLikelihoods(patternLogLikelihoods);
+            } catch (UnsupportedOperationException uoe) {
+                // the Java implementation of BEAGLE doesn't keep the site likelihoods (and its scale
+                // factors are not kept per pattern either) so only the total can be given
+                Logger.getLogger("dr.evomodel").info("The likelihoods of the partitions in " + getId() +
+                        " are not available from this BEAGLE implementation and will not be logged");
+                hasSiteLogLikelihoods = false;
+            }
+        }
+
+        if (!hasSiteLogLikelihoods) {
+            Arrays.fill(partitionLogLikelihoods, Double.NaN);
+            return;
+        }
+
+        int k = 0;
+        for (int i = 0; i < partitionCount; i++) {
+            double partitionLogL = 0.0;
+            for (int j = 0; j < patternCounts[i]; j++) {
+                partitionLogL += patternLogLikelihoods[k] * patternWeights[k];
+                k++;
+            }
+            partitionLogLikelihoods[i] = partitionLogL;
+        }
+    }
+
+    /**
+     * Recomputes the root likelihoods of the current state from the partials BEAGLE already holds, so that its site
+     * likelihoods are those of this state again after a restore.
+     */
+    private void calculateRootLogLikelihoods() {
+        int cumulateScaleBufferIndex = Beagle.NONE;
+        if (useScaleFactors) {
+            cumulateScaleBufferIndex = scaleBufferHelper.getOffsetIndex(internalNodeCount);
+        } else if (useAutoScaling) {
+            beagle.accumulateScaleFactors(scaleBufferIndices, internalNodeCount, Beagle.NONE);
+        }
+
+        beagle.setCategoryWeights(0, siteRateModel.getCategoryProportions());
+        beagle.setStateFrequencies(0, substitutionModelDelegate.getRootStateFrequencies());
+
+        int rootIndex = partialBufferHelper.getOffsetIndex(treeModel.getRoot().getNumber());
+        beagle.calculateRootLogLikelihoods(new int[]{rootIndex}, new int[]{0}, new int[]{0},
+                new int[]{cumulateScaleBufferIndex}, 1, new double[1]);
+
+        siteLogLikelihoodsKnown = true;
+    }
+
     public void getPartials(int number, double[] partials) {
         int cumulativeBufferIndex = Beagle.NONE;
         /* No need to rescale partials */
@@ -1108,9 +1217,7 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
             }
 
             if (flip) {
-                for (SubstitutionModelDelegate substitutionModelDelegate : substitutionModelDelegates) {
-                    substitutionModelDelegate.flipMatrixBuffer(nodeNum);
-                }
+                substitutionModelDelegate.flipMatrixBuffer(nodeNum);
             }
             branchUpdateIndices[branchUpdateCount] = nodeNum;
             branchLengths[branchUpdateCount] = branchLength;
@@ -1173,11 +1280,10 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
                     operations[x + 2] = Beagle.NONE;
                 }
 
-                // TODO not sure how these will work. Commented out to allow build.
                 operations[x + 3] = partialBufferHelper.getOffsetIndex(child1.getNumber()); // source node 1
-//                operations[x + 4] = substitutionModelDelegate.getMatrixIndex(child1.getNumber()); // source matrix 1
+                operations[x + 4] = substitutionModelDelegate.getMatrixIndex(child1.getNumber()); // source matrix 1
                 operations[x + 5] = partialBufferHelper.getOffsetIndex(child2.getNumber()); // source node 2
-//                operations[x + 6] = substitutionModelDelegate.getMatrixIndex(child2.getNumber()); // source matrix 2
+                operations[x + 6] = substitutionModelDelegate.getMatrixIndex(child2.getNumber()); // source matrix 2
 
                 operationCount[operationListCount]++;
 
@@ -1227,6 +1333,7 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
 //    private int[] restrictedIndices;
 
     protected BufferIndexHelper partialBufferHelper;
+    private OperationScheduler operationScheduler = null;
     protected BufferIndexHelper scaleBufferHelper;
 
     protected final int tipCount;
@@ -1249,19 +1356,24 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     private final BranchModel branchModel;
 
     /**
-     * A delegate to handle substitution models on branches
+     * A delegate to handle substitution models on branches, shared by all the partitions
      */
-    private final SubstitutionModelDelegate[] substitutionModelDelegates;
+    private final SubstitutionModelDelegate substitutionModelDelegate;
 
     /**
-     * the site model for these sites
+     * the patterns of each partition
      */
     private final List<PatternList> patternLists = new ArrayList<PatternList>();
 
+    /**
+     * the labels of the log columns of the partitions
+     */
+    private final String[] partitionNames;
+
     /**
      * the site model for these sites
      */
-    private final List<SiteRateModel> siteRateModels = new ArrayList<SiteRateModel>();
+    private final SiteRateModel siteRateModel;
 
     /**
      * the branch rate model
@@ -1293,6 +1405,16 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
      */
     private final double[] patternLogLikelihoods;
 
+    /**
+     * the likelihood of each partition
+     */
+    private double[] partitionLogLikelihoods;
+    private double[] storedPartitionLogLikelihoods;
+    private boolean partitionLogLikelihoodsKnown = false;
+    private boolean storedPartitionLogLikelihoodsKnown = false;
+    private boolean siteLogLikelihoodsKnown = false;
+    private boolean hasSiteLogLikelihoods = true;
+
     /**
      * the number of rate categories
      */
@@ -1316,12 +1438,12 @@ public class MultiPartitionTreeLikelihood extends AbstractTreeLikelihood impleme
     /**
      * Flag to specify that the substitution model has changed
      */
-    protected final boolean[] updateSubstitutionModel;
+    protected boolean updateSubstitutionModel;
 
     /**
      * Flag to specify that the site model has changed
      */
-    private final boolean[] updateSiteModel;
+    private boolean updateSiteModel;
 
     private final DataType dataType;
 
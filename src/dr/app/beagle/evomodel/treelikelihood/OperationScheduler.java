@@ -0,0 +1,165 @@
+/*
+ * OperationScheduler.java
+ *
+ * Copyright (C) 2002-2012 Alexei Drummond, Andrew Rambaut & Marc A. Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.evomodel.treelikelihood;
+
+import beagle.Beagle;
+
+/**
+ * Reorders a list of BEAGLE partials operations, as made by a post-order traversal, into levels. The operations
+ * in a level only read partials which are up to date or are written by an earlier level, so they can all be
+ * computed at the same time. Within a level the operations keep their post-order.
+ * <p/>
+ * This is only used if requested with -Dbeagle.operation.order=levels, in which case each level is handed to
+ * BEAGLE in its own updatePartials call. Otherwise the tree likelihoods pass the post-order list in one call.
+ */
+public class OperationScheduler {
+
+    /**
+     * @param bufferCount the number of partials buffers the operations refer to
+     */
+    public OperationScheduler(int bufferCount) {
+        bufferLevels = new int[bufferCount];
+        bufferBatches = new int[bufferCount];
+    }
+
+    /**
+     * Reorders the operations in place.
+     *
+     * @return the number of levels
+     */
+    public int schedule(int[] operations, int operationCount) {
+        batch++;
+
+        if (operationLevels.length < operationCount) {
+            operationLevels = new int[operationCount];
+            scheduled = new int[operationCount * Beagle.OPERATION_TUPLE_SIZE];
+        }
+
+        levelCount = 0;
+        for (int i = 0; i < operationCount; i++) {
+            final int x = i * Beagle.OPERATION_TUPLE_SIZE;
+            final int level = Math.max(getLevelAfter(operations[x + 3]), getLevelAfter(operations[x + 5]));
+
+            bufferLevels[operations[x]] = level;
+            bufferBatches[operations[x]] = batch;
+
+            operationLevels[i] = level;
+            if (level >= levelCount) {
+                levelCount = level + 1;
+            }
+        }
+
+        if (levelStarts.length < levelCount + 1) {
+            levelStarts = new int[levelCount + 1];
+        }
+
+        // a counting sort by level which keeps the post-order within each level
+        for (int level = 0; level <= levelCount; level++) {
+            levelStarts[level] = 0;
+        }
+        for (int i = 0; i < operationCount; i++) {
+            levelStarts[operationLevels[i] + 1]++;
+        }
+        for (int level = 0; level < levelCount; level++) {
+            levelStarts[level + 1] += levelStarts[level];
+        }
+
+        if (levelCount < operationCount) {
+            // there is nothing to move if every operation is on a level of its own
+            for (int i = 0; i < operationCount; i++) {
+                final int level = operationLevels[i];
+                System.arraycopy(operations, i * Beagle.OPERATION_TUPLE_SIZE,
+                        scheduled, levelStarts[level] * Beagle.OPERATION_TUPLE_SIZE, Beagle.OPERATION_TUPLE_SIZE);
+                levelStarts[level]++;
+            }
+            System.arraycopy(scheduled, 0, operations, 0, operationCount * Beagle.OPERATION_TUPLE_SIZE);
+
+            // the starts have been moved on to the ends of their levels
+            for (int level = levelCount; level > 0; level--) {
+                levelStarts[level] = levelStarts[level - 1];
+            }
+            levelStarts[0] = 0;
+        }
+
+        return levelCount;
+    }
+
+    /**
+     * Schedules the operations and computes them with one updatePartials call per level.
+     */
+    public void updatePartials(Beagle beagle, int[] operations, int operationCount, int cumulativeScaleIndex) {
+        if (operationCount == 0) {
+            return;
+        }
+        int levels = schedule(operations, operationCount);
+
+        // the first level is already at the start of the list
+        beagle.updatePartials(operations, levelStarts[1], cumulativeScaleIndex);
+
+        for (int level = 1; level < levels; level++) {
+            int count = levelStarts[level + 1] - levelStarts[level];
+            if (levelOperations.length < count * Beagle.OPERATION_TUPLE_SIZE) {
+                levelOperations = new int[count * Beagle.OPERATION_TUPLE_SIZE];
+            }
+            System.arraycopy(operations, levelStarts[level] * Beagle.OPERATION_TUPLE_SIZE,
+                    levelOperations, 0, count * Beagle.OPERATION_TUPLE_SIZE);
+            beagle.updatePartials(levelOperations, count, cumulativeScaleIndex);
+        }
+    }
+
+    /**
+     * @return the number of levels in the last list scheduled
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @return the index of the first operation in a level, or the operation count for the level after the last
+     */
+    public int getLevelStart(int level) {
+        return levelStarts[level];
+    }
+
+    // the first level an operation reading this buffer can be in
+    private int getLevelAfter(int buffer) {
+        if (buffer < bufferBatches.length && bufferBatches[buffer] == batch) {
+            return bufferLevels[buffer] + 1;
+        }
+        // tips and partials not written by this list
+        return 0;
+    }
+
+    private final int[] bufferLevels;
+    private final int[] bufferBatches;
+    private int batch = 0;
+
+    private int[] operationLevels = new int[0];
+    private int[] scheduled = new int[0];
+    private int[] levelStarts = new int[1];
+    private int[] levelOperations = new int[0];
+    private int levelCount = 0;
+}
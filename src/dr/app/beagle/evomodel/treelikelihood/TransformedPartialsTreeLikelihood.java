@@ -0,0 +1,307 @@
+/*
+ * TransformedPartialsTreeLikelihood.java
+ *
+ * Copyright (c) 2002-2014 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.beagle.evomodel.treelikelihood;
+
+import dr.app.beagle.evomodel.sitemodel.SiteRateModel;
+import dr.app.beagle.evomodel.substmodel.BaseSubstitutionModel;
+import dr.evolution.alignment.PatternList;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.branchratemodel.DefaultBranchRateModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Model;
+
+import java.util.logging.Logger;
+
+/**
+ * A tree likelihood that passes the partial likelihoods up each branch with the substitution model's
+ * transformPartials rather than with transition probability matrices, so the transition probabilities of the
+ * model are never formed. With Krylov subspace exponentials or a product chain this avoids the O(stateCount^3)
+ * eigen-decomposition and the O(stateCount^2) matrices of BEAGLE, which suits discrete traits with hundreds of
+ * states and few patterns. Other models fall back to their transition probabilities for each pattern, so
+ * BEAGLE is much faster for them.
+ */
+public class TransformedPartialsTreeLikelihood extends AbstractSinglePartitionTreeLikelihood {
+
+    public TransformedPartialsTreeLikelihood(PatternList patternList, TreeModel treeModel,
+                                             BaseSubstitutionModel substitutionModel, SiteRateModel siteRateModel,
+                                             BranchRateModel branchRateModel) {
+
+        super("TransformedPartialsTreeLikelihood", patternList, treeModel);
+
+        Logger logger = Logger.getLogger("dr.evomodel");
+        logger.info("Using a tree likelihood with transformed partials for " + stateCount + " states and " +
+                patternCount + " unique site patterns");
+
+        this.substitutionModel = substitutionModel;
+        addModel(substitutionModel);
+
+        this.siteRateModel = siteRateModel;
+        addModel(siteRateModel);
+
+        if (branchRateModel != null) {
+            this.branchRateModel = branchRateModel;
+            logger.info("  Branch rate model used: " + branchRateModel.getModelName());
+        } else {
+            this.branchRateModel = new DefaultBranchRateModel();
+        }
+        addModel(this.branchRateModel);
+
+        categoryCount = siteRateModel.getCategoryCount();
+
+        tipCount = treeModel.getExternalNodeCount();
+
+        // the tips are set once and share a buffer between the current and stored states
+        bufferHelper = new BufferIndexHelper(nodeCount, tipCount);
+        partials = new double[bufferHelper.getBufferCount()][];
+        scaleFactors = new double[bufferHelper.getBufferCount()][];
+        for (int i = 0; i < partials.length; i++) {
+            partials[i] = new double[categoryCount * patternCount * stateCount];
+            if (i >= tipCount) {
+                scaleFactors[i] = new double[patternCount];
+            }
+        }
+
+        for (int i = 0; i < tipCount; i++) {
+            String id = treeModel.getTaxonId(i);
+            int index = patternList.getTaxonIndex(id);
+            if (index == -1) {
+                throw new RuntimeException("Taxon, " + id + ", in tree, " + treeModel.getId() +
+                        ", is not found in patternList, " + patternList.getId());
+            }
+            setTipPartials(index, partials[i]);
+        }
+
+        transformed = new double[stateCount];
+        operand = new double[stateCount];
+
+        hasInitialized = true;
+    }
+
+    // the partials of a tip are one for each state in its state set, replicated for each category
+    private void setTipPartials(int sequenceIndex, double[] tipPartials) {
+        int v = 0;
+        for (int i = 0; i < patternCount; i++) {
+            boolean[] stateSet = dataType.getStateSet(patternList.getPatternState(sequenceIndex, i));
+            for (int j = 0; j < stateCount; j++) {
+                tipPartials[v] = (stateSet[j] ? 1.0 : 0.0);
+                v++;
+            }
+        }
+
+        int n = patternCount * stateCount;
+        for (int i = 1; i < categoryCount; i++) {
+            System.arraycopy(tipPartials, 0, tipPartials, i * n, n);
+        }
+    }
+
+    // **************************************************************
+    // ModelListener IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+
+        fireModelChanged();
+
+        if (model == treeModel) {
+            if (object instanceof TreeModel.TreeChangedEvent) {
+                if (((TreeModel.TreeChangedEvent) object).isNodeChanged()) {
+                    updateNodeAndChildren(((TreeModel.TreeChangedEvent) object).getNode());
+                } else if (((TreeModel.TreeChangedEvent) object).isTreeChanged()) {
+                    updateAllNodes();
+                }
+            }
+
+        } else if (model == branchRateModel) {
+            if (index == -1) {
+                updateAllNodes();
+            } else {
+                updateNode(treeModel.getNode(index));
+            }
+
+        } else if (model == substitutionModel || model == siteRateModel) {
+            updateAllNodes();
+
+        } else {
+            throw new RuntimeException("Unknown componentChangedEvent");
+        }
+
+        super.handleModelChangedEvent(model, object, index);
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
+
+    protected void storeState() {
+        bufferHelper.storeState();
+        super.storeState();
+    }
+
+    protected void restoreState() {
+        bufferHelper.restoreState();
+        super.restoreState();
+    }
+
+    // **************************************************************
+    // Likelihood IMPLEMENTATION
+    // **************************************************************
+
+    protected double calculateLogLikelihood() {
+
+        final NodeRef root = treeModel.getRoot();
+        traverse(root);
+
+        final double[] rootPartials = partials[bufferHelper.getOffsetIndex(root.getNumber())];
+        final double[] rootScaleFactors = scaleFactors[bufferHelper.getOffsetIndex(root.getNumber())];
+        final double[] frequencies = substitutionModel.getFrequencyModel().getFrequencies();
+        final double[] proportions = siteRateModel.getCategoryProportions();
+
+        double logL = 0.0;
+        for (int k = 0; k < patternCount; k++) {
+            double sum = 0.0;
+            for (int c = 0; c < categoryCount; c++) {
+                int v = (c * patternCount + k) * stateCount;
+                double categorySum = 0.0;
+                for (int i = 0; i < stateCount; i++) {
+                    categorySum += frequencies[i] * rootPartials[v + i];
+                }
+                sum += proportions[c] * categorySum;
+            }
+            logL += patternWeights[k] * (Math.log(sum) + rootScaleFactors[k]);
+        }
+
+        for (int i = 0; i < nodeCount; i++) {
+            updateNode[i] = false;
+        }
+
+        return logL;
+    }
+
+    /**
+     * Traverse the tree calculating partial likelihoods.
+     *
+     * @return whether the partials for this node were recalculated.
+     */
+    private boolean traverse(NodeRef node) {
+
+        final int nodeNum = node.getNumber();
+        if (treeModel.isExternal(node)) {
+            return updateNode[nodeNum];
+        }
+
+        boolean update = updateNode[nodeNum];
+        for (int i = 0; i < treeModel.getChildCount(node); i++) {
+            if (traverse(treeModel.getChild(node, i))) {
+                update = true;
+            }
+        }
+
+        if (update) {
+            bufferHelper.flipOffset(nodeNum);
+            final double[] nodePartials = partials[bufferHelper.getOffsetIndex(nodeNum)];
+            final double[] nodeScaleFactors = scaleFactors[bufferHelper.getOffsetIndex(nodeNum)];
+
+            for (int i = 0; i < treeModel.getChildCount(node); i++) {
+                NodeRef child = treeModel.getChild(node, i);
+                transformChildPartials(child, nodePartials, i == 0);
+            }
+
+            // each pattern is scaled by its largest partial so that deep trees do not underflow, and the log scale
+            // factors are summed over the subtree
+            for (int k = 0; k < patternCount; k++) {
+                double logScaleFactor = 0.0;
+                for (int i = 0; i < treeModel.getChildCount(node); i++) {
+                    NodeRef child = treeModel.getChild(node, i);
+                    if (!treeModel.isExternal(child)) {
+                        logScaleFactor += scaleFactors[bufferHelper.getOffsetIndex(child.getNumber())][k];
+                    }
+                }
+
+                double scale = 0.0;
+                for (int c = 0; c < categoryCount; c++) {
+                    int v = (c * patternCount + k) * stateCount;
+                    for (int j = 0; j < stateCount; j++) {
+                        scale = Math.max(scale, nodePartials[v + j]);
+                    }
+                }
+                if (scale > 0.0) {
+                    for (int c = 0; c < categoryCount; c++) {
+                        int v = (c * patternCount + k) * stateCount;
+                        for (int j = 0; j < stateCount; j++) {
+                            nodePartials[v + j] /= scale;
+                        }
+                    }
+                    logScaleFactor += Math.log(scale);
+                }
+                nodeScaleFactors[k] = logScaleFactor;
+            }
+        }
+
+        return update;
+    }
+
+    // sets (or multiplies) the node partials by the partials of the child carried up its branch
+    private void transformChildPartials(NodeRef child, double[] nodePartials, boolean first) {
+        final double[] childPartials = partials[bufferHelper.getOffsetIndex(child.getNumber())];
+        final double branchTime = branchRateModel.getBranchRate(treeModel, child) * treeModel.getBranchLength(child);
+        final double[] categoryRates = siteRateModel.getCategoryRates();
+
+        for (int c = 0; c < categoryCount; c++) {
+            final double distance = branchTime * categoryRates[c];
+            for (int k = 0; k < patternCount; k++) {
+                int v = (c * patternCount + k) * stateCount;
+                System.arraycopy(childPartials, v, operand, 0, stateCount);
+                substitutionModel.transformPartials(distance, operand, transformed);
+                for (int j = 0; j < stateCount; j++) {
+                    if (first) {
+                        nodePartials[v + j] = transformed[j];
+                    } else {
+                        nodePartials[v + j] *= transformed[j];
+                    }
+                }
+            }
+        }
+    }
+
+    // **************************************************************
+    // INSTANCE VARIABLES
+    // **************************************************************
+
+    private final BaseSubstitutionModel substitutionModel;
+    private final SiteRateModel siteRateModel;
+    private final BranchRateModel branchRateModel;
+
+    private final int categoryCount;
+    private final int tipCount;
+
+    private final BufferIndexHelper bufferHelper;
+    private final double[][] partials;
+    private final double[][] scaleFactors;
+
+    private final double[] operand;
+    private final double[] transformed;
+}
@@ -28,6 +28,7 @@ package dr.app.beauti.generator;
 import dr.app.beagle.evomodel.parsers.MarkovJumpsTreeLikelihoodParser;
 import dr.app.beauti.components.ComponentFactory;
 import dr.app.beauti.components.ancestralstates.AncestralStatesComponentOptions;
+import dr.app.beauti.components.sequenceerror.SequenceErrorModelComponentOptions;
 import dr.app.beauti.options.*;
 import dr.app.beauti.types.MicroSatModelType;
 import dr.app.beauti.util.XMLWriter;
@@ -47,12 +48,16 @@ import dr.evomodelxml.branchratemodel.StrictClockBranchRatesParser;
 import dr.evomodelxml.tree.MicrosatelliteSamplerTreeModelParser;
 import dr.evomodelxml.treelikelihood.AncestralStateTreeLikelihoodParser;
 import dr.evomodelxml.treelikelihood.MicrosatelliteSamplerTreeLikelihoodParser;
+import dr.evomodelxml.treelikelihood.MultiPartitionTreeLikelihoodParser;
 import dr.evomodelxml.treelikelihood.TreeLikelihoodParser;
 import dr.evoxml.AlignmentParser;
 import dr.evoxml.SitePatternsParser;
 import dr.util.Attribute;
 import dr.xml.XMLParser;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Alexei Drummond
  * @author Andrew Rambaut
@@ -81,6 +86,14 @@ public class TreeLikelihoodGenerator extends Generator {
             return; // DolloComponent will add tree likelihood
         }
 
+        List<PartitionData> sharedPartitions = getSharedPartitions(partition);
+        if (sharedPartitions != null) {
+            if (sharedPartitions.get(0) == partition) {
+                writeMultiPartitionTreeLikelihood(sharedPartitions, writer);
+            }
+            return; // the first of the partitions writes the likelihood for them all
+        }
+
         String treeLikelihoodTag = TreeLikelihoodParser.TREE_LIKELIHOOD;
         if (ancestralStatesOptions.usingAncestralStates(partition)) {
             treeLikelihoodTag = TreeLikelihoodParser.ANCESTRAL_TREE_LIKELIHOOD;
@@ -173,6 +186,50 @@ public class TreeLikelihoodGenerator extends Generator {
             writer.writeIDref(GammaSiteModel.SITE_MODEL, substModel.getPrefix() + SiteModel.SITE_MODEL);
         }
 
+        writeClockModelRef(clockModel, treeModel, writer);
+
+        generateInsertionPoint(ComponentGenerator.InsertionPoint.IN_TREE_LIKELIHOOD, partition, prefix, writer);
+
+        writer.writeCloseTag(tag);
+    }
+
+    /**
+     * Write a single likelihood for partitions which share a substitution model, a clock and a tree. They
+     * are computed together in one traversal of the tree and log their own likelihoods as before.
+     *
+     * @param partitions the partitions
+     * @param writer     the writer
+     */
+    private void writeMultiPartitionTreeLikelihood(List<PartitionData> partitions, XMLWriter writer) {
+
+        PartitionSubstitutionModel substModel = partitions.get(0).getPartitionSubstitutionModel();
+        PartitionTreeModel treeModel = partitions.get(0).getPartitionTreeModel();
+        PartitionClockModel clockModel = partitions.get(0).getPartitionClockModel();
+
+        writer.writeComment("Likelihood for tree given sequence data of several partitions");
+
+        writer.writeOpenTag(MultiPartitionTreeLikelihoodParser.MULTI_PARTITION_TREE_LIKELIHOOD, new Attribute[]{
+                new Attribute.Default<String>(XMLParser.ID, getMultiPartitionTreeLikelihoodId(partitions)),
+                new Attribute.Default<Boolean>(TreeLikelihoodParser.USE_AMBIGUITIES, substModel.isUseAmbiguitiesTreeLikelihood())
+        });
+
+        for (PartitionData partition : partitions) {
+            writer.writeOpenTag(MultiPartitionTreeLikelihoodParser.PARTITION,
+                    new Attribute.Default<String>(MultiPartitionTreeLikelihoodParser.NAME,
+                            partition.getPrefix() + TreeLikelihoodParser.TREE_LIKELIHOOD));
+            writer.writeIDref(SitePatternsParser.PATTERNS, partition.getPrefix() + SitePatternsParser.PATTERNS);
+            writer.writeCloseTag(MultiPartitionTreeLikelihoodParser.PARTITION);
+        }
+
+        writer.writeIDref(TreeModel.TREE_MODEL, treeModel.getPrefix() + TreeModel.TREE_MODEL);
+        writer.writeIDref(GammaSiteModel.SITE_MODEL, substModel.getPrefix() + SiteModel.SITE_MODEL);
+
+        writeClockModelRef(clockModel, treeModel, writer);
+
+        writer.writeCloseTag(MultiPartitionTreeLikelihoodParser.MULTI_PARTITION_TREE_LIKELIHOOD);
+    }
+
+    private void writeClockModelRef(PartitionClockModel clockModel, PartitionTreeModel treeModel, XMLWriter writer) {
         switch (clockModel.getClockType()) {
             case STRICT_CLOCK:
                 writer.writeIDref(StrictClockBranchRatesParser.STRICT_CLOCK_BRANCH_RATES, clockModel.getPrefix()
@@ -201,10 +258,62 @@ public class TreeLikelihoodGenerator extends Generator {
             default:
                 throw new IllegalArgumentException("Unknown clock model");
         }
+    }
 
-        generateInsertionPoint(ComponentGenerator.InsertionPoint.IN_TREE_LIKELIHOOD, partition, prefix, writer);
+    /**
+     * @return the partitions which share the substitution model, clock and tree of this one and can be
+     *         computed by a single tree likelihood, in the order of the data partitions, or null if there are none
+     */
+    private List<PartitionData> getSharedPartitions(AbstractPartitionData partition) {
+        if (!isSharable(partition)) {
+            return null;
+        }
 
-        writer.writeCloseTag(tag);
+        List<PartitionData> sharedPartitions = new ArrayList<PartitionData>();
+        for (AbstractPartitionData other : options.dataPartitions) {
+            if (isSharable(other) &&
+                    other.getPartitionSubstitutionModel() == partition.getPartitionSubstitutionModel() &&
+                    other.getPartitionClockModel() == partition.getPartitionClockModel() &&
+                    other.getPartitionTreeModel() == partition.getPartitionTreeModel()) {
+                sharedPartitions.add((PartitionData) other);
+            }
+        }
+        return (sharedPartitions.size() > 1 ? sharedPartitions : null);
+    }
+
+    private boolean isSharable(AbstractPartitionData partition) {
+        if (!options.multiPartitionTreeLikelihood || options.samplePriorOnly) {
+            return false;
+        }
+        if (!(partition instanceof PartitionData) || partition.getTaxonList() == null || partition.getTraits() != null ||
+                partition.getDataType().getType() == DataType.GENERAL ||
+                partition.getDataType().getType() == DataType.CONTINUOUS) {
+            return false;
+        }
+
+        PartitionSubstitutionModel model = partition.getPartitionSubstitutionModel();
+        if (model.isDolloModel() ||
+                (model.getDataType().getType() == DataType.NUCLEOTIDES && model.getCodonHeteroPattern() != null)) {
+            return false;
+        }
+
+        // these add to the tree likelihood of each partition
+        AncestralStatesComponentOptions ancestralStatesOptions = (AncestralStatesComponentOptions) options
+                .getComponentOptions(AncestralStatesComponentOptions.class);
+        if (ancestralStatesOptions.usingAncestralStates(partition)) {
+            return false;
+        }
+        SequenceErrorModelComponentOptions sequenceErrorOptions = (SequenceErrorModelComponentOptions) options
+                .getComponentOptions(SequenceErrorModelComponentOptions.class);
+        return !sequenceErrorOptions.usingSequenceErrorModel(partition);
+    }
+
+    private String getMultiPartitionTreeLikelihoodId(List<PartitionData> partitions) {
+        PartitionData partition = partitions.get(0);
+        String prefix = options.noDuplicatedPrefix(partition.getPartitionSubstitutionModel().getPrefix(),
+                partition.getPartitionClockModel().getPrefix());
+        prefix = options.noDuplicatedPrefix(prefix, partition.getPartitionTreeModel().getPrefix());
+        return prefix + MultiPartitionTreeLikelihoodParser.MULTI_PARTITION_TREE_LIKELIHOOD;
     }
 
     public void writeTreeLikelihoodReferences(XMLWriter writer) {
@@ -224,7 +333,13 @@ public class TreeLikelihoodGenerator extends Generator {
                 }
             }
 
-            if (partition.getTaxonList() != null) {
+            List<PartitionData> sharedPartitions = getSharedPartitions(partition);
+            if (sharedPartitions != null) {
+                if (sharedPartitions.get(0) == partition) {
+                    writer.writeIDref(MultiPartitionTreeLikelihoodParser.MULTI_PARTITION_TREE_LIKELIHOOD,
+                            getMultiPartitionTreeLikelihoodId(sharedPartitions));
+                }
+            } else if (partition.getTaxonList() != null) {
                 if (partition instanceof PartitionData && partition.getTraits() == null) {
                     // is an alignment data partition
                     PartitionSubstitutionModel substModel = partition.getPartitionSubstitutionModel();
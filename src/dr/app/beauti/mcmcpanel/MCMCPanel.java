@@ -62,6 +62,7 @@ public class MCMCPanel extends BeautiPanel {
     WholeNumberField logEveryField = new WholeNumberField(1, Integer.MAX_VALUE);
 
     JCheckBox samplePriorCheckBox = new JCheckBox("Sample from prior only - create empty alignment");
+    JCheckBox multiPartitionCheckBox = new JCheckBox("Compute partitions sharing a tree, substitution model and clock in a single tree likelihood");
     JCheckBox performMLE = new JCheckBox("Perform marginal likelihood estimation (MLE) using path sampling/stepping-stone sampling");
     JButton buttonMLE = new JButton("Settings");
     JCheckBox performMLEGSS = new JCheckBox("Perform marginal likelihood estimation (MLE) using generalized stepping-stone sampling");
@@ -264,6 +265,14 @@ public class MCMCPanel extends BeautiPanel {
             }
         });
 
+        optionsPanel.addComponent(multiPartitionCheckBox);
+        multiPartitionCheckBox.setOpaque(false);
+        multiPartitionCheckBox.addChangeListener(new ChangeListener() {
+            public void stateChanged(ChangeEvent changeEvent) {
+                frame.setDirty();
+            }
+        });
+
         optionsPanel.addSeparator();
 
         JTextArea mleInfo = new JTextArea("Select the option below to perform marginal likelihood " +
@@ -448,6 +457,7 @@ public class MCMCPanel extends BeautiPanel {
             samplePriorCheckBox.setVisible(true);
             samplePriorCheckBox.setSelected(options.samplePriorOnly);
         }
+        multiPartitionCheckBox.setSelected(options.multiPartitionTreeLikelihood);
 
         optionsPanel.validate();
         optionsPanel.repaint();
@@ -536,6 +546,7 @@ public class MCMCPanel extends BeautiPanel {
         options.operatorAnalysisFileName = operatorAnalysisFileNameField.getText();
 
         options.samplePriorOnly = samplePriorCheckBox.isSelected();
+        options.multiPartitionTreeLikelihood = multiPartitionCheckBox.isSelected();
 
         if (mleDialog != null) {
             mleDialog.getOptions(mleOptions);
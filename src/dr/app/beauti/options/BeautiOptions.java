@@ -131,6 +131,7 @@ public class BeautiOptions extends ModelOptions {
         performTraceAnalysis = false;
         generateCSV = true;  // until/if a button
         samplePriorOnly = false;
+        multiPartitionTreeLikelihood = true;
 
         fileNameStem = MCMCPanel.DEFAULT_FILE_NAME_STEM;
         logFileName = null;
@@ -1411,6 +1412,8 @@ public class BeautiOptions extends ModelOptions {
     public boolean performTraceAnalysis = false;
     public boolean generateCSV = true;  // until/if a button
     public boolean samplePriorOnly = false;
+    // partitions which share a substitution model, a clock and a tree get a single tree likelihood
+    public boolean multiPartitionTreeLikelihood = true;
 
     public String fileNameStem = MCMCPanel.DEFAULT_FILE_NAME_STEM;
     public String logFileName = null;
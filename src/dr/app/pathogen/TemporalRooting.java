@@ -33,6 +33,7 @@ import dr.stats.DiscreteStatistics;
 import dr.math.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 /*
  * @author Andrew Rambaut
@@ -68,6 +69,8 @@ public class TemporalRooting {
     private double dateMin;
     private double dateMax;
 
+    private static final int PARALLEL_NODE_COUNT = 2000;
+
     private int currentRootBranch = 0;
     private int totalRootBranches = 0;
 
@@ -263,7 +266,100 @@ public class TemporalRooting {
         return labels;
     }
 
-    private Tree findGlobalRoot(final Tree source, final double[] dates, RootingFunction rootingFunction, boolean forcePositiveRate) {
+    private Tree findGlobalRoot(final Tree source, final double[] dates, final RootingFunction rootingFunction, final boolean forcePositiveRate) {
+
+        if (useTargetRate || !Tree.Utils.isBinary(source)) {
+            return findGlobalRootExhaustively(source, dates, rootingFunction, forcePositiveRate);
+        }
+
+        // The regression for every candidate root branch is scored from sufficient statistics that are
+        // collected for all branches in two passes of the tree, so each branch costs O(1) per evaluation
+        // instead of a tree copy and a walk to every tip.
+        final BranchStatistics statistics = new BranchStatistics(source, dates);
+
+        final int nodeCount = source.getNodeCount();
+        totalRootBranches = nodeCount;
+        currentRootBranch = 0;
+
+        // candidates are scored in blocks (in parallel for large trees) and the first best in node order is kept,
+        // as for the exhaustive search
+        final int blockCount = (nodeCount < PARALLEL_NODE_COUNT ? 1 : Math.min(nodeCount / (PARALLEL_NODE_COUNT / 4),
+                4 * Runtime.getRuntime().availableProcessors()));
+        final int blockSize = (nodeCount + blockCount - 1) / blockCount;
+
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        for (int b = 0; b < blockCount; b++) {
+            final int from = b * blockSize;
+            final int to = Math.min(nodeCount, from + blockSize);
+            tasks.add(new Callable<double[]>() {
+                public double[] call() {
+                    double minF = Double.MAX_VALUE;
+                    int bestNode = -1;
+                    for (int i = from; i < to; i++) {
+                        if (statistics.isCandidate(i)) {
+                            double f = statistics.findLocalRoot(i, rootingFunction, forcePositiveRate);
+                            if (f < minF) {
+                                minF = f;
+                                bestNode = i;
+                            }
+                        }
+                        incrementCurrentRootBranch();
+                    }
+                    return new double[]{minF, bestNode};
+                }
+            });
+        }
+
+        double minF = statistics.findLocalRoot(-1, rootingFunction, forcePositiveRate);
+        int bestNode = -1;
+
+        List<double[]> results = new ArrayList<double[]>();
+        if (blockCount == 1) {
+            try {
+                results.add(tasks.get(0).call());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            try {
+                for (Future<double[]> future : pool.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            } catch (InterruptedException ie) {
+                throw new RuntimeException("Interrupted while finding the root");
+            } catch (ExecutionException ee) {
+                throw new RuntimeException(ee.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        for (double[] result : results) {
+            if (result[0] < minF) {
+                minF = result[0];
+                bestNode = (int) result[1];
+            }
+        }
+
+        // finally reroot a copy of the tree on the chosen branch and place the root exactly as the
+        // exhaustive search would have done
+        FlexibleTree bestTree = new FlexibleTree(source);
+        if (bestNode >= 0) {
+            NodeRef node = bestTree.getNode(bestNode);
+            double length = bestTree.getBranchLength(node);
+            bestTree.changeRoot(node, length * 0.5, length * 0.5);
+        }
+        findLocalRoot(bestTree, dates, rootingFunction, forcePositiveRate);
+
+        return bestTree;
+    }
+
+    private synchronized void incrementCurrentRootBranch() {
+        currentRootBranch++;
+    }
+
+    private Tree findGlobalRootExhaustively(final Tree source, final double[] dates, RootingFunction rootingFunction, boolean forcePositiveRate) {
 
         FlexibleTree bestTree = new FlexibleTree(source);
         double minF = findLocalRoot(bestTree, dates, rootingFunction, forcePositiveRate);
@@ -296,6 +392,279 @@ public class TemporalRooting {
         return bestTree;
     }
 
+    /**
+     * For every branch of a binary tree, the regression sufficient statistics of the tips on either side of it:
+     * count, sum of distances, sum of squared distances, sum of centred dates and sum of date-distance products,
+     * with the distances measured to the nearer end of the branch. Rooting on a branch at a given position only
+     * shifts the distances on each side by a constant so the regression can be scored without visiting the tips.
+     */
+    private class BranchStatistics {
+        private final int tipCount;
+        private final int rootNumber;
+        private final int rootChild1;
+        private final int rootChild2;
+        private final int[] parent;
+        private final int[] sibling;
+        private final double[] length;
+
+        private final double sumU;
+        private final double sumUU;
+        private final double sxx;
+
+        // below the node, distances to the node
+        private final double[][] down;
+        // everything not below the node, distances to the node's parent
+        private final double[][] up;
+
+        BranchStatistics(Tree tree, double[] dates) {
+            tipCount = tree.getExternalNodeCount();
+            int nodeCount = tree.getNodeCount();
+
+            rootNumber = tree.getRoot().getNumber();
+            rootChild1 = tree.getChild(tree.getRoot(), 0).getNumber();
+            rootChild2 = tree.getChild(tree.getRoot(), 1).getNumber();
+            parent = new int[nodeCount];
+            sibling = new int[nodeCount];
+            length = new double[nodeCount];
+            down = new double[nodeCount][];
+            up = new double[nodeCount][];
+
+            double meanDate = 0.0;
+            for (double date : dates) {
+                meanDate += date;
+            }
+            meanDate /= dates.length;
+
+            double[] u = new double[nodeCount];
+            double su = 0.0;
+            double suu = 0.0;
+            for (int i = 0; i < tipCount; i++) {
+                double ui = dates[i] - meanDate;
+                u[tree.getExternalNode(i).getNumber()] = ui;
+                su += ui;
+                suu += ui * ui;
+            }
+            sumU = su;
+            sumUU = suu;
+            sxx = suu - (su * su / tipCount);
+
+            // preorder without recursion as trees can be very unbalanced
+            NodeRef[] preorder = new NodeRef[nodeCount];
+            int count = 0;
+            Deque<NodeRef> stack = new ArrayDeque<NodeRef>();
+            stack.push(tree.getRoot());
+            while (!stack.isEmpty()) {
+                NodeRef node = stack.pop();
+                preorder[count] = node;
+                count++;
+                int k = node.getNumber();
+                NodeRef p = tree.getParent(node);
+                parent[k] = (p == null ? -1 : p.getNumber());
+                length[k] = (p == null ? 0.0 : tree.getBranchLength(node));
+                for (int j = 0; j < tree.getChildCount(node); j++) {
+                    NodeRef child = tree.getChild(node, j);
+                    sibling[child.getNumber()] = tree.getChild(node, 1 - j).getNumber();
+                    stack.push(child);
+                }
+            }
+
+            for (int i = nodeCount - 1; i >= 0; i--) {
+                NodeRef node = preorder[i];
+                int k = node.getNumber();
+                if (tree.isExternal(node)) {
+                    down[k] = new double[]{1.0, 0.0, 0.0, u[k], 0.0};
+                } else {
+                    double[] stats = new double[5];
+                    for (int j = 0; j < tree.getChildCount(node); j++) {
+                        int c = tree.getChild(node, j).getNumber();
+                        addShifted(stats, down[c], length[c]);
+                    }
+                    down[k] = stats;
+                }
+            }
+
+            for (int i = 0; i < nodeCount; i++) {
+                int k = preorder[i].getNumber();
+                int p = parent[k];
+                if (p >= 0) {
+                    double[] stats = new double[5];
+                    addShifted(stats, down[sibling[k]], length[sibling[k]]);
+                    if (parent[p] >= 0) {
+                        addShifted(stats, up[p], length[p]);
+                    }
+                    up[k] = stats;
+                }
+            }
+        }
+
+        private void addShifted(double[] stats, double[] source, double shift) {
+            stats[0] += source[0];
+            stats[1] += source[1] + shift * source[0];
+            stats[2] += source[2] + 2.0 * shift * source[1] + shift * shift * source[0];
+            stats[3] += source[3];
+            stats[4] += source[4] + shift * source[3];
+        }
+
+        /**
+         * Rerooting above the root's children leaves the tree unchanged so only the other branches are candidates.
+         */
+        boolean isCandidate(int node) {
+            return parent[node] >= 0 && parent[node] != rootNumber;
+        }
+
+        /**
+         * Scores the best position of the root on the branch above the given node or, if node is -1, on the
+         * existing root branch, mirroring findLocalRoot on the rerooted tree.
+         */
+        double findLocalRoot(int node, RootingFunction rootingFunction, boolean forcePositiveRate) {
+            final double[] side1;
+            final double[] side2;
+            final double length1;
+            final double length2;
+            if (node < 0) {
+                // the existing root: child 0 and child 1 keep their lengths (the analytical solution is not
+                // symmetric in the two sides so they must be in the tree's order)
+                side1 = down[rootChild1];
+                side2 = down[rootChild2];
+                length1 = length[rootChild1];
+                length2 = length[rootChild2];
+            } else {
+                // changeRoot makes the node child 0 and its old parent child 1, halving the branch
+                side1 = down[node];
+                side2 = up[node];
+                length1 = length[node] * 0.5;
+                length2 = length[node] * 0.5;
+            }
+            return new BranchFunction(side1, side2, length1, length2, rootingFunction, forcePositiveRate).findMinimum();
+        }
+
+        private class BranchFunction implements UnivariateFunction {
+            private final double[] side1;
+            private final double[] side2;
+            private final double length1;
+            private final double length2;
+            private final double sumLength;
+            private final RootingFunction rootingFunction;
+            private final boolean forcePositiveRate;
+
+            // set by the last call to score
+            private double gradient;
+            private double correlation;
+            private double residualMeanSquared;
+            private double variance;
+
+            BranchFunction(double[] side1, double[] side2, double length1, double length2,
+                           RootingFunction rootingFunction, boolean forcePositiveRate) {
+                this.side1 = side1;
+                this.side2 = side2;
+                this.length1 = length1;
+                this.length2 = length2;
+                this.sumLength = length1 + length2;
+                this.rootingFunction = rootingFunction;
+                this.forcePositiveRate = forcePositiveRate;
+            }
+
+            double findMinimum() {
+                if (rootingFunction == RootingFunction.RESIDUAL_MEAN_SQUARED) {
+                    return findAnalyticalMinimum();
+                }
+                UnivariateMinimum minimum = new UnivariateMinimum();
+                minimum.findMinimum(this);
+                return minimum.fminx;
+            }
+
+            // regression of the root to tip distances against date with the tips on each side shifted
+            private void score(double shift1, double shift2) {
+                final int n = tipCount;
+                double sy = side1[1] + side1[0] * shift1 + side2[1] + side2[0] * shift2;
+                double syy = side1[2] + 2.0 * shift1 * side1[1] + shift1 * shift1 * side1[0] +
+                        side2[2] + 2.0 * shift2 * side2[1] + shift2 * shift2 * side2[0];
+                double suy = side1[4] + shift1 * side1[3] + side2[4] + shift2 * side2[3];
+
+                double syyC = syy - (sy * sy / n);
+                double sxy = suy - (sumU * sy / n);
+
+                gradient = sxy / sxx;
+                correlation = sxy / Math.sqrt(sxx * syyC);
+                residualMeanSquared = (syyC - (sxy * sxy / sxx)) / (n - 2);
+                variance = syyC / (n < 2 ? 1 : n - 1);
+            }
+
+            public double evaluate(double argument) {
+                score(argument * sumLength, (1.0 - argument) * sumLength);
+
+                double score;
+                if (!contemporaneous) {
+                    switch (rootingFunction) {
+
+                        case CORRELATION:
+                            score = -correlation;
+                            break;
+                        case R_SQUARED:
+                            score = -(correlation * correlation);
+                            break;
+                        case HEURISTIC_RESIDUAL_MEAN_SQUARED:
+                        case RESIDUAL_MEAN_SQUARED:
+                            score = residualMeanSquared;
+                            break;
+                        default:
+                            throw new RuntimeException("Unknown enum value");
+                    }
+
+                    if (forcePositiveRate) {
+                        score = (gradient < 0.0 ? -score : score);
+                    }
+
+                } else {
+                    score = variance;
+                }
+
+                return score;
+            }
+
+            // findAnalyticalLocalRoot expanded in terms of the sufficient statistics
+            private double findAnalyticalMinimum() {
+                int N = tipCount;
+                int n = (int) side1[0];
+
+                double sumY1 = side1[1] + side1[0] * length1;
+                double sumY2 = side2[1] + side2[0] * length2;
+                double sum_y = sumY1 + sumY2;
+                double sum_uy = side1[4] + length1 * side1[3] + side2[4] + length2 * side2[3];
+                double y_bar = sum_y / N;
+
+                double C = sxx;
+                double g = 2 * ((N * side1[3]) - (n * sumU)) / (C * N);
+                double h = ((N * sum_uy) - (sumU * sum_y)) / (C * N);
+
+                double k = (2 * n - N) / N;
+                double e1 = 2 - k - 1;
+                double e2 = -k - 1;
+
+                double sumEY = e1 * (sumY1 - side1[0] * y_bar) + e2 * (sumY2 - side2[0] * y_bar);
+                double sumEW = -(e1 * side1[3] + e2 * side2[3]);
+                double sumWY = -(sum_uy - y_bar * sumU);
+
+                double sumAB = sumEY + h * sumEW + g * sumWY + g * h * sumUU;
+                double sumAA = e1 * e1 * side1[0] + e2 * e2 * side2[0] + 2 * g * sumEW + g * g * sumUU;
+
+                double x = - sumAB / sumLength * sumAA;
+                x = Math.min(Math.max(x, 0.0), 1.0);
+
+                score(x * sumLength, (1.0 - x) * sumLength);
+                return residualMeanSquared;
+            }
+
+            public double getLowerBound() {
+                return 0;
+            }
+
+            public double getUpperBound() {
+                return 1.0;
+            }
+        }
+    }
+
     private double findLocalRoot(final FlexibleTree tree,
                                  final double[] dates,
                                  final RootingFunction rootingFunction,
@@ -29,6 +29,12 @@ import dr.stats.DiscreteStatistics;
 import jebl.evolution.trees.RootedTree;
 import jebl.evolution.graphs.Node;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static dr.app.phylogeography.tools.KMLSliceWriter.writeBuffer;
+
 /**
  * @author Philippe Lemey
  * @author Andrew Rambaut
@@ -192,6 +198,11 @@ public class ContinuousKML {
     StringBuffer treeSliceBuffer = new StringBuffer();
     StringBuffer contourSliceBuffer = new StringBuffer();
 
+    // the slices whose contours writeKML computes and writes straight to its writer
+    double[] contourSliceTimes = null;
+    boolean contourSliceMidPoint;
+    int contourSliceThreadCount;
+
     double totalHPDarea;
 
     public ContinuousKML(){
@@ -944,11 +955,54 @@ public class ContinuousKML {
 
         heightMinAndMax = getHeightMinAndMax(treeToExport);
 
+        writeTreeSlice(time, treeSliceBranchWidth, showBranchAtMidPoint, treeSliceBuffer, styleBuffer);
+        writeContourSlice(time, showBranchAtMidPoint, contourSliceBuffer);
+    }
+
+    /**
+     * Writes the tree slices for several times, computing them on a pool of threads. The branches of the slices and
+     * their styles are added to the buffers in the order of the times. The contours of the slices come last in the
+     * document, so writeKML computes them on the pool in turn and writes each straight to its writer.
+     */
+    public void writeTreeToKML(double[] times, final double treeSliceBranchWidth, final boolean showBranchAtMidPoint,
+                               int threadCount) {
+
+        heightMinAndMax = getHeightMinAndMax(treeToExport);
+
+        try {
+            new KMLSliceWriter(2) {
+                protected void writeSlice(double time, StringBuffer[] parts) {
+                    writeTreeSlice(time, treeSliceBranchWidth, showBranchAtMidPoint, parts[0], parts[1]);
+                }
+
+                protected void addSlice(StringBuffer[] parts) {
+                    treeSliceBuffer.append(parts[0]);
+                    styleBuffer.append(parts[1]);
+                }
+            }.writeSlices(times, threadCount);
+        } catch (IOException ioe) {
+            // cannot happen when adding to the buffers
+            throw new RuntimeException(ioe);
+        }
+
+        contourSliceTimes = times;
+        contourSliceMidPoint = showBranchAtMidPoint;
+        contourSliceThreadCount = threadCount;
+    }
+
+    // whether the branch above the node is shown in the slice at the given time
+    private boolean isInSlice(Node node, double time, boolean showBranchAtMidPoint) {
+        double nodeHeight = treeToExport.getHeight(node);
+        double parentHeight = treeToExport.getHeight(treeToExport.getParent(node));
+        return ((parentHeight > time) && !(showBranchAtMidPoint)) || (showBranchAtMidPoint && (time < ((nodeHeight+((parentHeight-nodeHeight)/2.0)))));
+    }
+
+    // only reads the tree and the settings, so slices can be written concurrently into separate buffers
+    private void writeTreeSlice(double time, double treeSliceBranchWidth, boolean showBranchAtMidPoint,
+                                StringBuffer treeSliceBuffer, StringBuffer styleBuffer) {
+
         treeSliceBuffer.append("\t<Folder>\r");
         treeSliceBuffer.append("\t\t\t<name>tree"+ time +"</name>\r");
-        contourSliceBuffer.append("\t<Folder>\r");
-        contourSliceBuffer.append("\t\t\t<name>contours"+ time +"</name>\r");
-
 
         int nodeNumber = 0;
         for (Node node : treeToExport.getNodes()) {
@@ -972,7 +1026,7 @@ public class ContinuousKML {
                         longitude = parentLongitude + (longitude-parentLongitude)*((parentHeight-time)/(parentHeight-nodeHeight));
                     }
                 }
-                if (((parentHeight > time) && !(showBranchAtMidPoint)) || (showBranchAtMidPoint && (time < ((nodeHeight+((parentHeight-nodeHeight)/2.0)))))) {
+                if (isInSlice(node, time, showBranchAtMidPoint)) {
 
                     treeSliceBuffer.append("\t\t<Placemark>\r");
 
@@ -997,172 +1051,213 @@ public class ContinuousKML {
                     styleBuffer.append("\t\t</LineStyle>\r");
                     styleBuffer.append("\t</Style>\r");
 
-                    appendContour(contourSliceBuffer, treeToExport, node, nodeNumber, plotHeight, mostRecentDate, traitName, latitudeName, longitudeName, true, iniVisi_groundContours, locationHPDpercentage, ancient);
-
                 }
 
             }
             nodeNumber ++;
         }
         treeSliceBuffer.append("\t</Folder>\r");
+
+    }
+
+    // only reads the tree and the settings, so slices can be written concurrently into separate buffers
+    private void writeContourSlice(double time, boolean showBranchAtMidPoint, StringBuffer contourSliceBuffer) {
+
+        contourSliceBuffer.append("\t<Folder>\r");
+        contourSliceBuffer.append("\t\t\t<name>contours"+ time +"</name>\r");
+
+        int nodeNumber = 0;
+        for (Node node : treeToExport.getNodes()) {
+            if (!treeToExport.isRoot(node) && isInSlice(node, time, showBranchAtMidPoint)) {
+                appendContour(contourSliceBuffer, treeToExport, node, nodeNumber, plotHeight, mostRecentDate, traitName, latitudeName, longitudeName, true, iniVisi_groundContours, locationHPDpercentage, ancient);
+            }
+            nodeNumber ++;
+        }
         contourSliceBuffer.append("\t</Folder>\r");
 
     }
 
     public void compileBuffer(StringBuffer buffer, boolean makeTreeSlices) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeKML(writer, makeTreeSlices);
+        } catch (IOException ioe) {
+            // cannot happen with a StringWriter
+            throw new RuntimeException(ioe);
+        }
+        buffer.append(writer.getBuffer());
+    }
+
+    /**
+     * Writes the KML document to the writer one part at a time. The parts are still held in their buffers until
+     * then, but they are not copied again into a buffer for the whole document.
+     */
+    public void writeKML(Writer out, boolean makeTreeSlices) throws IOException {
 
-        buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r");
-        buffer.append("<kml xmlns=\"http://earth.google.com/kml/2.2\">\r");
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r");
+        out.write("<kml xmlns=\"http://earth.google.com/kml/2.2\">\r");
 
-        buffer.append("<Document>\r");
+        out.write("<Document>\r");
 
-        buffer.append("\t<name>"+documentName+"</name>\r");
-        buffer.append(styleBuffer);
+        out.write("\t<name>"+documentName+"</name>\r");
+        writeBuffer(out, styleBuffer);
 
         if (!makeTreeSlices) {
 
-            buffer.append("\t<Style id=\"diamondStyle\">\r");
-            buffer.append("\t\t<LineStyle>\r");
-            buffer.append("\t\t\t<width>0.5</width>\r");
-            buffer.append("\t\t</LineStyle>\r");
-            buffer.append("\t\t<PolyStyle>\r");
-            buffer.append("\t\t\t<color>7d00ffff</color>\r");
-            buffer.append("\t\t\t<fill>0</fill>\r");
-            buffer.append("\t\t</PolyStyle>\r");
-            buffer.append("\t</Style>\r");
-
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t<name>triangle tree</name>\r");
-            buffer.append("\t<description>tree out of surface with node heights proportional to time</description>\r");
-            buffer.append(triangleTreeBuffer);
-            buffer.append("\t</Folder>\r");
-
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t<name>rectangle tree</name>\r");
-            buffer.append("\t<description>tree out of surface with branch lengths (and node heights) proportional to time</description>\r");
-
-            buffer.append(rectangleTreeBuffer);
-            buffer.append("\t</Folder>\r");
-
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t<name>surface tree</name>\r");
-            buffer.append("\t<description>tree on the surface interconnecting inferred and sampled locations</description>\r");
-            buffer.append(surfaceTreeBuffer);
-            buffer.append("\t</Folder>\r");
+            out.write("\t<Style id=\"diamondStyle\">\r");
+            out.write("\t\t<LineStyle>\r");
+            out.write("\t\t\t<width>0.5</width>\r");
+            out.write("\t\t</LineStyle>\r");
+            out.write("\t\t<PolyStyle>\r");
+            out.write("\t\t\t<color>7d00ffff</color>\r");
+            out.write("\t\t\t<fill>0</fill>\r");
+            out.write("\t\t</PolyStyle>\r");
+            out.write("\t</Style>\r");
+
+            out.write("\t<Folder>\r");
+            out.write("\t<name>triangle tree</name>\r");
+            out.write("\t<description>tree out of surface with node heights proportional to time</description>\r");
+            writeBuffer(out, triangleTreeBuffer);
+            out.write("\t</Folder>\r");
+
+            out.write("\t<Folder>\r");
+            out.write("\t<name>rectangle tree</name>\r");
+            out.write("\t<description>tree out of surface with branch lengths (and node heights) proportional to time</description>\r");
+
+            writeBuffer(out, rectangleTreeBuffer);
+            out.write("\t</Folder>\r");
+
+            out.write("\t<Folder>\r");
+            out.write("\t<name>surface tree</name>\r");
+            out.write("\t<description>tree on the surface interconnecting inferred and sampled locations</description>\r");
+            writeBuffer(out, surfaceTreeBuffer);
+            out.write("\t</Folder>\r");
 
             int visibility_projections;
             if (iniVisi_projections) { visibility_projections = 1; } else { visibility_projections = 0; }
 
-            buffer.append("\t<Placemark>\r");
-            buffer.append("\t\t<name>projections</name>\r");
-            buffer.append("\t\t<description>projections from tips to surface</description>\r");
-            buffer.append("\t\t<visibility>"+visibility_projections+"</visibility>\r");
-            buffer.append("\t\t<MultiGeometry>\r");
-            buffer.append(projectionsBuffer);
-            buffer.append("\t\t</MultiGeometry>\r");
-            buffer.append("\t</Placemark>\r");
-
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t\t<name>Taxon labels</name>\r");
-            buffer.append("\t\t<description>Taxon Labels</description>\r");
-            buffer.append(taxaBuffer);
-            buffer.append("\t</Folder>\r");
+            out.write("\t<Placemark>\r");
+            out.write("\t\t<name>projections</name>\r");
+            out.write("\t\t<description>projections from tips to surface</description>\r");
+            out.write("\t\t<visibility>"+visibility_projections+"</visibility>\r");
+            out.write("\t\t<MultiGeometry>\r");
+            writeBuffer(out, projectionsBuffer);
+            out.write("\t\t</MultiGeometry>\r");
+            out.write("\t</Placemark>\r");
+
+            out.write("\t<Folder>\r");
+            out.write("\t\t<name>Taxon labels</name>\r");
+            out.write("\t\t<description>Taxon Labels</description>\r");
+            writeBuffer(out, taxaBuffer);
+            out.write("\t</Folder>\r");
 
             //writes a folder with credible intervals in the form of polygons
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t<name>polygon HPDs</name>\r");
-            buffer.append("\t<description>various polygons to represent credible intervals</description>\r");
+            out.write("\t<Folder>\r");
+            out.write("\t<name>polygon HPDs</name>\r");
+            out.write("\t<description>various polygons to represent credible intervals</description>\r");
 
             if (contoursAndNotSpades) {
 
-                buffer.append("\t\t<Folder>\r");
-                buffer.append("\t\t\t<name>contours HPDs</name>\r");
-                buffer.append("\t\t\t<description>contour HPDs for internal nodes</description>\r");
-                buffer.append(contourBuffer);
-                buffer.append("\t\t</Folder>\r");
+                out.write("\t\t<Folder>\r");
+                out.write("\t\t\t<name>contours HPDs</name>\r");
+                out.write("\t\t\t<description>contour HPDs for internal nodes</description>\r");
+                writeBuffer(out, contourBuffer);
+                out.write("\t\t</Folder>\r");
 
-                buffer.append("\t\t<Folder>\r");
-                buffer.append("\t\t\t<name>surface contour HPDs</name>\r");
-                buffer.append("\t\t\t<description>contour HPDs for internal nodes projected on the surface</description>\r");
-                buffer.append(groundContourBuffer);
-                buffer.append("\t\t</Folder>\r");
+                out.write("\t\t<Folder>\r");
+                out.write("\t\t\t<name>surface contour HPDs</name>\r");
+                out.write("\t\t\t<description>contour HPDs for internal nodes projected on the surface</description>\r");
+                writeBuffer(out, groundContourBuffer);
+                out.write("\t\t</Folder>\r");
 
                 if (tipsSampled){
-                    buffer.append("\t\t<Folder>\r");
-                    buffer.append("\t\t\t<name>contours tip HPDs</name>\r");
-                    buffer.append("\t\t\t<description>contour HPDs for tips</description>\r");
-                    buffer.append(contourTipsBuffer);
-                    buffer.append("\t\t</Folder>\r");
-
-                    buffer.append("\t\t<Folder>\r");
-                    buffer.append("\t\t\t<name>surface contour tip HPD</name>\r");
-                    buffer.append("\t\t\t<description>contour HPDs for tips projected on the surface</description>\r");
-                    buffer.append(groundContourTipsBuffer);
-                    buffer.append("\t\t</Folder>\r");
+                    out.write("\t\t<Folder>\r");
+                    out.write("\t\t\t<name>contours tip HPDs</name>\r");
+                    out.write("\t\t\t<description>contour HPDs for tips</description>\r");
+                    writeBuffer(out, contourTipsBuffer);
+                    out.write("\t\t</Folder>\r");
+
+                    out.write("\t\t<Folder>\r");
+                    out.write("\t\t\t<name>surface contour tip HPD</name>\r");
+                    out.write("\t\t\t<description>contour HPDs for tips projected on the surface</description>\r");
+                    writeBuffer(out, groundContourTipsBuffer);
+                    out.write("\t\t</Folder>\r");
                 }
 
             } else {
 
-                buffer.append("\t\t<Folder>\r");
-                buffer.append("\t\t\t<name>spade HPDs</name>\r");
-                buffer.append("\t\t\t<description>longitude and latitude HPDs for internal nodes</description>\r");
-                buffer.append(spadeBuffer);
-                buffer.append("\t\t</Folder>\r");
+                out.write("\t\t<Folder>\r");
+                out.write("\t\t\t<name>spade HPDs</name>\r");
+                out.write("\t\t\t<description>longitude and latitude HPDs for internal nodes</description>\r");
+                writeBuffer(out, spadeBuffer);
+                out.write("\t\t</Folder>\r");
 
-                buffer.append("\t\t<Folder>\r");
-                buffer.append("\t\t\t<name>surface spade HPDs</name>\r");
-                buffer.append("\t\t\t<description>longitude and latitude HPDs for internal nodes projected on the surface</description>\r");
-                buffer.append(groundSpadeBuffer);
-                buffer.append("\t\t</Folder>\r");
+                out.write("\t\t<Folder>\r");
+                out.write("\t\t\t<name>surface spade HPDs</name>\r");
+                out.write("\t\t\t<description>longitude and latitude HPDs for internal nodes projected on the surface</description>\r");
+                writeBuffer(out, groundSpadeBuffer);
+                out.write("\t\t</Folder>\r");
 
 
-                buffer.append("\t\t<Folder>\r");
-                buffer.append("\t\t\t<name>diamond HPDs</name>\r");
-                buffer.append("\t\t\t<description>longitude and latitude and altitude HPDs for internal nodes</description>\r");
-                buffer.append(diamondBuffer);
-                buffer.append("\t\t</Folder>\r");
+                out.write("\t\t<Folder>\r");
+                out.write("\t\t\t<name>diamond HPDs</name>\r");
+                out.write("\t\t\t<description>longitude and latitude and altitude HPDs for internal nodes</description>\r");
+                writeBuffer(out, diamondBuffer);
+                out.write("\t\t</Folder>\r");
 
                 if (tipsSampled){
-                    buffer.append("\t\t<Folder>\r");
-                    buffer.append("\t\t\t<name>spade tip HPDs</name>\r");
-                    buffer.append("\t\t\t<description>longitude and latitude HPDs for tips</description>\r");
-                    buffer.append(spadeTipsBuffer);
-                    buffer.append("\t\t</Folder>\r");
+                    out.write("\t\t<Folder>\r");
+                    out.write("\t\t\t<name>spade tip HPDs</name>\r");
+                    out.write("\t\t\t<description>longitude and latitude HPDs for tips</description>\r");
+                    writeBuffer(out, spadeTipsBuffer);
+                    out.write("\t\t</Folder>\r");
 
-                    buffer.append("\t\t<Folder>\r");
-                    buffer.append("\t\t\t<name>surface spade tip HPDs</name>\r");
-                    buffer.append("\t\t\t<description>longitude and latitude HPDs for tips projected on the surface</description>\r");
-                    buffer.append(groundSpadeTipsBuffer);
-                    buffer.append("\t\t</Folder>\r");
+                    out.write("\t\t<Folder>\r");
+                    out.write("\t\t\t<name>surface spade tip HPDs</name>\r");
+                    out.write("\t\t\t<description>longitude and latitude HPDs for tips projected on the surface</description>\r");
+                    writeBuffer(out, groundSpadeTipsBuffer);
+                    out.write("\t\t</Folder>\r");
 
 
-                    buffer.append("\t\t<Folder>\r");
-                    buffer.append("\t\t\t<name>diamond tip HPDs</name>\r");
-                    buffer.append("\t\t\t<description>longitude and latitude and altitude HPDs for tips</description>\r");
-                    buffer.append(diamondTipsBuffer);
-                    buffer.append("\t\t</Folder>\r");
+                    out.write("\t\t<Folder>\r");
+                    out.write("\t\t\t<name>diamond tip HPDs</name>\r");
+                    out.write("\t\t\t<description>longitude and latitude and altitude HPDs for tips</description>\r");
+                    writeBuffer(out, diamondTipsBuffer);
+                    out.write("\t\t</Folder>\r");
 
                 }
             }
 
-            buffer.append("\t\t</Folder>\r");
+            out.write("\t\t</Folder>\r");
 
         }  else {
 
-            buffer.append(treeSliceBuffer);
-            buffer.append("\t<Folder>\r");
-            buffer.append("\t\t<name>Taxon labels</name>\r");
-            buffer.append("\t\t<description>Taxon Labels</description>\r");
-            buffer.append(taxaBuffer);
-            buffer.append("\t</Folder>\r");
-            buffer.append(contourSliceBuffer);
+            writeBuffer(out, treeSliceBuffer);
+            out.write("\t<Folder>\r");
+            out.write("\t\t<name>Taxon labels</name>\r");
+            out.write("\t\t<description>Taxon Labels</description>\r");
+            writeBuffer(out, taxaBuffer);
+            out.write("\t</Folder>\r");
+            writeBuffer(out, contourSliceBuffer);
+
+            if (contourSliceTimes != null) {
+                final Writer writer = out;
+                new KMLSliceWriter(1) {
+                    protected void writeSlice(double time, StringBuffer[] parts) {
+                        writeContourSlice(time, contourSliceMidPoint, parts[0]);
+                    }
 
+                    protected void addSlice(StringBuffer[] parts) throws IOException {
+                        writeBuffer(writer, parts[0]);
+                    }
+                }.writeSlices(contourSliceTimes, contourSliceThreadCount);
+            }
 
         }
 
-        buffer.append("</Document>\r");
+        out.write("</Document>\r");
 
-        buffer.append("</kml>");
+        out.write("</kml>");
 
 
     }
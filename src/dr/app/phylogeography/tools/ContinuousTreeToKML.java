@@ -46,6 +46,7 @@ public class ContinuousTreeToKML {
     public static final String SLICES = "slices";
     public static final String SLICEBW = "slicebw";
     public static final String SLICEMIDPOINT = "slicemidpoint";
+    public static final String THREADS = "threads";
 
     private static final String commandName = "continuous_tree_to_kml";
     private static final PrintStream progressStream = System.out;
@@ -70,6 +71,7 @@ public class ContinuousTreeToKML {
         double[] sliceTimes = null;
         double treeSliceBranchWidth = 3;
         boolean showBranchAtMidPoint = false; // shows complete branch for slice if time is more recent than the branch's midpoint
+        int threadCount = Runtime.getRuntime().availableProcessors();
 
         Arguments arguments = new Arguments(
                 new Arguments.Option[]{
@@ -80,6 +82,7 @@ public class ContinuousTreeToKML {
                         new Arguments.StringOption(SLICES,"time","specifies a slice time-list [default=none]"),
                         new Arguments.StringOption(SLICEMIDPOINT, falseTrue, false,
                                 "shows complete branch for sliced tree if time is more recent than the branch's midpoint [default=false"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to write tree slices [default = number of processors]"),
 
                         new Arguments.Option(HELP, "option to print this message")
                 });
@@ -133,6 +136,10 @@ public class ContinuousTreeToKML {
             showBranchAtMidPoint = true;
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         final String[] args2 = arguments.getLeftoverArguments();
 
         String inputFileName = null;
@@ -175,20 +182,15 @@ public class ContinuousTreeToKML {
 
         try {
             BufferedWriter out1 = new BufferedWriter(new FileWriter(outputFileName));
-            StringBuffer buffer = new StringBuffer();
 
             //we write the general tree stuff, but when making slices we do not include everything in the buffer compilation
             exporter.writeTreeToKML();
 
             if (makeTreeSlices) {
-                for (int i = 0; i < sliceTimes.length; i++) {
-//                    System.out.println(sliceTimes[i]);
-                    exporter.writeTreeToKML(sliceTimes[i], treeSliceBranchWidth, showBranchAtMidPoint);
-                }
+                exporter.writeTreeToKML(sliceTimes, treeSliceBranchWidth, showBranchAtMidPoint, threadCount);
             }
 
-            exporter.compileBuffer(buffer,makeTreeSlices);
-            out1.write(buffer.toString());
+            exporter.writeKML(out1, makeTreeSlices);
             out1.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -33,6 +33,10 @@ import java.io.PrintWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static dr.app.phylogeography.tools.KMLSliceWriter.writeBuffer;
 
 /**
  * @author Philippe Lemey
@@ -96,6 +100,12 @@ public class DiscreteKMLString {
     StringBuffer styleBuffer = new StringBuffer();
     StringBuffer treeSliceBuffer = new StringBuffer();
 
+    // the slices whose branches writeKML computes and writes straight to its writer
+    double[] sliceTimes = null;
+    double sliceBranchWidth;
+    boolean sliceMidPoint;
+    int sliceThreadCount;
+
     private static final PrintStream progressStream = System.out;
 
     public DiscreteKMLString(){
@@ -547,15 +557,59 @@ public class DiscreteKMLString {
 
     public void writeTreeToKML(double time, double treeSliceBranchWidth, boolean showBranchAtMidPoint) {
 
-        treeSliceBuffer.append("\t<Folder>\r");
-        treeSliceBuffer.append("\t\t\t<name>tree"+ time +"</name>\r");
+        setSliceColorRanges();
+        writeTreeSlice(time, treeSliceBranchWidth, showBranchAtMidPoint, treeSliceBuffer, styleBuffer);
+    }
 
-        int nodeNumber = 0;
+    /**
+     * Writes the tree slices for several times, computing them on a pool of threads. The styles of the slices are
+     * added to the style buffer in the order of the times. The branches of the slices come last in the document, so
+     * writeKML computes them on the pool in turn and writes each straight to its writer.
+     */
+    public void writeTreeToKML(double[] times, final double treeSliceBranchWidth, final boolean showBranchAtMidPoint,
+                               int threadCount) {
+
+        setSliceColorRanges();
 
+        try {
+            new KMLSliceWriter(1) {
+                protected void writeSlice(double time, StringBuffer[] parts) {
+                    writeTreeSlice(time, treeSliceBranchWidth, showBranchAtMidPoint, null, parts[0]);
+                }
+
+                protected void addSlice(StringBuffer[] parts) {
+                    styleBuffer.append(parts[0]);
+                }
+            }.writeSlices(times, threadCount);
+        } catch (IOException ioe) {
+            // cannot happen when adding to the buffer
+            throw new RuntimeException(ioe);
+        }
+
+        sliceTimes = times;
+        sliceBranchWidth = treeSliceBranchWidth;
+        sliceMidPoint = showBranchAtMidPoint;
+        sliceThreadCount = threadCount;
+    }
+
+    private void setSliceColorRanges() {
         posteriorMinAndMax[1] = 1;
         posteriorMinAndMax[0] = getPosteriorMin(treeToExport);
         heightMinAndMax[0] = 0;
         heightMinAndMax[1] = treeToExport.getHeight(treeToExport.getRootNode());
+    }
+
+    // writes the branches of the slice and their styles to the buffers that are given; only reads the tree and the
+    // settings, so slices can be written concurrently into separate buffers
+    private void writeTreeSlice(double time, double treeSliceBranchWidth, boolean showBranchAtMidPoint,
+                                StringBuffer treeSliceBuffer, StringBuffer styleBuffer) {
+
+        if (treeSliceBuffer != null) {
+            treeSliceBuffer.append("\t<Folder>\r");
+            treeSliceBuffer.append("\t\t\t<name>tree"+ time +"</name>\r");
+        }
+
+        int nodeNumber = 0;
 
         for (Node node : treeToExport.getNodes()) {
             nodeNumber++;
@@ -630,33 +684,39 @@ public class DiscreteKMLString {
                     }
 
                     if (((parentHeight*timeScaler > time) && !(showBranchAtMidPoint)) || (showBranchAtMidPoint && (time < ((nodeHeight+((parentHeight-nodeHeight)/2.0))*timeScaler)))) {
-                        treeSliceBuffer.append("\t\t<Placemark>\r");
-                        treeSliceBuffer.append("\t\t\t<name>branch"+ nodeNumber +"_"+parentState+"_"+state+"</name>\r");
-                        //style
-                        treeSliceBuffer.append("\t\t\t<styleUrl>#tree"+time+"branch"+nodeNumber+"_style</styleUrl>\r");
-                        // branchesBuffer.append("\t\t\t<styleUrl>#surfaceTreeBranch"+nodeNumber+"_style</styleUrl>\r");
-                        treeSliceBuffer.append("\t\t\t<LineString>\r");
-                        treeSliceBuffer.append("\t\t\t\t<altitudeMode>clampToGround</altitudeMode>\r");
-                        treeSliceBuffer.append("\t\t\t\t<coordinates>\r");
-                        treeSliceBuffer.append("\t\t\t\t\t"+longitude+","+latitude+",0\r");
-                        treeSliceBuffer.append("\t\t\t\t\t"+parentLongitude+","+parentLatitude+",0\r");
-                        treeSliceBuffer.append("\t\t\t\t</coordinates>\r");
-                        treeSliceBuffer.append("\t\t\t</LineString>\r");
-
-                        treeSliceBuffer.append("\t\t</Placemark>\r");
-                        styleBuffer.append("\t<Style id=\"tree"+ time +"branch"+ nodeNumber +"_style\">\r");
-                        styleBuffer.append("\t\t<LineStyle>\r");
-                        styleBuffer.append("\t\t\t<width>"+treeSliceBranchWidth+"</width>\r");
-                        styleBuffer.append("\t\t\t<color>"+"FF"+ ContinuousKML.getKMLColor((nodeHeight+((parentHeight-nodeHeight)/2.0)),
-                                    heightMinAndMax, startBranchColor, endBranchColor)+"</color>\r");
-                        styleBuffer.append("\t\t</LineStyle>\r");
-                        styleBuffer.append("\t</Style>\r");
+                        if (treeSliceBuffer != null) {
+                            treeSliceBuffer.append("\t\t<Placemark>\r");
+                            treeSliceBuffer.append("\t\t\t<name>branch"+ nodeNumber +"_"+parentState+"_"+state+"</name>\r");
+                            //style
+                            treeSliceBuffer.append("\t\t\t<styleUrl>#tree"+time+"branch"+nodeNumber+"_style</styleUrl>\r");
+                            // branchesBuffer.append("\t\t\t<styleUrl>#surfaceTreeBranch"+nodeNumber+"_style</styleUrl>\r");
+                            treeSliceBuffer.append("\t\t\t<LineString>\r");
+                            treeSliceBuffer.append("\t\t\t\t<altitudeMode>clampToGround</altitudeMode>\r");
+                            treeSliceBuffer.append("\t\t\t\t<coordinates>\r");
+                            treeSliceBuffer.append("\t\t\t\t\t"+longitude+","+latitude+",0\r");
+                            treeSliceBuffer.append("\t\t\t\t\t"+parentLongitude+","+parentLatitude+",0\r");
+                            treeSliceBuffer.append("\t\t\t\t</coordinates>\r");
+                            treeSliceBuffer.append("\t\t\t</LineString>\r");
+
+                            treeSliceBuffer.append("\t\t</Placemark>\r");
+                        }
+                        if (styleBuffer != null) {
+                            styleBuffer.append("\t<Style id=\"tree"+ time +"branch"+ nodeNumber +"_style\">\r");
+                            styleBuffer.append("\t\t<LineStyle>\r");
+                            styleBuffer.append("\t\t\t<width>"+treeSliceBranchWidth+"</width>\r");
+                            styleBuffer.append("\t\t\t<color>"+"FF"+ ContinuousKML.getKMLColor((nodeHeight+((parentHeight-nodeHeight)/2.0)),
+                                        heightMinAndMax, startBranchColor, endBranchColor)+"</color>\r");
+                            styleBuffer.append("\t\t</LineStyle>\r");
+                            styleBuffer.append("\t</Style>\r");
+                        }
                     }
                 }
 
             }
         }
-        treeSliceBuffer.append("\t</Folder>\r");
+        if (treeSliceBuffer != null) {
+            treeSliceBuffer.append("\t</Folder>\r");
+        }
     }
 
     public void writeLocationsKML() {
@@ -771,42 +831,70 @@ public class DiscreteKMLString {
     }
 
     public void compileBuffer(StringBuffer buffer) {
+        StringWriter writer = new StringWriter();
+        try {
+            writeKML(writer);
+        } catch (IOException ioe) {
+            // cannot happen with a StringWriter
+            throw new RuntimeException(ioe);
+        }
+        buffer.append(writer.getBuffer());
+    }
 
-        buffer.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r");
-        buffer.append("<kml xmlns=\"http://earth.google.com/kml/2.2\">\r");
-
-        buffer.append("<Document>\r");
-
-        buffer.append("\t<name>"+documentName+"</name>\r");
-        buffer.append(styleBuffer);
-
-        buffer.append("\t<Folder>\r");
-        buffer.append("\t<name>branches</name>\r");
-        buffer.append("\t<description>branches on which the state changes</description>\r");
-        buffer.append(branchesBuffer);
-        buffer.append("\t</Folder>\r");
-
-        buffer.append("\t<Folder>\r");
-        buffer.append("\t\t<name>Locations</name>\r");
-        buffer.append("\t\t<description>Location states</description>\r");
-        buffer.append(locationsBuffer);
-        buffer.append("\t</Folder>\r");
-
-        buffer.append("\t<Folder>\r");
-        buffer.append("\t\t<name>circles</name>\r");
-        buffer.append("\t\t<description>circles representing the number of lineages maintaining that state at any moment</description>\r");
-        buffer.append(circleBuffer);
-        buffer.append("\t</Folder>\r");
+    /**
+     * Writes the KML document to the writer one part at a time. The parts are still held in their buffers until
+     * then, but they are not copied again into a buffer for the whole document.
+     */
+    public void writeKML(Writer out) throws IOException {
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r");
+        out.write("<kml xmlns=\"http://earth.google.com/kml/2.2\">\r");
+
+        out.write("<Document>\r");
+
+        out.write("\t<name>"+documentName+"</name>\r");
+        writeBuffer(out, styleBuffer);
+
+        out.write("\t<Folder>\r");
+        out.write("\t<name>branches</name>\r");
+        out.write("\t<description>branches on which the state changes</description>\r");
+        writeBuffer(out, branchesBuffer);
+        out.write("\t</Folder>\r");
+
+        out.write("\t<Folder>\r");
+        out.write("\t\t<name>Locations</name>\r");
+        out.write("\t\t<description>Location states</description>\r");
+        writeBuffer(out, locationsBuffer);
+        out.write("\t</Folder>\r");
+
+        out.write("\t<Folder>\r");
+        out.write("\t\t<name>circles</name>\r");
+        out.write("\t\t<description>circles representing the number of lineages maintaining that state at any moment</description>\r");
+        writeBuffer(out, circleBuffer);
+        out.write("\t</Folder>\r");
+
+        out.write("\t<Folder>\r");
+        out.write("\t\t<name>treeSlices</name>\r");
+        out.write("\t\t<description>tree slices for particular times</description>\r");
+        writeBuffer(out, treeSliceBuffer);
+
+        if (sliceTimes != null) {
+            final Writer writer = out;
+            new KMLSliceWriter(1) {
+                protected void writeSlice(double time, StringBuffer[] parts) {
+                    writeTreeSlice(time, sliceBranchWidth, sliceMidPoint, parts[0], null);
+                }
 
-        buffer.append("\t<Folder>\r");
-        buffer.append("\t\t<name>treeSlices</name>\r");
-        buffer.append("\t\t<description>tree slices for particular times</description>\r");
-        buffer.append(treeSliceBuffer);
-        buffer.append("\t</Folder>\r");
+                protected void addSlice(StringBuffer[] parts) throws IOException {
+                    writeBuffer(writer, parts[0]);
+                }
+            }.writeSlices(sliceTimes, sliceThreadCount);
+        }
+        out.write("\t</Folder>\r");
 
-        buffer.append("</Document>\r");
+        out.write("</Document>\r");
 
-        buffer.append("</kml>");
+        out.write("</kml>");
 
     }
 
@@ -76,6 +76,7 @@ public class DiscreteTreeToKML {
     public static final String SLICES = "slices";
     public static final String SLICEBW = "slicebw";
     public static final String SLICEMIDPOINT = "slicemidpoint";
+    public static final String THREADS = "threads";
 
 
     public static final String[] use = new String[] {"heights","posteriors"};
@@ -226,7 +227,7 @@ public class DiscreteTreeToKML {
         double[] sliceTimes = null;
         double treeSliceBranchWidth = 3;
         boolean showBranchAtMidPoint = false; // shows complete branch for slice if time is more recent than the branch's midpoint
-
+        int threadCount = Runtime.getRuntime().availableProcessors();
 
         Arguments arguments = new Arguments(
                 new Arguments.Option[]{
@@ -261,6 +262,7 @@ public class DiscreteTreeToKML {
                         new Arguments.StringOption(SLICES,"time","specifies a slice time-list [default=none]"),
                         new Arguments.StringOption(SLICEMIDPOINT, falseTrue, false,
                                 "shows complete branch for sliced tree if time is more recent than the branch's midpoint [default=false"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to write tree slices [default = number of processors]"),
                 });
 
         try {
@@ -412,6 +414,10 @@ public class DiscreteTreeToKML {
             System.exit(-1);
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         final String[] args2 = arguments.getLeftoverArguments();
 
         outputFileName = args2[0]+".kml";
@@ -438,18 +444,15 @@ public class DiscreteTreeToKML {
 
         try {
             BufferedWriter out1 = new BufferedWriter(new FileWriter(outputFileName));
-            StringBuffer buffer = new StringBuffer();
 
             if (makeTreeSlices) {
-                for (int i = 0; i < sliceTimes.length; i++)
-                exporterString.writeTreeToKML(sliceTimes[i], treeSliceBranchWidth, showBranchAtMidPoint);
+                exporterString.writeTreeToKML(sliceTimes, treeSliceBranchWidth, showBranchAtMidPoint, threadCount);
             } else {
                 exporterString.writeTreeToKML();
                 exporterString.writeLineagesToCircles();
             }
             exporterString.writeLocationsKML();
-            exporterString.compileBuffer(buffer);
-            out1.write(buffer.toString());
+            exporterString.writeKML(out1);
             out1.close();
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,116 @@
+/*
+ * KMLSliceWriter.java
+ *
+ * Copyright (C) 2002-2010 BEAST Development Team
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.phylogeography.tools;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes a part of a KML document for each slice time on a pool of threads and hands the parts on in the order of
+ * the times as they are finished, so only a few slices are held in memory at once.
+ */
+abstract class KMLSliceWriter {
+
+    private final int partCount;
+
+    KMLSliceWriter(int partCount) {
+        this.partCount = partCount;
+    }
+
+    /**
+     * Writes the parts of the slice at the given time. This is called on the threads of the pool, so it may only
+     * read the tree and the settings.
+     */
+    protected abstract void writeSlice(double time, StringBuffer[] parts);
+
+    /**
+     * Takes the parts of a finished slice, called in the order of the times.
+     */
+    protected abstract void addSlice(StringBuffer[] parts) throws IOException;
+
+    void writeSlices(double[] times, int threadCount) throws IOException {
+
+        threadCount = Math.max(threadCount, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        LinkedList<Future<StringBuffer[]>> pending = new LinkedList<Future<StringBuffer[]>>();
+        try {
+            for (final double time : times) {
+                pending.add(pool.submit(new Callable<StringBuffer[]>() {
+                    public StringBuffer[] call() {
+                        StringBuffer[] parts = new StringBuffer[partCount];
+                        for (int i = 0; i < partCount; i++) {
+                            parts[i] = new StringBuffer();
+                        }
+                        writeSlice(time, parts);
+                        return parts;
+                    }
+                }));
+
+                // keep a bounded number of finished slices waiting for the ones before them
+                while (pending.size() > 2 * threadCount) {
+                    addSlice(getSlice(pending.removeFirst()));
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                addSlice(getSlice(pending.removeFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static StringBuffer[] getSlice(Future<StringBuffer[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while writing tree slices");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    /**
+     * Writes the buffer to the writer in chunks, without first copying it into a String.
+     */
+    static void writeBuffer(Writer out, StringBuffer buffer) throws IOException {
+        char[] chars = new char[8192];
+        for (int start = 0; start < buffer.length(); start += chars.length) {
+            int end = Math.min(start + chars.length, buffer.length());
+            buffer.getChars(start, end, chars, 0);
+            out.write(chars, 0, end - start);
+        }
+    }
+}
@@ -37,6 +37,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author Philippe Lemey
@@ -70,6 +75,7 @@ public class RateIndicatorBF {
     public static final String BWC = "bwc";
     public static final String BWM = "bwm";
     public static final String ALTITUDE = "altitude";
+    public static final String THREADS = "threads";
 
     private double[] expectedRateIndicators;
     private boolean nonreversible = false;
@@ -85,7 +91,6 @@ public class RateIndicatorBF {
     protected double[] supportedActualRates;
     private double[] meanQMatrix;
     private boolean bayesFactor;
-    private String inputFileName;
     private int burnin;
     private double cutoff;
     private double meanPoissonPrior;
@@ -108,9 +113,10 @@ public class RateIndicatorBF {
     private static final String commandName = "rateIndicatorBF";
     public static void printUsage(Arguments arguments) {
 
-        arguments.printUsage(commandName, "<input-file-name> [<output-file-name>]");
+        arguments.printUsage(commandName, "<input-file-name> [<input-file-name> ...] [<output-file-name>]");
         progressStream.println();
         progressStream.println("  Example: " + commandName + " indicator.log rates.out");
+        progressStream.println("  Example: " + commandName + " run1.log run2.log rates.out");
         progressStream.println();
     }
 
@@ -119,16 +125,23 @@ public class RateIndicatorBF {
                                int offsetPoissonPrior, String actualRateString, String relativeRateString,
                                String frequencyString, String clockRateString, String unitString,
                                boolean calculateRates) {
+        this(new String[]{inputFileName}, burnin, rateIndicatorString, numberOfStates, locations, bayesFactor, cutoff,
+                meanPoissonPrior, offsetPoissonPrior, actualRateString, relativeRateString, frequencyString,
+                clockRateString, unitString, calculateRates, 1);
+    }
 
-        //count the number of states in the RateIndicatorLog file
-        generationCount = getGenerationCount(inputFileName);
+    public RateIndicatorBF(String[] inputFileNames, int burnin, String rateIndicatorString, int numberOfStates,
+                               String[][] locations, boolean bayesFactor, double cutoff, double meanPoissonPrior,
+                               int offsetPoissonPrior, String actualRateString, String relativeRateString,
+                               String frequencyString, String clockRateString, String unitString,
+                               boolean calculateRates, int threadCount) {
 
-        //find the first rateIndicator in the RateIndicatorLog file
-        int firstRateIndicator = getFirstEntryOf(inputFileName, rateIndicatorString);
+        //find the first rateIndicator in the (first) RateIndicatorLog file
+        int firstRateIndicator = getFirstEntryOf(inputFileNames[0], rateIndicatorString);
         //progressStream.println("first rateIndicator is at column "+firstRateIndicator);
 
         //count the rateIndicators in the RateIndicatorLog file
-        rateCount = getNumberOfEntries(inputFileName, firstRateIndicator, rateIndicatorString);
+        rateCount = getNumberOfEntries(inputFileNames[0], firstRateIndicator, rateIndicatorString);
 
         if (numberOfStates > 0) {
             stateCount = numberOfStates;
@@ -138,8 +151,7 @@ public class RateIndicatorBF {
             progressStream.println("number of states in coordinates file = "+stateCount);
         }
 
-        this.inputFileName = inputFileName;
-        this.burnin = burnin;
+        this.burnin = Math.max(burnin, 0);
         this.bayesFactor = bayesFactor;
         this.cutoff = cutoff;
         this.meanPoissonPrior = meanPoissonPrior;
@@ -187,14 +199,15 @@ public class RateIndicatorBF {
             }
         }
 
-        // so now we know the dimension of the rateIndicator array
-        if ((generationCount - burnin)< 10) {
-            System.err.println("With burn-in = "+burnin+", there are only "+(generationCount - burnin)+" state(s) in " +
+        // a single pass over each log accumulates the indicators (and Q matrix entries) so no log is held in memory
+        LogSummary summary = summariseLogs(inputFileNames, threadCount);
+        generationCount = summary.lineCount + 1;
+
+        if (summary.sampleCount < 10) {
+            System.err.println("With burn-in = "+this.burnin+", there are only "+summary.sampleCount+" state(s) in " +
                     "indicator log file??");
         }
-        double[][] rateIndicators = new double[((generationCount - 1)-burnin)][rateCount];
-        fill2DArray(inputFileName, rateIndicators, burnin, firstRateIndicator, rateCount);
-        expectedRateIndicators = meanCol(rateIndicators);
+        expectedRateIndicators = summary.getMeanIndicators();
 
         int ratesOfInterest = !nonreversible && calculateRates ? rateCount*2 : rateCount;
 
@@ -207,103 +220,259 @@ public class RateIndicatorBF {
         compileLocations(locations,locationNames,latitudes,longitudes);
 
         if(calculateRates){
-            double[][] QMatrices = getQMatrices();
-            meanQMatrix = meanCol(QMatrices);
+            meanQMatrix = summary.getMeanQMatrix();
         }
 
         supportedRateIndicators = getSupportedRateIndicators();
     }
 
-    //Diagonal entries in the Q matrices are omitted for obvious reasons. Note that if the frequencies are not equal
-    //then the Q matrix is not symmetric even if the rates are.
+    /**
+     * Sums of the rate indicators and Q matrix entries over the states (after burn-in) of one or more logs.
+     */
+    private static class LogSummary {
 
-    private double[][] getQMatrices(){
+        LogSummary(int rateCount, int qMatrixEntryCount) {
+            indicatorSums = new double[rateCount];
+            qMatrixSums = new double[qMatrixEntryCount];
+        }
 
-        int firstRateIndicator = getFirstEntryOf(inputFileName, rateIndicatorString);
-        double[][] rateIndicators = new double[((generationCount - 1)-burnin)][rateCount];
-        fill2DArray(inputFileName, rateIndicators, burnin, firstRateIndicator, rateCount);
+        void add(LogSummary other) {
+            for (int i = 0; i < indicatorSums.length; i++) {
+                indicatorSums[i] += other.indicatorSums[i];
+            }
+            for (int i = 0; i < qMatrixSums.length; i++) {
+                qMatrixSums[i] += other.qMatrixSums[i];
+            }
+            lineCount += other.lineCount;
+            sampleCount += other.sampleCount;
+        }
 
-        boolean containsClockRate = hasEntryOf(inputFileName, clockRateString);
-        double[] clockRates = new double[(generationCount-1)-burnin];
-        int clockColumn = getFirstEntryOf(inputFileName, clockRateString);
+        double[] getMeanIndicators() {
+            return getMeans(indicatorSums);
+        }
 
-        if(!containsClockRate){
-            progressStream.println("WARNING: No overall clock rate entry found. Rates will be given assuming one " +
-                    "transition (of any sort) per unit time; variation in clock rates will not be accounted for!");
-            Arrays.fill(clockRates,1);
-        } else {
-            fill1DArray(inputFileName, clockRates, burnin, clockColumn);
-        }
-
-        //boolean to see it the rateLog contains productStatistics, if not, we make 'em ourselves
-        boolean containsActualRates = hasEntryOf(inputFileName, actualRateString);
-        double[][] actualRates = new double[((generationCount - 1)-burnin)][rateCount];
-        if (!containsActualRates){
-            // if there are no actualRate entries, we will look for the relative rates instead
-            int firstRelativeRate = getFirstEntryOf(inputFileName, relativeRateString);
-            fill2DArray(inputFileName, actualRates, burnin, firstRelativeRate, rateCount);
-            for (int i=0;i<actualRates.length;i++){
-                for (int j=0;j<actualRates[i].length;j++){
-                    actualRates[i][j] = actualRates[i][j]*rateIndicators[i][j];
-                }
+        double[] getMeanQMatrix() {
+            return getMeans(qMatrixSums);
+        }
+
+        private double[] getMeans(double[] sums) {
+            double[] means = new double[sums.length];
+            for (int i = 0; i < sums.length; i++) {
+                means[i] = sums[i] / (double) sampleCount;
             }
-        } else {
-            int firstActualRate = getFirstEntryOf(inputFileName, actualRateString);
-            fill2DArray(inputFileName, actualRates, burnin, firstActualRate, rateCount);
+            return means;
         }
 
-        //Double up the actual rate matrix for a nonreversible model - separate entries are needed for both directions
+        final double[] indicatorSums;
+        final double[] qMatrixSums;
+        int lineCount = 0; // states in the log, including burn-in
+        int sampleCount = 0; // states after burn-in
+    }
 
-        if(!nonreversible) {
-            double[][] tempActualRates = new double[((generationCount - 1)-burnin)][actualRates[0].length*2];
-            for(int gen=0; gen<(generationCount - 1) - burnin; gen++){
-                for(int col = 0; col<actualRates[0].length; col++){
-                    tempActualRates[gen][col] = actualRates[gen][col];
-                    tempActualRates[gen][actualRates[0].length + col] = actualRates[gen][col];
-                }
+    private LogSummary summariseLogs(final String[] inputFileNames, int threadCount) {
+
+        if (inputFileNames.length == 1) {
+            return summariseLog(inputFileNames[0]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(Math.min(threadCount, inputFileNames.length), 1));
+        List<Future<LogSummary>> summaries = new ArrayList<Future<LogSummary>>();
+        try {
+            for (final String inputFileName : inputFileNames) {
+                summaries.add(pool.submit(new Callable<LogSummary>() {
+                    public LogSummary call() {
+                        return summariseLog(inputFileName);
+                    }
+                }));
+            }
+
+            // combined in the order the logs were given
+            LogSummary summary = new LogSummary(rateCount, calculateRates ? getQMatrixEntryCount() : 0);
+            for (int i = 0; i < summaries.size(); i++) {
+                LogSummary logSummary = getSummary(summaries.get(i));
+                progressStream.println(inputFileNames[i] + ": " + logSummary.sampleCount + " states after burn-in");
+                summary.add(logSummary);
             }
-            actualRates = tempActualRates;
+            return summary;
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        boolean containsFrequencies = hasEntryOf(inputFileName, frequencyString);
-        double[][] frequencies = new double[((generationCount - 1)-burnin)][stateCount];
-        if (!containsFrequencies){
-            progressStream.println("No state frequencies recorded; assuming all equal.");
-            for (int i=0; i<((generationCount - 1)-burnin); i++){
-                Arrays.fill(frequencies[i],(1/(double)stateCount));
+    private static LogSummary getSummary(Future<LogSummary> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while reading indicator logs");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
             }
-        } else {
-            int firstFrequency = getFirstEntryOf(inputFileName, frequencyString);
-            fill2DArray(inputFileName, frequencies, burnin, firstFrequency, stateCount);
-        }
-
-        double[][] QMatrixEntries = new double[((generationCount - 1)-burnin)][nonreversible ? rateCount : rateCount*2];
-
-        for(int generation = 0; generation<(generationCount - 1) - burnin; generation++){
-            double normalisationConstant = 0;
-            for(int row = 0; row<stateCount; row++){
-                for(int column = 0; column<stateCount; column++){
-                    int dataColumn = columnNumberLookup[row][column];
-                    if(dataColumn!=-1){
-                        double unnormalisedMatrixEntry = actualRates[generation][dataColumn]
-                                *frequencies[generation][column];
-                        QMatrixEntries[generation][dataColumn]=unnormalisedMatrixEntry;
-                        normalisationConstant += unnormalisedMatrixEntry;
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private int getQMatrixEntryCount() {
+        return nonreversible ? rateCount : rateCount*2;
+    }
+
+    //Diagonal entries in the Q matrices are omitted for obvious reasons. Note that if the frequencies are not equal
+    //then the Q matrix is not symmetric even if the rates are.
+
+    private LogSummary summariseLog(String logFileName) {
+
+        LogSummary summary = new LogSummary(rateCount, calculateRates ? getQMatrixEntryCount() : 0);
+
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(logFileName));
+            try {
+                String currentLine = reader.readLine();
+                while (currentLine != null && currentLine.startsWith("#")) {
+                    currentLine = reader.readLine();
+                }
+                if (currentLine == null) {
+                    System.err.println("No header found in " + logFileName);
+                    System.exit(1);
+                }
+
+                // column indices are zero-based from here on
+                List<String> header = new ArrayList<String>();
+                StringTokenizer headerTokens = new StringTokenizer(currentLine);
+                while (headerTokens.hasMoreTokens()) {
+                    header.add(headerTokens.nextToken());
+                }
+
+                int firstRateIndicator = getFirstColumnOf(header, rateIndicatorString);
+                if (firstRateIndicator < 0 || getColumnCount(header, firstRateIndicator, rateIndicatorString) != rateCount) {
+                    System.err.println("the rateIndicators in " + logFileName + " do not match the first log");
+                    System.exit(1);
+                }
+                boolean[] columnsNeeded = new boolean[header.size()];
+                Arrays.fill(columnsNeeded, firstRateIndicator, firstRateIndicator + rateCount, true);
+
+                int clockColumn = -1;
+                int firstRate = -1;
+                int firstFrequency = -1;
+                boolean containsActualRates = false;
+                double[] unnormalisedEntries = null;
+
+                if (calculateRates) {
+                    clockColumn = getFirstColumnOf(header, clockRateString);
+                    if (clockColumn < 0) {
+                        progressStream.println("WARNING: No overall clock rate entry found. Rates will be given " +
+                                "assuming one transition (of any sort) per unit time; variation in clock rates will " +
+                                "not be accounted for!");
+                    } else {
+                        columnsNeeded[clockColumn] = true;
+                    }
+
+                    //check if the rateLog contains productStatistics, if not, we make 'em ourselves
+                    firstRate = getFirstColumnOf(header, actualRateString);
+                    containsActualRates = firstRate >= 0;
+                    if (!containsActualRates) {
+                        // if there are no actualRate entries, we will look for the relative rates instead
+                        firstRate = getFirstColumnOf(header, relativeRateString);
+                    }
+                    if (firstRate < 0 || firstRate + rateCount > header.size()) {
+                        System.err.println("No rates found in " + logFileName);
+                        System.exit(1);
+                    }
+                    Arrays.fill(columnsNeeded, firstRate, firstRate + rateCount, true);
+
+                    firstFrequency = getFirstColumnOf(header, frequencyString);
+                    if (firstFrequency < 0) {
+                        progressStream.println("No state frequencies recorded; assuming all equal.");
+                    } else if (firstFrequency + stateCount > header.size()) {
+                        System.err.println("Fewer than " + stateCount + " frequencies found in " + logFileName);
+                        System.exit(1);
+                    } else {
+                        Arrays.fill(columnsNeeded, firstFrequency, firstFrequency + stateCount, true);
+                    }
+
+                    unnormalisedEntries = new double[getQMatrixEntryCount()];
+                }
+
+                int lastColumnNeeded = columnsNeeded.length - 1;
+                while (!columnsNeeded[lastColumnNeeded]) {
+                    lastColumnNeeded--;
+                }
+                double[] values = new double[lastColumnNeeded + 1];
+
+                // skip the headers in the rateIndicator file
+                currentLine = reader.readLine();
+                while (currentLine != null && currentLine.startsWith("state")) {
+                    currentLine = reader.readLine();
+                }
+
+                while (currentLine != null) {
+                    if (currentLine.length() > 0) {
+                        summary.lineCount++;
+
+                        //skip burnin
+                        if (summary.lineCount > burnin) {
+                            StringTokenizer tokens = new StringTokenizer(currentLine);
+                            for (int column = 0; column <= lastColumnNeeded; column++) {
+                                String token = tokens.nextToken();
+                                if (columnsNeeded[column]) {
+                                    values[column] = Double.parseDouble(token);
+                                }
+                            }
+
+                            for (int i = 0; i < rateCount; i++) {
+                                summary.indicatorSums[i] += values[firstRateIndicator + i];
+                            }
+                            if (calculateRates) {
+                                addQMatrixEntries(values, firstRateIndicator, clockColumn, firstRate,
+                                        containsActualRates, firstFrequency, unnormalisedEntries, summary.qMatrixSums);
+                            }
+                            summary.sampleCount++;
+                        }
                     }
+                    currentLine = reader.readLine();
                 }
+            } finally {
+                reader.close();
             }
-            //normalise to one transition per unit time and multiply by the clock rate
-            for(int row = 0; row<stateCount; row++){
-                for(int column =0; column<stateCount; column++){
-                    int dataColumn = columnNumberLookup[row][column];
-                    if(dataColumn!=-1){
-                        QMatrixEntries[generation][dataColumn] = QMatrixEntries[generation][dataColumn]
-                                *clockRates[generation]/normalisationConstant;
+        } catch (IOException e) {
+            System.err.println("Error reading " + logFileName);
+            System.exit(1);
+        }
+
+        return summary;
+    }
+
+    // adds the entries of one state's Q matrix, normalised to one transition per unit time and multiplied by the
+    // clock rate; for a reversible model the rates are shared by both directions
+    private void addQMatrixEntries(double[] values, int firstRateIndicator, int clockColumn, int firstRate,
+                                   boolean containsActualRates, int firstFrequency, double[] unnormalisedEntries,
+                                   double[] qMatrixSums) {
+
+        double normalisationConstant = 0;
+        for(int row = 0; row<stateCount; row++){
+            for(int column = 0; column<stateCount; column++){
+                int dataColumn = columnNumberLookup[row][column];
+                if(dataColumn!=-1){
+                    int rateColumn = dataColumn < rateCount ? dataColumn : dataColumn - rateCount;
+                    double actualRate = values[firstRate + rateColumn];
+                    if (!containsActualRates) {
+                        actualRate = actualRate*values[firstRateIndicator + rateColumn];
                     }
+                    double frequency = firstFrequency < 0 ? (1/(double)stateCount) : values[firstFrequency + column];
+                    double unnormalisedMatrixEntry = actualRate*frequency;
+                    unnormalisedEntries[dataColumn]=unnormalisedMatrixEntry;
+                    normalisationConstant += unnormalisedMatrixEntry;
+                }
+            }
+        }
+        double clockRate = clockColumn < 0 ? 1 : values[clockColumn];
+        for(int row = 0; row<stateCount; row++){
+            for(int column =0; column<stateCount; column++){
+                int dataColumn = columnNumberLookup[row][column];
+                if(dataColumn!=-1){
+                    qMatrixSums[dataColumn] += unnormalisedEntries[dataColumn]*clockRate/normalisationConstant;
                 }
             }
         }
-        return QMatrixEntries;
     }
 
     private double[] getSupportedRateIndicators(){
@@ -792,7 +961,7 @@ public class RateIndicatorBF {
         try {
             PrintWriter outFile;
             if (outFileName != null) {
-                outFile = new PrintWriter(new FileWriter(outFileName), true);
+                outFile = new PrintWriter(new BufferedWriter(new FileWriter(outFileName)));
             } else {
                 outFile = new PrintWriter(System.out);
             }
@@ -897,141 +1066,6 @@ public class RateIndicatorBF {
 
     }
 
-    private static double[] meanCol(double[][] x)    {
-        double[] returnArray = new double[x[0].length];
-
-        for (int i = 0; i < x[0].length; i++) {
-
-            double m = 0.0;
-            int len = 0;
-
-            for (int j = 0; j < x.length; j++) {
-
-                m += x[j][i];
-                len += 1;
-
-            }
-
-            returnArray[i] = m / (double) len;
-
-        }
-        return returnArray;
-    }
-
-    private static void fill1DArray(String logFileName, double[] array, int burnin, int element){
-        try {
-            BufferedReader arrayReader = new BufferedReader(new FileReader(logFileName));
-            String currentLine = arrayReader.readLine();
-            while (currentLine.startsWith("#")) {
-                currentLine = arrayReader.readLine();
-            }
-
-            // skip the headers in the rateIndicator file
-            while (currentLine.startsWith("state")) {
-                currentLine = arrayReader.readLine();
-            }
-
-            double currentElement;
-            int linesRead = 0;
-            //skip burnin
-            while (linesRead < burnin){
-                currentLine = arrayReader.readLine();
-                linesRead ++;
-            }
-
-            int rowCounter = 0;
-
-            while (currentLine!= null && !arrayReader.equals("")) {
-
-
-                int startCounter = 1;
-
-                StringTokenizer tokens = new StringTokenizer(currentLine);
-                currentElement = Double.parseDouble(tokens.nextToken());
-
-                //skip until we encounter rateIndicators
-                while (startCounter < element) {
-                    currentElement = Double.parseDouble(tokens.nextToken());
-                    startCounter ++;
-                }
-
-                // read the value
-                array[rowCounter] = currentElement;
-
-                rowCounter ++;
-                currentLine = arrayReader.readLine();
-
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading " + logFileName);
-            System.exit(1);
-        }
-    }
-
-
-    private static void fill2DArray(String logFileName, double[][] array, int burnin, int firstElement,
-                                    int numberOfItems){
-
-        try {
-            BufferedReader arrayReader = new BufferedReader(new FileReader(logFileName));
-            String currentLine = arrayReader.readLine();
-            while (currentLine.startsWith("#")) {
-                currentLine = arrayReader.readLine();
-            }
-
-            // skip the headers in the rateIndicator file
-            while (currentLine.startsWith("state")) {
-                currentLine = arrayReader.readLine();
-            }
-
-            double currentElement;
-            int linesRead = 0;
-            //skip burnin
-            while (linesRead < burnin){
-                currentLine = arrayReader.readLine();
-                linesRead ++;
-            }
-
-            int rowCounter = 0;
-
-            while (currentLine!= null && !arrayReader.equals("")) {
-
-                int columnCounter = 0;
-
-                int startCounter = 1;
-                int columnOfInterestCounter = 0;
-
-                StringTokenizer tokens = new StringTokenizer(currentLine);
-                currentElement = Double.parseDouble(tokens.nextToken());
-
-                //skip until we encounter rateIndicators
-                while (startCounter < firstElement) {
-                    currentElement = Double.parseDouble(tokens.nextToken());
-                    startCounter ++;
-                }
-
-                // read all rateIndicators
-                while (columnOfInterestCounter < numberOfItems) {
-                    array[rowCounter][columnCounter] = currentElement;
-                    columnCounter ++;
-                    columnOfInterestCounter ++;
-                    if (columnOfInterestCounter < numberOfItems) {
-                        currentElement = Double.parseDouble(tokens.nextToken());
-                    }
-
-                }
-
-                rowCounter ++;
-                currentLine = arrayReader.readLine();
-
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading " + logFileName);
-            System.exit(1);
-        }
-
-    }
-
     private static int getNumberOfEntries(String file, int firstRateIndicator, String rateIndicatorString)    {
 
         int numberOfRateIndicators = 0;
@@ -1069,38 +1103,6 @@ public class RateIndicatorBF {
 
     }
 
-    private static boolean hasEntryOf(String file, String entryString)    {
-
-        boolean hasEntry = false;
-
-        try {
-            BufferedReader reader2 = new BufferedReader(new FileReader(file));
-            String current2 = reader2.readLine();
-
-            //skip comment lines
-            while (current2.startsWith("#")) {
-                current2 = reader2.readLine();
-            }
-
-            String parameter1 = null;
-            StringTokenizer tokens1 = new StringTokenizer(current2);
-
-            while(tokens1.hasMoreTokens()) {
-                parameter1 = tokens1.nextToken();
-                if (parameter1.contains(entryString)) {
-                    hasEntry = true;
-                }
-            }
-
-        } catch (IOException e) {
-            System.err.println("Error reading " + file);
-            System.exit(1);
-        }
-
-        return hasEntry;
-
-    }
-
     private static int getFirstEntryOf(String file, String entryString)    {
 
         int firstRateIndicator = 1;
@@ -1131,28 +1133,21 @@ public class RateIndicatorBF {
 
     }
 
-    private static int getGenerationCount(String file)    {
-
-        int states = 0;
-
-        try {
-            BufferedReader reader1 = new BufferedReader(new FileReader(file));
-            String current1 = reader1.readLine();
-            while (current1 != null && !reader1.equals("")) {
-                while (current1.startsWith("#")) {
-                    current1 = reader1.readLine();
-                }
-                current1 = reader1.readLine();
-                states++;
+    private static int getFirstColumnOf(List<String> header, String entryString) {
+        for (int column = 0; column < header.size(); column++) {
+            if (header.get(column).contains(entryString)) {
+                return column;
             }
-
-        } catch (IOException e) {
-            System.err.println("Error reading " + file);
-            System.exit(1);
         }
+        return -1;
+    }
 
-        return states;
-
+    private static int getColumnCount(List<String> header, int firstColumn, String entryString) {
+        int column = firstColumn;
+        while (column < header.size() && header.get(column).contains(entryString)) {
+            column++;
+        }
+        return column - firstColumn;
     }
 
     protected static int[] countLinesAndTokens(String coordinatesFileString){
@@ -1206,7 +1201,7 @@ public class RateIndicatorBF {
 
     public static void main(String[] args) throws IOException {
 
-        String inputFileName = null;
+        String[] inputFileNames = null;
         String outputFileName = null;
 
         String locationsFileName = null;
@@ -1219,9 +1214,10 @@ public class RateIndicatorBF {
         double branchWidthConstant = 2.5;
         double branchWidthMultiplier = 7.0;
         double altitudeFactor = 500;
+        int threadCount = Runtime.getRuntime().availableProcessors();
         //Double width = 3.0;
 
-        int burnin = -1;
+        int burnin = 0;
         double meanPoissonPrior = 0.693;
         int offsetPoissonPrior = 0;
         int numberOfStates = 0;
@@ -1281,6 +1277,8 @@ public class RateIndicatorBF {
                         new Arguments.RealOption(BWM,"specifies the connection (rate)  width multiplier [default=7.0]"),
                         new Arguments.RealOption(ALTITUDE,"specifies the altitude factor for the connections (rate) " +
                                 "[default=500]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads used to read multiple input " +
+                                "logs [default = number of processors]"),
                         //new Arguments.RealOption(WIDTH,"width for KML rates [default=3.0]"),
                 });
 
@@ -1390,6 +1388,10 @@ public class RateIndicatorBF {
             altitudeFactor = arguments.getRealOption(ALTITUDE);
         }
 
+        if (arguments.hasOption(THREADS)) {
+            threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+        }
+
         String indicatorString = arguments.getStringOption(ISTRING);
         if (indicatorString != null) {
             rateIndicatorString = indicatorString;
@@ -1438,23 +1440,20 @@ public class RateIndicatorBF {
             case 0:
                 printUsage(arguments);
                 System.exit(1);
-            case 2:
-                outputFileName = args2[1];
-                // fall to
             case 1:
-                inputFileName = args2[0];
+                inputFileNames = new String[]{args2[0]};
                 break;
             default: {
-                System.err.println("Unknown option: " + args2[2]);
-                System.err.println();
-                printUsage(arguments);
-                System.exit(1);
+                // with more than one file, the last is the output file
+                inputFileNames = new String[args2.length - 1];
+                System.arraycopy(args2, 0, inputFileNames, 0, inputFileNames.length);
+                outputFileName = args2[args2.length - 1];
             }
         }
 
-        RateIndicatorBF rateIndicatorBF = new RateIndicatorBF(inputFileName, burnin, rateIndicatorString,
+        RateIndicatorBF rateIndicatorBF = new RateIndicatorBF(inputFileNames, burnin, rateIndicatorString,
                 numberOfStates, locations, bayesFactor, cutoff, meanPoissonPrior, offsetPoissonPrior, actualRateString,
-                relativeRateString, frequencyString, clockRateString, unitString, calculateRates);
+                relativeRateString, frequencyString, clockRateString, unitString, calculateRates, threadCount);
         rateIndicatorBF.outputTextFile(outputFileName);
         if (kml) {
             rateIndicatorBF.outputKML(KMLoutputFile,lowerLinkColor,upperLinkColor, branchWidthConstant,
@@ -42,6 +42,7 @@ import dr.app.beagle.evomodel.treelikelihood.AncestralStateBeagleTreeLikelihood;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 /*
@@ -76,6 +77,23 @@ public class AncestralSequenceAnnotator {
                                       String outputFileName,
                                       String kalignExecutable
     ) throws IOException {
+        this(burnin, heightsOption, posteriorLimit, targetOption, targetTreeFileName, inputFileName, outputFileName,
+                kalignExecutable, 1);
+    }
+
+    /**
+     * @param threadCount the number of trees to sample ancestral sequences for at the same time
+     */
+    public AncestralSequenceAnnotator(int burnin,
+                                      int heightsOption,
+                                      double posteriorLimit,
+                                      int targetOption,
+                                      String targetTreeFileName,
+                                      String inputFileName,
+                                      String outputFileName,
+                                      String kalignExecutable,
+                                      int threadCount
+    ) throws IOException {
 
         this.posteriorLimit = posteriorLimit;
 
@@ -98,8 +116,20 @@ public class AncestralSequenceAnnotator {
         else
             exporter = new NexusExporter(System.out);
 
-        TreeExporter simulationResults = new NexusExporter(new PrintStream(new FileOutputStream(inputFileName + ".out")));
-        List<Tree> simulatedTree = new ArrayList<Tree>();
+        // the sampled trees are written as they come in rather than kept until the end
+        simulationStream = new PrintStream(new FileOutputStream(inputFileName + ".out"));
+        simulationResults = new NexusExporter(simulationStream);
+
+        // the trees are sampled by a pool of threads but used in the order they were read, with only a few
+        // more read than have been sampled
+        ExecutorService executor = (threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null);
+        LinkedList<Future<SampledTree>> sampledTrees = new LinkedList<Future<SampledTree>>();
+        int maxWaiting = (executor != null ? threadCount * 2 : 1);
+
+        // Turn off noisy logging by TreeLikelihood constructor
+        Logger logger = Logger.getLogger("dr.evomodel");
+        boolean useParentHandlers = logger.getUseParentHandlers();
+        logger.setUseParentHandlers(false);
 
 //		burnin = 0;
         //	java.util.logging.Logger.getLogger("dr.evomodel").
@@ -110,7 +140,7 @@ public class AncestralSequenceAnnotator {
 
                 if (firstTree) {
                     Tree unprocessedTree = tree;
-                    tree = processTree(tree);
+                    tree = processTree(tree, System.out);
                     setupTreeAttributes(tree);
                     setupAttributes(tree);
                     tree = unprocessedTree;     //This actually does nothing since unprocessedTree was a reference to processedTree in the first place
@@ -119,26 +149,35 @@ public class AncestralSequenceAnnotator {
 
                 if (totalTrees >= burnin) {
                     addTreeAttributes(tree);
-//					Tree savedTree = tree;
-                    tree = processTree(tree);
-//					System.err.println(Tree.Utils.newick(tree));
-                    exporter.exportTree(tree);
-//					simulationResults.exportTree(tree);
-//					System.exit(-1);
-                    simulatedTree.add(tree);
-                    cladeSystem.add(tree);
+                    sampledTrees.add(submitTree(executor, tree));
 
-                    totalTreesUsed += 1;
+                    while (sampledTrees.size() >= maxWaiting) {
+                        addSampledTree(getResult(sampledTrees.removeFirst()), cladeSystem, exporter);
+                    }
                 }
                 totalTrees += 1;
 
             }
+
+            while (!sampledTrees.isEmpty()) {
+                addSampledTree(getResult(sampledTrees.removeFirst()), cladeSystem, exporter);
+            }
         } catch (Importer.ImportException e) {
             System.err.println("Error Parsing Input Tree: " + e.getMessage());
             return;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            logger.setUseParentHandlers(useParentHandlers);
         }
         fileReader.close();
 
+        if (simulationIdMap != null) {
+            simulationStream.println("End;");
+        }
+        simulationStream.close();
+
         cladeSystem.calculateCladeCredibilities(totalTreesUsed);
 
         System.out.println("\tTotal trees read: " + totalTrees);
@@ -146,8 +185,6 @@ public class AncestralSequenceAnnotator {
             System.out.println("\tIgnoring first " + burnin + " trees.");
         }
 
-        simulationResults.exportTrees(simulatedTree.toArray(new Tree[simulatedTree.size()]));
-
         MutableTree targetTree;
 
         if (targetOption == USER_TARGET_TREE) {
@@ -199,6 +236,73 @@ public class AncestralSequenceAnnotator {
 
 
 
+    /**
+     * A sampled tree and the messages printed while it was sampled, kept so that the messages of trees sampled
+     * at the same time are printed in the order the trees were read.
+     */
+    private static class SampledTree {
+        final Tree tree;
+        final String output;
+
+        SampledTree(Tree tree, String output) {
+            this.tree = tree;
+            this.output = output;
+        }
+    }
+
+    private Future<SampledTree> submitTree(final ExecutorService executor, final Tree tree) {
+        Callable<SampledTree> task = new Callable<SampledTree>() {
+            public SampledTree call() {
+                if (executor == null) {
+                    return new SampledTree(processTree(tree, System.out), null);
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                PrintStream out = new PrintStream(buffer);
+                Tree sampledTree = processTree(tree, out);
+                out.close();
+                return new SampledTree(sampledTree, buffer.toString());
+            }
+        };
+        if (executor == null) {
+            FutureTask<SampledTree> future = new FutureTask<SampledTree>(task);
+            future.run();
+            return future;
+        }
+        return executor.submit(task);
+    }
+
+    private void addSampledTree(SampledTree sampledTree, CladeSystem cladeSystem, TreeExporter exporter) {
+        if (sampledTree.output != null) {
+            System.out.print(sampledTree.output);
+        }
+
+        Tree tree = sampledTree.tree;
+        exporter.exportTree(tree);
+
+        if (simulationIdMap == null) {
+            simulationIdMap = simulationResults.writeNexusHeader(tree);
+            simulationStream.println("\t\t;");
+        }
+        simulationResults.writeNexusTree(tree, NexusExporter.DEFAULT_TREE_PREFIX + totalTreesUsed, true, simulationIdMap);
+
+        cladeSystem.add(tree);
+
+        totalTreesUsed += 1;
+    }
+
+    private static SampledTree getResult(Future<SampledTree> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while sampling ancestral sequences");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
     private abstract class SubstitutionModelLoader {
 
 
@@ -649,14 +753,14 @@ public class AncestralSequenceAnnotator {
      * This method is equivalent to the SubstitutionModelLoader without having to
      * be object orientated and can be much more flexible.
      */
-    private GammaSiteRateModel loadSiteModel(Tree tree) {
+    private GammaSiteRateModel loadSiteModel(Tree tree, PrintStream out) {
 
         String modelType = (String) tree.getAttribute(SUBST_MODEL);
 
         /* Identify the datatype and substitution model. Load the model */
         SubstitutionModelLoader sml = null;
         String substModelName = modelType.replaceFirst("\\*.+","").replaceFirst("\\+.+","").trim();
-        System.out.println("Basic Substitution Model is " + substModelName);
+        out.println("Basic Substitution Model is " + substModelName);
         for(int i = 0; i<GENERAL_MODELS_LIST.length; i++) {
             if(substModelName.matches(GENERAL_MODELS_LIST[i])) {
                 sml = new GeneralSubstitutionModelLoader(tree, modelType);
@@ -693,12 +797,12 @@ public class AncestralSequenceAnnotator {
 
         String siteRatesModels = modelType.substring(modelType.indexOf("+")+1, modelType.length());
         //String[] siteRatesModels = siteRatesParameters.split(" + ");
-        System.out.println("Site rate models: " + siteRatesModels);
+        out.println("Site rate models: " + siteRatesModels);
         if(sml.getSubstitutionModel().getDataType().getClass().equals(Codons.class) &&
                 siteRatesModels.length() > 0) { /* For codon site models */
 
             if(siteRatesModels.indexOf("+M2") >= 0) { /* M2 */
-                System.out.println("Site model - M2 Codon site model used");
+                out.println("Site model - M2 Codon site model used");
                 Parameter m2FrequencyAAInv = new Parameter.Default(Double.parseDouble(tree.getAttribute("M2_f[AA INV]").toString()));
                 Parameter m2FrequencyNeutral = new Parameter.Default(Double.parseDouble(tree.getAttribute("M2_f[Neutral]").toString()));
                 Parameter m2FrequencySelected = new Parameter.Default(Double.parseDouble(tree.getAttribute("M2_f[Selected]").toString()));
@@ -711,9 +815,9 @@ public class AncestralSequenceAnnotator {
                 System.exit(0);
             }
             else if(siteRatesModels.indexOf("+M3") >= 0) { /* M3 */
-                System.out.println("Site model - M3 Codon site model used");
+                out.println("Site model - M3 Codon site model used");
                 int numberOfBins = Integer.parseInt(siteRatesModels.replaceFirst(".+M3\\[","").replaceFirst("\\].+", ""));
-                System.out.println(" + M3 n value: " + numberOfBins);
+                out.println(" + M3 n value: " + numberOfBins);
                 Parameter[] m3Frequencies = new Parameter[numberOfBins];
                 Parameter[] m3Omegas = new Parameter[numberOfBins];
                 for(int i=1; i<=numberOfBins; i++) {
@@ -726,9 +830,9 @@ public class AncestralSequenceAnnotator {
                 System.exit(0);
             }
             else if(siteRatesModels.indexOf("+M0_omega~Beta(") >= 0) { /* M7 */
-                System.out.println("Site model - M7 Codon site model used");
+                out.println("Site model - M7 Codon site model used");
                 int numberOfBins = Integer.parseInt(siteRatesModels.replaceFirst("M0_omega~Beta\\(","").replaceFirst("\\)", ""));
-                System.out.println(" + M7 n value: " + numberOfBins);
+                out.println(" + M7 n value: " + numberOfBins);
                 Parameter m7BetaMu = new Parameter.Default(Double.parseDouble(tree.getAttribute("beta_mu").toString()));
                 Parameter m7BetaVarMu = new Parameter.Default(Double.parseDouble(tree.getAttribute("beta_Var/mu").toString()));
                 //Parameter m7BetaMu = new Parameter.Default((Double) tree.getAttribute("beta_mu"));
@@ -743,15 +847,15 @@ public class AncestralSequenceAnnotator {
             int categories = -1;
             Parameter alphaParameter = null;
 
-            //System.out.println("Greatest story ever told! " + siteRatesModels);
+            //out.println("Greatest story ever told! " + siteRatesModels);
 
             if(siteRatesModels.indexOf("+INV") >= 0) {
-                System.out.println("Site model -  proportion of invariable sites used");
+                out.println("Site model -  proportion of invariable sites used");
                 //pInvParameter = new Parameter.Default(((Double) tree.getAttribute("INV_p")).doubleValue());
                 pInvParameter = new Parameter.Default(Double.parseDouble(tree.getAttribute("INV_p").toString()));
             }
             if(siteRatesModels.indexOf("+rate~Gamma(") >= 0) {
-                System.out.println("Site model - gamma site rate heterogeneity used");
+                out.println("Site model - gamma site rate heterogeneity used");
                 categories = Integer.parseInt(siteRatesModels.replaceFirst(".+rate~Gamma\\(", "").replaceFirst("\\).*",""));
                 //double sigmaMu = (Double) tree.getAttribute("gamma_sigma/mu");
                 double sigmaMu = Double.parseDouble(tree.getAttribute("gamma_sigma/mu").toString());
@@ -760,7 +864,7 @@ public class AncestralSequenceAnnotator {
             }
             else if(siteRatesModels.indexOf("+rate~LogNormal(") >= 0) {
                 // TODO implement lognormal site model
-                System.out.println("Site model - lognormal site rate heterogeneity used");
+                out.println("Site model - lognormal site rate heterogeneity used");
                 System.err.println("Sorry, lognormal site rates are not yet implemented in BEAST");
                 System.exit(0);
 
@@ -771,14 +875,14 @@ public class AncestralSequenceAnnotator {
                 alphaParameter = new Parameter.Default(sigmaMu);
             }
             else if(siteRatesModels.indexOf("+GAMMA(") >= 0) { /* For BEAST output */
-                System.out.println("Site model - gamma site rate heterogeneity used");
+                out.println("Site model - gamma site rate heterogeneity used");
                 categories = Integer.parseInt(siteRatesModels.replaceFirst(".+GAMMA\\(", "").replaceFirst("\\).*",""));
                 //double sigmaMu = (Double) tree.getAttribute("gamma_sigma/mu");
                 double alpha = Double.parseDouble(tree.getAttribute("alpha").toString());
                 alphaParameter = new Parameter.Default(alpha);
             }
 
-            //System.out.println("alpha and pinv parameters: " + alphaParameter.getParameterValue(0) + "\t" + pInvParameter.getParameterValue(0));
+            //out.println("alpha and pinv parameters: " + alphaParameter.getParameterValue(0) + "\t" + pInvParameter.getParameterValue(0));
             //GammaSiteRateModel siteModel = new GammaSiteRateModel(sml.getSubstitutionModel(), new Parameter.Default(1.0), alphaParameter, categories, pInvParameter);
             GammaSiteRateModel siteModel = new GammaSiteRateModel(GammaSiteModelParser.SITE_MODEL, new Parameter.Default(1.0), alphaParameter, categories, pInvParameter);
             siteModel.setSubstitutionModel(sml.getSubstitutionModel());
@@ -809,11 +913,11 @@ public class AncestralSequenceAnnotator {
     //	public static final String WAG_STRING = "Empirical(Data/wag.dat)*pi";
     private final int die = 0;
 
-    private Tree processTree(Tree tree) {
+    private Tree processTree(Tree tree, PrintStream out) {
 
         // Remake tree to fix node ordering - Marc
 
-        GammaSiteRateModel siteModel = loadSiteModel(tree);
+        GammaSiteRateModel siteModel = loadSiteModel(tree, out);
 
         SimpleAlignment alignment = new SimpleAlignment();
         alignment.setDataType(siteModel.getSubstitutionModel().getDataType());
@@ -842,11 +946,11 @@ public class AncestralSequenceAnnotator {
         FlexibleTree flexTree;
         if(siteModel.getSubstitutionModel().getDataType().getClass().equals(Codons.class)) {
             ConvertAlignment convertAlignment  = new ConvertAlignment(siteModel.getSubstitutionModel().getDataType(), ((Codons) siteModel.getSubstitutionModel().getDataType()).getGeneticCode(), alignment);
-            flexTree = sampleTree(tree, convertAlignment, siteModel, rateModel);
+            flexTree = sampleTree(tree, convertAlignment, siteModel, rateModel, out);
             //flexTree = sampleTree(tree, alignment, siteModel, rateModel);
         }
         else {
-            flexTree = sampleTree(tree, alignment, siteModel, rateModel);
+            flexTree = sampleTree(tree, alignment, siteModel, rateModel, out);
         }
         introduceGaps(flexTree, tree);
 
@@ -866,18 +970,14 @@ public class AncestralSequenceAnnotator {
 
     boolean[] bit = null;
 
-    private FlexibleTree sampleTree(Tree tree, PatternList alignment, GammaSiteRateModel siteModel, BranchRateModel rateModel) {
+    private FlexibleTree sampleTree(Tree tree, PatternList alignment, GammaSiteRateModel siteModel, BranchRateModel rateModel,
+                                    PrintStream out) {
         FlexibleTree flexTree = new FlexibleTree(tree, true);
         flexTree.adoptTreeModelOrdering();
         FlexibleTree finalTree = new FlexibleTree(tree);
         finalTree.adoptTreeModelOrdering();
         TreeModel treeModel = new TreeModel(tree);
 
-        // Turn off noisy logging by TreeLikelihood constructor
-        Logger logger = Logger.getLogger("dr.evomodel");
-        boolean useParentHandlers = logger.getUseParentHandlers();
-        logger.setUseParentHandlers(false);
-
 //        AncestralStateTreeLikelihood likelihood = new AncestralStateTreeLikelihood(
 //                alignment,
 //                treeModel,
@@ -925,13 +1025,11 @@ public class AncestralSequenceAnnotator {
 //                                        boolean returnML) {
 
 
-        logger.setUseParentHandlers(useParentHandlers);
-
         // Sample internal nodes
         likelihood.makeDirty();
         double logLikelihood = likelihood.getLogLikelihood();
 
-        System.out.println("The new and old Likelihood (this value should be roughly the same, debug?): " + logLikelihood + ", " + Double.parseDouble(tree.getAttribute(LIKELIHOOD).toString()));
+        out.println("The new and old Likelihood (this value should be roughly the same, debug?): " + logLikelihood + ", " + Double.parseDouble(tree.getAttribute(LIKELIHOOD).toString()));
         if(Double.parseDouble(tree.getAttribute(LIKELIHOOD).toString()) != logLikelihood) {
             /* Newly written check, not sure if this is correct. May need to round values at least */
             //throw new RuntimeException("The values of likelihood are not identical");
@@ -1152,8 +1250,10 @@ public class AncestralSequenceAnnotator {
             if (attributeNames != null) {
                 if (clade.attributeLists == null) {
                     clade.attributeLists = new List[attributeNames.size()];
+                    clade.attributeCounts = new ArrayList<HashMap<String, Integer>>();
                     for (int i = 0; i < attributeNames.size(); i++) {
                         clade.attributeLists[i] = new ArrayList();
+                        clade.attributeCounts.add(new HashMap<String, Integer>());
                     }
                 }
 
@@ -1168,7 +1268,19 @@ public class AncestralSequenceAnnotator {
                         value = tree.getNodeAttribute(node, attributeName);
                     }
 
-                    if (value != null) {
+                    if (value instanceof String) {
+                        // only the number of times each sequence or state is seen is kept
+                        String key = (String) value;
+                        if (key.startsWith("\"")) {
+                            key = key.replaceAll("\"", "");
+                        }
+                        if (attributeName.equals(NEW_SEQ)) {
+                            // Strip out gaps before storing
+                            key = key.replaceAll("-", "");
+                        }
+                        Integer count = clade.attributeCounts.get(i).get(key);
+                        clade.attributeCounts.get(i).put(key, count == null ? 1 : count + 1);
+                    } else if (value != null) {
                         clade.attributeLists[i].add(value);
                     }
                 }
@@ -1297,8 +1409,14 @@ public class AncestralSequenceAnnotator {
             for (int i = 0; i < attributeNames.size(); i++) {
                 String attributeName = attributeNames.get(i);
 
+                if (!clade.attributeCounts.get(i).isEmpty()) {
+                    if (!filter) {
+                        annotateModeAttribute(tree, node, attributeName, clade.attributeCounts.get(i));
+                    }
+                    continue;
+                }
+
                 double[] values = new double[clade.attributeLists[i].size()];
-                HashMap<String, Integer> hashMap = new HashMap<String, Integer>(clade.attributeLists[i].size());
 
                 if (values.length > 0) {
                     Object v = clade.attributeLists[i].get(0);
@@ -1306,28 +1424,10 @@ public class AncestralSequenceAnnotator {
                     boolean isHeight = attributeName.equals("height");
                     boolean isBoolean = v instanceof Boolean;
 
-                    boolean isDiscrete = v instanceof String;
-
                     double minValue = Double.MAX_VALUE;
                     double maxValue = -Double.MAX_VALUE;
                     for (int j = 0; j < clade.attributeLists[i].size(); j++) {
-                        if (isDiscrete) {
-                            String value = (String) clade.attributeLists[i].get(j);
-                            if (value.startsWith("\"")) {
-                                value = value.replaceAll("\"", "");
-                            }
-                            if (attributeName.equals(NEW_SEQ)) {
-                                // Strip out gaps before storing
-                                value = value.replaceAll("-", "");
-                            }
-                            if (hashMap.containsKey(value)) {
-                                int count = hashMap.get(value);
-                                hashMap.put(value, count + 1);
-                            } else {
-                                hashMap.put(value, 1);
-
-                            }
-                        } else if (isBoolean) {
+                        if (isBoolean) {
                             values[j] = (((Boolean) clade.attributeLists[i].get(j)) ? 1.0 : 0.0);
                         } else {
                             values[j] = ((Number) clade.attributeLists[i].get(j)).doubleValue();
@@ -1348,10 +1448,7 @@ public class AncestralSequenceAnnotator {
                     }
 
                     if (!filter) {
-                        if (!isDiscrete)
-                            annotateMeanAttribute(tree, node, attributeName, values);
-                        else
-                            annotateModeAttribute(tree, node, attributeName, hashMap);
+                        annotateMeanAttribute(tree, node, attributeName, values);
 //						if( tree.getNodeTaxon(node) != null &&
 //									tree.getNodeTaxon(node).getId().compareTo("Calanus") == 0) {
 //									System.err.println("size = "+hashMap.keySet().size());
@@ -1359,7 +1456,7 @@ public class AncestralSequenceAnnotator {
 //								}
 //							System.err.println();
 //						;
-                        if (!isBoolean && minValue < maxValue && !isDiscrete) {
+                        if (!isBoolean && minValue < maxValue) {
                             // Basically, if it is a boolean (0, 1) then we don't need the distribution information
                             // Likewise if it doesn't vary.
                             annotateMedianAttribute(tree, node, attributeName + "_median", values);
@@ -1657,6 +1754,7 @@ public class AncestralSequenceAnnotator {
             double credibility;
             BitSet bits;
             List[] attributeLists = null;
+            List<HashMap<String, Integer>> attributeCounts = null;
         }
 
         //
@@ -1676,6 +1774,10 @@ public class AncestralSequenceAnnotator {
     List[] treeAttributeLists = null;
     TaxonList taxa = null;
 
+    PrintStream simulationStream = null;
+    NexusExporter simulationResults = null;
+    Map<String, Integer> simulationIdMap = null;
+
     public static void printTitle() {
         System.out.println();
         centreLine("Ancestral Sequence Annotator " + "v0.1" + ", " + "2008", 60);
@@ -1734,7 +1836,8 @@ public class AncestralSequenceAnnotator {
                         new Arguments.RealOption("limit", "the minimum posterior probability for a node to be annotated"),
                         new Arguments.StringOption("target", "target_file_name", "specifies a user target tree to be annotated"),
                         new Arguments.Option("help", "option to print this message"),
-                        new Arguments.StringOption("kalign", "full_path_to_kalign", "specifies full path to the kalign executable file")
+                        new Arguments.StringOption("kalign", "full_path_to_kalign", "specifies full path to the kalign executable file"),
+                        new Arguments.IntegerOption("threads", "the number of threads to use [default = 1]")
                 });
 
         try {
@@ -1786,6 +1889,11 @@ public class AncestralSequenceAnnotator {
             kalignExecutable = arguments.getStringOption("kalign");
         }
 
+        int threadCount = 1;
+        if (arguments.hasOption("threads")) {
+            threadCount = Math.max(arguments.getIntegerOption("threads"), 1);
+        }
+
         String[] args2 = arguments.getLeftoverArguments();
 
         if (args2.length > 2) {
@@ -1824,7 +1932,8 @@ public class AncestralSequenceAnnotator {
                 targetTreeFileName,
                 inputFileName,
                 outputFileName,
-                kalignExecutable);
+                kalignExecutable,
+                threadCount);
 
         System.exit(0);
     }
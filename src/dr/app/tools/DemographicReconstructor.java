@@ -0,0 +1,1068 @@
+/*
+ * DemographicReconstructor.java
+ *
+ * Copyright (C) 2002-2006 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.app.util.Arguments;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceDistribution;
+import dr.inference.trace.TraceException;
+import dr.inference.trace.TraceFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Reconstructs the demographic plots of Tracer's temporal analyses (Bayesian skyline, skyride, skygrid and
+ * lineages through time) without the GUI. The log file is read with LogFileTraces as Tracer does but the tree file
+ * is streamed: the tree lines are handed out in batches to a pool of threads which find the node heights with a
+ * light-weight Newick scanner and evaluate each sample's trajectory at the time bins. The values are gathered in
+ * sample order so the summaries are the same as those of the Tracer dialogs.
+ */
+public class DemographicReconstructor {
+
+    private static final int BATCH_SIZE = 256;
+
+    public enum Model {
+        STEPWISE_SKYLINE("stepwise", "Bayesian Skyline", "skyline.popSize", "skyline.groupSize"),
+        LINEAR_SKYLINE("linear", "Bayesian Skyline", "skyline.popSize", "skyline.groupSize"),
+        SKYRIDE("skyride", "Bayesian Skyride", "skyride.logPopSize", null),
+        SKYGRID("skygrid", "Bayesian SkyGrid", "skygrid.logPopSize", "skygrid.cutOff"),
+        LINEAGES_THROUGH_TIME("ltt", "Lineages Through Time", null, null);
+
+        Model(String name, String title, String popSizeTrace, String secondTrace) {
+            this.name = name;
+            this.title = title;
+            this.popSizeTrace = popSizeTrace;
+            this.secondTrace = secondTrace;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        public boolean requiresTrees() {
+            return this != SKYGRID;
+        }
+
+        private final String name;
+        private final String title;
+        private final String popSizeTrace;
+        private final String secondTrace;
+    }
+
+    public enum MaxHeight {
+        LOWER_HPD("lower"),
+        MEDIAN("median"),
+        MEAN("mean"),
+        UPPER_HPD("upper");
+
+        MaxHeight(String name) {
+            this.name = name;
+        }
+
+        public String toString() {
+            return name;
+        }
+
+        private final String name;
+    }
+
+    /**
+     * The plotted data, in the same form as Tracer's temporal analysis: a row for each time with the mean, median
+     * and 95% bounds, and the times of the root (-1 when outside the plot).
+     */
+    public static class Reconstruction {
+        private final String title;
+        private final List<double[]> rows = new ArrayList<double[]>();
+        private double timeMean, timeMedian, timeUpper, timeLower;
+
+        Reconstruction(String title) {
+            this.title = title;
+        }
+
+        void addRow(double time, double mean, double median, double upper, double lower) {
+            rows.add(new double[]{time, mean, median, upper, lower});
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        /**
+         * @return time, mean, median, upper and lower for the given row
+         */
+        public double[] getRow(int i) {
+            return rows.get(i);
+        }
+
+        public double[] getRootTimes() {
+            return new double[]{timeMean, timeMedian, timeUpper, timeLower};
+        }
+
+        /**
+         * Writes a tab delimited table in the format of Tracer's 'Export Data...' for a temporal analysis.
+         */
+        public void write(PrintWriter writer) {
+            writer.println("\t" + title + "\t\t\t");
+            writer.println("Time\tMean\tMedian\tUpper\tLower");
+            for (double[] row : rows) {
+                writer.println(row[0] + "\t" + row[1] + "\t" + row[2] + "\t" + row[3] + "\t" + row[4]);
+            }
+            writer.flush();
+        }
+    }
+
+    private final Model model;
+    private final int binCount;
+    private final double ageOfYoungest;
+    private final MaxHeight maxHeightType;
+    private final int threadCount;
+
+    private String rootHeightTrace = "treeModel.rootHeight";
+    private String popSizeTrace;
+    private String secondTrace;
+    private boolean isRatePlot = false;
+    private boolean rangeSet = false;
+    private double minTime, maxTime;
+
+    public DemographicReconstructor(Model model, int binCount, double ageOfYoungest, MaxHeight maxHeightType,
+                                    int threadCount) {
+        this.model = model;
+        this.binCount = binCount;
+        this.ageOfYoungest = ageOfYoungest;
+        this.maxHeightType = maxHeightType;
+        this.threadCount = threadCount;
+        this.popSizeTrace = model.popSizeTrace;
+        this.secondTrace = model.secondTrace;
+    }
+
+    public void setRootHeightTrace(String rootHeightTrace) {
+        this.rootHeightTrace = rootHeightTrace;
+    }
+
+    /**
+     * @param popSizeTrace the name of the population size traces without the numerical suffix
+     */
+    public void setPopSizeTrace(String popSizeTrace) {
+        this.popSizeTrace = popSizeTrace;
+    }
+
+    /**
+     * @param secondTrace the group size traces (skyline, without the numerical suffix) or the cut-off (skygrid)
+     */
+    public void setSecondTrace(String secondTrace) {
+        this.secondTrace = secondTrace;
+    }
+
+    /**
+     * For the linear skyline, plot the rate of change of the population size rather than the population size.
+     */
+    public void setRatePlot(boolean ratePlot) {
+        isRatePlot = ratePlot;
+    }
+
+    public void setRange(double minTime, double maxTime) {
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        rangeSet = true;
+    }
+
+    public Reconstruction reconstruct(LogFileTraces traces, File treeFile) throws IOException {
+
+        int heightIndex = getTraceIndex(traces, rootHeightTrace);
+        TraceDistribution<Double> distribution = new TraceDistribution<Double>(getDoubleValues(traces, heightIndex),
+                traces.getTrace(heightIndex).getTraceType(), traces.getStepSize());
+
+        double timeMean = distribution.getMean();
+        double timeMedian = distribution.getMedian();
+        double timeUpper = distribution.getUpperHPD();
+        double timeLower = distribution.getLowerHPD();
+
+        double maxHeight = 0.0;
+        switch (maxHeightType) {
+            case LOWER_HPD:
+                maxHeight = timeLower;
+                break;
+            case MEDIAN:
+                maxHeight = timeMedian;
+                break;
+            case MEAN:
+                maxHeight = timeMean;
+                break;
+            case UPPER_HPD:
+                maxHeight = timeUpper;
+                break;
+        }
+
+        double minTime, maxTime;
+        if (rangeSet) {
+            minTime = this.minTime;
+            maxTime = this.maxTime;
+        } else if (ageOfYoungest > 0.0) {
+            minTime = ageOfYoungest - maxHeight;
+            maxTime = ageOfYoungest;
+        } else {
+            minTime = 0.0;
+            maxTime = maxHeight - ageOfYoungest;
+        }
+
+        Reconstruction reconstruction = new Reconstruction(model.title + ": " + traces.getName());
+
+        if (ageOfYoungest > 0.0) {
+            // reverse them if ageOfYoungest is set positive
+            timeMean = ageOfYoungest - timeMean;
+            timeMedian = ageOfYoungest - timeMedian;
+            timeUpper = ageOfYoungest - timeUpper;
+            timeLower = ageOfYoungest - timeLower;
+
+            // setting a timeXXXX to -1 means that it won't be displayed...
+            if (minTime >= timeLower) timeLower = -1;
+            if (minTime >= timeMean) timeMean = -1;
+            if (minTime >= timeMedian) timeMedian = -1;
+            if (minTime >= timeUpper) timeUpper = -1;
+        } else {
+            // otherwise use use ageOfYoungest as an offset
+            timeMean = timeMean - ageOfYoungest;
+            timeMedian = timeMedian - ageOfYoungest;
+            timeUpper = timeUpper - ageOfYoungest;
+            timeLower = timeLower - ageOfYoungest;
+
+            // setting a timeXXXX to -1 means that it won't be displayed...
+            if (maxTime <= timeLower) timeLower = -1;
+            if (maxTime <= timeMean) timeMean = -1;
+            if (maxTime <= timeMedian) timeMedian = -1;
+            if (maxTime <= timeUpper) timeUpper = -1;
+        }
+        reconstruction.timeMean = timeMean;
+        reconstruction.timeMedian = timeMedian;
+        reconstruction.timeUpper = timeUpper;
+        reconstruction.timeLower = timeLower;
+
+        if (model == Model.SKYGRID) {
+            reconstructSkyGrid(traces, minTime, maxTime, reconstruction);
+        } else {
+            reconstructFromTrees(traces, treeFile, maxHeight, minTime, maxTime, reconstruction);
+        }
+
+        return reconstruction;
+    }
+
+    private void reconstructSkyGrid(LogFileTraces traces, double minTime, double maxTime,
+                                    Reconstruction reconstruction) {
+
+        int firstPopSize = getTraceIndex(traces, popSizeTrace + "1");
+        int popSizeCount = getTraceRange(traces, firstPopSize);
+        double gridHeight = (Double) traces.getTrace(getTraceIndex(traces, secondTrace)).getValue(0);
+
+        double delta = gridHeight / (double) (popSizeCount - 1);
+        double height;
+        if (ageOfYoungest > 0.0) {
+            height = ageOfYoungest;
+            delta = -delta;
+        } else {
+            height = 0.0;
+        }
+
+        for (int i = 0; i < popSizeCount; ++i) {
+            if (height >= minTime && height <= maxTime) {
+                TraceDistribution<Double> dist = new TraceDistribution<Double>(
+                        getDoubleValues(traces, firstPopSize + i), TraceFactory.TraceType.DOUBLE);
+                double mean = Math.exp(dist.getMean());
+                double median = Math.exp(dist.getMedian());
+                double upper = Math.exp(dist.getUpperHPD());
+                double lower = Math.exp(dist.getLowerHPD());
+                reconstruction.addRow(height, mean, median, upper, lower);
+
+                if (i == popSizeCount - 1) {
+                    // the last interval extends to the edge of the plot
+                    while (height >= minTime && height <= maxTime) {
+                        reconstruction.addRow(height, mean, median, upper, lower);
+                        height += delta;
+                    }
+                }
+            }
+            height += delta;
+        }
+    }
+
+    private void reconstructFromTrees(LogFileTraces traces, File treeFile, double maxHeight,
+                                      double minTime, double maxTime,
+                                      Reconstruction reconstruction) throws IOException {
+
+        if (treeFile == null) {
+            throw new IllegalArgumentException("The " + model + " reconstruction requires a tree file");
+        }
+
+        int stateCount = traces.getStateCount();
+
+        // the log values for each sample, indexed by state then by parameter
+        double[][] popSizes = null;
+        double[][] groupSizes = null;
+        if (model != Model.LINEAGES_THROUGH_TIME) {
+            popSizes = getStateValues(traces, popSizeTrace + "1", model == Model.SKYRIDE);
+        }
+        if (model == Model.STEPWISE_SKYLINE || model == Model.LINEAR_SKYLINE) {
+            groupSizes = getStateValues(traces, secondTrace + "1", false);
+            if (model == Model.LINEAR_SKYLINE && groupSizes[0].length != popSizes[0].length - 1) {
+                throw new IllegalArgumentException("For the linear change Bayesian skyline model there should be " +
+                        "one fewer group size than population size parameters");
+            }
+        }
+
+        double delta = (maxTime - minTime) / (binCount - 1);
+
+        // the heights of the bins and whether they are within the trees
+        double[] heights = new double[binCount];
+        boolean[] inRange = new boolean[binCount];
+        double height;
+        if (ageOfYoungest > 0.0) {
+            height = ageOfYoungest - maxTime;
+        } else {
+            height = ageOfYoungest;
+        }
+        for (int k = 0; k < binCount; k++) {
+            heights[k] = height;
+            inRange[k] = height >= 0.0 && height <= maxHeight;
+            height += delta;
+        }
+
+        double[][] bins = new double[binCount][stateCount];
+        int[] binSizes = new int[binCount];
+
+        int skip = traces.getBurnIn() / traces.getStepSize();
+        int treeCount = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        LinkedList<Future<double[][]>> pending = new LinkedList<Future<double[][]>>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(treeFile), 1 << 16);
+        try {
+            TreeLineReader treeReader = new TreeLineReader(reader);
+
+            int state = 0;
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            String tree;
+            do {
+                tree = treeReader.readTree();
+                if (tree != null) {
+                    treeCount++;
+                    if (treeCount > skip) {
+                        batch.add(tree);
+                    }
+                }
+
+                if (batch.size() == BATCH_SIZE || (tree == null && batch.size() > 0)) {
+                    if (state + batch.size() <= stateCount) {
+                        pending.add(pool.submit(new BatchTask(state, batch, heights, inRange, popSizes, groupSizes)));
+                    }
+                    state += batch.size();
+                    batch = new ArrayList<String>(BATCH_SIZE);
+
+                    // keep a bounded number of batches in memory
+                    while (pending.size() > 2 * threadCount) {
+                        addToBins(getResult(pending.removeFirst()), bins, binSizes);
+                    }
+                }
+            } while (tree != null);
+
+            int logTotalStates = traces.getStateCount() + traces.getBurninStateCount();
+            if (treeCount != logTotalStates) {
+                throw new IllegalArgumentException("BEAST log states (" + logTotalStates
+                        + ") does not match tree log states (" + treeCount + ")"
+                        + "\nPlease check both log files.");
+            }
+
+            while (!pending.isEmpty()) {
+                addToBins(getResult(pending.removeFirst()), bins, binSizes);
+            }
+        } finally {
+            pool.shutdownNow();
+            reader.close();
+        }
+
+        double t;
+        if (ageOfYoungest > 0.0) {
+            t = maxTime;
+        } else {
+            t = minTime;
+        }
+        for (int k = 0; k < binCount; k++) {
+            int count = binSizes[k];
+            if (count > 0) {
+                double[] values = bins[k];
+                double sum = 0.0;
+                for (int i = 0; i < count; i++) {
+                    sum += values[i];
+                }
+                double[] sorted = Arrays.copyOf(values, count);
+                Arrays.sort(sorted);
+                reconstruction.addRow(t, sum / count, quantile(0.5, sorted), quantile(0.975, sorted),
+                        quantile(0.025, sorted));
+            } else {
+                reconstruction.addRow(t, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+            }
+            if (ageOfYoungest > 0.0) {
+                t -= delta;
+            } else {
+                t += delta;
+            }
+        }
+    }
+
+    // the same quantile as DiscreteStatistics.quantile, here on values already in order
+    private static double quantile(double q, double[] sorted) {
+        return sorted[(int) Math.ceil(q * sorted.length) - 1];
+    }
+
+    private static void addToBins(double[][] values, double[][] bins, int[] binSizes) {
+        for (double[] sample : values) {
+            for (int k = 0; k < sample.length; k++) {
+                // NaN marks a bin that has no value for this sample
+                if (!Double.isNaN(sample[k])) {
+                    bins[k][binSizes[k]] = sample[k];
+                    binSizes[k]++;
+                }
+            }
+        }
+    }
+
+    private static double[][] getResult(Future<double[][]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while reconstructing the demographic history");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private static int getTraceIndex(LogFileTraces traces, String name) {
+        int index = traces.getTraceIndex(name);
+        if (index < 0) {
+            throw new IllegalArgumentException("The log file, " + traces.getName() + ", has no trace called " + name);
+        }
+        return index;
+    }
+
+    private static int getTraceRange(LogFileTraces traces, int first) {
+        int i = 1;
+        int k = first;
+
+        String name = traces.getTraceName(first);
+        String root = name.substring(0, name.length() - 1);
+        while (k < traces.getTraceCount() && traces.getTraceName(k).equals(root + i)) {
+            i++;
+            k++;
+        }
+
+        return i - 1;
+    }
+
+    // the values of a numerical trace after the burn-in
+    private static List<Double> getDoubleValues(LogFileTraces traces, int index) {
+        List<Double> values = new ArrayList<Double>();
+        for (Object value : traces.getValues(index)) {
+            values.add((Double) value);
+        }
+        return values;
+    }
+
+    private static double[][] getStateValues(LogFileTraces traces, String firstName, boolean exponentiate) {
+        int first = getTraceIndex(traces, firstName);
+        int count = getTraceRange(traces, first);
+        double[][] values = new double[traces.getStateCount()][count];
+        for (int i = 0; i < count; i++) {
+            List<Double> column = getDoubleValues(traces, first + i);
+            for (int state = 0; state < values.length; state++) {
+                double value = column.get(state);
+                values[state][i] = exponentiate ? Math.exp(value) : value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Evaluates the trajectories of a batch of consecutive samples at each of the bins.
+     */
+    private class BatchTask implements Callable<double[][]> {
+        private final int firstState;
+        private final List<String> trees;
+        private final double[] heights;
+        private final boolean[] inRange;
+        private final double[][] popSizes;
+        private final double[][] groupSizes;
+
+        BatchTask(int firstState, List<String> trees, double[] heights, boolean[] inRange,
+                  double[][] popSizes, double[][] groupSizes) {
+            this.firstState = firstState;
+            this.trees = trees;
+            this.heights = heights;
+            this.inRange = inRange;
+            this.popSizes = popSizes;
+            this.groupSizes = groupSizes;
+        }
+
+        public double[][] call() {
+            NodeHeights nodeHeights = new NodeHeights();
+            double[][] values = new double[trees.size()][];
+            for (int i = 0; i < values.length; i++) {
+                int state = firstState + i;
+                nodeHeights.parse(trees.get(i));
+
+                double[] sample = new double[heights.length];
+                Arrays.fill(sample, Double.NaN);
+                switch (model) {
+                    case STEPWISE_SKYLINE:
+                    case LINEAR_SKYLINE:
+                        evaluateSkyline(nodeHeights.getCoalescentTimes(), popSizes[state], groupSizes[state], sample);
+                        break;
+                    case SKYRIDE:
+                        evaluateSkyride(nodeHeights.getCoalescentTimes(), popSizes[state], sample);
+                        break;
+                    case LINEAGES_THROUGH_TIME:
+                        evaluateLineages(nodeHeights.getBranchingTimes(), sample);
+                        break;
+                }
+                values[i] = sample;
+            }
+            return values;
+        }
+
+        private void evaluateSkyline(double[] coalescentTimes, double[] popSize, double[] groupSize, double[] sample) {
+
+            // the age of the end of each group
+            double[] groupTimes = new double[groupSize.length];
+            int groupIndex = 0;
+            int subIndex = 0;
+            int size = getGroupSize(groupSize, 0);
+            for (double time : coalescentTimes) {
+                subIndex += 1;
+                if (subIndex == size) {
+                    groupTimes[groupIndex] = time;
+                    subIndex = 0;
+                    groupIndex += 1;
+                    if (groupIndex < groupSize.length) {
+                        size = getGroupSize(groupSize, groupIndex);
+                    }
+                }
+            }
+
+            // the bins are in order of height so the group can be found by a single sweep
+            double lastGroupTime = 0.0;
+            int index = 0;
+            for (int k = 0; k < heights.length; k++) {
+                if (!inRange[k]) {
+                    continue;
+                }
+                double height = heights[k];
+                while (index < groupTimes.length && groupTimes[index] < height) {
+                    lastGroupTime = groupTimes[index];
+                    index += 1;
+                }
+
+                if (model == Model.LINEAR_SKYLINE) {
+                    if (index < groupTimes.length - 1) {
+                        double p1 = popSize[index];
+                        double p2 = popSize[index + 1];
+                        if (isRatePlot) {
+                            sample[k] = (Math.log(p1) - Math.log(p2)) / (groupTimes[index] - lastGroupTime);
+                        } else {
+                            double t = (height - lastGroupTime) / (groupTimes[index] - lastGroupTime);
+                            sample[k] = p1 + ((p2 - p1) * t);
+                        }
+                    }
+                } else if (index < groupTimes.length) {
+                    if (popSize[index] == 0.0) {
+                        throw new RuntimeException("Zero pop size");
+                    }
+                    sample[k] = popSize[index];
+                }
+            }
+        }
+
+        private int getGroupSize(double[] groupSize, int index) {
+            double g = groupSize[index];
+            if (g != Math.round(g)) {
+                throw new RuntimeException("Group size " + index + " should be integer but found:" + g);
+            }
+            return (int) Math.round(g);
+        }
+
+        private void evaluateSkyride(double[] coalescentTimes, double[] popSize, double[] sample) {
+            int popSizeCount = popSize.length;
+            if (coalescentTimes.length != popSizeCount) {
+                throw new IllegalArgumentException("The trees have " + coalescentTimes.length +
+                        " coalescent events but there are " + popSizeCount + " population sizes");
+            }
+
+            double lastCoalescentTime = 0.0;
+            int index = 0;
+            for (int k = 0; k < heights.length; k++) {
+                if (!inRange[k]) {
+                    continue;
+                }
+                double height = heights[k];
+                while (index < popSizeCount && coalescentTimes[index] < height) {
+                    lastCoalescentTime = coalescentTimes[index];
+                    index += 1;
+                }
+
+                if (index < popSizeCount - 1) {
+                    double t = (height - lastCoalescentTime) / (coalescentTimes[index] - lastCoalescentTime);
+                    double p1 = popSize[index];
+                    double p2 = popSize[index + 1];
+                    sample[k] = p1 + ((p2 - p1) * t);
+                }
+            }
+        }
+
+        private void evaluateLineages(double[] branchingTimes, double[] sample) {
+            double n = branchingTimes.length;
+            int index = 0;
+            for (int k = 0; k < heights.length; k++) {
+                if (!inRange[k]) {
+                    continue;
+                }
+                while (index < branchingTimes.length && branchingTimes[index] < heights[k]) {
+                    index += 1;
+                }
+
+                double lineageCount = 1;
+                if (index < branchingTimes.length) {
+                    lineageCount = n - index + 1;
+                }
+                sample[k] = lineageCount;
+            }
+        }
+    }
+
+    /**
+     * Returns the Newick strings of the trees in a NEXUS or Newick tree file one at a time without building the
+     * trees. In a NEXUS file each tree is expected to be on a single line as BEAST writes them.
+     */
+    public static class TreeLineReader {
+        private final BufferedReader reader;
+        private Boolean isNexus = null;
+
+        public TreeLineReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        public String readTree() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (isNexus == null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    isNexus = line.toUpperCase().startsWith("#NEXUS");
+                    if (isNexus) {
+                        continue;
+                    }
+                }
+
+                if (isNexus) {
+                    if (line.length() > 4 && line.substring(0, 4).equalsIgnoreCase("tree") &&
+                            Character.isWhitespace(line.charAt(4))) {
+                        int equals = findEquals(line);
+                        if (equals < 0) {
+                            throw new IOException("Missing '=' in tree line: " + line);
+                        }
+                        return line.substring(equals + 1);
+                    }
+                } else if (line.length() > 0) {
+                    return line;
+                }
+            }
+            return null;
+        }
+
+        // the first '=' that is not within a comment
+        private static int findEquals(String line) {
+            int depth = 0;
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                } else if (c == '=' && depth == 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Finds the node heights of a binary tree from its Newick string. Labels and comments are skipped and the
+     * heights are relative to the youngest tip. The buffers are reused from one tree to the next.
+     */
+    public static class NodeHeights {
+        private int nodeCount;
+        private int[] parents = new int[64];
+        private int[] childCounts = new int[64];
+        private double[] lengths = new double[64];
+        private double[] depths = new double[64];
+
+        private double[] tipHeights;
+        private double[] internalHeights;
+
+        public void parse(String newick) {
+            nodeCount = 0;
+
+            int current = -1;
+            int last = -1;
+            boolean expectingChild = false;
+
+            int i = 0;
+            int length = newick.length();
+            scan:
+            while (i < length) {
+                char c = newick.charAt(i);
+                switch (c) {
+                    case '[':
+                        i = skipComment(newick, i);
+                        break;
+                    case '(':
+                        current = addNode(current);
+                        expectingChild = true;
+                        i++;
+                        break;
+                    case ',':
+                        if (current < 0) {
+                            throw new IllegalArgumentException("Unexpected ',' in tree");
+                        }
+                        expectingChild = true;
+                        i++;
+                        break;
+                    case ')':
+                        if (current < 0) {
+                            throw new IllegalArgumentException("Unbalanced brackets in tree");
+                        }
+                        last = current;
+                        current = parents[current];
+                        expectingChild = false;
+                        i++;
+                        break;
+                    case ':':
+                        if (last < 0) {
+                            throw new IllegalArgumentException("Branch length without a node in tree");
+                        }
+                        // BEAST may write the branch's annotation between the colon and the length
+                        int start = i + 1;
+                        while (start < length &&
+                                (newick.charAt(start) == '[' || Character.isWhitespace(newick.charAt(start)))) {
+                            start = newick.charAt(start) == '[' ? skipComment(newick, start) : start + 1;
+                        }
+                        int end = skipLabel(newick, start);
+                        lengths[last] = Double.parseDouble(newick.substring(start, end).trim());
+                        i = end;
+                        break;
+                    case ';':
+                        break scan;
+                    default:
+                        if (Character.isWhitespace(c)) {
+                            i++;
+                            break;
+                        }
+                        if (c == '\'' || c == '"') {
+                            i = skipQuoted(newick, i);
+                        } else {
+                            i = skipLabel(newick, i);
+                        }
+                        if (expectingChild) {
+                            last = addNode(current);
+                            expectingChild = false;
+                        }
+                        // otherwise it is the label of an internal node
+                        break;
+                }
+            }
+
+            if (nodeCount == 0 || current != -1) {
+                throw new IllegalArgumentException("Incomplete tree");
+            }
+
+            // nodes are numbered in pre-order so parents come before their children
+            int tipCount = 0;
+            double rootDepth = 0.0;
+            depths[0] = 0.0;
+            for (int j = 1; j < nodeCount; j++) {
+                depths[j] = depths[parents[j]] + lengths[j];
+            }
+            for (int j = 0; j < nodeCount; j++) {
+                if (childCounts[j] == 0) {
+                    tipCount++;
+                    rootDepth = Math.max(rootDepth, depths[j]);
+                } else if (childCounts[j] != 2) {
+                    throw new IllegalArgumentException("Can't handle multifurcations.");
+                }
+            }
+
+            tipHeights = new double[tipCount];
+            internalHeights = new double[nodeCount - tipCount];
+            int tip = 0;
+            int internal = 0;
+            for (int j = 0; j < nodeCount; j++) {
+                if (childCounts[j] == 0) {
+                    tipHeights[tip++] = rootDepth - depths[j];
+                } else {
+                    internalHeights[internal++] = rootDepth - depths[j];
+                }
+            }
+            Arrays.sort(tipHeights);
+            Arrays.sort(internalHeights);
+        }
+
+        /**
+         * @return the sorted heights of the internal nodes
+         */
+        public double[] getBranchingTimes() {
+            return internalHeights;
+        }
+
+        /**
+         * @return the times of the coalescent events as the sum of the intervals from the youngest tip
+         */
+        public double[] getCoalescentTimes() {
+            double[] times = new double[internalHeights.length];
+            double totalTime = 0.0;
+            double previous = tipHeights[0];
+            int tip = 1;
+            int internal = 0;
+            while (internal < internalHeights.length) {
+                if (tip < tipHeights.length && tipHeights[tip] <= internalHeights[internal]) {
+                    totalTime += tipHeights[tip] - previous;
+                    previous = tipHeights[tip];
+                    tip++;
+                } else {
+                    totalTime += internalHeights[internal] - previous;
+                    previous = internalHeights[internal];
+                    times[internal] = totalTime;
+                    internal++;
+                }
+            }
+            return times;
+        }
+
+        private int addNode(int parent) {
+            if (nodeCount == parents.length) {
+                int size = nodeCount * 2;
+                parents = Arrays.copyOf(parents, size);
+                childCounts = Arrays.copyOf(childCounts, size);
+                lengths = Arrays.copyOf(lengths, size);
+                depths = Arrays.copyOf(depths, size);
+            }
+            if (parent < 0 && nodeCount > 0) {
+                throw new IllegalArgumentException("More than one root in tree");
+            }
+            parents[nodeCount] = parent;
+            childCounts[nodeCount] = 0;
+            lengths[nodeCount] = 0.0;
+            if (parent >= 0) {
+                childCounts[parent]++;
+            }
+            return nodeCount++;
+        }
+
+        private static int skipComment(String newick, int i) {
+            int end = newick.indexOf(']', i);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated comment in tree");
+            }
+            return end + 1;
+        }
+
+        private static int skipQuoted(String newick, int i) {
+            char quote = newick.charAt(i);
+            int end = newick.indexOf(quote, i + 1);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated quoted label in tree");
+            }
+            return end + 1;
+        }
+
+        private static int skipLabel(String newick, int i) {
+            while (i < newick.length() && ",():;[".indexOf(newick.charAt(i)) < 0) {
+                i++;
+            }
+            return i;
+        }
+    }
+
+    public static void printUsage(Arguments arguments) {
+
+        arguments.printUsage("demographicreconstructor", "<log-file-name> [<tree-file-name>] <output-file-name>");
+        System.out.println();
+        System.out.println("  Example: demographicreconstructor -model stepwise -burnin 1000000 run.log run.trees skyline.txt");
+        System.out.println("  Example: demographicreconstructor -model skygrid -youngest 2009.5 run.log skygrid.txt");
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        String[] models = new String[Model.values().length];
+        for (int i = 0; i < models.length; i++) {
+            models[i] = Model.values()[i].toString();
+        }
+        String[] maxHeights = new String[MaxHeight.values().length];
+        for (int i = 0; i < maxHeights.length; i++) {
+            maxHeights[i] = MaxHeight.values()[i].toString();
+        }
+
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.StringOption("model", models, false, "the demographic model [default = stepwise]"),
+                        new Arguments.IntegerOption("burnin", "the number of states to be considered as 'burn-in' [default = 10% of states]"),
+                        new Arguments.IntegerOption("bins", 2, Integer.MAX_VALUE, "the number of time bins [default = 100]"),
+                        new Arguments.RealOption("youngest", "the age of the youngest tip [default = 0]"),
+                        new Arguments.StringOption("maxHeight", maxHeights, false, "the root height that sets the range of the plot [default = median]"),
+                        new Arguments.RealArrayOption("range", 2, "the minimum and maximum time of the plot, instead of the root height"),
+                        new Arguments.StringOption("height", "trace_name", "the root height trace [default = treeModel.rootHeight]"),
+                        new Arguments.StringOption("popSize", "trace_name", "the population size traces without the numerical suffix"),
+                        new Arguments.StringOption("groupSize", "trace_name", "the skyline group size traces without the numerical suffix"),
+                        new Arguments.StringOption("cutOff", "trace_name", "the skygrid cut-off trace"),
+                        new Arguments.Option("rate", "plot the rate of change of the linear skyline"),
+                        new Arguments.IntegerOption("threads", "the number of threads to use [default = number of processors]"),
+                        new Arguments.Option("help", "option to print this message")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae);
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        if (arguments.hasOption("help")) {
+            printUsage(arguments);
+            System.exit(0);
+        }
+
+        Model model = Model.STEPWISE_SKYLINE;
+        if (arguments.hasOption("model")) {
+            String name = arguments.getStringOption("model");
+            for (Model m : Model.values()) {
+                if (m.toString().equalsIgnoreCase(name)) {
+                    model = m;
+                }
+            }
+        }
+
+        MaxHeight maxHeight = MaxHeight.MEDIAN;
+        if (arguments.hasOption("maxHeight")) {
+            String name = arguments.getStringOption("maxHeight");
+            for (MaxHeight m : MaxHeight.values()) {
+                if (m.toString().equalsIgnoreCase(name)) {
+                    maxHeight = m;
+                }
+            }
+        }
+
+        int binCount = arguments.hasOption("bins") ? arguments.getIntegerOption("bins") : 100;
+        double ageOfYoungest = arguments.hasOption("youngest") ? arguments.getRealOption("youngest") : 0.0;
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (arguments.hasOption("threads")) {
+            threadCount = Math.max(arguments.getIntegerOption("threads"), 1);
+        }
+
+        String[] args2 = arguments.getLeftoverArguments();
+        int fileCount = model.requiresTrees() ? 3 : 2;
+        if (args2.length != fileCount) {
+            System.err.println(model.requiresTrees() ?
+                    "Requires a log filename, a tree filename and an output filename" :
+                    "Requires a log filename and an output filename");
+            System.err.println();
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        DemographicReconstructor reconstructor = new DemographicReconstructor(model, binCount, ageOfYoungest,
+                maxHeight, threadCount);
+        if (arguments.hasOption("height")) {
+            reconstructor.setRootHeightTrace(arguments.getStringOption("height"));
+        }
+        if (arguments.hasOption("popSize")) {
+            reconstructor.setPopSizeTrace(arguments.getStringOption("popSize"));
+        }
+        if (arguments.hasOption("groupSize")) {
+            reconstructor.setSecondTrace(arguments.getStringOption("groupSize"));
+        }
+        if (arguments.hasOption("cutOff")) {
+            reconstructor.setSecondTrace(arguments.getStringOption("cutOff"));
+        }
+        if (arguments.hasOption("range")) {
+            double[] range = arguments.getRealArrayOption("range");
+            reconstructor.setRange(range[0], range[1]);
+        }
+        reconstructor.setRatePlot(arguments.hasOption("rate"));
+
+        File logFile = new File(args2[0]);
+        File treeFile = model.requiresTrees() ? new File(args2[1]) : null;
+        String outputFileName = args2[fileCount - 1];
+
+        LogFileTraces traces = new LogFileTraces(logFile.getName(), logFile);
+        PrintWriter writer = null;
+        try {
+            traces.loadTraces();
+            if (arguments.hasOption("burnin")) {
+                traces.setBurnIn(arguments.getIntegerOption("burnin"));
+            }
+
+            Reconstruction reconstruction = reconstructor.reconstruct(traces, treeFile);
+
+            writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFileName)));
+            reconstruction.write(writer);
+        } catch (TraceException te) {
+            System.err.println("Error reading log file: " + te.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.exit(1);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+
+        System.exit(0);
+    }
+}
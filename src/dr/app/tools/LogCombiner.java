@@ -39,12 +39,15 @@ import jam.console.ConsoleApplication;
 
 import javax.swing.*;
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Locale;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -57,266 +60,794 @@ public class LogCombiner {
 
     private final static Version version = new BeastVersion();
 
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 20;
+    private static final int INPUT_BUFFER_SIZE = 1 << 16;
+    // a chunk is handed to the writer when it reaches either limit so that a reader holds at most
+    // QUEUE_CAPACITY + 1 chunks of about CHUNK_CHARACTERS each, however long the lines (i.e., trees) are
+    private static final int CHUNK_SIZE = 512;
+    private static final int CHUNK_CHARACTERS = 1 << 17;
+    private static final int QUEUE_CAPACITY = 8;
+
+    private static final List<InputLine> END_OF_FILE = new ArrayList<InputLine>();
+
+    private final long resample;
+    private final boolean renumberOutput;
+
+    private long stateCount;
+    private long stateStep = -1;
+    private int columnCount = 0;
+    private long outputState;
+
     public LogCombiner(long[] burnins, long resample, String[] inputFileNames, String outputFileName, boolean treeFiles,
                        boolean convertToDecimal,
                        boolean renumberOutput, boolean useScale, double scale) throws IOException {
 
+        this.resample = resample;
+        this.renumberOutput = renumberOutput;
+        this.stateCount = (renumberOutput ? -1 : 0);
+
         System.out.println("Creating combined " + (treeFiles ? "tree" : "log") + " file: '" + outputFileName + "'");
 
         System.out.println();
 
-        PrintWriter writer = new PrintWriter(new FileOutputStream(outputFileName));
-
-        boolean firstFile = true;
-        boolean firstTree = true;
-        long stateCount = (renumberOutput ? -1 : 0);
-        long stateStep = -1;
-        int columnCount = 0;
-
-        String[] titles = null;
-
-        System.out.println();
+        File[] inputFiles = new File[inputFileNames.length];
         for (int i = 0; i < inputFileNames.length; i++) {
-            File inputFile = new File(inputFileNames[i]);
+            inputFiles[i] = new File(inputFileNames[i]);
 
-            if (!inputFile.exists()) {
+            if (!inputFiles[i].exists()) {
                 System.err.println(inputFileNames[i] + " does not exist!");
                 return;
-            } else if (inputFile.isDirectory()) {
+            } else if (inputFiles[i].isDirectory()) {
                 System.err.println(inputFileNames[i] + " is a directory.");
                 return;
             }
+        }
 
-            long burnin = burnins[0];
-            if (burnins.length > i) {
-                burnin = burnins[i];
-            }
+        long[] fileBurnins = new long[inputFileNames.length];
+        for (int i = 0; i < inputFileNames.length; i++) {
+            fileBurnins[i] = (burnins.length > i ? burnins[i] : burnins[0]);
+        }
 
-            if (burnin > 0) {
-                System.out.print("Combining file: '" + inputFileNames[i] + "' removing burnin: " + burnin);
+        // write through a large buffer straight onto the file channel
+        FileChannel channel = new FileOutputStream(outputFileName).getChannel();
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                new BufferedOutputStream(Channels.newOutputStream(channel), OUTPUT_BUFFER_SIZE)));
+
+        System.out.println();
+        try {
+            if (treeFiles) {
+                TranslateTable[] tables = (convertToDecimal ? null : readTranslateTables(inputFiles));
+                if (tables != null) {
+                    // no conversion requested so tree lines are copied verbatim, only renumbering states and,
+                    // if required, taxon numbers
+                    startLog(tables[0], writer);
+                    combineFiles(inputFiles, inputFileNames, fileBurnins, tables, null, false, false, 1.0, writer);
+                    stopLog(writer);
+                } else {
+                    combineTrees(inputFiles, inputFileNames, fileBurnins, convertToDecimal, useScale, scale, writer);
+                }
             } else {
-                System.out.print("Combining file: '" + inputFileNames[i] + "' without removing burnin");
+                String[] titles = readTitles(inputFiles, inputFileNames);
+                if (titles == null) {
+                    return;
+                }
+                writer.println(join(titles));
+                combineFiles(inputFiles, inputFileNames, fileBurnins, null, titles, convertToDecimal, useScale, scale, writer);
             }
+        } catch (CombineException ce) {
+            System.err.println(ce.getMessage());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Reads and checks the column headings of all the log files. The headings of the first file are returned
+     * or null if the files are incompatible.
+     */
+    private String[] readTitles(File[] inputFiles, String[] inputFileNames) throws IOException {
+        String[] titles = null;
+
+        for (int i = 0; i < inputFiles.length; i++) {
+            BufferedReader reader = new BufferedReader(new FileReader(inputFiles[i]));
+            String line = skipComments(reader);
+            reader.close();
 
-            if (resample > 0) {
-                System.out.print(", resampling with frequency: " + resample);
+            if (line == null) {
+                System.err.println("ERROR: The file, " + inputFileNames[i] + ", does not contain any column headings");
+                return null;
             }
 
-            if (useScale) {
-                System.out.println(", rescaling by: " + scale);
+            if (titles == null) {
+                titles = line.split("\t");
             } else {
-                System.out.println();
+                String[] newTitles = line.split("\t");
+                if (newTitles.length != titles.length) {
+                    System.err.println("ERROR: The number of columns in file, " + inputFileNames[i] + ", does not match that of the first file");
+                    return null;
+                }
+                for (int k = 0; k < newTitles.length; k++) {
+                    if (!newTitles[k].equals(titles[k])) {
+                        System.err.println("WARNING: The column heading, " + newTitles[k] + " in file, " + inputFileNames[i] + ", does not match the first file's heading, " + titles[k]);
+                    }
+                }
             }
+        }
+        return titles;
+    }
 
-            if (treeFiles) {
+    private static String skipComments(BufferedReader reader) throws IOException {
+        String line = reader.readLine();
 
-                TreeImporter importer = new NexusImporter(new FileReader(inputFile));
-                try {
-                    while (importer.hasTree()) {
-                        Tree tree = importer.importNextTree();
-                        if (firstTree) {
-                            startLog(tree, writer);
-                            firstTree = false;
-                        }
+        // lines starting with [ are ignored, assuming comments in MrBayes file
+        // lines starting with # are ignored, assuming comments in Migrate or BEAST file
+        while (line != null && (line.startsWith("[") || line.startsWith("#"))) {
+            line = reader.readLine();
+        }
+        return line;
+    }
 
-                        String name = tree.getId();
-                        if (name == null) {
-                            System.err.println("ERROR: Trees do not give state numbers as tree attributes.");
-                            return;
-                        }
+    private static String join(String[] titles) {
+        StringBuilder builder = new StringBuilder(titles[0]);
+        for (int j = 1; j < titles.length; j++) {
+            builder.append("\t").append(titles[j]);
+        }
+        return builder.toString();
+    }
 
-                        // split on underscore in STATE_xxxx
-                        String[] bits = name.split("_");
-                        long state = Long.parseLong(bits[1]);
+    /**
+     * Reads the translate table of each tree file. Returns null if any file has no translate table or
+     * if the files do not share the same taxa, in which case the trees have to be parsed.
+     */
+    private TranslateTable[] readTranslateTables(File[] inputFiles) throws IOException {
+        TranslateTable[] tables = new TranslateTable[inputFiles.length];
 
-                        if (stateStep < 0 && state > 0) {
-                            stateStep = state;
-                        }
+        for (int i = 0; i < inputFiles.length; i++) {
+            BufferedReader reader = new BufferedReader(new FileReader(inputFiles[i]), INPUT_BUFFER_SIZE);
+            tables[i] = TranslateTable.read(reader);
+            reader.close();
 
-                        if (state >= burnin) {
-                            if (stateStep > 0) {
-                                if (!renumberOutput) {
-                                    stateCount += stateStep;
-                                } else {
-                                    stateCount += 1;
-                                }
+            if (tables[i] == null) {
+                return null;
+            }
+            if (i > 0 && !tables[i].setReference(tables[0])) {
+                return null;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Combines the files in order, with each file read and parsed on its own thread ahead of the writer. The
+     * burnin, resampling and renumbering of states is done sequentially here as it depends on the preceding files.
+     */
+    private void combineFiles(File[] inputFiles, String[] inputFileNames, long[] burnins, TranslateTable[] tables,
+                              String[] titles, boolean convertToDecimal, boolean useScale, double scale,
+                              PrintWriter writer) throws IOException, CombineException {
+
+        int threadCount = Math.min(inputFiles.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threadCount, 1));
+
+        InputFileReader[] readers = new InputFileReader[inputFiles.length];
+        for (int i = 0; i < inputFiles.length; i++) {
+            readers[i] = new InputFileReader(inputFiles[i], burnins[i], (tables != null ? tables[i] : null),
+                    titles, convertToDecimal, useScale, scale);
+            pool.execute(readers[i]);
+        }
+
+        try {
+            for (int i = 0; i < inputFiles.length; i++) {
+                printCombining(inputFileNames[i], burnins[i], useScale, scale);
+
+                List<InputLine> chunk = take(readers[i]);
+                while (chunk != END_OF_FILE) {
+                    for (InputLine line : chunk) {
+                        if (tables == null) {
+                            if (stateStep < 0 && line.state > 0) {
+                                stateStep = line.state;
+                                columnCount = line.columnCount;
                             }
 
-                            if (resample >= 0) {
-                                if (resample % stateStep != 0) {
-                                    System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
-                                    return;
+                            // if the columnCount is not the same then perhaps the line is corrupt so skip it.
+                            if (line.state >= burnins[i] && line.columnCount == columnCount && line.isValid) {
+                                if (nextOutputState()) {
+                                    writer.print(outputState);
+                                    writer.println(line.text);
                                 }
                             }
-
-                            boolean logThis;
-                            if (resample < 0) {
-                                // not resampling, log every state
-                                logThis=true;
-                            } else if (!renumberOutput) {
-                                // resampling but not renumbering
-                                logThis=(stateCount % resample == 0);
-                            } else {
-                                logThis=(stateCount*stateStep % resample == 0);
+                        } else {
+                            if (stateStep < 0 && line.state > 0) {
+                                stateStep = line.state;
                             }
 
-                            long stateLineEntry;
-                            if (!renumberOutput){
-                                stateLineEntry=stateCount;
-                            } else {
-                                stateLineEntry=stateCount/(resample/stateStep);
+                            if (line.state >= burnins[i]) {
+                                if (nextOutputState()) {
+                                    writer.print("tree STATE_");
+                                    writer.print(outputState);
+                                    writer.println(line.text);
+                                }
                             }
+                        }
+                    }
+                    chunk = take(readers[i]);
+                }
 
-                            if (logThis){
-                                writeTree(stateLineEntry, tree, convertToDecimal, writer);
-                            }
+                readers[i].rethrowError();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
+    /**
+     * Parses the trees of each file in turn. This is only needed if the branch lengths are to be converted or the
+     * files cannot be combined verbatim.
+     */
+    private void combineTrees(File[] inputFiles, String[] inputFileNames, long[] burnins, boolean convertToDecimal,
+                              boolean useScale, double scale, PrintWriter writer) throws IOException, CombineException {
+
+        boolean firstTree = true;
+
+        for (int i = 0; i < inputFiles.length; i++) {
+            printCombining(inputFileNames[i], burnins[i], useScale, scale);
+
+            TreeImporter importer = new NexusImporter(new BufferedReader(new FileReader(inputFiles[i]), INPUT_BUFFER_SIZE));
+            try {
+                while (importer.hasTree()) {
+                    Tree tree = importer.importNextTree();
+                    if (firstTree) {
+                        startLog(tree, writer);
+                        firstTree = false;
+                    }
+
+                    String name = tree.getId();
+                    if (name == null) {
+                        throw new CombineException("ERROR: Trees do not give state numbers as tree attributes.");
+                    }
+
+                    // split on underscore in STATE_xxxx
+                    String[] bits = name.split("_");
+                    long state = Long.parseLong(bits[1]);
+
+                    if (stateStep < 0 && state > 0) {
+                        stateStep = state;
+                    }
+
+                    if (state >= burnins[i]) {
+                        if (nextOutputState()) {
+                            writeTree(outputState, tree, convertToDecimal, writer);
                         }
                     }
-                } catch (Importer.ImportException e) {
-                    System.err.println("Error Parsing Input Tree: " + e.getMessage());
-                    return;
                 }
+            } catch (Importer.ImportException e) {
+                throw new CombineException("Error Parsing Input Tree: " + e.getMessage());
+            }
+        }
 
+        stopLog(writer);
+    }
+
+    /**
+     * Advances the state counter for a sample past the burnin, setting outputState to the state number to write.
+     *
+     * @return false if this sample is dropped by the resampling
+     */
+    private boolean nextOutputState() throws CombineException {
+        if (stateStep > 0) {
+            if (!renumberOutput) {
+                stateCount += stateStep;
             } else {
-                BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-                //int lineCount = 1;
-                String line = reader.readLine();
+                stateCount += 1;
+            }
+        }
 
-                // lines starting with [ are ignored, assuming comments in MrBayes file
-                // lines starting with # are ignored, assuming comments in Migrate or BEAST file
-                while (line.startsWith("[") || line.startsWith("#")) {
+        if (resample >= 0) {
+            if (resample % stateStep != 0) {
+                throw new CombineException("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
+            }
+        }
 
-                    line = reader.readLine();
-                }
+        boolean logThis;
+        if (resample < 0) {
+            // not resampling, log every state
+            logThis = true;
+        } else if (!renumberOutput) {
+            // resampling but not renumbering
+            logThis = (stateCount % resample == 0);
+        } else {
+            logThis = ((stateCount * stateStep) % resample == 0);
+        }
+
+        if (!renumberOutput) {
+            outputState = stateCount;
+        } else {
+            outputState = stateCount / (resample / stateStep);
+        }
+
+        return logThis;
+    }
+
+    private void printCombining(String inputFileName, long burnin, boolean useScale, double scale) {
+        if (burnin > 0) {
+            System.out.print("Combining file: '" + inputFileName + "' removing burnin: " + burnin);
+        } else {
+            System.out.print("Combining file: '" + inputFileName + "' without removing burnin");
+        }
 
+        if (resample > 0) {
+            System.out.print(", resampling with frequency: " + resample);
+        }
+
+        if (useScale) {
+            System.out.println(", rescaling by: " + scale);
+        } else {
+            System.out.println();
+        }
+    }
+
+    private static List<InputLine> take(InputFileReader reader) throws CombineException {
+        try {
+            return reader.queue.take();
+        } catch (InterruptedException ie) {
+            throw new CombineException("ERROR: Interrupted while combining files");
+        }
+    }
+
+    private static final class CombineException extends Exception {
+        CombineException(String message) {
+            super(message);
+        }
+    }
 
-                if (firstFile) {
-                    titles = line.split("\t");
-                    writer.println(line);
+    /**
+     * A parsed sample: its state number and the rest of the line following it, ready to be written out.
+     */
+    private static final class InputLine {
+        final long state;
+        final int columnCount;
+        final boolean isValid;
+        final String text;
+
+        InputLine(long state, int columnCount, boolean isValid, String text) {
+            this.state = state;
+            this.columnCount = columnCount;
+            this.isValid = isValid;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Reads and parses one input file in chunks of lines, blocking when the writer falls behind. The reader always
+     * ends its queue with END_OF_FILE, even if it fails, so the writer never waits on it for ever.
+     */
+    private static final class InputFileReader implements Runnable {
+
+        private final File inputFile;
+        private final long burnin;
+        private final TranslateTable table;
+        private final String[] titles;
+        private final boolean convertToDecimal;
+        private final boolean useScale;
+        private final double scale;
+
+        // DecimalFormat is not thread safe so each reader has its own
+        private final DecimalFormat decimalFormat = new DecimalFormat("#.############", new DecimalFormatSymbols(Locale.US));
+        private final DecimalFormat scientificFormat = new DecimalFormat("#.############E0", new DecimalFormatSymbols(Locale.US));
+
+        final BlockingQueue<List<InputLine>> queue = new ArrayBlockingQueue<List<InputLine>>(QUEUE_CAPACITY);
+
+        // whatever stopped the reader, passed on to the writer after END_OF_FILE
+        private volatile Throwable error = null;
+
+        private List<InputLine> chunk = new ArrayList<InputLine>(CHUNK_SIZE);
+        private int chunkCharacters = 0;
+
+        InputFileReader(File inputFile, long burnin, TranslateTable table, String[] titles,
+                        boolean convertToDecimal, boolean useScale, double scale) {
+            this.inputFile = inputFile;
+            this.burnin = burnin;
+            this.table = table;
+            this.titles = titles;
+            this.convertToDecimal = convertToDecimal;
+            this.useScale = useScale;
+            this.scale = scale;
+        }
+
+        public void run() {
+            BufferedReader reader = null;
+            boolean interrupted = false;
+            try {
+                reader = new BufferedReader(new FileReader(inputFile), INPUT_BUFFER_SIZE);
+                if (table == null) {
+                    readLogLines(reader);
                 } else {
-                    String[] newTitles = line.split("\t");
-                    if (newTitles.length != titles.length) {
-                        System.err.println("ERROR: The number of columns in file, " + inputFileNames[i] + ", does not match that of the first file");
-                        return;
+                    readTreeLines(reader);
+                }
+                if (!chunk.isEmpty()) {
+                    queue.put(chunk);
+                }
+            } catch (IOException ioe) {
+                error = new CombineException("ERROR: Unable to read file, " + inputFile.getName() + ": " + ioe.getMessage());
+            } catch (InterruptedException ie) {
+                // the writer has given up
+                interrupted = true;
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException ioe) {
+                        // nothing to do
                     }
-                    for (int k = 0; k < newTitles.length; k++) {
-                        if (!newTitles[k].equals(titles[k])) {
-                            System.err.println("WARNING: The column heading, " + newTitles[k] + " in file, " + inputFileNames[i] + ", does not match the first file's heading, " + titles[k]);
+                }
+
+                // the writer waits for this whatever happened above
+                if (!interrupted) {
+                    try {
+                        queue.put(END_OF_FILE);
+                    } catch (InterruptedException ie) {
+                        // the writer has given up
+                    }
+                }
+            }
+        }
+
+        /**
+         * Called by the writer after END_OF_FILE to throw anything that stopped this reader early.
+         */
+        void rethrowError() throws CombineException {
+            Throwable t = error;
+            if (t == null) {
+                return;
+            }
+            if (t instanceof CombineException) {
+                throw (CombineException) t;
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new RuntimeException(t);
+        }
+
+        private void add(InputLine line) throws InterruptedException {
+            chunk.add(line);
+            if (line.text != null) {
+                chunkCharacters += line.text.length();
+            }
+            if (chunk.size() >= CHUNK_SIZE || chunkCharacters >= CHUNK_CHARACTERS) {
+                queue.put(chunk);
+                chunk = new ArrayList<InputLine>(CHUNK_SIZE);
+                chunkCharacters = 0;
+            }
+        }
+
+        private void readLogLines(BufferedReader reader) throws IOException, InterruptedException {
+            // skip the comments and column headings
+            String line = skipComments(reader);
+            if (line != null) {
+                line = reader.readLine();
+            }
+
+            while (line != null) {
+                String[] parts = line.split("\t");
+
+                long state;
+                try {
+                    state = Long.parseLong(parts[0]);
+                } catch (NumberFormatException nfe) {
+                    line = reader.readLine();
+                    continue;
+                }
+
+                boolean isValid = true;
+                String text = null;
+                if (state >= burnin) {
+                    for (int j = 1; j < parts.length; j++) {
+                        try {
+                            if (!parts[j].startsWith("{")) {
+                                // complex log values start with a curly bracket - otherwise attempt to parse
+                                // it as a number. If it fails, skip the line as a possible corruption.
+                                Double.valueOf(parts[j]);
+                            }
+                        } catch (NumberFormatException nfe) {
+                            isValid = false;
+                            break;
+                        }
+                    }
+                    if (isValid) {
+                        text = formatValues(parts, line.length());
+                    }
+                }
+
+                add(new InputLine(state, parts.length, isValid, text));
+                line = reader.readLine();
+            }
+        }
+
+        private String formatValues(String[] parts, int length) {
+            StringBuilder builder = new StringBuilder(length);
+            for (int j = 1; j < parts.length; j++) {
+                String value = parts[j];
+
+                if (useScale) {
+                    if (j < titles.length) {
+                        if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
+                            value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale, decimalFormat, scientificFormat);
+                        } else if (titles[j].equals("treeModel.rootHeight")) {
+                            value = reformatNumbers(value, convertToDecimal, true, scale, decimalFormat, scientificFormat);
                         }
                     }
+                } else if (convertToDecimal) {
+                    value = reformatNumbers(value, convertToDecimal, false, 1.0, decimalFormat, scientificFormat);
                 }
+                builder.append("\t").append(value);
+            }
+            return builder.toString();
+        }
+
+        private void readTreeLines(BufferedReader reader) throws IOException, InterruptedException, CombineException {
+            String line = reader.readLine();
+            while (line != null && !isTreeLine(line.trim())) {
                 line = reader.readLine();
-                //lineCount++;
+            }
 
-                while (line != null) {
-                    String[] parts = line.split("\t");
+            while (line != null) {
+                String statement = line.trim();
+                if (statement.equalsIgnoreCase("end;")) {
+                    break;
+                }
 
-                    long state = -1;
+                if (isTreeLine(statement)) {
+                    if (!statement.endsWith(";")) {
+                        // a tree spread over several lines
+                        StringBuilder builder = new StringBuilder(statement);
+                        line = reader.readLine();
+                        while (line != null && !line.trim().endsWith(";")) {
+                            builder.append("\n").append(line);
+                            line = reader.readLine();
+                        }
+                        if (line != null) {
+                            builder.append("\n").append(line);
+                        }
+                        statement = builder.toString();
+                    }
 
-                    boolean skip = false;
+                    // tree STATE_xxxx ...
+                    int start = 4;
+                    while (start < statement.length() && Character.isWhitespace(statement.charAt(start))) {
+                        start++;
+                    }
+                    int end = start;
+                    while (end < statement.length() && !Character.isWhitespace(statement.charAt(end)) && statement.charAt(end) != '=') {
+                        end++;
+                    }
+                    String name = statement.substring(start, end);
+
+                    // split on underscore in STATE_xxxx
+                    String[] bits = name.split("_");
+                    if (bits.length < 2) {
+                        throw new CombineException("ERROR: Trees do not give state numbers as tree attributes.");
+                    }
+                    long state;
                     try {
-                        state = Long.parseLong(parts[0]);
+                        state = Long.parseLong(bits[1]);
                     } catch (NumberFormatException nfe) {
-                        skip = true;
+                        throw new CombineException("Error Parsing Input Tree: unable to read state number from tree, " + name);
                     }
 
-                    if (!skip) {
-                        if (stateStep < 0 && state > 0) {
-                            stateStep = state;
-                            columnCount = parts.length;
-                        }
+                    String text = null;
+                    if (state >= burnin) {
+                        text = table.translate(statement.substring(end));
+                    }
+                    add(new InputLine(state, 0, true, text));
+                }
 
-                        // if the columnCount is not the same then perhaps the line is corrupt so skip it.
-                        if (state >= burnin && parts.length == columnCount) {
-                            for (int j = 1; j < parts.length; j++) {
-                                try {
-                                    if (!parts[j].startsWith("{")) {
-                                        // complex log values start with a curly bracket - otherwise attempt to parse
-                                        // it as a number. If it fails, skip the line as a possible corruption.
-
-                                        // attempt to convert the column value...
-                                        double value = Double.valueOf(parts[j]);
-                                    }
-                                } catch (NumberFormatException nfe) {
-                                    skip = true;
-                                    break;
-                                }
-                            }
+                if (line != null) {
+                    line = reader.readLine();
+                }
+            }
+        }
+    }
 
-                            if (!skip) {
+    private static boolean isTreeLine(String line) {
+        return line.length() > 4 && line.regionMatches(true, 0, "tree", 0, 4) && Character.isWhitespace(line.charAt(4));
+    }
 
-                                if (stateStep > 0) {
-                                    if (!renumberOutput) {
-                                        stateCount += stateStep;
-                                    } else {
-                                        stateCount += 1;
-                                    }
-                                }
+    /**
+     * The taxon numbering of a tree file, as given by its translate block.
+     */
+    private static final class TranslateTable {
+        private final List<Integer> numbers = new ArrayList<Integer>();
+        private final List<String> labels = new ArrayList<String>();
+        private final Map<String, Integer> numberMap = new HashMap<String, Integer>();
+
+        // maps this file's taxon numbers on to those of the first file, null if they are the same
+        private int[] numberRemap = null;
+
+        /**
+         * @return the translate table of the file or null if it has none
+         */
+        static TranslateTable read(BufferedReader reader) throws IOException {
+            StringBuilder block = null;
+
+            String line = reader.readLine();
+            while (line != null) {
+                String trimmed = line.trim();
+                if (block == null) {
+                    if (isTreeLine(trimmed)) {
+                        return null;
+                    }
+                    if (trimmed.regionMatches(true, 0, "translate", 0, 9)) {
+                        block = new StringBuilder(trimmed.substring(9));
+                    }
+                } else {
+                    block.append(" ").append(trimmed);
+                }
+                if (block != null && block.indexOf(";") >= 0) {
+                    break;
+                }
+                line = reader.readLine();
+            }
 
-                                if (resample >= 0) {
-                                    if (resample % stateStep != 0) {
-                                        System.err.println("ERROR: Resampling frequency is not a multiple of existing sampling frequency");
-                                        return;
-                                    }
-                                }
+            if (block == null) {
+                return null;
+            }
 
-                                boolean logThis;
-                                if (resample < 0) {
-                                    logThis = true;
-                                } else if (!renumberOutput){
-                                    logThis = (stateCount % resample == 0);
-                                } else {
-                                    logThis = ((stateCount * stateStep) % resample == 0);
-                                }
+            TranslateTable table = new TranslateTable();
+
+            // split on commas, up to the semicolon, outside of quoted labels
+            boolean inQuote = false;
+            int start = 0;
+            for (int i = 0; i < block.length(); i++) {
+                char c = block.charAt(i);
+                if (c == '\'') {
+                    inQuote = !inQuote;
+                } else if (!inQuote && (c == ',' || c == ';')) {
+                    if (!table.addEntry(block.substring(start, i).trim())) {
+                        return null;
+                    }
+                    start = i + 1;
+                    if (c == ';') {
+                        break;
+                    }
+                }
+            }
 
-                                long stateLineEntry;
-                                if (!renumberOutput){
-                                    stateLineEntry = stateCount;
-                                } else {
-                                	
-//                                	System.out.println("stateCount: " + stateCount);
-//                                	System.out.println("resample: " + resample);
-//                                	System.out.println("stateStep: " + stateStep);
-//                                	System.out.println("resample / stateStep: " + (resample / stateStep));
-                                	
-                                    stateLineEntry = stateCount / (resample / stateStep);
-                                }
+            return (table.numbers.size() > 0 ? table : null);
+        }
 
-                                if (logThis) {
-                                    writer.print(stateLineEntry);
-                                    for (int j = 1; j < parts.length; j++) {
-                                        String value = parts[j];
-
-                                        if (useScale) {
-                                            if (titles[j].equals("clock.rate") || titles[j].startsWith("skyline.popSize")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, 1.0 / scale);
-                                            } else if (titles[j].equals("treeModel.rootHeight")) {
-                                                value = reformatNumbers(value, convertToDecimal, true, scale);
-                                            }
-                                        } else  if (convertToDecimal) {
-                                            value = reformatNumbers(value, convertToDecimal, false, 1.0);
-                                        }
-                                        writer.print("\t" + value);
-                                    }
-                                    writer.println();
-                                }
-                            }
+        private boolean addEntry(String entry) {
+            if (entry.length() == 0) {
+                return true;
+            }
+            String[] bits = entry.split("\\s+", 2);
+            if (bits.length < 2) {
+                return false;
+            }
+            int number;
+            try {
+                number = Integer.parseInt(bits[0]);
+            } catch (NumberFormatException nfe) {
+                return false;
+            }
+            if (number < 0) {
+                return false;
+            }
+            numbers.add(number);
+            labels.add(bits[1]);
+            numberMap.put(unquote(bits[1]), number);
+            return true;
+        }
 
-                        }
+        private static String unquote(String label) {
+            if (label.length() > 1 && label.startsWith("'") && label.endsWith("'")) {
+                return label.substring(1, label.length() - 1);
+            }
+            return label;
+        }
+
+        /**
+         * Sets up the renumbering of taxa onto those of the reference table.
+         *
+         * @return false if the two files do not have the same taxa
+         */
+        boolean setReference(TranslateTable reference) {
+            if (reference.numbers.size() != numbers.size()) {
+                return false;
+            }
+
+            int maxNumber = 0;
+            for (int number : numbers) {
+                maxNumber = Math.max(maxNumber, number);
+            }
+
+            boolean isIdentity = true;
+            int[] remap = new int[maxNumber + 1];
+            Arrays.fill(remap, -1);
+            for (Map.Entry<String, Integer> entry : numberMap.entrySet()) {
+                Integer referenceNumber = reference.numberMap.get(entry.getKey());
+                if (referenceNumber == null) {
+                    return false;
+                }
+                remap[entry.getValue()] = referenceNumber;
+                if (!referenceNumber.equals(entry.getValue())) {
+                    isIdentity = false;
+                }
+            }
+            numberRemap = (isIdentity ? null : remap);
+            return true;
+        }
+
+        /**
+         * Renumbers the taxa in a tree statement, skipping comments and quoted labels.
+         */
+        String translate(String text) throws CombineException {
+            if (numberRemap == null) {
+                return text;
+            }
+
+            StringBuilder builder = new StringBuilder(text.length());
+            char previous = 0;
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (c == '[' || c == '\'') {
+                    int end = text.indexOf(c == '[' ? ']' : '\'', i + 1);
+                    end = (end < 0 ? text.length() : end + 1);
+                    builder.append(text, i, end);
+                    if (c == '\'') {
+                        previous = c;
                     }
-                    line = reader.readLine();
-                    //lineCount++;
+                    i = end;
+                } else if (Character.isDigit(c) && (previous == '(' || previous == ',')) {
+                    int end = i;
+                    while (end < text.length() && Character.isDigit(text.charAt(end))) {
+                        end++;
+                    }
+                    int number = Integer.parseInt(text.substring(i, end));
+                    if (number >= numberRemap.length || numberRemap[number] < 0) {
+                        throw new CombineException("ERROR: Taxon number, " + number + ", not found in the translate block");
+                    }
+                    builder.append(numberRemap[number]);
+                    previous = c;
+                    i = end;
+                } else {
+                    builder.append(c);
+                    if (!Character.isWhitespace(c)) {
+                        previous = c;
+                    }
+                    i++;
                 }
             }
+            return builder.toString();
+        }
+    }
 
-            firstFile = false;
+    private void startLog(TranslateTable table, PrintWriter writer) {
+
+        int taxonCount = table.labels.size();
+        writer.println("#NEXUS");
+        writer.println("");
+        writer.println("Begin taxa;");
+        writer.println("\tDimensions ntax=" + taxonCount + ";");
+        writer.println("\tTaxlabels");
+        for (String label : table.labels) {
+            writer.println("\t\t" + label);
         }
+        writer.println("\t\t;");
+        writer.println("End;");
+        writer.println("");
+        writer.println("Begin trees;");
 
-        if (treeFiles) {
-            stopLog(writer);
+        writer.println("\tTranslate");
+        for (int i = 0; i < taxonCount; i++) {
+            writer.println("\t\t" + table.numbers.get(i) + " " + table.labels.get(i) + (i < taxonCount - 1 ? "," : ""));
         }
-        writer.close();
+        writer.println("\t\t;");
     }
 
     private void rescaleTree(Tree tree, double scale) {
@@ -479,11 +1010,13 @@ public class LogCombiner {
     private static final DecimalFormat decimalFormatter = new DecimalFormat("#.############", new DecimalFormatSymbols(Locale.US));
     private static final DecimalFormat scientificFormatter = new DecimalFormat("#.############E0", new DecimalFormatSymbols(Locale.US));
 
-    private String reformatNumbers(String line, boolean convertDecimal, boolean useScale, double scale) {
+    private static final Pattern numberPattern = Pattern.compile("\\d+\\.\\d+(E[\\-\\d\\.]+)?");
+
+    private static String reformatNumbers(String line, boolean convertDecimal, boolean useScale, double scale,
+                                          DecimalFormat decimalFormat, DecimalFormat scientificFormat) {
         StringBuffer outLine = new StringBuffer();
 
-        Pattern pattern = Pattern.compile("\\d+\\.\\d+(E[\\-\\d\\.]+)?");
-        Matcher matcher = pattern.matcher(line);
+        Matcher matcher = numberPattern.matcher(line);
 
         int lastEnd = 0;
         while (matcher.find()) {
@@ -493,7 +1026,7 @@ public class LogCombiner {
             if (useScale) {
                 value *= scale;
             }
-            String outToken = (convertDecimal ? decimalFormatter.format(value) : scientificFormatter.format(value));
+            String outToken = (convertDecimal ? decimalFormat.format(value) : scientificFormat.format(value));
 
             outLine.append(line.substring(lastEnd, start));
             outLine.append(outToken);
@@ -0,0 +1,240 @@
+/*
+ * LogConverter.java
+ *
+ * Copyright (C) 2002-2006 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.tools;
+
+import dr.app.util.Arguments;
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.BinaryLogReader;
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.TabDelimitedFormatter;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts a log between the tab delimited text format and the columnar binary format written by
+ * BinaryLogFormatter. Numbers in a binary log are kept at full precision so converting a text log to binary and
+ * back gives the same values, though not necessarily the same digits.
+ */
+public class LogConverter {
+
+    public enum Format {
+        TEXT,
+        BINARY
+    }
+
+    private final long burnin;
+
+    /**
+     * @param burnin the first state to keep, earlier states are dropped
+     */
+    public LogConverter(long burnin) {
+        this.burnin = burnin;
+    }
+
+    /**
+     * @return the number of states written
+     */
+    public int convert(File inputFile, File outputFile, Format format) throws IOException {
+        boolean binaryInput = BinaryLogReader.isBinaryLog(inputFile);
+
+        LogFormatter formatter;
+        if (format == Format.BINARY) {
+            formatter = new BinaryLogFormatter(new FileOutputStream(outputFile));
+        } else {
+            formatter = new TabDelimitedFormatter(
+                    new PrintWriter(new BufferedWriter(new FileWriter(outputFile), 1 << 16)), true);
+        }
+
+        if (binaryInput) {
+            // the block index lets the reader start at the burn-in
+            BinaryLogReader reader = new BinaryLogReader(inputFile, burnin);
+            try {
+                return binaryToFormatter(reader, formatter);
+            } finally {
+                reader.close();
+            }
+        }
+
+        BufferedReader reader = new BufferedReader(new FileReader(inputFile), 1 << 16);
+        try {
+            return textToFormatter(reader, formatter);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private int textToFormatter(BufferedReader reader, LogFormatter formatter) throws IOException {
+        formatter.startLogging(null);
+
+        List<String> headings = new ArrayList<String>();
+        String line = reader.readLine();
+        while (line != null) {
+            line = line.trim();
+            if (line.startsWith("#")) {
+                headings.add(line.substring(1).trim());
+            } else if (line.startsWith("[")) {
+                formatter.logLine(line);
+            } else if (line.length() > 0) {
+                break;
+            }
+            line = reader.readLine();
+        }
+        if (line == null) {
+            throw new IOException("The log file has no column labels");
+        }
+
+        for (String heading : headings) {
+            formatter.logHeading(heading);
+        }
+        formatter.logLabels(line.split("\t"));
+
+        int stateCount = 0;
+        line = reader.readLine();
+        while (line != null) {
+            line = line.trim();
+            if (line.length() > 0) {
+                String[] values = line.split("\t");
+                if ((long) Double.parseDouble(values[0]) >= burnin) {
+                    formatter.logValues(values);
+                    stateCount++;
+                }
+            }
+            line = reader.readLine();
+        }
+
+        formatter.stopLogging();
+        return stateCount;
+    }
+
+    private int binaryToFormatter(BinaryLogReader reader, LogFormatter formatter) throws IOException {
+        formatter.startLogging(null);
+
+        String[] labels = writeHeader(reader, formatter);
+
+        int stateCount = 0;
+        String[] values = new String[labels.length];
+        while (reader.nextBlock()) {
+            for (int row = 0; row < reader.getRowCount(); row++) {
+                long state = reader.getState(row);
+                if (state >= burnin) {
+                    values[0] = Long.toString(state);
+                    for (int i = 1; i < values.length; i++) {
+                        values[i] = reader.getString(i - 1, row);
+                    }
+                    formatter.logValues(values);
+                    stateCount++;
+                }
+            }
+        }
+
+        formatter.stopLogging();
+        return stateCount;
+    }
+
+    private String[] writeHeader(BinaryLogReader reader, LogFormatter formatter) throws IOException {
+        reader.readHeader();
+        String[] labels = reader.getLabels();
+        if (labels == null) {
+            throw new IOException("The log file has no column labels");
+        }
+
+        for (String heading : reader.getHeadings()) {
+            formatter.logHeading(heading);
+        }
+        for (String line : reader.getLines()) {
+            formatter.logLine(line);
+        }
+        formatter.logLabels(labels);
+        return labels;
+    }
+
+    public static void printUsage(Arguments arguments) {
+
+        arguments.printUsage("logconverter", "<input-file-name> <output-file-name>");
+        System.out.println();
+        System.out.println("  Example: logconverter run.log run.blog");
+        System.out.println("  Example: logconverter -text -burnin 1000000 run.blog run.log");
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.Option("binary", "write a binary log (the default for a text input)"),
+                        new Arguments.Option("text", "write a tab delimited text log (the default for a binary input)"),
+                        new Arguments.LongOption("burnin", "the number of states to be considered as 'burn-in'"),
+                        new Arguments.Option("help", "option to print this message")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae);
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        if (arguments.hasOption("help")) {
+            printUsage(arguments);
+            System.exit(0);
+        }
+
+        String[] args2 = arguments.getLeftoverArguments();
+        if (args2.length != 2) {
+            System.err.println("Requires an input filename and an output filename");
+            System.err.println();
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        File inputFile = new File(args2[0]);
+        if (!inputFile.exists()) {
+            System.err.println(args2[0] + " does not exist!");
+            System.exit(1);
+        }
+
+        Format format = BinaryLogReader.isBinaryLog(inputFile) ? Format.TEXT : Format.BINARY;
+        if (arguments.hasOption("binary")) {
+            format = Format.BINARY;
+        } else if (arguments.hasOption("text")) {
+            format = Format.TEXT;
+        }
+
+        long burnin = 0;
+        if (arguments.hasOption("burnin")) {
+            burnin = arguments.getLongOption("burnin");
+        }
+
+        LogConverter converter = new LogConverter(burnin);
+        int stateCount = converter.convert(inputFile, new File(args2[1]), format);
+        System.out.println(stateCount + " states written.");
+
+        System.exit(0);
+    }
+}
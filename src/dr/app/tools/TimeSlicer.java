@@ -102,6 +102,7 @@ public class TimeSlicer {
     public static final String LONGMIN = "longmin";
     public static final String ICON = "http://maps.google.com/mapfiles/kml/pal4/icon49.png";
     public static final String GRIDSIZE = "gridsize";
+    public static final String THREADS = "threads";
     public static final double[] BANDWIDTHS = new double[]{1.0,1.0};
     public static final boolean BANDWIDTHLIMIT = true;
     public static final boolean GREATCIRCLEDISTANCE = true;
@@ -117,7 +118,8 @@ public class TimeSlicer {
                       boolean trueNoise, double mrsd, ContourMode contourMode, SliceMode sliceMode,
                       final boolean summarizeRoot, final boolean summarizeTips, Normalization normalize, boolean getSDR, boolean getSNR,
                       String progress, boolean branchNormalization, BranchSet branchset, Set taxaSet, int grid,
-                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString) {
+                      double latMin, double latMax, double longMin, double longMax, Set descendentTaxaSet, String rateString,
+                      int threadCount) {
 
         this.traits = traits;
         traitCount = traits.length;
@@ -146,6 +148,7 @@ public class TimeSlicer {
         rateAttributeString = rateString;
 
         gridSize = grid;
+        this.threadCount = threadCount;
 
         if (progress != null) {
             if (progress.equalsIgnoreCase("true")) {
@@ -343,6 +346,10 @@ public class TimeSlicer {
                 rootElement.addContent(documentElement);
             }
 
+            if (contours && contourMode == ContourMode.JAVA) {
+                estimateSliceDensities();
+            }
+
             if (sliceHeights == null) {
                 for (double hpdValue : hpdValues) {
                     summarizeSlice(0, Double.NaN, contours, points, outputFormat, hpdValue);
@@ -361,6 +368,7 @@ public class TimeSlicer {
                     }
                 }
             }
+            sliceDensities = null;
 
             if (summarizeRoot) {
                 for (double hpdValue : hpdValues) {
@@ -725,7 +733,7 @@ public class TimeSlicer {
 
                         if (contourElement != null) {
                             String name = "root_hpd" + (hpdValue * 100);
-                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                            generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                         }
 
                         if (pointsElement != null) {
@@ -810,7 +818,7 @@ public class TimeSlicer {
 
                             if (contourElement != null) {
                                 String name = tipNames.get(tipIndex) + "_hpd";
-                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue);
+                                generateContours(name, contourElement, null, y, -1, Double.NaN, Double.NaN, hpdValue, null);
                             }
 
                             if (pointsElement != null) {
@@ -943,16 +951,8 @@ public class TimeSlicer {
                 }
             }
 
-            int count = thisTrait.size();
 //            System.out.println("count = "+count+", dim = "+dim);
-            double[][] y = new double[dim][count];
-            for (int i = 0; i < count; i++) {
-                Trait trait = thisTrait.get(i);
-                double[] value = trait.getValue();
-                for (int j = 0; j < dim; j++) {
-                    y[j][i] = value[j];
-                }
-            }
+            double[][] y = getTraitValues(thisTrait, dim);
 //            System.out.println(y.length+"\t"+y[0].length);
 
             if (outputFormat == OutputFormat.XML || outputFormat == OutputFormat.TAB) {
@@ -1019,7 +1019,8 @@ public class TimeSlicer {
 
                 if (contourElement != null) {
                     String name = "" + date + "_hpd" + hpdValue;
-                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue);
+                    ContourMaker density = (sliceDensities != null ? sliceDensities[slice][traitIndex] : null);
+                    generateContours(name, contourElement, traitElement, y, slice, date, sliceValue, hpdValue, density);
                 }
 
             }
@@ -1090,13 +1091,67 @@ public class TimeSlicer {
         }
     }
 
-    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue) {
+    // the values of a trait in each dimension
+    private static double[][] getTraitValues(List<Trait> thisTrait, int dim) {
+        int count = thisTrait.size();
+        double[][] y = new double[dim][count];
+        for (int i = 0; i < count; i++) {
+            Trait trait = thisTrait.get(i);
+            double[] value = trait.getValue();
+            for (int j = 0; j < dim; j++) {
+                y[j][i] = value[j];
+            }
+        }
+        return y;
+    }
+
+    /**
+     * Estimates the densities of the bivariate traits of every slice in one batch, on threadCount threads, before
+     * the slices are written out. Each density is then contoured for all the HPD values.
+     */
+    private void estimateSliceDensities() {
+        List<double[]> x = new ArrayList<double[]>();
+        List<double[]> y = new ArrayList<double[]>();
+        sliceDensities = new KernelDensityEstimator2D[values.size()][traitCount];
+        for (int slice = 0; slice < values.size(); slice++) {
+            for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
+                List<Trait> thisTrait = values.get(slice).get(traitIndex);
+                if (thisTrait.size() > 0 && thisTrait.get(0).isNumber() && thisTrait.get(0).isMultivariate() &&
+                        thisTrait.get(0).getDim() == 2) {
+                    double[][] traitValues = getTraitValues(thisTrait, 2);
+                    x.add(traitValues[0]);
+                    y.add(traitValues[1]);
+                }
+            }
+        }
+
+        // the same grid as KernelDensityEstimator2D(x, y, limitBandwidth)
+        KernelDensityEstimator2D[] densities = KernelDensityEstimator2D.estimate(
+                x.toArray(new double[x.size()][]), y.toArray(new double[y.size()][]), 50, BANDWIDTHLIMIT, threadCount);
+
+        int k = 0;
+        for (int slice = 0; slice < values.size(); slice++) {
+            for (int traitIndex = 0; traitIndex < traitCount; traitIndex++) {
+                List<Trait> thisTrait = values.get(slice).get(traitIndex);
+                if (thisTrait.size() > 0 && thisTrait.get(0).isNumber() && thisTrait.get(0).isMultivariate() &&
+                        thisTrait.get(0).getDim() == 2) {
+                    sliceDensities[slice][traitIndex] = densities[k];
+                    k++;
+                }
+            }
+        }
+    }
+
+    private void generateContours(String name, Element sliceElement, Element traitElement, double[][] y, int slice, double date, double height, double hpdValue,
+                                  ContourMaker density) {
         //to test how much points are within the polygons
         double numberOfPointsInPolygons = 0;
         double totalArea = 0;
 
         ContourMaker contourMaker;
-        if (contourMode == ContourMode.JAVA)
+        if (density != null)
+            contourMaker = density;
+        else if (contourMode == ContourMode.JAVA)
 //            contourMaker = new KernelDensityEstimator2D(y[0], y[1], gridSize);
             contourMaker = new KernelDensityEstimator2D(y[0], y[1], BANDWIDTHLIMIT);
         else if (contourMode == ContourMode.R)
@@ -2132,6 +2187,8 @@ public class TimeSlicer {
     private boolean ancient = false;
     private boolean useStyles = true;
     private int gridSize;
+    private int threadCount;
+    private KernelDensityEstimator2D[][] sliceDensities = null;
     private double latMin;
     private double latMax;
     private double longMin;
@@ -2627,6 +2684,7 @@ public class TimeSlicer {
         Set taxaSet = null;
         SliceMode sliceMode = SliceMode.BRANCHES;
         int grid = 200;
+        int threadCount = 1;
         double latMax = Double.MAX_VALUE;
         double latMin = -Double.MAX_VALUE;
         double longMax = Double.MAX_VALUE;
@@ -2685,6 +2743,7 @@ public class TimeSlicer {
                         new Arguments.RealOption(LONGMAX, "specifies the maximum longitude for a child node for a branch to be included in the summary [default=MAX_VALUE]"),
                         new Arguments.RealOption(LONGMIN, "specifies the minimum longitude for a child node for a branch to be included in the summary [default=MIN_VALUE]"),
                         new Arguments.IntegerOption(GRIDSIZE, "the grid size for contouring [default=200]"),
+                        new Arguments.IntegerOption(THREADS, "the number of threads to use for the slice densities [default = 1]"),
                         new Arguments.StringOption(DESCENDENTS, "descendent taxa", "specifies a branch based on the descendent taxa [default=all branches]")
 
                 });
@@ -2955,6 +3014,10 @@ public class TimeSlicer {
                 grid = arguments.getIntegerOption(GRIDSIZE);
             }
 
+            if (arguments.hasOption(THREADS)) {
+                threadCount = Math.max(arguments.getIntegerOption(THREADS), 1);
+            }
+
 
 
         } catch (Arguments.ArgumentException e) {
@@ -2986,7 +3049,8 @@ public class TimeSlicer {
 
         TimeSlicer timeSlicer = new TimeSlicer(inputFileName, burnin, skipEvery, traitNames, sliceHeights, impute,
                 trueNoise, mrsd, contourMode, sliceMode,summarizeRoot, summarizeTips, normalize, getSDR, getSNR, progress,
-                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString);
+                branchNormalization, set, taxaSet, grid, latMin, latMax, longMin, longMax, descendents, rateString,
+                threadCount);
         timeSlicer.output(outputFileName, summaryOnly, summarizeRoot, summarizeTips, contours, points, outputFormat, hpdValues, outputFileSDR, outputFileSNR);
 
         System.exit(0);
@@ -1018,12 +1018,10 @@ public class TracerFrame extends DocumentFrame implements TracerFileMenuHandler,
                 in.getProgressMonitor().setMillisToDecideToPopup(0);
                 in.getProgressMonitor().setMillisToPopup(0);
 
-                final Reader reader = new InputStreamReader(in);
-
                 Thread readThread = new Thread() {
                     public void run() {
                         try {
-                            traces.loadTraces(reader);
+                            traces.loadTraces(in);
 
                             EventQueue.invokeLater(
                                     new Runnable() {
@@ -1087,8 +1085,7 @@ public class TracerFrame extends DocumentFrame implements TracerFileMenuHandler,
                 public void run() {
                     try {
                         for (final LogFileTraces traces : tracesArray) {
-                            final Reader reader = new FileReader(traces.getFile());
-                            traces.loadTraces(reader);
+                            traces.loadTraces();
 
                             EventQueue.invokeLater(
                                     new Runnable() {
@@ -45,6 +45,7 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 
 public class StatisticsPanel extends OptionsPanel implements Exportable {
@@ -75,38 +76,7 @@ public class StatisticsPanel extends OptionsPanel implements Exportable {
         //treeStatDatastics.add(TreeSummaryStatistic.Utils.createTMRCAStatistic());
 
         // add generic tree statistics here
-        availableStatistics.add(TreeLength.FACTORY);
-        availableStatistics.add(TreeHeight.FACTORY);
-        availableStatistics.add(NodeHeights.FACTORY);
-        availableStatistics.add(InternalBranchLengths.FACTORY);
-        availableStatistics.add(InternalBranchRates.FACTORY);
-        availableStatistics.add(ExternalBranchRates.FACTORY);
-        availableStatistics.add(InternalNodeAttribute.FACTORY);
-        availableStatistics.add(RootToTipLengths.FACTORY);
-        availableStatistics.add(TMRCASummaryStatistic.FACTORY);
-        availableStatistics.add(CladeMRCAAttributeStatistic.FACTORY);
-        availableStatistics.add(CladeMeanAttributeStatistic.FACTORY);
-        availableStatistics.add(BetaTreeDiversityStatistic.FACTORY);
-//        availableStatistics.add(MeanRootToTipLength.FACTORY);
-//        availableStatistics.add(MedianRootToTipLength.FACTORY);
-
-        availableStatistics.add(B1Statistic.FACTORY);
-        availableStatistics.add(CollessIndex.FACTORY);
-        availableStatistics.add(CherryStatistic.FACTORY);
-        availableStatistics.add(SingleChildCountStatistic.FACTORY);
-        availableStatistics.add(Nbar.FACTORY);
-        availableStatistics.add(TreenessStatistic.FACTORY);
-        availableStatistics.add(GammaStatistic.FACTORY);
-        availableStatistics.add(DeltaStatistic.FACTORY);
-//        availableStatistics.add(MonophylySummaryStatistic.FACTORY);
-//        availableStatistics.add(ParsimonySummaryStatistic.FACTORY);
-        availableStatistics.add(ExternalInternalRatio.FACTORY);
-        availableStatistics.add(FuLiD.FACTORY);
-        availableStatistics.add(RankProportionStatistic.FACTORY);
-        availableStatistics.add(IntervalKStatistic.FACTORY);
-        availableStatistics.add(LineageCountStatistic.FACTORY);
-        availableStatistics.add(LineageProportionStatistic.FACTORY);
-        availableStatistics.add(MRCAOlderThanStatistic.FACTORY);
+        availableStatistics.addAll(Arrays.asList(TreeStatData.AVAILABLE_STATISTICS));
 
 
 //		if (treeStatDataeeStatDatanull) {
@@ -34,6 +34,7 @@ import jam.mac.Utils;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
 import java.util.Locale;
 
 public class TreeStatApp extends SingleDocApplication {
@@ -54,6 +55,16 @@ public class TreeStatApp extends SingleDocApplication {
         // don't display warnings from NexusImporter as they are only relevant to Beast-MCMC-1.x
         NexusImporter.setSuppressWarnings(true);
 
+        if (args.length > 0) {
+            // run headless from the command line
+            try {
+                TreeStatEngine.main(args);
+            } catch (IOException ioe) {
+                System.err.println("Unable to read/write file: " + ioe.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
         if (OSType.isMac()) {
             if (Utils.getMacOSXVersion().startsWith("10.5")) {
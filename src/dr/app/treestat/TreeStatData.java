@@ -25,7 +25,7 @@
 
 package dr.app.treestat;
 
-import dr.app.treestat.statistics.SummaryStatisticDescription;
+import dr.app.treestat.statistics.*;
 import org.jdom.Document;
 import org.jdom.Element;
 
@@ -40,6 +40,44 @@ public class TreeStatData {
 	public TreeStatData() {
 	}
 
+	/**
+	 * The statistics offered by both the GUI and the command line.
+	 */
+	public static final TreeSummaryStatistic.Factory[] AVAILABLE_STATISTICS = new TreeSummaryStatistic.Factory[] {
+			TreeLength.FACTORY,
+			TreeHeight.FACTORY,
+			NodeHeights.FACTORY,
+			InternalBranchLengths.FACTORY,
+			InternalBranchRates.FACTORY,
+			ExternalBranchRates.FACTORY,
+			InternalNodeAttribute.FACTORY,
+			RootToTipLengths.FACTORY,
+			TMRCASummaryStatistic.FACTORY,
+			CladeMRCAAttributeStatistic.FACTORY,
+			CladeMeanAttributeStatistic.FACTORY,
+			BetaTreeDiversityStatistic.FACTORY,
+			// MeanRootToTipLength.FACTORY,
+			// MedianRootToTipLength.FACTORY,
+
+			B1Statistic.FACTORY,
+			CollessIndex.FACTORY,
+			CherryStatistic.FACTORY,
+			SingleChildCountStatistic.FACTORY,
+			Nbar.FACTORY,
+			TreenessStatistic.FACTORY,
+			GammaStatistic.FACTORY,
+			DeltaStatistic.FACTORY,
+			// MonophylySummaryStatistic.FACTORY,
+			// ParsimonySummaryStatistic.FACTORY,
+			ExternalInternalRatio.FACTORY,
+			FuLiD.FACTORY,
+			RankProportionStatistic.FACTORY,
+			IntervalKStatistic.FACTORY,
+			LineageCountStatistic.FACTORY,
+			LineageProportionStatistic.FACTORY,
+			MRCAOlderThanStatistic.FACTORY
+	};
+
 	// Data options
 	public Set<String> allTaxa = new HashSet<String>();
 	public List<TaxonSet> taxonSets = new ArrayList<TaxonSet>();
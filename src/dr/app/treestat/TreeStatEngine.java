@@ -0,0 +1,355 @@
+/*
+ * TreeStatEngine.java
+ *
+ * Copyright (C) 2002-2006 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.app.treestat;
+
+import dr.app.util.Arguments;
+import dr.app.treestat.statistics.TreeSummaryStatistic;
+import dr.evolution.io.Importer;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.io.TreeImporter;
+import dr.evolution.tree.Tree;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Computes a set of tree summary statistics for every tree in a tree file without the GUI. Trees are read in
+ * turn and handed out in batches to a pool of threads, each with its own instances of the statistics (some keep
+ * working state), and the rows are written out in the original order.
+ */
+public class TreeStatEngine {
+
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * A statistic chosen by name with an optional value for those that take an integer, real or string setting.
+     */
+    public static class Selection {
+        private final TreeSummaryStatistic.Factory factory;
+        private final String value;
+
+        public Selection(TreeSummaryStatistic.Factory factory, String value) {
+            this.factory = factory;
+            this.value = value;
+        }
+
+        public TreeSummaryStatistic createStatistic() {
+            TreeSummaryStatistic statistic = factory.createStatistic();
+            if (value != null) {
+                if (factory.allowsInteger()) {
+                    statistic.setInteger(Integer.parseInt(value));
+                } else if (factory.allowsDouble()) {
+                    statistic.setDouble(Double.parseDouble(value));
+                } else if (factory.allowsString()) {
+                    statistic.setString(value);
+                } else {
+                    throw new IllegalArgumentException("The statistic, " + factory.getSummaryStatisticName() +
+                            ", does not take a value");
+                }
+            }
+            return statistic;
+        }
+    }
+
+    private final List<Selection> selections;
+    private final int threadCount;
+
+    private final ThreadLocal<TreeSummaryStatistic[]> statistics = new ThreadLocal<TreeSummaryStatistic[]>() {
+        protected TreeSummaryStatistic[] initialValue() {
+            return createStatistics();
+        }
+    };
+
+    public TreeStatEngine(List<Selection> selections, int threadCount) {
+        this.selections = selections;
+        this.threadCount = threadCount;
+    }
+
+    private TreeSummaryStatistic[] createStatistics() {
+        TreeSummaryStatistic[] statistics = new TreeSummaryStatistic[selections.size()];
+        for (int i = 0; i < statistics.length; i++) {
+            statistics[i] = selections.get(i).createStatistic();
+        }
+        return statistics;
+    }
+
+    /**
+     * Writes a tab delimited table with a column for each dimension of each statistic and a row for each tree.
+     *
+     * @return the number of trees processed
+     */
+    public int process(TreeImporter importer, PrintWriter writer) throws IOException, Importer.ImportException {
+
+        if (!importer.hasTree()) {
+            return 0;
+        }
+        Tree firstTree = importer.importNextTree();
+
+        TreeSummaryStatistic[] headerStatistics = createStatistics();
+        checkTrees(firstTree, headerStatistics);
+
+        writer.print("state");
+        for (TreeSummaryStatistic tss : headerStatistics) {
+            int dim = tss.getStatisticDimensions(firstTree);
+            for (int j = 0; j < dim; j++) {
+                writer.print("\t" + tss.getStatisticLabel(firstTree, j));
+            }
+        }
+        writer.println();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+
+        int state = 0;
+        try {
+            List<Tree> batch = new ArrayList<Tree>(BATCH_SIZE);
+            batch.add(firstTree);
+
+            while (true) {
+                boolean hasTree = importer.hasTree();
+                if (hasTree) {
+                    batch.add(importer.importNextTree());
+                }
+
+                if (batch.size() == BATCH_SIZE || (!hasTree && batch.size() > 0)) {
+                    pending.add(pool.submit(new BatchTask(state, batch)));
+                    state += batch.size();
+                    batch = new ArrayList<Tree>(BATCH_SIZE);
+
+                    // keep a bounded number of batches in memory
+                    while (pending.size() > 2 * threadCount) {
+                        writer.print(getResult(pending.removeFirst()));
+                    }
+                }
+
+                if (!hasTree) {
+                    break;
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writer.print(getResult(pending.removeFirst()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        writer.flush();
+        return state;
+    }
+
+    private void checkTrees(Tree tree, TreeSummaryStatistic[] statistics) {
+        boolean isUltrametric = Tree.Utils.isUltrametric(tree);
+        boolean isBinary = Tree.Utils.isBinary(tree);
+
+        for (TreeSummaryStatistic tss : statistics) {
+            String label = tss.getSummaryStatisticName();
+            if (!isUltrametric && !tss.allowsNonultrametricTrees()) {
+                System.err.println("WARNING: These trees may not be ultrametric and this is a requirement of the " +
+                        label + " statistic.");
+            }
+            if (!isBinary && !tss.allowsPolytomies()) {
+                System.err.println("WARNING: These trees may not be strictly bifurcating and this is a requirement of the " +
+                        label + " statistic.");
+            }
+        }
+    }
+
+    private static String getResult(Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while computing tree statistics");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
+            }
+            throw new RuntimeException(ee.getCause());
+        }
+    }
+
+    private class BatchTask implements Callable<String> {
+        private final int firstState;
+        private final List<Tree> trees;
+
+        BatchTask(int firstState, List<Tree> trees) {
+            this.firstState = firstState;
+            this.trees = trees;
+        }
+
+        public String call() {
+            TreeSummaryStatistic[] threadStatistics = statistics.get();
+
+            StringBuilder builder = new StringBuilder();
+            int state = firstState;
+            for (Tree tree : trees) {
+                builder.append(state);
+                for (TreeSummaryStatistic tss : threadStatistics) {
+                    double[] stats = tss.getSummaryStatistic(tree);
+                    for (double stat : stats) {
+                        builder.append("\t").append(stat);
+                    }
+                }
+                builder.append("\n");
+                state++;
+            }
+            return builder.toString();
+        }
+    }
+
+    public static TreeImporter createImporter(File inputFile) throws IOException {
+        BufferedReader r = new BufferedReader(new FileReader(inputFile));
+        String line = r.readLine();
+        r.close();
+
+        Reader reader = new BufferedReader(new FileReader(inputFile), 1 << 16);
+        if (line != null && line.toUpperCase().startsWith("#NEXUS")) {
+            return new NexusImporter(reader);
+        }
+        return new NewickImporter(reader);
+    }
+
+    public static void printUsage(Arguments arguments) {
+
+        arguments.printUsage("treestat", "<input-file-name> <output-file-name>");
+        System.out.println();
+        System.out.println("  Example: treestat -stats CollessIndex,GammaStatistic test.trees test.txt");
+        System.out.println("  Example: treestat -stats TreeHeight,LineageCountStatistic:0.5 -threads 4 test.trees test.txt");
+        System.out.println();
+    }
+
+    private static void printStatistics() {
+        System.out.println("Available statistics, by class or display name (those taking a value are given as name:value):");
+        for (TreeSummaryStatistic.Factory factory : TreeStatData.AVAILABLE_STATISTICS) {
+            if (factory.allowsWholeTree()) {
+                System.out.println("  " + getClassName(factory) + " (" + factory.getSummaryStatisticName() + ")" +
+                        (factory.allowsInteger() || factory.allowsDouble() || factory.allowsString() ? ":value" : ""));
+            }
+        }
+    }
+
+    private static String getClassName(TreeSummaryStatistic.Factory factory) {
+        return factory.createStatistic().getClass().getSimpleName();
+    }
+
+    private static TreeSummaryStatistic.Factory findStatistic(String name) {
+        for (TreeSummaryStatistic.Factory factory : TreeStatData.AVAILABLE_STATISTICS) {
+            if (factory.allowsWholeTree() && (getClassName(factory).equalsIgnoreCase(name) ||
+                    factory.getSummaryStatisticName().equalsIgnoreCase(name))) {
+                return factory;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Command line entry point, called from TreeStatApp when it is given arguments.
+     */
+    public static void main(String[] args) throws IOException {
+
+        Arguments arguments = new Arguments(
+                new Arguments.Option[]{
+                        new Arguments.StringOption("stats", "names", "a comma separated list of the statistics to compute"),
+                        new Arguments.IntegerOption("threads", "the number of threads to use (default: number of processors)"),
+                        new Arguments.Option("list", "list the available statistics"),
+                        new Arguments.Option("help", "option to print this message")
+                });
+
+        try {
+            arguments.parseArguments(args);
+        } catch (Arguments.ArgumentException ae) {
+            System.out.println(ae);
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        if (arguments.hasOption("help")) {
+            printUsage(arguments);
+            System.exit(0);
+        }
+
+        if (arguments.hasOption("list")) {
+            printStatistics();
+            System.exit(0);
+        }
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        if (arguments.hasOption("threads")) {
+            threadCount = Math.max(arguments.getIntegerOption("threads"), 1);
+        }
+
+        String[] args2 = arguments.getLeftoverArguments();
+        if (args2.length != 2 || !arguments.hasOption("stats")) {
+            System.err.println("Requires a list of statistics, an input filename and an output filename");
+            System.err.println();
+            printUsage(arguments);
+            System.exit(1);
+        }
+
+        List<Selection> selections = new ArrayList<Selection>();
+        for (String item : arguments.getStringOption("stats").split(",")) {
+            String name = item.trim();
+            String value = null;
+            int colon = name.indexOf(':');
+            if (colon >= 0) {
+                value = name.substring(colon + 1).trim();
+                name = name.substring(0, colon).trim();
+            }
+
+            TreeSummaryStatistic.Factory factory = findStatistic(name);
+            if (factory == null) {
+                System.err.println("Unknown statistic: " + name);
+                printStatistics();
+                System.exit(1);
+            }
+            selections.add(new Selection(factory, value));
+        }
+
+        File inputFile = new File(args2[0]);
+        if (!inputFile.exists()) {
+            System.err.println(args2[0] + " does not exist!");
+            System.exit(1);
+        }
+
+        TreeStatEngine engine = new TreeStatEngine(selections, threadCount);
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(args2[1]), 1 << 20));
+        try {
+            int treeCount = engine.process(createImporter(inputFile), writer);
+            System.out.println(treeCount + " trees processed.");
+        } catch (Importer.ImportException ie) {
+            System.err.println("Error Parsing Input Tree: " + ie.getMessage());
+            System.exit(1);
+        } finally {
+            writer.close();
+        }
+
+        System.exit(0);
+    }
+}
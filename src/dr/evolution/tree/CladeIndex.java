@@ -0,0 +1,256 @@
+/*
+ * CladeIndex.java
+ *
+ * Copyright (C) 2002-2009 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * BEAST is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evolution.tree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Numbers a set of clades in the order they are first added. Each clade is a set of taxon indices packed into
+ * a fixed number of words, all of which are kept in a single long array, and the clades are found through an
+ * open addressing hash table so no objects are created per clade.
+ * <p/>
+ * A clade is passed in as the words at an offset in a long array, usually a buffer holding the clades of every
+ * node in a tree (see {@link #getWordCount(int)}).
+ */
+public class CladeIndex {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final int taxonCount;
+    private final int wordCount;
+
+    private long[] clades;
+    private int[] hashCodes;
+    private int[] cladeSizes;
+    private int cladeCount = 0;
+
+    // the index of each clade plus one, zero for an empty slot
+    private int[] table;
+
+    public CladeIndex(int taxonCount) {
+        this.taxonCount = taxonCount;
+        this.wordCount = getWordCount(taxonCount);
+
+        clades = new long[INITIAL_CAPACITY * wordCount];
+        hashCodes = new int[INITIAL_CAPACITY];
+        cladeSizes = new int[INITIAL_CAPACITY];
+        table = new int[INITIAL_CAPACITY * 2];
+    }
+
+    /**
+     * @return the number of longs used to hold a clade of the given number of taxa
+     */
+    public static int getWordCount(int taxonCount) {
+        return (taxonCount + 63) >>> 6;
+    }
+
+    public int getTaxonCount() {
+        return taxonCount;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    /**
+     * @return the number of different clades
+     */
+    public int getCladeCount() {
+        return cladeCount;
+    }
+
+    /**
+     * Adds a clade if it isn't already present.
+     *
+     * @return the index of the clade
+     */
+    public int add(long[] clade, int offset) {
+        int hashCode = hashCode(clade, offset);
+        int mask = table.length - 1;
+        int slot = hashCode & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (hashCodes[index] == hashCode && equals(index, clade, offset)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (cladeCount == hashCodes.length) {
+            int capacity = cladeCount * 2;
+            clades = Arrays.copyOf(clades, capacity * wordCount);
+            hashCodes = Arrays.copyOf(hashCodes, capacity);
+            cladeSizes = Arrays.copyOf(cladeSizes, capacity);
+        }
+
+        int index = cladeCount;
+        System.arraycopy(clade, offset, clades, index * wordCount, wordCount);
+        hashCodes[index] = hashCode;
+        int size = 0;
+        for (int i = 0; i < wordCount; i++) {
+            size += Long.bitCount(clade[offset + i]);
+        }
+        cladeSizes[index] = size;
+        cladeCount++;
+
+        table[slot] = index + 1;
+        // keep the table at most half full
+        if (cladeCount * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return index;
+    }
+
+    /**
+     * @return the index of the clade or -1 if it has not been added
+     */
+    public int getIndex(long[] clade, int offset) {
+        int hashCode = hashCode(clade, offset);
+        int mask = table.length - 1;
+        int slot = hashCode & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (hashCodes[index] == hashCode && equals(index, clade, offset)) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the clade or -1 if it has not been added
+     */
+    public int getIndex(BitSet bits) {
+        if (bits.length() > wordCount * 64) {
+            return -1;
+        }
+        long[] clade = new long[wordCount];
+        toWords(bits, clade, 0);
+        return getIndex(clade, 0);
+    }
+
+    /**
+     * @return the number of taxa in the clade
+     */
+    public int getCladeSize(int index) {
+        return cladeSizes[index];
+    }
+
+    /**
+     * Copies the words of a clade into the destination array.
+     */
+    public void getClade(int index, long[] destination, int offset) {
+        System.arraycopy(clades, index * wordCount, destination, offset, wordCount);
+    }
+
+    public BitSet getBitSet(int index) {
+        BitSet bits = new BitSet(taxonCount);
+        int start = index * wordCount;
+        for (int i = 0; i < wordCount; i++) {
+            long word = clades[start + i];
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                bits.set(i * 64 + bit);
+                word &= word - 1;
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Packs a BitSet into the words of a clade of this index.
+     */
+    public void toWords(BitSet bits, long[] destination, int offset) {
+        for (int i = offset; i < offset + wordCount; i++) {
+            destination[i] = 0L;
+        }
+        for (int bit = bits.nextSetBit(0); bit >= 0; bit = bits.nextSetBit(bit + 1)) {
+            destination[offset + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(taxonCount);
+        out.writeInt(cladeCount);
+        for (int i = 0; i < cladeCount * wordCount; i++) {
+            out.writeLong(clades[i]);
+        }
+    }
+
+    /**
+     * Reads an index written by {@link #write(DataOutput)}; the clades keep their indices.
+     */
+    public static CladeIndex read(DataInput in) throws IOException {
+        CladeIndex index = new CladeIndex(in.readInt());
+        int cladeCount = in.readInt();
+        long[] clade = new long[index.wordCount];
+        for (int i = 0; i < cladeCount; i++) {
+            for (int j = 0; j < clade.length; j++) {
+                clade[j] = in.readLong();
+            }
+            if (index.add(clade, 0) != i) {
+                throw new IOException("Duplicate clade in clade index");
+            }
+        }
+        return index;
+    }
+
+    private boolean equals(int index, long[] clade, int offset) {
+        int start = index * wordCount;
+        for (int i = 0; i < wordCount; i++) {
+            if (clades[start + i] != clade[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hashCode(long[] clade, int offset) {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < wordCount; i++) {
+            h = (h ^ clade[offset + i]) * 0xBF58476D1CE4E5B9L;
+            h ^= h >>> 31;
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void rehash(int capacity) {
+        table = new int[capacity];
+        int mask = capacity - 1;
+        for (int index = 0; index < cladeCount; index++) {
+            int slot = hashCodes[index] & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index + 1;
+        }
+    }
+}
@@ -25,20 +25,23 @@
 
 package dr.evolution.tree;
 
+import dr.evolution.util.Taxon;
 import dr.evolution.util.TaxonList;
-import dr.util.FrequencySet;
 
 import java.util.*;
 
 /**
  * Stores a set of unique clades (and their node heights) for a tree
  *
+ * The clades are held in a CladeIndex with their frequencies and total node heights in arrays indexed
+ * by clade.
+ *
  * @version $Id: CladeSet.java,v 1.8 2005/05/24 20:25:56 rambaut Exp $
  *
  * @author Andrew Rambaut
  * @author Alexei Drummond
  */
-public class CladeSet extends FrequencySet<BitSet> {
+public class CladeSet {
     //
     // Public stuff
     //
@@ -68,6 +71,18 @@ public class CladeSet extends FrequencySet<BitSet> {
         return size();
     }
 
+    /** get number of unique clades */
+    public int size()
+    {
+        return cladeIndex == null ? 0 : cladeIndex.getCladeCount();
+    }
+
+    /** get clade bit set in frequency order */
+    public BitSet get(int index)
+    {
+        return cladeIndex.getBitSet(getSortedClade(index));
+    }
+
     /** get clade bit set */
     public String getClade(int index)
     {
@@ -106,63 +121,145 @@ public class CladeSet extends FrequencySet<BitSet> {
         return getFrequency(index);
     }
 
+    /** get frequency of ith clade in frequency order */
+    public int getFrequency(int index)
+    {
+        return frequencies[getSortedClade(index)];
+    }
+
+    /** get sum of all frequencies */
+    public int getSumFrequency() {
+        int sum = 0;
+        for (int i = 0, n = size(); i < n; i++) {
+            sum += frequencies[i];
+        }
+        return sum;
+    }
+
     /** adds all the clades in the tree */
     public void add(Tree tree)
     {
         if (taxonList == null) {
             taxonList = tree;
         }
+        if (cladeIndex == null) {
+            cladeIndex = new CladeIndex(taxonList.getTaxonCount());
+            frequencies = new int[256];
+            totalNodeHeights = new double[256];
+        }
 
         totalTrees += 1;
 
         // Recurse over the tree and add all the clades (or increment their
-        // frequency if already present). The root clade is not added.
-        addClades(tree, tree.getRoot(), null);
+        // frequency if already present).
+        int wordCount = cladeIndex.getWordCount();
+        if (buffer == null || buffer.length < tree.getNodeCount() * wordCount) {
+            buffer = new long[tree.getNodeCount() * wordCount];
+        }
+        updateTipIndices(tree);
+        addClades(tree, tree.getRoot());
+        sorted = false;
     }
 
-    private void addClades(Tree tree, NodeRef node, BitSet bits) {
+    private void addClades(Tree tree, NodeRef node) {
 
-        if (tree.isExternal(node)) {
+        int wordCount = cladeIndex.getWordCount();
+        int offset = node.getNumber() * wordCount;
+        Arrays.fill(buffer, offset, offset + wordCount, 0L);
 
-            if (taxonList != null) {
-                int index = taxonList.getTaxonIndex(tree.getNodeTaxon(node).getId());
-                bits.set(index);
-            } else {
-                bits.set(node.getNumber());
-            }
+        if (tree.isExternal(node)) {
+            int index = tipIndices[node.getNumber()];
+            buffer[offset + (index >>> 6)] |= 1L << index;
         } else {
 
-            BitSet bits2 = new BitSet();
             for (int i = 0; i < tree.getChildCount(node); i++) {
 
                 NodeRef node1 = tree.getChild(node, i);
 
-                addClades(tree, node1, bits2);
+                addClades(tree, node1);
+
+                int childOffset = node1.getNumber() * wordCount;
+                for (int j = 0; j < wordCount; j++) {
+                    buffer[offset + j] |= buffer[childOffset + j];
+                }
             }
 
-            add(bits2, 1);
-            addNodeHeight(bits2, tree.getNodeHeight(node));
+            int clade = cladeIndex.add(buffer, offset);
+            if (clade == frequencies.length) {
+                frequencies = Arrays.copyOf(frequencies, clade * 2);
+                totalNodeHeights = Arrays.copyOf(totalNodeHeights, clade * 2);
+            }
+            frequencies[clade] += 1;
+            totalNodeHeights[clade] += tree.getNodeHeight(node);
+        }
+    }
 
-            if (bits != null) {
-                bits.or(bits2);
+    /**
+     * The taxon index of each tip is looked up once and kept for as long as the trees have the same taxa at the
+     * same tips, as trees from one file usually do.
+     */
+    private void updateTipIndices(Tree tree) {
+        int nodeCount = tree.getNodeCount();
+        if (tipIndices == null || tipIndices.length != nodeCount) {
+            tipIndices = new int[nodeCount];
+            tipTaxa = new Taxon[nodeCount];
+        }
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            Taxon taxon = tree.getNodeTaxon(node);
+            if (tipTaxa[node.getNumber()] != taxon) {
+                int index = taxonList.getTaxonIndex(taxon.getId());
+                if (index < 0) {
+                    throw new IllegalArgumentException("Taxon, " + taxon.getId() + ", is not in the clade set");
+                }
+                tipIndices[node.getNumber()] = index;
+                tipTaxa[node.getNumber()] = taxon;
             }
         }
     }
 
     public double getMeanNodeHeight(int i) {
-        BitSet bits = get(i);
+        int clade = getSortedClade(i);
 
-        return getTotalNodeHeight(bits) / getFrequency(i);
+        return totalNodeHeights[clade] / frequencies[clade];
     }
 
-    private double getTotalNodeHeight(BitSet bits) {
-        Double tnh = totalNodeHeight.get(bits);
-        if (tnh == null) return 0.0;
-        return tnh;
+    /**
+     * @return the frequency of the clade or -1 if it has not been seen
+     */
+    private int getFrequency(BitSet bits) {
+        if (cladeIndex == null) {
+            // no trees added yet
+            return -1;
+        }
+        int clade = cladeIndex.getIndex(bits);
+        return clade < 0 ? -1 : frequencies[clade];
+    }
+
+    private int getSortedClade(int index) {
+        if (!sorted) {
+            sortByFrequency();
+        }
+        return order[index];
     }
 
-    private void addNodeHeight(BitSet bits, double height) {
-        totalNodeHeight.put(bits, (getTotalNodeHeight(bits) + height));
+    /** sort by descending frequency, clades of equal frequency in the order they were first seen */
+    private void sortByFrequency() {
+        int n = size();
+        Integer[] indices = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            public int compare(Integer clade1, Integer clade2) {
+                return frequencies[clade2] - frequencies[clade1];
+            }
+        });
+        order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = indices[i];
+        }
+        sorted = true;
     }
 
     // Generifying found that this code was buggy. Kuckily it is not used anymore.
@@ -266,6 +363,16 @@ public class CladeSet extends FrequencySet<BitSet> {
     // Private stuff
     //
     private TaxonList taxonList = null;
-    private final Map<BitSet, Double> totalNodeHeight = new HashMap<BitSet, Double>();
+    private CladeIndex cladeIndex = null;
+    private int[] frequencies;
+    private double[] totalNodeHeights;
     private int totalTrees = 0;
+
+    private int[] order;
+    private boolean sorted = false;
+
+    // a clade for each node of the tree being added, indexed by node number
+    private long[] buffer;
+    private int[] tipIndices;
+    private Taxon[] tipTaxa;
 }
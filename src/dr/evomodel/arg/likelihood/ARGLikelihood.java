@@ -127,6 +127,10 @@ public class ARGLikelihood extends AbstractARGLikelihood {
 			addModel(this.branchRateModel);
 
 			probabilities = new double[stateCount * stateCount];
+			branchTimes = new double[nodeCount];
+			storedBranchTimes = new double[nodeCount];
+			parentNumbers = new int[nodeCount];
+			storedParentNumbers = new int[nodeCount];
 
 //			likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories, useScaling);
 			likelihoodCore.initialize(nodeCount, patternCount, categoryCount, integrateAcrossCategories);
@@ -184,7 +188,8 @@ public class ARGLikelihood extends AbstractARGLikelihood {
             if (object instanceof ARGModel.TreeChangedEvent) {
                 ARGModel.TreeChangedEvent event = (ARGModel.TreeChangedEvent) object;
                 if (event.isSizeChanged() ) {
-                    updateAllNodes(); // TODO Update only affected portion of tree
+                    // Adding or removing a reassortment may leave this partition's tree untouched;
+                    // the re-extracted tree is compared with the current one to find changed branches
                     reconstructTree = true;
                 } else if (event.isNodeChanged()) {
                     // If a node event occurs the node and its two child nodes
@@ -193,22 +198,20 @@ public class ARGLikelihood extends AbstractARGLikelihood {
                     // is added to a branch, removed from a branch or its height or
                     // rate changes.
 
-                    NodeRef treeNode = mapARGNodesToTreeNodes.get(event.getNode());
+                    // While the tree is waiting to be extracted again, height changes
+                    // are found by comparing branch lengths
+                    NodeRef treeNode = reconstructTree ? null : mapARGNodesToTreeNodes.get(event.getNode());
                     if ( treeNode != null ) {                        
                         if (event.isHeightChanged() || event.isRateChanged()) {
                             updateNodeAndChildren(treeNode);
                         } else {
                             reconstructTree = true;
-//                            updateNodeAndChildren(treeNode); // TODO This doesn't work with sizeChange; why???
-                            updateAllNodes();
                         }
                     } 
                 } else if (event.isTreeChanged()) {
-                    // Full tree events result in a complete updating of the tree likelihood
-                    // These include adding and removing nodes
-                    // TODO ARG rearrangements still call this; they should not      
+                    // Full tree events re-extract the partition tree; only branches
+                    // that differ from the current tree are updated
                     reconstructTree = true;
-                    updateAllNodes();
                 } else {
                     // Other event types are ignored (probably trait changes).
                     throw new RuntimeException("Another tree event has occured (possibly a trait change).");
@@ -217,7 +220,6 @@ public class ARGLikelihood extends AbstractARGLikelihood {
 	      final boolean[] updatePartition = ((ARGPartitioningOperator.PartitionChangedEvent) object).getUpdatedPartitions();
                 if (updatePartition[partition]) {
                     reconstructTree = true;
-                    updateAllNodes(); // TODO Probably does not affect entire tree; fix
                 }
             } else if (object instanceof Parameter) {
                 // ignore, most of these are handled in isNodeChanged()
@@ -250,6 +252,17 @@ public class ARGLikelihood extends AbstractARGLikelihood {
               if (storePartials) {
                   likelihoodCore.storeState();
               }
+
+              // the clades and branches the stored partials were computed on
+              storedCladeNumbers = cladeNumbers;
+              System.arraycopy(parentNumbers, 0, storedParentNumbers, 0, nodeCount);
+              System.arraycopy(branchTimes, 0, storedBranchTimes, 0, nodeCount);
+              if (patternLogLikelihoods != null) {
+                  if (storedPatternLogLikelihoods == null) {
+                      storedPatternLogLikelihoods = new double[patternCount];
+                  }
+                  System.arraycopy(patternLogLikelihoods, 0, storedPatternLogLikelihoods, 0, patternCount);
+              }
               super.storeState();
           }
 
@@ -263,11 +276,31 @@ public class ARGLikelihood extends AbstractARGLikelihood {
               } else {
                   updateAllNodes();
               }
-              reconstructTree = true; // currently the tree is not cached, because the ARG that generates it is cached
+
+              cladeNumbers = storedCladeNumbers;
+
+              int[] tmp1 = parentNumbers;
+              parentNumbers = storedParentNumbers;
+              storedParentNumbers = tmp1;
+
+              double[] tmp2 = branchTimes;
+              branchTimes = storedBranchTimes;
+              storedBranchTimes = tmp2;
+
+              if (storedPatternLogLikelihoods != null) {
+                  tmp2 = patternLogLikelihoods;
+                  patternLogLikelihoods = storedPatternLogLikelihoods;
+                  storedPatternLogLikelihoods = tmp2;
+              }
+
+              // The tree is not cached, because the ARG nodes it mirrors are recycled when the ARG is
+              // restored. It is extracted again and compared with the restored clades, so the restored
+              // partials are reused.
+              reconstructTree = true;
               super.restoreState();
           }
 
-        private int getUnusedInt(Map<NodeRef,Integer> inMap) {
+        private int getUnusedInt(Map<BitSet,Integer> inMap) {
             Collection<Integer> intSet = inMap.values();
             int i = tree.getExternalNodeCount();
             while( intSet.contains(i) )
@@ -275,57 +308,122 @@ public class ARGLikelihood extends AbstractARGLikelihood {
             return i;
         }
 
+        /**
+         * Collects the tips below each node of a newly extracted partition tree, indexed by node number
+         */
+        private BitSet setClades(NodeRef node, BitSet[] clades) {
+            BitSet clade = new BitSet(tree.getExternalNodeCount());
+            if (tree.isExternal(node)) {
+                clade.set(node.getNumber());
+            } else {
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    clade.or(setClades(tree.getChild(node, i), clades));
+                }
+            }
+            clades[node.getNumber()] = clade;
+            return clade;
+        }
 
-    private Set<NodeRef> unsetNodes = null;
+    private List<NodeRef> unsetNodes = null;
+    private final List<BitSet> newClades = new ArrayList<BitSet>();
 
+        /**
+         * Extracts the partition tree from the ARG. Internal nodes keep the number of the node with the
+         * same clade in the previous tree, so that their partials can be reused; only branches that are
+         * new, have moved or have changed length are marked for updating.
+         */
         private void reconstructTree() {
-            
-            oldTree = tree;
-            oldMapARGNodesToInts = mapARGNodesToInts;
 
             tree = new ARGTree(treeModel, partition);            
             reconstructTree = false;
-            mapARGNodesToInts = new HashMap<NodeRef,Integer>(tree.getInternalNodeCount());
             mapARGNodesToTreeNodes = tree.getMapping();
 
-            if (oldTree == null) {
+            // the nodes of a new tree are numbered by their position
+            int treeNodeCount = tree.getNodeCount();
+            BitSet[] clades = new BitSet[treeNodeCount];
+            setClades(tree.getRoot(), clades);
+
+            Map<BitSet,Integer> oldCladeNumbers = cladeNumbers;
+            cladeNumbers = new HashMap<BitSet,Integer>(tree.getInternalNodeCount());
+
+            if (oldCladeNumbers == null) {
                  // First initialization
                 for(int i=0; i<tree.getInternalNodeCount(); i++) {
                     NodeRef node = tree.getInternalNode(i);
-                    mapARGNodesToInts.put(treeModel.getMirrorNode(node),node.getNumber());
+                    cladeNumbers.put(clades[node.getNumber()], node.getNumber());
                 }
+                updateAllNodes();
             } else {
 
                 // Need to renumber
+                newClades.clear();
                 if (unsetNodes == null)
-                    unsetNodes = new HashSet<NodeRef>();
+                    unsetNodes = new ArrayList<NodeRef>();
                 else
                     unsetNodes.clear();
 
-                // Copy over numbers for nodes that still exist in tree
+                // Copy over numbers for clades that still exist in tree
+                int extNodeCount = tree.getExternalNodeCount();
                 for (int i = 0; i < tree.getInternalNodeCount(); i++) {
                     NodeRef newNode = tree.getInternalNode(i);
-                    NodeRef argNode = treeModel.getMirrorNode(newNode);
+                    BitSet clade = clades[extNodeCount + i];
 
-                    if (oldMapARGNodesToInts.containsKey(argNode)) { // was in old tree
-
-                        int oldNumber = oldMapARGNodesToInts.get(argNode);
+                    Integer oldNumber = oldCladeNumbers.get(clade);
+                    if (oldNumber != null) { // was in old tree
                         treeModel.setNodeNumber(newNode,oldNumber);
-                        mapARGNodesToInts.put(argNode,oldNumber);
-                    } else  // was not in old tree
+                        cladeNumbers.put(clade,oldNumber);
+                    } else { // was not in old tree
                         unsetNodes.add(newNode);
+                        newClades.add(clade);
+                    }
                 }
 
-                // Set unused numbers for nodes that are new and mark for update
+                // Set unused numbers for clades that are new and mark them and their children for update
+                for (int i = 0; i < unsetNodes.size(); i++) {
+                    int newNumber = getUnusedInt(cladeNumbers);
+                    treeModel.setNodeNumber(unsetNodes.get(i),newNumber);
+                    cladeNumbers.put(newClades.get(i),newNumber);
+                }
                 for (NodeRef node : unsetNodes) {
-                    int newNumber = getUnusedInt(mapARGNodesToInts);
-                    treeModel.setNodeNumber(node,newNumber);
-                    mapARGNodesToInts.put(node,newNumber);
-                    updateNode[newNumber] = true;
+                    updateNode(node);
+                    for (int i = 0; i < tree.getChildCount(node); i++) {
+                        updateNode(tree.getChild(node, i));
+                    }
+                }
+
+                // Mark the branches that have moved or changed length; the partials below
+                // all other nodes are still valid
+                for (int i = 0; i < treeNodeCount; i++) {
+                    NodeRef node = tree.getNode(i);
+                    if (!tree.isRoot(node) && isBranchChanged(node)) {
+                        updateNode(node);
+                    }
                 }
             }
+
+            for (int i = 0; i < treeNodeCount; i++) {
+                NodeRef node = tree.getNode(i);
+                parentNumbers[node.getNumber()] = tree.isRoot(node) ? -1 : tree.getParent(node).getNumber();
+            }
         }
 
+    /**
+     * @return true if the branch above node has a different parent or a different length to the
+     *         branch last used to compute its transition probabilities
+     */
+    private boolean isBranchChanged(NodeRef node) {
+
+        int nodeNum = node.getNumber();
+        NodeRef parent = tree.getParent(node);
+        if (parent.getNumber() != parentNumbers[nodeNum]) {
+            return true;
+        }
+
+        double branchTime = branchRateModel.getBranchRate(tree, node) *
+                (tree.getNodeHeight(parent) - tree.getNodeHeight(node));
+        return branchTime != branchTimes[nodeNum];
+    }
+
 	// **************************************************************
 	// Likelihood IMPLEMENTATION
 	// **************************************************************
@@ -421,6 +519,10 @@ public class ARGLikelihood extends AbstractARGLikelihood {
                 }
 			}
 
+			branchTimes[nodeNum] = branchTime;
+
+			likelihoodCore.setNodeMatrixForUpdate(nodeNum);
+
 			for (int i = 0; i < categoryCount; i++) {
                 double branchLength = siteModel.getRateForCategory(i) * branchTime;
                 siteModel.getSubstitutionModel().getTransitionProbabilities(branchLength, probabilities);
@@ -450,6 +552,8 @@ public class ARGLikelihood extends AbstractARGLikelihood {
 				int childNum1 = child1.getNumber();
 				int childNum2 = child2.getNumber();
 
+				likelihoodCore.setNodePartialsForUpdate(nodeNum);
+
 				if (integrateAcrossCategories) {
 					likelihoodCore.calculatePartials(childNum1, childNum2, nodeNum);
 				} else {
@@ -607,12 +711,28 @@ public class ARGLikelihood extends AbstractARGLikelihood {
 
     private boolean reconstructTree = true;
     private ARGTree tree = null;
-    private ARGTree oldTree;
-
-    private Map<NodeRef,Integer> mapARGNodesToInts = null;
-    private Map<NodeRef,Integer> oldMapARGNodesToInts;
 
     private Map<NodeRef,NodeRef> mapARGNodesToTreeNodes = null;
 
+    /**
+     * the node number of each clade (the tips below an internal node) in the partition tree
+     */
+    private Map<BitSet,Integer> cladeNumbers = null;
+    private Map<BitSet,Integer> storedCladeNumbers;
+
+    /**
+     * the parent of each node, indexed by node number
+     */
+    private int[] parentNumbers;
+    private int[] storedParentNumbers;
+
+    /**
+     * the branch times used for the current transition probabilities, indexed by node number
+     */
+    private double[] branchTimes;
+    private double[] storedBranchTimes;
+
+    private double[] storedPatternLogLikelihoods = null;
+
     private static final boolean DEBUG = true;
 }
\ No newline at end of file
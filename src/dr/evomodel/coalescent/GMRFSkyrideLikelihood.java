@@ -34,7 +34,6 @@ import dr.inference.model.MatrixParameter;
 import dr.inference.model.Parameter;
 import dr.inference.model.Variable;
 import dr.math.MathUtils;
-import no.uib.cipr.matrix.DenseVector;
 import no.uib.cipr.matrix.NotConvergedException;
 import no.uib.cipr.matrix.SymmTridiagEVD;
 import no.uib.cipr.matrix.SymmTridiagMatrix;
@@ -340,6 +339,66 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         return a;
     }
 
+    /**
+     * Allocation-free variant of getScaledWeightMatrix(precision, lambda); writes the tridiagonal entries
+     * into the supplied arrays.
+     */
+    public void getScaledWeightMatrix(double precision, double lambda, double[] diagonal, double[] offDiagonal) {
+        scaleWeightMatrix(weightMatrix, precision, lambda, diagonal, offDiagonal);
+    }
+
+    /**
+     * Allocation-free variant of getStoredScaledWeightMatrix(precision, lambda); writes the tridiagonal entries
+     * into the supplied arrays.
+     */
+    public void getStoredScaledWeightMatrix(double precision, double lambda, double[] diagonal, double[] offDiagonal) {
+        scaleWeightMatrix(storedWeightMatrix, precision, lambda, diagonal, offDiagonal);
+    }
+
+    private static void scaleWeightMatrix(SymmTridiagMatrix source, double precision, double lambda,
+                                          double[] diagonal, double[] offDiagonal) {
+        final double[] diag = source.getDiagonal();
+        final double[] offDiag = source.getOffDiagonal();
+
+        if (lambda == 1) {
+            for (int i = 0; i < diag.length; i++) {
+                diagonal[i] = diag[i] * precision;
+            }
+            for (int i = 0; i < offDiag.length; i++) {
+                offDiagonal[i] = offDiag[i] * precision;
+            }
+        } else {
+            for (int i = 0; i < diag.length; i++) {
+                diagonal[i] = precision * (1 - lambda + lambda * diag[i]);
+            }
+            for (int i = 0; i < offDiag.length; i++) {
+                offDiagonal[i] = offDiag[i] * precision * lambda;
+            }
+        }
+    }
+
+    /**
+     * @return gamma' Q gamma for the current log population sizes and scaled weight matrix Q,
+     *         computed directly on the tridiagonal entries
+     */
+    protected double getFieldQuadraticForm(double precision, double lambda) {
+        final double[] diag = weightMatrix.getDiagonal();
+        final double[] offDiag = weightMatrix.getOffDiagonal();
+
+        double diagonalSum = 0;
+        double offDiagonalSum = 0;
+        double previous = 0;
+        for (int i = 0; i < fieldLength; i++) {
+            double gamma = popSizeParameter.getParameterValue(i);
+            diagonalSum += (1 - lambda + lambda * diag[i]) * gamma * gamma;
+            if (i > 0) {
+                offDiagonalSum += offDiag[i - 1] * previous * gamma;
+            }
+            previous = gamma;
+        }
+        return precision * (diagonalSum + 2 * lambda * offDiagonalSum);
+    }
+
     private void makeIntervalsKnown() {
         if (!intervalsKnown) {
             wrapSetupIntervals();
@@ -401,7 +460,13 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         super.storeState();
         System.arraycopy(coalescentIntervals, 0, storedCoalescentIntervals, 0, coalescentIntervals.length);
         System.arraycopy(sufficientStatistics, 0, storedSufficientStatistics, 0, sufficientStatistics.length);
-        storedWeightMatrix = weightMatrix.copy();
+        if (storedWeightMatrix == null || storedWeightMatrix == weightMatrix
+                || storedWeightMatrix.numRows() != weightMatrix.numRows()) {
+            storedWeightMatrix = weightMatrix.copy();
+        } else {
+            System.arraycopy(weightMatrix.getDiagonal(), 0, storedWeightMatrix.getDiagonal(), 0, weightMatrix.numRows());
+            System.arraycopy(weightMatrix.getOffDiagonal(), 0, storedWeightMatrix.getOffDiagonal(), 0, weightMatrix.numRows() - 1);
+        }
         storedLogFieldLikelihood = logFieldLikelihood;
     }
 
@@ -411,7 +476,9 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         // TODO Just swap pointers
         System.arraycopy(storedCoalescentIntervals, 0, coalescentIntervals, 0, storedCoalescentIntervals.length);
         System.arraycopy(storedSufficientStatistics, 0, sufficientStatistics, 0, storedSufficientStatistics.length);
+        SymmTridiagMatrix tmp = weightMatrix;
         weightMatrix = storedWeightMatrix;
+        storedWeightMatrix = tmp;
         logFieldLikelihood = storedLogFieldLikelihood;
     }
 
@@ -445,15 +512,12 @@ public class GMRFSkyrideLikelihood extends OldAbstractCoalescentLikelihood imple
         makeIntervalsKnown();
 
         double currentLike = 0;
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector currentGamma = new DenseVector(popSizeParameter.getParameterValues());
-
-        SymmTridiagMatrix currentQ = getScaledWeightMatrix(precisionParameter.getParameterValue(0), lambdaParameter.getParameterValue(0));
-        currentQ.mult(currentGamma, diagonal1);
+        double precision = precisionParameter.getParameterValue(0);
+        double lambda = lambdaParameter.getParameterValue(0);
 
 //        currentLike += 0.5 * logGeneralizedDeterminant(currentQ) - 0.5 * currentGamma.dot(diagonal1);
 
-        currentLike += 0.5 * (fieldLength - 1) * Math.log(precisionParameter.getParameterValue(0)) - 0.5 * currentGamma.dot(diagonal1);
+        currentLike += 0.5 * (fieldLength - 1) * Math.log(precision) - 0.5 * getFieldQuadraticForm(precision, lambda);
         if (lambdaParameter.getParameterValue(0) == 1) {
             currentLike -= (fieldLength - 1) / 2.0 * LOG_TWO_TIMES_PI;
         } else {
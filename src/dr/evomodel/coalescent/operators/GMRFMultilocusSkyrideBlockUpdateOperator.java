@@ -5,9 +5,6 @@ import dr.evomodelxml.coalescent.operators.GMRFSkyrideBlockUpdateOperatorParser;
 import dr.inference.model.Parameter;
 import dr.inference.operators.*;
 import dr.math.MathUtils;
-import no.uib.cipr.matrix.*;
-
-import java.util.logging.Logger;
 
 /* A Metropolis-Hastings operator to update the log population sizes and precision parameter jointly under a Gaussian Markov random field prior
  *
@@ -31,7 +28,11 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
 
     GMRFMultilocusSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    private GMRFTridiagonalProposal forwardProposal;
+    private GMRFTridiagonalProposal backwardProposal;
+    private double[] currentGamma;
+    private double[] proposedGamma;
+    private double[] standardNormal;
 
     public GMRFMultilocusSkyrideBlockUpdateOperator(GMRFMultilocusSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -50,7 +51,12 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        String loggerName = "dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator";
+        forwardProposal = new GMRFTridiagonalProposal(fieldLength, loggerName);
+        backwardProposal = new GMRFTridiagonalProposal(fieldLength, loggerName);
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        standardNormal = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -80,134 +86,6 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
-    public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
-        int length = Mean.size();
-        DenseVector tempValue = new DenseVector(length);
-        DenseVector returnValue = new DenseVector(length);
-        UpperSPDDenseMatrix ab = Variance.copy();
-
-        for (int i = 0; i < returnValue.size(); i++)
-            tempValue.set(i, MathUtils.nextGaussian());
-
-        DenseCholesky chol = new DenseCholesky(length, true);
-        chol.factor(ab);
-
-        UpperTriangDenseMatrix x = chol.getU();
-
-        x.transMult(tempValue, returnValue);
-        returnValue.add(Mean);
-        return returnValue;
-    }
-
-
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
-        double returnValue = 0;
-
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
-            }
-        }
-
-        return returnValue;
-    }
-   
-    public DenseVector newtonRaphson(double[] data1, double[] data2, DenseVector currentGamma, SymmTridiagMatrix proposedQ) throws OperatorFailedException {
-        return newNewtonRaphson(data1, data2, currentGamma, proposedQ, maxIterations, stopValue);
-    }
-
-    public static DenseVector newNewtonRaphson(double[] data1, double[] data2, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue) throws OperatorFailedException {
-
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
-
-        int numberIterations = 0;
-
-
-        while (gradient(data1, data2, iterateGamma, proposedQ).norm(Vector.Norm.Two) > stopValue) {
-           try {
-                jacobian(data2, iterateGamma, proposedQ).solve(gradient(data1, data2, iterateGamma, proposedQ), tempValue);
-           } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new OperatorFailedException("");
-            } catch (no.uib.cipr.matrix.MatrixSingularException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new OperatorFailedException("");
-            }     
-
-            iterateGamma.add(tempValue);
-            numberIterations++;
-
-            if (numberIterations > maxIterations) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new OperatorFailedException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                        "Try starting BEAST with a more accurate initial tree.");
-            }
-        }
-
-        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFMultilocusSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
-    }
-
-    private static DenseVector gradient(double[] data1, double[] data2, DenseVector value, SymmTridiagMatrix Q) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        Q.mult(value, returnValue);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) - data1[i] + data2[i] * Math.exp(-value.get(i)));
-        }
-        return returnValue;
-    }
-
-
-    private static SPDTridiagMatrix jacobian(double[] data2, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data2[i]);
-        }
-        return jacobian;
-    }
-
     public double doOperation() throws OperatorFailedException {
 
         double currentPrecision = precisionParameter.getParameterValue(0);
@@ -219,95 +97,42 @@ public class GMRFMultilocusSkyrideBlockUpdateOperator extends AbstractCoercableO
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
+        for (int i = 0; i < fieldLength; i++)
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
 
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda,
+                backwardProposal.getQDiagonal(), backwardProposal.getQOffDiagonal());
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda,
+                forwardProposal.getQDiagonal(), forwardProposal.getQOffDiagonal());
 
         double[] wNative = gmrfField.getSufficientStatistics();
         double[] numCoalEv = gmrfField.getNumCoalEvents();
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
-
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-
-        DenseVector modeForward = newtonRaphson(numCoalEv, wNative, currentGamma, proposedQ.copy());
-       
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
+        // Gaussian approximation around the mode under the proposed precision; all solves are tridiagonal
+        forwardProposal.fit(numCoalEv, wNative, currentGamma, maxIterations, stopValue);
 
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
-
-        /*
-        double hRatio = 0;
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, proposedGamma.get(i) - forwardMean.get(i));
-        }
-        diagonal3.zero();
-        forwardQW.mult(diagonal1, diagonal3);
+        for (int i = 0; i < fieldLength; i++)
+            standardNormal[i] = MathUtils.nextGaussian();
 
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * diagonal1.dot(diagonal3);
-        */
+        forwardProposal.draw(standardNormal, proposedGamma);
 
         for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
-
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(numCoalEv, wNative, proposedGamma, currentQ.copy());
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
-
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            //diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - numCoalEv[i]);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
+        backwardProposal.fit(numCoalEv, wNative, proposedGamma, maxIterations, stopValue);
 
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
-        }
-
-        backwardQW.mult(diagonal1, diagonal3);
+        double standardNormalSS = 0;
+        for (int i = 0; i < fieldLength; i++)
+            standardNormalSS += standardNormal[i] * standardNormal[i];
 
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
+        hRatio += backwardProposal.getLogGeneralizedDeterminant() - 0.5 * backwardProposal.getQuadraticForm(currentGamma);
+        hRatio -= forwardProposal.getLogGeneralizedDeterminant() - 0.5 * standardNormalSS;
 
-       return hRatio;
+        return hRatio;
     }
 
     //MCMCOperator INTERFACE
@@ -7,7 +7,7 @@ import dr.inference.operators.*;
 import dr.math.MathUtils;
 import no.uib.cipr.matrix.*;
 
-import java.util.logging.Logger;
+import java.util.Arrays;
 
 /* A Metropolis-Hastings operator to update the log population sizes and precision parameter jointly under a Gaussian Markov random field prior
  *
@@ -30,7 +30,13 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
 
     GMRFSkyrideLikelihood gmrfField;
 
-    private double[] zeros;
+    private double[] ones;
+
+    private GMRFTridiagonalProposal forwardProposal;
+    private GMRFTridiagonalProposal backwardProposal;
+    private double[] currentGamma;
+    private double[] proposedGamma;
+    private double[] standardNormal;
 
     public GMRFSkyrideBlockUpdateOperator(GMRFSkyrideLikelihood gmrfLikelihood,
                                           double weight, CoercionMode mode, double scaleFactor,
@@ -49,7 +55,15 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         this.stopValue = stopValue;
         setWeight(weight);
 
-        zeros = new double[fieldLength];
+        ones = new double[fieldLength];
+        Arrays.fill(ones, 1.0);
+
+        String loggerName = "dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator";
+        forwardProposal = new GMRFTridiagonalProposal(fieldLength, loggerName);
+        backwardProposal = new GMRFTridiagonalProposal(fieldLength, loggerName);
+        currentGamma = new double[fieldLength];
+        proposedGamma = new double[fieldLength];
+        standardNormal = new double[fieldLength];
     }
 
     private double getNewLambda(double currentValue, double lambdaScale) {
@@ -79,44 +93,6 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         return returnValue;
     }
 
-    public DenseVector getMultiNormalMean(DenseVector CanonVector, BandCholesky Cholesky) {
-
-        DenseVector tempValue = new DenseVector(zeros);
-        DenseVector Mean = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // Assume Cholesky factorization of the precision matrix Q = LL^T
-
-        // 1. Solve L\omega = b
-
-        CholeskyUpper.transSolve(CanonVector, tempValue);
-
-        // 2. Solve L^T \mu = \omega
-
-        CholeskyUpper.solve(tempValue, Mean);
-
-        return Mean;
-    }
-
-    public DenseVector getMultiNormal(DenseVector StandNorm, DenseVector Mean, BandCholesky Cholesky) {
-
-        DenseVector returnValue = new DenseVector(zeros);
-
-        UpperTriangBandMatrix CholeskyUpper = Cholesky.getU();
-
-        // 3. Solve L^T v = z
-
-        CholeskyUpper.solve(StandNorm, returnValue);
-
-        // 4. Return x = \mu + v
-
-        returnValue.add(Mean);
-
-        return returnValue;
-    }
-
-
     public static DenseVector getMultiNormal(DenseVector Mean, UpperSPDDenseMatrix Variance) {
         int length = Mean.size();
         DenseVector tempValue = new DenseVector(length);
@@ -137,75 +113,6 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
     }
 
 
-    public static double logGeneralizedDeterminant(UpperTriangBandMatrix Matrix) {
-        double returnValue = 0;
-
-        for (int i = 0; i < Matrix.numColumns(); i++) {
-            if (Matrix.get(i, i) > 0.0000001) {
-                returnValue += Math.log(Matrix.get(i, i));
-            }
-        }
-
-        return returnValue;
-    }
-
-    public DenseVector newtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ) throws OperatorFailedException {
-        return newNewtonRaphson(data, currentGamma, proposedQ, maxIterations, stopValue);
-    }
-
-    public static DenseVector newNewtonRaphson(double[] data, DenseVector currentGamma, SymmTridiagMatrix proposedQ,
-                                               int maxIterations, double stopValue) throws OperatorFailedException {
-        DenseVector iterateGamma = currentGamma.copy();
-        DenseVector tempValue = currentGamma.copy();
-
-        int numberIterations = 0;
-
-
-        while (gradient(data, iterateGamma, proposedQ).norm(Vector.Norm.Two) > stopValue) {
-            try {
-                jacobian(data, iterateGamma, proposedQ).solve(gradient(data, iterateGamma, proposedQ), tempValue);
-            } catch (no.uib.cipr.matrix.MatrixNotSPDException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new OperatorFailedException("");
-            } catch (no.uib.cipr.matrix.MatrixSingularException e) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-
-                throw new OperatorFailedException("");
-            }
-            iterateGamma.add(tempValue);
-            numberIterations++;
-
-            if (numberIterations > maxIterations) {
-                Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson F");
-                throw new OperatorFailedException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
-                        "Try starting BEAST with a more accurate initial tree.");
-            }
-        }
-
-        Logger.getLogger("dr.evomodel.coalescent.operators.GMRFSkyrideBlockUpdateOperator").fine("Newton-Raphson S");
-        return iterateGamma;
-
-    }
-
-    private static DenseVector gradient(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-
-        DenseVector returnValue = new DenseVector(value.size());
-        Q.mult(value, returnValue);
-        for (int i = 0; i < value.size(); i++) {
-            returnValue.set(i, -returnValue.get(i) - 1 + data[i] * Math.exp(-value.get(i)));
-        }
-        return returnValue;
-    }
-
-
-    private static SPDTridiagMatrix jacobian(double[] data, DenseVector value, SymmTridiagMatrix Q) {
-        SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
-        for (int i = 0, n = value.size(); i < n; i++) {
-            jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-value.get(i)) * data[i]);
-        }
-        return jacobian;
-    }
-
     public double doOperation() throws OperatorFailedException {
 
         double currentPrecision = precisionParameter.getParameterValue(0);
@@ -217,83 +124,41 @@ public class GMRFSkyrideBlockUpdateOperator extends AbstractCoercableOperator {
         precisionParameter.setParameterValue(0, proposedPrecision);
         lambdaParameter.setParameterValue(0, proposedLambda);
 
-        DenseVector currentGamma = new DenseVector(gmrfField.getPopSizeParameter().getParameterValues());
-        DenseVector proposedGamma;
-
-        SymmTridiagMatrix currentQ = gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda);
-        SymmTridiagMatrix proposedQ = gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda);
+        for (int i = 0; i < fieldLength; i++)
+            currentGamma[i] = popSizeParameter.getParameterValue(i);
 
+        gmrfField.getStoredScaledWeightMatrix(currentPrecision, currentLambda,
+                backwardProposal.getQDiagonal(), backwardProposal.getQOffDiagonal());
+        gmrfField.getScaledWeightMatrix(proposedPrecision, proposedLambda,
+                forwardProposal.getQDiagonal(), forwardProposal.getQOffDiagonal());
 
         double[] wNative = gmrfField.getSufficientStatistics();
+        double[] numCoalEv = ones;
 
-        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
-        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
-
-        BandCholesky forwardCholesky = new BandCholesky(wNative.length, 1, true);
-        BandCholesky backwardCholesky = new BandCholesky(wNative.length, 1, true);
+        // Gaussian approximation around the mode under the proposed precision; all solves are tridiagonal
+        forwardProposal.fit(numCoalEv, wNative, currentGamma, maxIterations, stopValue);
 
-        DenseVector diagonal1 = new DenseVector(fieldLength);
-        DenseVector diagonal2 = new DenseVector(fieldLength);
-        DenseVector diagonal3 = new DenseVector(fieldLength);
-
-        DenseVector modeForward = newtonRaphson(wNative, currentGamma, proposedQ.copy());
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeForward.get(i)));
-            diagonal2.set(i, modeForward.get(i) + 1);
-
-            forwardQW.set(i, i, diagonal1.get(i) + forwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        forwardCholesky.factor(forwardQW.copy());
-
-        DenseVector forwardMean = getMultiNormalMean(diagonal1, forwardCholesky);
-
-        DenseVector stand_norm = new DenseVector(zeros);
-
-        for (int i = 0; i < zeros.length; i++)
-            stand_norm.set(i, MathUtils.nextGaussian());
-
-        proposedGamma = getMultiNormal(stand_norm, forwardMean, forwardCholesky);
+        for (int i = 0; i < fieldLength; i++)
+            standardNormal[i] = MathUtils.nextGaussian();
 
+        forwardProposal.draw(standardNormal, proposedGamma);
 
         for (int i = 0; i < fieldLength; i++)
-            popSizeParameter.setParameterValueQuietly(i, proposedGamma.get(i));
+            popSizeParameter.setParameterValueQuietly(i, proposedGamma[i]);
 
         ((Parameter.Abstract) popSizeParameter).fireParameterChangedEvent();
 
-
         double hRatio = 0;
 
-        diagonal1.zero();
-        diagonal2.zero();
-        diagonal3.zero();
-
-        DenseVector modeBackward = newtonRaphson(wNative, proposedGamma, currentQ.copy());
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, wNative[i] * Math.exp(-modeBackward.get(i)));
-            diagonal2.set(i, modeBackward.get(i) + 1);
+        backwardProposal.fit(numCoalEv, wNative, proposedGamma, maxIterations, stopValue);
 
-            backwardQW.set(i, i, diagonal1.get(i) + backwardQW.get(i, i));
-            diagonal1.set(i, diagonal1.get(i) * diagonal2.get(i) - 1);
-        }
-
-        backwardCholesky.factor(backwardQW.copy());
-
-        DenseVector backwardMean = getMultiNormalMean(diagonal1, backwardCholesky);
-
-        for (int i = 0; i < fieldLength; i++) {
-            diagonal1.set(i, currentGamma.get(i) - backwardMean.get(i));
-        }
-
-        backwardQW.mult(diagonal1, diagonal3);
+        double standardNormalSS = 0;
+        for (int i = 0; i < fieldLength; i++)
+            standardNormalSS += standardNormal[i] * standardNormal[i];
 
         // Removed 0.5 * 2
-        hRatio += logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * diagonal1.dot(diagonal3);
-        hRatio -= logGeneralizedDeterminant(forwardCholesky.getU() ) - 0.5 * stand_norm.dot(stand_norm);
-
+        hRatio += backwardProposal.getLogGeneralizedDeterminant() - 0.5 * backwardProposal.getQuadraticForm(currentGamma);
+        hRatio -= forwardProposal.getLogGeneralizedDeterminant() - 0.5 * standardNormalSS;
 
         return hRatio;
     }
@@ -0,0 +1,213 @@
+package dr.evomodel.coalescent.operators;
+
+import dr.inference.operators.OperatorFailedException;
+
+import java.util.logging.Logger;
+
+/**
+ * Gaussian approximation to the full conditional of the log population sizes under a GMRF skyride prior,
+ * built around its mode. The precision Q + diag(w exp(-mode)) is tridiagonal, so the Newton-Raphson search,
+ * the Cholesky factorisation and all solves are done in place on primitive arrays in linear time.
+ * All buffers are allocated once and reused across proposals.
+ */
+public class GMRFTridiagonalProposal {
+
+    private final int fieldLength;
+    private final Logger logger;
+
+    private final double[] qDiagonal;
+    private final double[] qOffDiagonal;
+
+    private final double[] mode;
+    private final double[] gradient;
+    private final double[] step;
+    private final double[] precisionDiagonal;
+    private final double[] choleskyDiagonal;
+    private final double[] choleskyOffDiagonal;
+    private final double[] canonical;
+    private final double[] mean;
+
+    public GMRFTridiagonalProposal(int fieldLength, String loggerName) {
+        this.fieldLength = fieldLength;
+        this.logger = Logger.getLogger(loggerName);
+
+        qDiagonal = new double[fieldLength];
+        qOffDiagonal = new double[Math.max(fieldLength - 1, 0)];
+
+        mode = new double[fieldLength];
+        gradient = new double[fieldLength];
+        step = new double[fieldLength];
+        precisionDiagonal = new double[fieldLength];
+        choleskyDiagonal = new double[fieldLength];
+        choleskyOffDiagonal = new double[Math.max(fieldLength - 1, 0)];
+        canonical = new double[fieldLength];
+        mean = new double[fieldLength];
+    }
+
+    /**
+     * @return the diagonal of the scaled GMRF weight matrix Q, to be filled in by the caller
+     */
+    public double[] getQDiagonal() {
+        return qDiagonal;
+    }
+
+    /**
+     * @return the off-diagonal of the scaled GMRF weight matrix Q, to be filled in by the caller
+     */
+    public double[] getQOffDiagonal() {
+        return qOffDiagonal;
+    }
+
+    public double[] getMean() {
+        return mean;
+    }
+
+    /**
+     * Finds the mode of exp(-gamma'Q gamma / 2 - sum_i c_i gamma_i - sum_i w_i exp(-gamma_i)) by Newton-Raphson
+     * from start, and builds the Gaussian approximation (mean and Cholesky factor of its precision) at that mode.
+     *
+     * @param numCoalEvents c_i, the number of coalescent events per grid interval
+     * @param sufficientStatistics w_i
+     * @param start starting value for gamma
+     * @param maxIterations maximum number of Newton-Raphson steps
+     * @param stopValue two-norm of the gradient at which to stop
+     * @throws OperatorFailedException if the search does not converge or the precision is not positive definite
+     */
+    public void fit(double[] numCoalEvents, double[] sufficientStatistics, double[] start,
+                    int maxIterations, double stopValue) throws OperatorFailedException {
+
+        System.arraycopy(start, 0, mode, 0, fieldLength);
+
+        int numberIterations = 0;
+
+        while (gradient(numCoalEvents, sufficientStatistics) > stopValue) {
+            for (int i = 0; i < fieldLength; i++) {
+                precisionDiagonal[i] = qDiagonal[i] + sufficientStatistics[i] * Math.exp(-mode[i]);
+            }
+            if (!factor()) {
+                logger.fine("Newton-Raphson F");
+                throw new OperatorFailedException("");
+            }
+            solve(gradient, step);
+
+            for (int i = 0; i < fieldLength; i++) {
+                mode[i] += step[i];
+            }
+            numberIterations++;
+
+            if (numberIterations > maxIterations) {
+                logger.fine("Newton-Raphson F");
+                throw new OperatorFailedException("Newton Raphson algorithm did not converge within " + maxIterations + " step to a norm less than " + stopValue + "\n" +
+                        "Try starting BEAST with a more accurate initial tree.");
+            }
+        }
+
+        logger.fine("Newton-Raphson S");
+
+        for (int i = 0; i < fieldLength; i++) {
+            double d = sufficientStatistics[i] * Math.exp(-mode[i]);
+            precisionDiagonal[i] = qDiagonal[i] + d;
+            canonical[i] = d * (mode[i] + 1) - numCoalEvents[i];
+        }
+
+        if (!factor()) {
+            throw new OperatorFailedException("GMRF block update precision is not positive definite");
+        }
+
+        solve(canonical, mean);
+    }
+
+    /**
+     * Draws from the fitted Gaussian: x = mean + U^{-1} z, where the fitted precision is U'U.
+     *
+     * @param standardNormal z
+     * @param x              destination
+     */
+    public void draw(double[] standardNormal, double[] x) {
+        int n = fieldLength;
+        x[n - 1] = standardNormal[n - 1] / choleskyDiagonal[n - 1];
+        for (int i = n - 2; i >= 0; i--) {
+            x[i] = (standardNormal[i] - choleskyOffDiagonal[i] * x[i + 1]) / choleskyDiagonal[i];
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] += mean[i];
+        }
+    }
+
+    /**
+     * @return (x - mean)' P (x - mean) under the fitted precision P
+     */
+    public double getQuadraticForm(double[] x) {
+        double sum = 0;
+        double previous = 0;
+        for (int i = 0; i < fieldLength; i++) {
+            double r = x[i] - mean[i];
+            sum += precisionDiagonal[i] * r * r;
+            if (i > 0) {
+                sum += 2 * qOffDiagonal[i - 1] * previous * r;
+            }
+            previous = r;
+        }
+        return sum;
+    }
+
+    /**
+     * @return log of the generalized determinant of the Cholesky factor of the fitted precision
+     */
+    public double getLogGeneralizedDeterminant() {
+        double returnValue = 0;
+        for (int i = 0; i < fieldLength; i++) {
+            if (choleskyDiagonal[i] > 0.0000001) {
+                returnValue += Math.log(choleskyDiagonal[i]);
+            }
+        }
+        return returnValue;
+    }
+
+    private double gradient(double[] numCoalEvents, double[] sufficientStatistics) {
+        double norm = 0;
+        for (int i = 0; i < fieldLength; i++) {
+            double qGamma = qDiagonal[i] * mode[i];
+            if (i > 0) {
+                qGamma += qOffDiagonal[i - 1] * mode[i - 1];
+            }
+            if (i < fieldLength - 1) {
+                qGamma += qOffDiagonal[i] * mode[i + 1];
+            }
+            gradient[i] = -qGamma - numCoalEvents[i] + sufficientStatistics[i] * Math.exp(-mode[i]);
+            norm += gradient[i] * gradient[i];
+        }
+        return Math.sqrt(norm);
+    }
+
+    // Upper bidiagonal Cholesky factor U of the tridiagonal precision, P = U'U
+    private boolean factor() {
+        double d = precisionDiagonal[0];
+        if (!(d > 0)) {
+            return false;
+        }
+        choleskyDiagonal[0] = Math.sqrt(d);
+        for (int i = 0; i < fieldLength - 1; i++) {
+            choleskyOffDiagonal[i] = qOffDiagonal[i] / choleskyDiagonal[i];
+            d = precisionDiagonal[i + 1] - choleskyOffDiagonal[i] * choleskyOffDiagonal[i];
+            if (!(d > 0)) {
+                return false;
+            }
+            choleskyDiagonal[i + 1] = Math.sqrt(d);
+        }
+        return true;
+    }
+
+    // Solves U'U x = b; x may alias b
+    private void solve(double[] b, double[] x) {
+        int n = fieldLength;
+        x[0] = b[0] / choleskyDiagonal[0];
+        for (int i = 1; i < n; i++) {
+            x[i] = (b[i] - choleskyOffDiagonal[i - 1] * x[i - 1]) / choleskyDiagonal[i];
+        }
+        x[n - 1] /= choleskyDiagonal[n - 1];
+        for (int i = n - 2; i >= 0; i--) {
+            x[i] = (x[i] - choleskyOffDiagonal[i] * x[i + 1]) / choleskyDiagonal[i];
+        }
+    }
+}
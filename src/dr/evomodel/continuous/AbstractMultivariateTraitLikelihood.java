@@ -461,6 +461,19 @@ public abstract class AbstractMultivariateTraitLikelihood extends AbstractModelL
         }
     }
 
+    /**
+     * @return true if both likelihoods see the same rescaled branch lengths on the same tree and follow a plain
+     *         Brownian diffusion along them
+     */
+    boolean hasSameBranchScaling(AbstractMultivariateTraitLikelihood other) {
+        return treeModel == other.treeModel && branchRateModel == other.branchRateModel &&
+                scaleByTime == other.scaleByTime && useTreeLength == other.useTreeLength &&
+                reciprocalRates == other.reciprocalRates && deltaParameter == other.deltaParameter &&
+                driftModels == null && other.driftModels == null &&
+                optimalValues == null && other.optimalValues == null &&
+                !doAscertainmentCorrect && !other.doAscertainmentCorrect;
+    }
+
     protected void updateAllNodes() {
         for (int i = 0; i < treeModel.getNodeCount(); i++)
             validLogLikelihoods[i] = false;
@@ -512,6 +525,9 @@ public abstract class AbstractMultivariateTraitLikelihood extends AbstractModelL
     protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
         if (variable == deltaParameter) {
             likelihoodKnown = false;
+            if (cacheBranches) {
+                updateAllNodes(); // the tip branches are all lengthened
+            }
         }
 
         if (variable == traitParameter) {
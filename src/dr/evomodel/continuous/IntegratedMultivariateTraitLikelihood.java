@@ -278,16 +278,33 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
 
         final boolean computeWishartStatistics = getComputeWishartSufficientStatistics();
 
-        if (computeWishartStatistics) {
-//            if (wishartStatistics == null) {
-            wishartStatistics = new WishartSufficientStatistics(dimTrait);
-//            } else {
-//                wishartStatistics.clear();
-//            }
+        // Use dynamic programming to compute conditional likelihoods at each internal node; when the branches are
+        // cached only the nodes below which something has changed are recomputed
+        final boolean updateAllNodes = !cacheBranches;
+        postOrderTraverse(treeModel, treeModel.getRoot(), traitPrecision, logDetTraitPrecision, updateAllNodes);
+        if (cacheBranches) {
+            Arrays.fill(validLogLikelihoods, true);
         }
 
-        // Use dynamic programming to compute conditional likelihoods at each internal node
-        postOrderTraverse(treeModel, treeModel.getRoot(), traitPrecision, logDetTraitPrecision, computeWishartStatistics);
+        if (computeWishartStatistics) {
+            if (wishartStatistics == null) {
+                wishartStatistics = new WishartSufficientStatistics(dimTrait);
+            } else {
+                wishartStatistics.clear();
+            }
+            // the outer products are summed over all the internal nodes, from the caches
+            for (int i = 0; i < treeModel.getInternalNodeCount(); i++) {
+                NodeRef node = treeModel.getInternalNode(i);
+                final int childNumber0 = treeModel.getChild(node, 0).getNumber();
+                final int childNumber1 = treeModel.getChild(node, 1).getNumber();
+                final double precision0 = upperPrecisionCache[childNumber0];
+                final double precision1 = upperPrecisionCache[childNumber1];
+                if (precision0 != 0 && precision1 != 0) {
+                    incrementOuterProducts(dim * node.getNumber(), dim * childNumber0, dim * childNumber1,
+                            precision0, precision1);
+                }
+            }
+        }
 
         if (DEBUG) {
             System.err.println("mean: " + new Vector(cacheHelper.getMeanCache()));
@@ -400,6 +417,13 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
             }
             // meanCache[index] = traitParameter.getValue(index);
             likelihoodKnown = false;
+            if (cacheBranches) {
+                if (index != -1) {
+                    validLogLikelihoods[index / dim] = false;
+                } else {
+                    updateAllNodes();
+                }
+            }
 //            if (!cacheBranches) {
 //                throw new RuntimeException("Must cache means in IMTL if they are random");
 //            }
@@ -441,13 +465,21 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
         areStatesRedrawn = false;
     }
 
-    void postOrderTraverse(MultivariateTraitTree treeModel, NodeRef node, double[][] precisionMatrix,
-                           double logDetPrecisionMatrix, boolean cacheOuterProducts) {
+    /**
+     * @return true if the caches for the node were recomputed, so that its parent has to be too
+     */
+    boolean postOrderTraverse(MultivariateTraitTree treeModel, NodeRef node, double[][] precisionMatrix,
+                              double logDetPrecisionMatrix, boolean updateAllNodes) {
 
         final int thisNumber = node.getNumber();
+        final boolean updateNode = updateAllNodes || !validLogLikelihoods[thisNumber];
 
         if (treeModel.isExternal(node)) {
 
+            if (!updateNode) {
+                return false;
+            }
+
             // Fill in precision scalar, traitValues already filled in
 
             if (missingTraits.isCompletelyMissing(thisNumber)) {
@@ -459,14 +491,18 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
                 upperPrecisionCache[thisNumber] = cacheHelper.getUpperPrecFactor(node) * Math.pow(cacheHelper.getOUFactor(node), 2);
                 lowerPrecisionCache[thisNumber] = Double.POSITIVE_INFINITY;
             }
-            return;
+            return true;
         }
 
         final NodeRef childNode0 = treeModel.getChild(node, 0);
         final NodeRef childNode1 = treeModel.getChild(node, 1);
 
-        postOrderTraverse(treeModel, childNode0, precisionMatrix, logDetPrecisionMatrix, cacheOuterProducts);
-        postOrderTraverse(treeModel, childNode1, precisionMatrix, logDetPrecisionMatrix, cacheOuterProducts);
+        final boolean updated0 = postOrderTraverse(treeModel, childNode0, precisionMatrix, logDetPrecisionMatrix, updateAllNodes);
+        final boolean updated1 = postOrderTraverse(treeModel, childNode1, precisionMatrix, logDetPrecisionMatrix, updateAllNodes);
+
+        if (!updateNode && !updated0 && !updated1) {
+            return false;
+        }
 
         final int childNumber0 = childNode0.getNumber();
         final int childNumber1 = childNode1.getNumber();
@@ -525,9 +561,9 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
                     precision0,
                     precision1,
                     cacheHelper.getOUFactor(childNode0),
-                    cacheHelper.getOUFactor(childNode1),
-                    cacheOuterProducts);
+                    cacheHelper.getOUFactor(childNode1));
         }
+        return true;
     }
 
     private void incrementRemainderDensities(double[][] precisionMatrix,
@@ -539,45 +575,45 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
                                              double precision0,
                                              double precision1,
                                              double OUFactor0,
-                                             double OUFactor1,
-                                             boolean cacheOuterProducts) {
+                                             double OUFactor1) {
 
         final double remainderPrecision = precision0 * precision1 / (precision0 + precision1);
 
-        if (cacheOuterProducts) {
-            incrementOuterProducts(thisOffset, childOffset0, childOffset1, precision0, precision1);
-        }
+        // In case of no drift, getCorrectedMeanCache() simply returns mean cache
+        final double[] correctedMean = cacheHelper.getCorrectedMeanCache();
+        // make sure the mean at this node is not "corrected"
+        final double[] mean = cacheHelper.getMeanCache();
 
         for (int k = 0; k < numData; k++) {
 
+            final int offset0 = childOffset0 + k * dimTrait;
+            final int offset1 = childOffset1 + k * dimTrait;
+            final int offset = thisOffset + k * dimTrait;
+
             double childSS0 = 0;
             double childSS1 = 0;
             double crossSS = 0;
 
             for (int i = 0; i < dimTrait; i++) {
 
-                // In case of no drift, getCorrectedMeanCache() simply returns mean cache
-                // final double wChild0i = meanCache[childOffset0 + k * dimTrait + i] * precision0;
-                final double wChild0i = cacheHelper.getCorrectedMeanCache()[childOffset0 + k * dimTrait + i] * precision0;
-                // final double wChild1i = meanCache[childOffset1 + k * dimTrait + i] * precision1;
-                final double wChild1i = cacheHelper.getCorrectedMeanCache()[childOffset1 + k * dimTrait + i] * precision1;
+                final double wChild0i = correctedMean[offset0 + i] * precision0;
+                final double wChild1i = correctedMean[offset1 + i] * precision1;
+                final double[] precisionRow = precisionMatrix[i];
 
+                // the three quadratic forms share row i of the precision matrix
+                double row0 = 0;
+                double row1 = 0;
+                double rowCross = 0;
                 for (int j = 0; j < dimTrait; j++) {
-
-                    // subtract "correction"
-                    //final double child0j = meanCache[childOffset0 + k * dimTrait + j];
-                    final double child0j = cacheHelper.getCorrectedMeanCache()[childOffset0 + k * dimTrait + j];
-                    // subtract "correction"
-                    //final double child1j = meanCache[childOffset1 + k * dimTrait + j];
-                    final double child1j = cacheHelper.getCorrectedMeanCache()[childOffset1 + k * dimTrait + j];
-
-                    childSS0 += wChild0i * precisionMatrix[i][j] * child0j;
-                    childSS1 += wChild1i * precisionMatrix[i][j] * child1j;
-
-                    // make sure meanCache in following is not "corrected"
-                    // crossSS += (wChild0i + wChild1i) * precisionMatrix[i][j] * meanCache[thisOffset + k * dimTrait + j];
-                    crossSS += (wChild0i + wChild1i) * precisionMatrix[i][j] * cacheHelper.getMeanCache()[thisOffset + k * dimTrait + j];
+                    final double pij = precisionRow[j];
+                    row0 += pij * correctedMean[offset0 + j];
+                    row1 += pij * correctedMean[offset1 + j];
+                    rowCross += pij * mean[offset + j];
                 }
+
+                childSS0 += wChild0i * row0;
+                childSS1 += wChild1i * row1;
+                crossSS += (wChild0i + wChild1i) * rowCross;
             }
 
             logRemainderDensityCache[thisIndex] +=
@@ -586,18 +622,7 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
                             - 0.5 * (childSS0 + childSS1 - crossSS)
                             // changeou
                             - dimTrait * (Math.log(OUFactor0) + Math.log(OUFactor1));
-            //               double tempnum = childSS0 + childSS1 - crossSS;
-            //   System.err.println("childSS0 + childSS1 - crossSS:  " + tempnum);
         }
-        //     System.err.println("logRemainderDensity: " + logRemainderDensityCache[thisIndex]);
-        //    System.err.println("thisIndex: " + thisIndex);
-        //   System.err.println("remainder precision: " + remainderPrecision);
-        // System.err.println("precision0: " + precision0);
-        // System.err.println("precision1: " + precision1);
-        // System.err.println("precision0*precision1: " + precision0*precision1);
-
-        //    System.err.println("logDetPrecisionMatrix: " + logDetPrecisionMatrix);
-
     }
 
     private void incrementOuterProducts(int thisOffset,
@@ -607,28 +632,25 @@ public abstract class IntegratedMultivariateTraitLikelihood extends AbstractMult
                                         double precision1) {
 
         final double[][] outerProduct = wishartStatistics.getScaleMatrix();
+        final double[] correctedMean = cacheHelper.getCorrectedMeanCache();
+        final double[] mean = cacheHelper.getMeanCache();
 
         for (int k = 0; k < numData; k++) {
 
+            final int offset0 = childOffset0 + k * dimTrait;
+            final int offset1 = childOffset1 + k * dimTrait;
+            final int offset = thisOffset + k * dimTrait;
+
             for (int i = 0; i < dimTrait; i++) {
 
-                // final double wChild0i = meanCache[childOffset0 + k * dimTrait + i] * precision0;
-                // final double wChild1i = meanCache[childOffset1 + k * dimTrait + i] * precision1;
-                final double wChild0i = cacheHelper.getCorrectedMeanCache()[childOffset0 + k * dimTrait + i] * precision0;
-                final double wChild1i = cacheHelper.getCorrectedMeanCache()[childOffset1 + k * dimTrait + i] * precision1;
+                final double wChild0i = correctedMean[offset0 + i] * precision0;
+                final double wChild1i = correctedMean[offset1 + i] * precision1;
+                final double[] outerProductRow = outerProduct[i];
 
                 for (int j = 0; j < dimTrait; j++) {
-
-                    //final double child0j = meanCache[childOffset0 + k * dimTrait + j];
-                    //final double child1j = meanCache[childOffset1 + k * dimTrait + j];
-                    final double child0j = cacheHelper.getCorrectedMeanCache()[childOffset0 + k * dimTrait + j];
-                    final double child1j = cacheHelper.getCorrectedMeanCache()[childOffset1 + k * dimTrait + j];
-
-                    outerProduct[i][j] += wChild0i * child0j;
-                    outerProduct[i][j] += wChild1i * child1j;
-
-                    //outerProduct[i][j] -= (wChild0i + wChild1i) * meanCache[thisOffset + k * dimTrait + j];
-                    outerProduct[i][j] -= (wChild0i + wChild1i) * cacheHelper.getMeanCache()[thisOffset + k * dimTrait + j];
+                    outerProductRow[j] += wChild0i * correctedMean[offset0 + j]
+                            + wChild1i * correctedMean[offset1 + j]
+                            - (wChild0i + wChild1i) * mean[offset + j];
                 }
             }
         }
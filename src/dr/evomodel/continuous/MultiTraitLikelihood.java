@@ -0,0 +1,619 @@
+/*
+ * MultiTraitLikelihood.java
+ *
+ * Copyright (c) 2002-2015 Alexei Drummond, Andrew Rambaut and Marc Suchard
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.evomodel.continuous;
+
+import dr.evolution.tree.MultivariateTraitTree;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.inference.loggers.LogColumn;
+import dr.inference.loggers.NumberColumn;
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Parameter;
+import dr.inference.model.Variable;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The likelihood of several independent continuous traits, each with its own diffusion model and conjugate root
+ * prior, that evolve by Brownian motion along the same branches of a tree. The internal node traits of all the
+ * traits are integrated out in a single post-order traversal, with the traits stored side by side for each node.
+ * <p/>
+ * The traversal only depends on the tree and the tip values, so for each trait it is reduced to a sum of the
+ * squared contrasts weighted by their precisions. A change to a diffusion model then only needs the trace of this
+ * sum against the new precision matrix, and a change to the tip values of a trait only traverses that trait.
+ * The likelihood of each trait is logged alongside the total and matches that of the trait on its own.
+ */
+public class MultiTraitLikelihood extends AbstractModelLikelihood {
+
+    public static final String MULTI_TRAIT_LIKELIHOOD = "multiTraitLikelihood";
+
+    public MultiTraitLikelihood(List<FullyConjugateMultivariateTraitLikelihood> traits) {
+
+        super(MULTI_TRAIT_LIKELIHOOD);
+
+        this.traits = traits;
+        traitCount = traits.size();
+
+        FullyConjugateMultivariateTraitLikelihood first = traits.get(0);
+        treeModel = first.getTreeModel();
+        nodeCount = treeModel.getNodeCount();
+
+        addModel(treeModel);
+        BranchRateModel branchRateModel = first.getBranchRateModel();
+        if (branchRateModel != null) {
+            addModel(branchRateModel);
+        }
+
+        dimTrait = new int[traitCount];
+        numData = new int[traitCount];
+        meanOffset = new int[traitCount];
+        sumOfSquaresOffset = new int[traitCount];
+        diffusionModelIndex = new int[traitCount];
+
+        int maxDimTrait = 0;
+        for (int i = 0; i < traitCount; i++) {
+            FullyConjugateMultivariateTraitLikelihood trait = traits.get(i);
+
+            dimTrait[i] = trait.getDimTrait();
+            numData[i] = trait.getNumData();
+            meanOffset[i] = blockSize;
+            blockSize += dimTrait[i] * numData[i];
+            sumOfSquaresOffset[i] = sumOfSquaresSize;
+            sumOfSquaresSize += dimTrait[i] * dimTrait[i];
+            maxDimTrait = Math.max(maxDimTrait, dimTrait[i]);
+
+            // the trait likelihoods keep the rescaled branch lengths up to date and forward changes to their tips
+            addModel(trait);
+            traitIndices.put(trait, i);
+
+            MultivariateDiffusionModel diffusionModel = trait.getDiffusionModel();
+            Integer diffusionIndex = diffusionModelIndices.get(diffusionModel);
+            if (diffusionIndex == null) {
+                diffusionIndex = diffusionModels.size();
+                diffusionModelIndices.put(diffusionModel, diffusionIndex);
+                diffusionModels.add(diffusionModel);
+                addModel(diffusionModel);
+            }
+            diffusionModelIndex[i] = diffusionIndex;
+        }
+        diffusionPrecisions = new double[diffusionModels.size()][][];
+        logDetDiffusionPrecisions = new double[diffusionModels.size()];
+
+        means = new double[nodeCount * blockSize];
+        upperPrecisions = new double[nodeCount * traitCount];
+        rootPrecisions = new double[traitCount];
+        branchPrecisions = new double[nodeCount];
+        storedBranchPrecisions = new double[nodeCount];
+        contrast = new double[maxDimTrait];
+
+        sumsOfSquares = new double[sumOfSquaresSize];
+        storedSumsOfSquares = new double[sumOfSquaresSize];
+        logRemainders = new double[traitCount];
+        storedLogRemainders = new double[traitCount];
+        remainderCounts = new int[traitCount];
+        storedRemainderCounts = new int[traitCount];
+
+        traitLogLikelihoods = new double[traitCount];
+        traitKnown = new boolean[traitCount];
+        storedTraitKnown = new boolean[traitCount];
+        tipsChanged = new boolean[traitCount];
+        updateTraits = new int[traitCount];
+
+        missingTips = new boolean[treeModel.getExternalNodeCount() * traitCount];
+        for (int i = 0; i < traitCount; i++) {
+            for (int j = 0; j < treeModel.getExternalNodeCount(); j++) {
+                missingTips[j * traitCount + i] = traits.get(i).missingTraits.isCompletelyMissing(j);
+            }
+            setTipMeans(i);
+        }
+    }
+
+    public int getTraitCount() {
+        return traitCount;
+    }
+
+    public FullyConjugateMultivariateTraitLikelihood getTrait(int index) {
+        return traits.get(index);
+    }
+
+    /**
+     * @return the log likelihood of one of the traits, from the shared traversal
+     */
+    public double getTraitLogLikelihood(int index) {
+        getLogLikelihood();
+        return traitLogLikelihoods[index];
+    }
+
+    // **************************************************************
+    // ModelListener IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleModelChangedEvent(Model model, Object object, int index) {
+        Integer trait = traitIndices.get(model);
+        if (trait != null) {
+            if (object == traits.get(trait).traitParameter) {
+                // a tip value has changed: only this trait has to be traversed again
+                if (index == -1) {
+                    setTipMeans(trait);
+                } else {
+                    setTipMeans(trait, index / (dimTrait[trait] * numData[trait]));
+                }
+                tipsChanged[trait] = true;
+                traitKnown[trait] = false;
+            } else {
+                // the delta parameter, shared by all the traits, lengthens the tip branches
+                branchesKnown = false;
+                updateAllTraits();
+            }
+        } else if (model == treeModel || model == traits.get(0).getBranchRateModel()) {
+            branchesKnown = false;
+            updateAllTraits();
+        }
+        // a diffusion model only changes the weighting of the sums of squares
+        likelihoodKnown = false;
+    }
+
+    // **************************************************************
+    // VariableListener IMPLEMENTATION
+    // **************************************************************
+
+    protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
+        // no variables to listen to
+    }
+
+    // **************************************************************
+    // Model IMPLEMENTATION
+    // **************************************************************
+
+    protected void storeState() {
+        storedLikelihoodKnown = likelihoodKnown;
+        storedLogLikelihood = logLikelihood;
+        storedBranchesKnown = branchesKnown;
+
+        System.arraycopy(branchPrecisions, 0, storedBranchPrecisions, 0, nodeCount);
+        System.arraycopy(sumsOfSquares, 0, storedSumsOfSquares, 0, sumOfSquaresSize);
+        System.arraycopy(logRemainders, 0, storedLogRemainders, 0, traitCount);
+        System.arraycopy(remainderCounts, 0, storedRemainderCounts, 0, traitCount);
+        System.arraycopy(traitKnown, 0, storedTraitKnown, 0, traitCount);
+
+        for (int i = 0; i < traitCount; i++) {
+            tipsChanged[i] = false;
+        }
+    }
+
+    protected void restoreState() {
+        likelihoodKnown = storedLikelihoodKnown;
+        logLikelihood = storedLogLikelihood;
+        branchesKnown = storedBranchesKnown;
+
+        double[] tmp = branchPrecisions;
+        branchPrecisions = storedBranchPrecisions;
+        storedBranchPrecisions = tmp;
+
+        tmp = sumsOfSquares;
+        sumsOfSquares = storedSumsOfSquares;
+        storedSumsOfSquares = tmp;
+
+        tmp = logRemainders;
+        logRemainders = storedLogRemainders;
+        storedLogRemainders = tmp;
+
+        int[] tmp1 = remainderCounts;
+        remainderCounts = storedRemainderCounts;
+        storedRemainderCounts = tmp1;
+
+        boolean[] tmp2 = traitKnown;
+        traitKnown = storedTraitKnown;
+        storedTraitKnown = tmp2;
+
+        // the means of the internal nodes are only used within a traversal but the tips must match the parameters
+        for (int i = 0; i < traitCount; i++) {
+            if (tipsChanged[i]) {
+                setTipMeans(i);
+                tipsChanged[i] = false;
+            }
+        }
+
+        if (likelihoodKnown) {
+            // the log likelihoods of the traits are cheap to recompute from the restored sums of squares
+            computeTraitLogLikelihoods();
+        }
+    }
+
+    protected void acceptState() {
+    } // nothing to do
+
+    // **************************************************************
+    // Likelihood IMPLEMENTATION
+    // **************************************************************
+
+    public Model getModel() {
+        return this;
+    }
+
+    public double getLogLikelihood() {
+        if (!likelihoodKnown) {
+            logLikelihood = calculateLogLikelihood();
+            likelihoodKnown = true;
+        }
+        return logLikelihood;
+    }
+
+    public void makeDirty() {
+        likelihoodKnown = false;
+        branchesKnown = false;
+        updateAllTraits();
+    }
+
+    public LogColumn[] getColumns() {
+        LogColumn[] columns = new LogColumn[traitCount + 1];
+        columns[0] = new LikelihoodColumn(getId());
+        for (int i = 0; i < traitCount; i++) {
+            final int trait = i;
+            FullyConjugateMultivariateTraitLikelihood likelihood = traits.get(i);
+            String label = likelihood.getId() != null ? likelihood.getId() : likelihood.getTraitName();
+            columns[i + 1] = new NumberColumn(label) {
+                public double getDoubleValue() {
+                    return getTraitLogLikelihood(trait);
+                }
+            };
+        }
+        return columns;
+    }
+
+    private double calculateLogLikelihood() {
+
+        if (!branchesKnown) {
+            FullyConjugateMultivariateTraitLikelihood first = traits.get(0);
+            for (int i = 0; i < nodeCount; i++) {
+                NodeRef node = treeModel.getNode(i);
+                if (!treeModel.isRoot(node)) {
+                    branchPrecisions[i] = 1.0 / first.getRescaledBranchLengthForPrecision(node);
+                }
+            }
+            branchesKnown = true;
+        }
+
+        updateCount = 0;
+        for (int i = 0; i < traitCount; i++) {
+            if (!traitKnown[i]) {
+                updateTraits[updateCount] = i;
+                updateCount++;
+
+                logRemainders[i] = 0.0;
+                remainderCounts[i] = 0;
+                for (int j = 0; j < dimTrait[i] * dimTrait[i]; j++) {
+                    sumsOfSquares[sumOfSquaresOffset[i] + j] = 0.0;
+                }
+            }
+        }
+
+        if (updateCount > 0) {
+            postOrderTraverse(treeModel.getRoot());
+            incrementRootContrasts(treeModel.getRoot().getNumber());
+            for (int u = 0; u < updateCount; u++) {
+                traitKnown[updateTraits[u]] = true;
+            }
+        }
+
+        return computeTraitLogLikelihoods();
+    }
+
+    private double computeTraitLogLikelihoods() {
+        for (int i = 0; i < diffusionModels.size(); i++) {
+            MultivariateDiffusionModel diffusionModel = diffusionModels.get(i);
+            diffusionPrecisions[i] = diffusionModel.getPrecisionmatrix();
+            logDetDiffusionPrecisions[i] = Math.log(diffusionModel.getDeterminantPrecisionMatrix());
+        }
+
+        double logLikelihood = 0.0;
+        for (int i = 0; i < traitCount; i++) {
+            final double[][] precision = diffusionPrecisions[diffusionModelIndex[i]];
+            final double logDetPrecision = logDetDiffusionPrecisions[diffusionModelIndex[i]];
+
+            // trace of the precision against the weighted sum of squared contrasts
+            final int dim = dimTrait[i];
+            final int offset = sumOfSquaresOffset[i];
+            double trace = 0.0;
+            for (int j = 0; j < dim; j++) {
+                final double[] precisionRow = precision[j];
+                for (int k = 0; k < dim; k++) {
+                    trace += precisionRow[k] * sumsOfSquares[offset + j * dim + k];
+                }
+            }
+
+            traitLogLikelihoods[i] = logRemainders[i] + 0.5 * (remainderCounts[i] * logDetPrecision - trace);
+            logLikelihood += traitLogLikelihoods[i];
+        }
+        return logLikelihood;
+    }
+
+    private void postOrderTraverse(NodeRef node) {
+
+        final int thisNumber = node.getNumber();
+
+        if (treeModel.isExternal(node)) {
+            final double branchPrecision = branchPrecisions[thisNumber];
+            for (int u = 0; u < updateCount; u++) {
+                final int trait = updateTraits[u];
+                upperPrecisions[thisNumber * traitCount + trait] =
+                        missingTips[thisNumber * traitCount + trait] ? 0.0 : branchPrecision;
+            }
+            return;
+        }
+
+        final NodeRef childNode0 = treeModel.getChild(node, 0);
+        final NodeRef childNode1 = treeModel.getChild(node, 1);
+
+        postOrderTraverse(childNode0);
+        postOrderTraverse(childNode1);
+
+        final int childNumber0 = childNode0.getNumber();
+        final int childNumber1 = childNode1.getNumber();
+        final boolean isRoot = treeModel.isRoot(node);
+        final double branchPrecision = branchPrecisions[thisNumber];
+
+        for (int u = 0; u < updateCount; u++) {
+            final int trait = updateTraits[u];
+            final int dim = dimTrait[trait] * numData[trait];
+
+            final int thisOffset = thisNumber * blockSize + meanOffset[trait];
+            final int offset0 = childNumber0 * blockSize + meanOffset[trait];
+            final int offset1 = childNumber1 * blockSize + meanOffset[trait];
+
+            final double precision0 = upperPrecisions[childNumber0 * traitCount + trait];
+            final double precision1 = upperPrecisions[childNumber1 * traitCount + trait];
+            final double totalPrecision = precision0 + precision1;
+
+            // Multiply child0 and child1 densities
+            if (totalPrecision == 0) {
+                for (int i = 0; i < dim; i++) {
+                    means[thisOffset + i] = 0.0;
+                }
+            } else {
+                final double weight0 = precision0 / totalPrecision;
+                final double weight1 = precision1 / totalPrecision;
+                for (int i = 0; i < dim; i++) {
+                    means[thisOffset + i] = weight0 * means[offset0 + i] + weight1 * means[offset1 + i];
+                }
+            }
+
+            if (precision0 != 0 && precision1 != 0) {
+                incrementContrasts(trait, offset0, means, offset1, dimTrait[trait],
+                        precision0 * precision1 / totalPrecision);
+            }
+
+            // Integrate out trait value at this node
+            if (isRoot) {
+                rootPrecisions[trait] = totalPrecision;
+            } else if (Double.isInfinite(branchPrecision)) {
+                upperPrecisions[thisNumber * traitCount + trait] = totalPrecision;
+            } else {
+                upperPrecisions[thisNumber * traitCount + trait] =
+                        totalPrecision * branchPrecision / (totalPrecision + branchPrecision);
+            }
+        }
+    }
+
+    private void incrementRootContrasts(int rootNumber) {
+        for (int u = 0; u < updateCount; u++) {
+            final int trait = updateTraits[u];
+            final double rootPrecision = rootPrecisions[trait];
+            if (rootPrecision != 0) {
+                // integrating the root against the conjugate prior leaves one more contrast with the prior mean
+                FullyConjugateMultivariateTraitLikelihood likelihood = traits.get(trait);
+                final double priorSampleSize = likelihood.getPriorSampleSize();
+                incrementContrasts(trait, rootNumber * blockSize + meanOffset[trait], likelihood.getPriorMean(), 0, 0,
+                        rootPrecision * priorSampleSize / (rootPrecision + priorSampleSize));
+            }
+        }
+    }
+
+    /**
+     * Adds the squared contrasts between a node and either another node or the root prior mean, for each datum of
+     * a trait. A stride of zero compares every datum with the same values.
+     */
+    private void incrementContrasts(int trait, int offset0, double[] values1, int offset1, int stride1,
+                                    double remainderPrecision) {
+
+        final int dim = dimTrait[trait];
+        final int sumOfSquaresOffset = this.sumOfSquaresOffset[trait];
+
+        if (dim == 1 && numData[trait] == 1) {
+            // the common case of a single univariate datum
+            final double contrast = means[offset0] - values1[offset1];
+            sumsOfSquares[sumOfSquaresOffset] += remainderPrecision * contrast * contrast;
+        } else {
+            for (int k = 0; k < numData[trait]; k++) {
+                final int datumOffset0 = offset0 + k * dim;
+                final int datumOffset1 = offset1 + k * stride1;
+
+                for (int i = 0; i < dim; i++) {
+                    contrast[i] = means[datumOffset0 + i] - values1[datumOffset1 + i];
+                }
+                for (int i = 0; i < dim; i++) {
+                    final double weightedContrast = remainderPrecision * contrast[i];
+                    final int rowOffset = sumOfSquaresOffset + i * dim;
+                    for (int j = 0; j < dim; j++) {
+                        sumsOfSquares[rowOffset + j] += weightedContrast * contrast[j];
+                    }
+                }
+            }
+        }
+
+        // the traits share their precisions unless some tips are missing, so the last logarithm is usually reused
+        if (remainderPrecision != lastRemainderPrecision) {
+            lastRemainderPrecision = remainderPrecision;
+            lastLogRemainderPrecision = Math.log(remainderPrecision);
+        }
+        logRemainders[trait] += numData[trait] * dim *
+                (-IntegratedMultivariateTraitLikelihood.LOG_SQRT_2_PI + 0.5 * lastLogRemainderPrecision);
+        remainderCounts[trait] += numData[trait];
+    }
+
+    private void setTipMeans(int trait) {
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            setTipMeans(trait, treeModel.getExternalNode(i).getNumber());
+        }
+    }
+
+    private void setTipMeans(int trait, int tipNumber) {
+        FullyConjugateMultivariateTraitLikelihood likelihood = traits.get(trait);
+        final int dim = dimTrait[trait] * numData[trait];
+        final int offset = tipNumber * blockSize + meanOffset[trait];
+        if (missingTips[tipNumber * traitCount + trait]) {
+            for (int i = 0; i < dim; i++) {
+                means[offset + i] = 0.0;
+            }
+        } else {
+            Parameter tipParameter = likelihood.traitParameter.getParameter(tipNumber);
+            for (int i = 0; i < dim; i++) {
+                means[offset + i] = tipParameter.getParameterValue(i);
+            }
+        }
+    }
+
+    private void updateAllTraits() {
+        for (int i = 0; i < traitCount; i++) {
+            traitKnown[i] = false;
+        }
+    }
+
+    // **************************************************************
+    // XMLObjectParser
+    // **************************************************************
+
+    public static XMLObjectParser PARSER = new AbstractXMLObjectParser() {
+
+        public String getParserName() {
+            return MULTI_TRAIT_LIKELIHOOD;
+        }
+
+        public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+            List<FullyConjugateMultivariateTraitLikelihood> traits = new ArrayList<FullyConjugateMultivariateTraitLikelihood>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                Object child = xo.getChild(i);
+                if (!(child instanceof FullyConjugateMultivariateTraitLikelihood) ||
+                        child instanceof NonPhylogeneticMultivariateTraitLikelihood) {
+                    throw new XMLParseException("The traits in " + xo.getId() + " must have their internal traits " +
+                            "integrated out against a conjugate root prior");
+                }
+                FullyConjugateMultivariateTraitLikelihood trait = (FullyConjugateMultivariateTraitLikelihood) child;
+                if (traits.size() > 0 && !trait.hasSameBranchScaling(traits.get(0))) {
+                    throw new XMLParseException("The trait " + trait.getTraitName() + " in " + xo.getId() +
+                            " does not diffuse by Brownian motion along the same branches as the other traits");
+                }
+                traits.add(trait);
+            }
+            // comparing the first trait with itself checks it for drift, selection and ascertainment
+            if (!traits.get(0).hasSameBranchScaling(traits.get(0))) {
+                throw new XMLParseException("Only traits diffusing by Brownian motion without drift, selection or " +
+                        "ascertainment can be combined in " + xo.getId());
+            }
+
+            return new MultiTraitLikelihood(traits);
+        }
+
+        //************************************************************************
+        // AbstractXMLObjectParser implementation
+        //************************************************************************
+
+        public String getParserDescription() {
+            return "Provides the likelihood of several independent continuous traits evolving on the same tree, " +
+                    "computed in a single traversal.";
+        }
+
+        public XMLSyntaxRule[] getSyntaxRules() {
+            return rules;
+        }
+
+        private final XMLSyntaxRule[] rules = {
+                new ElementRule(AbstractMultivariateTraitLikelihood.class, 1, Integer.MAX_VALUE)
+        };
+
+        public Class getReturnType() {
+            return MultiTraitLikelihood.class;
+        }
+    };
+
+    private final List<FullyConjugateMultivariateTraitLikelihood> traits;
+    private final Map<Model, Integer> traitIndices = new HashMap<Model, Integer>();
+    private final Map<MultivariateDiffusionModel, Integer> diffusionModelIndices =
+            new HashMap<MultivariateDiffusionModel, Integer>();
+    private final List<MultivariateDiffusionModel> diffusionModels = new ArrayList<MultivariateDiffusionModel>();
+    private final int[] diffusionModelIndex;
+    private final double[][][] diffusionPrecisions;
+    private final double[] logDetDiffusionPrecisions;
+    private final int traitCount;
+
+    private final MultivariateTraitTree treeModel;
+    private final int nodeCount;
+
+    private final int[] dimTrait;
+    private final int[] numData;
+    private final int[] meanOffset;
+    private final int[] sumOfSquaresOffset;
+    private int blockSize = 0;
+    private int sumOfSquaresSize = 0;
+
+    private final double[] means;
+    private final double[] upperPrecisions;
+    private final double[] rootPrecisions;
+    private final double[] contrast;
+    private final boolean[] missingTips;
+    private double lastRemainderPrecision = Double.NaN;
+    private double lastLogRemainderPrecision;
+
+    private double[] branchPrecisions;
+    private double[] storedBranchPrecisions;
+    private boolean branchesKnown = false;
+    private boolean storedBranchesKnown;
+
+    private double[] sumsOfSquares;
+    private double[] storedSumsOfSquares;
+    private double[] logRemainders;
+    private double[] storedLogRemainders;
+    private int[] remainderCounts;
+    private int[] storedRemainderCounts;
+
+    private final double[] traitLogLikelihoods;
+    private boolean[] traitKnown;
+    private boolean[] storedTraitKnown;
+    private final boolean[] tipsChanged;
+    private final int[] updateTraits;
+    private int updateCount;
+
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown;
+}
@@ -28,6 +28,8 @@ public abstract class AbstractOutbreak extends AbstractModel implements PatternL
     private final String CASE_NAME = "caseID";
     protected ArrayList<AbstractCase> cases;
     protected int infectedSize = 0;
+    private final HashMap<AbstractCase, Integer> caseIndices = new HashMap<AbstractCase, Integer>();
+    private int indexedCaseCount = 0;
 
     public AbstractOutbreak(String name, Taxa taxa){
         this(name, taxa, false, true);
@@ -81,8 +83,20 @@ public abstract class AbstractOutbreak extends AbstractModel implements PatternL
         return out;
     }
 
+    // constant time lookup; the index is rebuilt whenever a subclass has added cases since it was last built
+
     public int getCaseIndex(AbstractCase thisCase){
-        return cases.indexOf(thisCase);
+        if(indexedCaseCount!=cases.size()){
+            caseIndices.clear();
+            for(int i=0; i<cases.size(); i++){
+                if(!caseIndices.containsKey(cases.get(i))){
+                    caseIndices.put(cases.get(i), i);
+                }
+            }
+            indexedCaseCount = cases.size();
+        }
+        Integer index = caseIndices.get(thisCase);
+        return index == null ? -1 : index;
     }
 
     public int size(){
@@ -86,11 +86,13 @@ public class BranchMapModel extends AbstractModel {
     }
 
     protected void storeState() {
-        storedMap = Arrays.copyOf(map, map.length);
+        System.arraycopy(map, 0, storedMap, 0, map.length);
     }
 
     protected void restoreState() {
+        AbstractCase[] temp = map;
         map = storedMap;
+        storedMap = temp;
     }
 
     protected void acceptState() {
@@ -63,6 +63,18 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
     /* Matches outbreak to external nodes */
 
     protected HashMap<AbstractCase, Integer> tipMap;
+
+    /* Tip node number of each case, by case index (-1 if the case was never infected) */
+
+    protected int[] caseTips;
+
+    /* Workspace for partition traversals, sized to the node count so that no boxed collections are needed while
+    the likelihood is being evaluated */
+
+    private int[] partitionStack;
+    private int[] partitionNodes;
+    private boolean[] visitedNodes;
+
     private double estimatedLastSampleTime;
     protected TreeTraitProvider.Helper treeTraits = new Helper();
 
@@ -153,14 +165,28 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
             }
         }
 
+        caseTips = new int[outbreak.size()];
+        Arrays.fill(caseTips, -1);
+        for(AbstractCase thisCase : tipMap.keySet()){
+            caseTips[outbreak.getCaseIndex(thisCase)] = tipMap.get(thisCase);
+        }
+
+        partitionStack = new int[virusTree.getNodeCount()];
+        partitionNodes = new int[virusTree.getNodeCount()];
+        visitedNodes = new boolean[virusTree.getNodeCount()];
+
         hasLatentPeriods = outbreak.hasLatentPeriods();
 
         infectionTimes = new double[outbreak.size()];
+        storedInfectionTimes = new double[outbreak.size()];
         infectiousPeriods = new double[outbreak.size()];
+        storedInfectiousPeriods = new double[outbreak.size()];
 
         if(hasLatentPeriods){
             infectiousTimes = new double[outbreak.size()];
+            storedInfectiousTimes = new double[outbreak.size()];
             latentPeriods = new double[outbreak.size()];
+            storedLatentPeriods = new double[outbreak.size()];
         }
 
 
@@ -236,6 +262,10 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
         return latestTime;
     }
 
+    private NodeRef getTipNode(AbstractCase thisCase){
+        return treeModel.getNode(caseTips[outbreak.getCaseIndex(thisCase)]);
+    }
+
     private NodeRef[] getChildren(NodeRef node){
         NodeRef[] children = new NodeRef[treeModel.getChildCount(node)];
         for(int i=0; i< treeModel.getChildCount(node); i++){
@@ -261,7 +291,7 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
     }
 
     private boolean tipLinked(NodeRef node, BranchMapModel map){
-        NodeRef tip = treeModel.getNode(tipMap.get(map.get(node.getNumber())));
+        NodeRef tip = getTipNode(map.get(node.getNumber()));
         if(tip==node){
             return true;
         }
@@ -355,6 +385,78 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
         flagForDescendantRecalculation(tree, node, updateNode);
     }
 
+    // Collects the node numbers of the nodes in the same partition as the given node (excluding the node itself) into
+    // partitionNodes and returns how many there are. The partition is flood-filled along branches whose ends have the
+    // same painting; ascend and descend say whether the search may leave the starting node towards its parent and
+    // its children respectively. If flagForRecalc is true then the starting node (unless only descending and it has a
+    // child in the same partition) and every collected node with no child in the same partition are flagged for
+    // likelihood recalculation.
+
+    private int collectSamePartition(NodeRef node, BranchMapModel map, boolean ascend, boolean descend,
+                                     boolean flagForRecalc){
+        final int start = node.getNumber();
+        final AbstractCase painting = map.get(start);
+        boolean startHasSameChild = false;
+        int count = 0;
+        int stackSize = 0;
+
+        visitedNodes[start] = true;
+        partitionStack[stackSize++] = start;
+
+        while(stackSize>0){
+            int currentNumber = partitionStack[--stackSize];
+            NodeRef current = treeModel.getNode(currentNumber);
+            boolean isStart = currentNumber==start;
+
+            boolean hasSameChild = false;
+            for(int i=0; i<treeModel.getChildCount(current); i++){
+                NodeRef child = treeModel.getChild(current, i);
+                if(map.get(child.getNumber())==painting){
+                    hasSameChild = true;
+                    if((descend || !isStart) && !visitedNodes[child.getNumber()]){
+                        visitedNodes[child.getNumber()] = true;
+                        partitionStack[stackSize++] = child.getNumber();
+                    }
+                }
+            }
+
+            NodeRef parent = treeModel.getParent(current);
+            if((ascend || !isStart) && parent!=null && map.get(parent.getNumber())==painting
+                    && !visitedNodes[parent.getNumber()]){
+                visitedNodes[parent.getNumber()] = true;
+                partitionStack[stackSize++] = parent.getNumber();
+            }
+
+            if(isStart){
+                startHasSameChild = hasSameChild;
+            } else {
+                partitionNodes[count++] = currentNumber;
+                if(flagForRecalc && !hasSameChild){
+                    flagForDescendantRecalculation(treeModel, current);
+                }
+            }
+        }
+
+        visitedNodes[start] = false;
+        for(int i=0; i<count; i++){
+            visitedNodes[partitionNodes[i]] = false;
+        }
+
+        if(flagForRecalc && (ascend || !startHasSameChild)){
+            flagForDescendantRecalculation(treeModel, node);
+        }
+
+        return count;
+    }
+
+    private HashSet<Integer> partitionNodesAsSet(int count){
+        HashSet<Integer> out = new HashSet<Integer>();
+        for(int i=0; i<count; i++){
+            out.add(partitionNodes[i]);
+        }
+        return out;
+    }
+
     //Return a set of nodes that are not descendants of (or equal to) the current node and are in the same partition as
     // it. If flagForRecalc is true, then this also sets the flags for likelihood recalculation for all these nodes
     // to true
@@ -364,24 +466,7 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
     }
 
     public HashSet<Integer> samePartitionDownTree(NodeRef node, BranchMapModel map, boolean flagForRecalc){
-        if(flagForRecalc){
-            flagForDescendantRecalculation(treeModel, node);
-        }
-        HashSet<Integer> out = new HashSet<Integer>();
-        AbstractCase painting = map.get(node.getNumber());
-        NodeRef currentNode = node;
-        NodeRef parentNode = treeModel.getParent(node);
-        while(parentNode!=null && map.get(parentNode.getNumber())==painting){
-            out.add(parentNode.getNumber());
-            if(countChildrenInSamePartition(parentNode)==2){
-                NodeRef otherChild = sibling(treeModel, currentNode);
-                out.add(otherChild.getNumber());
-                out.addAll(samePartitionUpTree(otherChild, map, flagForRecalc));
-            }
-            currentNode = parentNode;
-            parentNode = treeModel.getParent(currentNode);
-        }
-        return out;
+        return partitionNodesAsSet(collectSamePartition(node, map, true, false, flagForRecalc));
     }
 
     //Return a set of nodes that are descendants (and not equal to) the current node and are in the same partition as
@@ -392,62 +477,53 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
     }
 
     public HashSet<Integer> samePartitionUpTree(NodeRef node, BranchMapModel map, boolean flagForRecalc){
-        HashSet<Integer> out = new HashSet<Integer>();
-        AbstractCase painting = map.get(node.getNumber());
-        boolean creepsFurther = false;
-        for(int i=0; i< treeModel.getChildCount(node); i++){
-            if(map.get(treeModel.getChild(node,i).getNumber())==painting){
-                creepsFurther = true;
-                out.add(treeModel.getChild(node,i).getNumber());
-                out.addAll(samePartitionUpTree(treeModel.getChild(node, i), map, flagForRecalc));
-            }
-        }
-        if(flagForRecalc && !creepsFurther){
-            flagForDescendantRecalculation(treeModel, node);
-        }
-        return out;
+        return partitionNodesAsSet(collectSamePartition(node, map, false, true, flagForRecalc));
     }
 
-    public Integer[] samePartition(NodeRef node, boolean flagForRecalc){
+    // Return the numbers of all nodes in the same partition as the current node (including itself), in ascending
+    // order
+
+    public int[] samePartition(NodeRef node, boolean flagForRecalc){
         return samePartition(node, branchMap, flagForRecalc);
     }
 
-    private Integer[] samePartition(NodeRef node, BranchMapModel map, boolean flagForRecalc){
-        HashSet<Integer> out = new HashSet<Integer>();
-        out.add(node.getNumber());
-        out.addAll(samePartitionDownTree(node, map, flagForRecalc));
-        out.addAll(samePartitionUpTree(node, map, flagForRecalc));
-        return out.toArray(new Integer[out.size()]);
+    private int[] samePartition(NodeRef node, BranchMapModel map, boolean flagForRecalc){
+        int count = collectSamePartition(node, map, true, true, flagForRecalc);
+        int[] out = new int[count+1];
+        System.arraycopy(partitionNodes, 0, out, 0, count);
+        out[count] = node.getNumber();
+        Arrays.sort(out);
+        return out;
     }
 
     // returns all nodes that are the earliest nodes in the partitions corresponding to this outbreak' children in
     // the _transmission_ tree.
 
-    private Integer[] getAllChildInfectionNodes(AbstractCase thisCase){
-        HashSet<Integer> out = new HashSet<Integer>();
-        NodeRef tip = treeModel.getNode(tipMap.get(thisCase));
-        Integer[] partition = samePartition(tip, false);
-        for (Integer i : partition) {
+    private int[] getAllChildInfectionNodes(AbstractCase thisCase){
+        int[] partition = samePartition(getTipNode(thisCase), false);
+        int[] out = new int[partition.length*2];
+        int count = 0;
+        for (int i : partition) {
             NodeRef node = treeModel.getNode(i);
             if (!treeModel.isExternal(node)) {
                 for (int j = 0; j < treeModel.getChildCount(node); j++) {
                     NodeRef child = treeModel.getChild(node, j);
                     if(branchMap.get(child.getNumber())!=thisCase){
-                        out.add(child.getNumber());
+                        out[count++] = child.getNumber();
                     }
                 }
             }
         }
-        return out.toArray(new Integer[out.size()]);
+        return Arrays.copyOf(out, count);
     }
 
     public NodeRef getTip(AbstractCase thisCase){
-        return treeModel.getNode(tipMap.get(thisCase));
+        return getTipNode(thisCase);
     }
 
     public NodeRef getEarliestNodeInPartition(AbstractCase thisCase, BranchMapModel branchMap){
         if(thisCase.wasEverInfected()) {
-            NodeRef child = treeModel.getNode(tipMap.get(thisCase));
+            NodeRef child = getTipNode(thisCase);
             NodeRef parent = treeModel.getParent(child);
             boolean transmissionFound = false;
             while (!transmissionFound) {
@@ -482,13 +558,21 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
     }
 
 
+    // Index of the infector of each case (-1 for the root case, null if never infected). Every transmission is a
+    // branch whose partition differs from its parent's, so a single pass over the branches finds them all.
+
     public Integer[] getParentsArray(){
         Integer[] out = new Integer[outbreak.size()];
-        for(AbstractCase thisCase : outbreak.getCases()){
-            if(thisCase.wasEverInfected()) {
-                out[outbreak.getCaseIndex(thisCase)] = outbreak.getCaseIndex(getInfector(thisCase));
+        for(int i=0; i<treeModel.getNodeCount(); i++){
+            NodeRef node = treeModel.getNode(i);
+            AbstractCase nodeCase = branchMap.get(node.getNumber());
+            if(treeModel.isRoot(node)){
+                out[outbreak.getCaseIndex(nodeCase)] = -1;
             } else {
-                out[outbreak.getCaseIndex(thisCase)] = null;
+                AbstractCase parentCase = branchMap.get(treeModel.getParent(node).getNumber());
+                if(nodeCase!=parentCase){
+                    out[outbreak.getCaseIndex(nodeCase)] = outbreak.getCaseIndex(parentCase);
+                }
             }
         }
         return out;
@@ -584,11 +668,11 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
 
     protected void storeState() {
         super.storeState();
-        storedInfectionTimes = Arrays.copyOf(infectionTimes, infectionTimes.length);
-        storedInfectiousPeriods = Arrays.copyOf(infectiousPeriods, infectiousPeriods.length);
+        System.arraycopy(infectionTimes, 0, storedInfectionTimes, 0, infectionTimes.length);
+        System.arraycopy(infectiousPeriods, 0, storedInfectiousPeriods, 0, infectiousPeriods.length);
         if(hasLatentPeriods){
-            storedInfectiousTimes = Arrays.copyOf(infectiousTimes, infectionTimes.length);
-            storedLatentPeriods = Arrays.copyOf(latentPeriods, latentPeriods.length);
+            System.arraycopy(infectiousTimes, 0, storedInfectiousTimes, 0, infectiousTimes.length);
+            System.arraycopy(latentPeriods, 0, storedLatentPeriods, 0, latentPeriods.length);
         }
     }
 
@@ -598,11 +682,22 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
 
     protected void restoreState() {
         super.restoreState();
+        double[] temp = infectionTimes;
         infectionTimes = storedInfectionTimes;
+        storedInfectionTimes = temp;
+
+        temp = infectiousPeriods;
         infectiousPeriods = storedInfectiousPeriods;
+        storedInfectiousPeriods = temp;
+
         if(hasLatentPeriods){
+            temp = infectiousTimes;
             infectiousTimes = storedInfectiousTimes;
+            storedInfectiousTimes = temp;
+
+            temp = latentPeriods;
             latentPeriods = storedLatentPeriods;
+            storedLatentPeriods = temp;
         }
     }
 
@@ -714,7 +809,7 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
 
     public AbstractCase getInfector(AbstractCase thisCase, BranchMapModel branchMap){
         if(thisCase.wasEverInfected()) {
-            NodeRef tip = treeModel.getNode(tipMap.get(thisCase));
+            NodeRef tip = getTipNode(thisCase);
             return getInfector(tip, branchMap);
         }
         return null;
@@ -735,6 +830,26 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
         return new HashSet<AbstractCase>();
     }
 
+    // Allocation-free test of whether this case infected anyone
+
+    public boolean hasInfectees(AbstractCase thisCase){
+        if(!thisCase.wasEverInfected()) {
+            return false;
+        }
+        NodeRef partitionRoot = getEarliestNodeInPartition(thisCase);
+        int count = collectSamePartition(partitionRoot, branchMap, false, true, false);
+        partitionNodes[count++] = partitionRoot.getNumber();
+        for(int i=0; i<count; i++){
+            NodeRef node = treeModel.getNode(partitionNodes[i]);
+            for(int j=0; j<treeModel.getChildCount(node); j++){
+                if(branchMap.get(treeModel.getChild(node, j).getNumber())!=thisCase){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public HashSet<AbstractCase> getInfecteesInClade(NodeRef node, BranchMapModel branchMap){
         HashSet<AbstractCase> out = new HashSet<AbstractCase>();
         if(treeModel.isExternal(node)){
@@ -1035,15 +1150,24 @@ public abstract class CaseToCaseTreeLikelihood extends AbstractTreeLikelihood im
         return checkPartitions(branchMap, true);
     }
 
+    // Every partition must contain a tip, so flood outwards from each tip and look for internal nodes that are never
+    // reached
+
     protected boolean checkPartitions(BranchMapModel map, boolean verbose){
         boolean foundProblem = false;
-        for(int i=0; i<treeModel.getInternalNodeCount(); i++){
-            boolean foundTip = false;
-            for(Integer nodeNumber : samePartition(treeModel.getInternalNode(i), map, false)){
-                if(treeModel.isExternal(treeModel.getNode(nodeNumber))){
-                    foundTip = true;
+        boolean[] connectedToTip = new boolean[treeModel.getNodeCount()];
+        for(int i=0; i<treeModel.getExternalNodeCount(); i++){
+            NodeRef tip = treeModel.getExternalNode(i);
+            if(!connectedToTip[tip.getNumber()]){
+                int count = collectSamePartition(tip, map, true, true, false);
+                connectedToTip[tip.getNumber()] = true;
+                for(int j=0; j<count; j++){
+                    connectedToTip[partitionNodes[j]] = true;
                 }
             }
+        }
+        for(int i=0; i<treeModel.getInternalNodeCount(); i++){
+            boolean foundTip = connectedToTip[treeModel.getInternalNode(i).getNumber()];
             if(!foundProblem && !foundTip){
                 foundProblem = true;
                 if(verbose){
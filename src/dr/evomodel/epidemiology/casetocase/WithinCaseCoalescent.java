@@ -39,8 +39,11 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
     private double[] partitionTreeLogLikelihoods;
     private double[] storedPartitionTreeLogLikelihoods;
     private boolean[] recalculateCoalescentFlags;
-    private HashMap<AbstractCase,Treelet> partitionsAsTrees;
-    private HashMap<AbstractCase,Treelet> storedPartitionsAsTrees;
+    private Treelet[] partitionsAsTrees;
+    private Treelet[] storedPartitionsAsTrees;
+    private String[] infectiousCategories;
+    private int[][] infectiousCategoryCases;
+    private double[][] infectiousCategoryPeriods;
     private DemographicModel demoModel;
     private Mode mode;
 
@@ -65,20 +68,40 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         storedPartitionTreeLogLikelihoods = new double[outbreak.getCases().size()];
         recalculateCoalescentFlags = new boolean[outbreak.getCases().size()];
 
-        partitionsAsTrees = new HashMap<AbstractCase, Treelet>();
-        for(AbstractCase aCase: outbreak.getCases()){
-            if(aCase.wasEverInfected()){
-                partitionsAsTrees.put(aCase, null);
-            }
-        }
-
-        storedPartitionsAsTrees = new HashMap<AbstractCase, Treelet>();
+        partitionsAsTrees = new Treelet[outbreak.size()];
+        storedPartitionsAsTrees = new Treelet[outbreak.size()];
 
+        indexInfectiousCategories();
 
         prepareTree(startingNetworkFileName);
 
     }
 
+    // Infectious categories never change, so the infected cases in each are indexed once
+
+    private void indexInfectiousCategories(){
+        CategoryOutbreak categoryOutbreak = (CategoryOutbreak) outbreak;
+        HashSet<String> categories = categoryOutbreak.getInfectiousCategories();
+
+        infectiousCategories = categories.toArray(new String[categories.size()]);
+        infectiousCategoryCases = new int[infectiousCategories.length][];
+        infectiousCategoryPeriods = new double[infectiousCategories.length][];
+
+        for (int i = 0; i < infectiousCategories.length; i++) {
+            int count = 0;
+            int[] casesInCategory = new int[outbreak.size()];
+            for (int j = 0; j < outbreak.size(); j++) {
+                AbstractCase aCase = outbreak.getCase(j);
+                if (aCase.wasEverInfected()
+                        && categoryOutbreak.getInfectiousCategory(aCase).equals(infectiousCategories[i])) {
+                    casesInCategory[count++] = j;
+                }
+            }
+            infectiousCategoryCases[i] = Arrays.copyOf(casesInCategory, count);
+            infectiousCategoryPeriods[i] = new double[count];
+        }
+    }
+
     protected double calculateLogLikelihood(){
 
         //checkPartitions();
@@ -94,42 +117,18 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
         // super.prepareTimings();
 
-        HashMap<String, ArrayList<Double>> infectiousPeriodsByCategory
-                = new HashMap<String, ArrayList<Double>>();
-
-        // todo do this only once? Using indexes?
-
-        for (AbstractCase aCase : outbreak.getCases()) {
-            if(aCase.wasEverInfected()) {
-
-                String category = ((CategoryOutbreak) outbreak).getInfectiousCategory(aCase);
+        infectiousPeriodsLogLikelihood = 0;
 
-                if (!infectiousPeriodsByCategory.keySet().contains(category)) {
-                    infectiousPeriodsByCategory.put(category, new ArrayList<Double>());
-                }
+        for (int i = 0; i < infectiousCategories.length; i++) {
 
-                ArrayList<Double> correspondingList
-                        = infectiousPeriodsByCategory.get(category);
+            double[] values = infectiousCategoryPeriods[i];
 
-                correspondingList.add(getInfectiousPeriod(aCase));
+            for (int j = 0; j < values.length; j++) {
+                values[j] = getInfectiousPeriod(outbreak.getCase(infectiousCategoryCases[i][j]));
             }
-        }
-
-        infectiousPeriodsLogLikelihood = 0;
-
-        for (String category : ((CategoryOutbreak) outbreak).getInfectiousCategories()) {
-
-            Double[] infPeriodsInThisCategory = infectiousPeriodsByCategory.get(category)
-                    .toArray(new Double[infectiousPeriodsByCategory.size()]);
 
             AbstractPeriodPriorDistribution hyperprior = ((CategoryOutbreak) outbreak)
-                    .getInfectiousCategoryPrior(category);
-
-            double[] values = new double[infPeriodsInThisCategory.length];
-
-            for (int i = 0; i < infPeriodsInThisCategory.length; i++) {
-                values[i] = infPeriodsInThisCategory[i];
-            }
+                    .getInfectiousCategoryPrior(infectiousCategories[i]);
 
             infectiousPeriodsLogLikelihood += hyperprior.getLogLikelihood(values);
 
@@ -142,22 +141,20 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         coalescencesLogLikelihood = 0;
 
 
-        for(AbstractCase aCase : outbreak.getCases()){
+        for(int number=0; number<outbreak.size(); number++){
 
-            int number = outbreak.getCaseIndex(aCase);
+            AbstractCase aCase = outbreak.getCase(number);
 
             if(aCase.wasEverInfected()) {
 
                 // and then the little tree calculations
 
-                HashSet<AbstractCase> children = getInfectees(aCase);
-
                 if (recalculateCoalescentFlags[number]) {
-                    Treelet treelet = partitionsAsTrees.get(aCase);
+                    Treelet treelet = partitionsAsTrees[number];
 
 
 
-                    if (children.size() != 0) {
+                    if (hasInfectees(aCase)) {
                         SpecifiedZeroCoalescent coalescent = new SpecifiedZeroCoalescent(treelet, demoModel,
                                 treelet.getZeroHeight(), mode == Mode.TRUNCATE);
                         partitionTreeLogLikelihoods[number] = coalescent.calculateLogLikelihood();
@@ -192,8 +189,8 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
     public void storeState(){
         super.storeState();
-        storedPartitionsAsTrees = new HashMap<AbstractCase, Treelet>(partitionsAsTrees);
-        storedPartitionTreeLogLikelihoods = Arrays.copyOf(partitionTreeLogLikelihoods,
+        System.arraycopy(partitionsAsTrees, 0, storedPartitionsAsTrees, 0, partitionsAsTrees.length);
+        System.arraycopy(partitionTreeLogLikelihoods, 0, storedPartitionTreeLogLikelihoods, 0,
                 partitionTreeLogLikelihoods.length);
 
 
@@ -204,8 +201,13 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 
     public void restoreState(){
         super.restoreState();
+        Treelet[] tempTreelets = partitionsAsTrees;
         partitionsAsTrees = storedPartitionsAsTrees;
+        storedPartitionsAsTrees = tempTreelets;
+
+        double[] tempLogLikelihoods = partitionTreeLogLikelihoods;
         partitionTreeLogLikelihoods = storedPartitionTreeLogLikelihoods;
+        storedPartitionTreeLogLikelihoods = tempLogLikelihoods;
 
 
         coalescencesLogLikelihood = storedCoalescencesLogLikelihood;
@@ -264,7 +266,7 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
     }
 
     protected void recalculateCaseWCC(int index){
-        partitionsAsTrees.put(outbreak.getCase(index), null);
+        partitionsAsTrees[index] = null;
         recalculateCoalescentFlags[index] = true;
     }
 
@@ -278,11 +280,7 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
     public void makeDirty(){
         super.makeDirty();
         Arrays.fill(recalculateCoalescentFlags, true);
-        for(AbstractCase aCase : outbreak.getCases()){
-            if(aCase.wasEverInfected()) {
-                partitionsAsTrees.put(aCase, null);
-            }
-        }
+        Arrays.fill(partitionsAsTrees, null);
     }
 
     // Tears the tree into small pieces. Indexes correspond to indexes in the outbreak.
@@ -293,7 +291,7 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
         }
         for(int i=0; i<outbreak.size(); i++){
             AbstractCase aCase = outbreak.getCase(i);
-            if(aCase.wasEverInfected() && partitionsAsTrees.get(aCase)==null){
+            if(aCase.wasEverInfected() && partitionsAsTrees[i]==null){
 
                 NodeRef partitionRoot = getEarliestNodeInPartition(aCase);
 
@@ -354,7 +352,7 @@ public class WithinCaseCoalescent extends CaseToCaseTreeLikelihood {
 //                    System.out.println();
 //                }
 
-                partitionsAsTrees.put(aCase, treelet);
+                partitionsAsTrees[i] = treelet;
 
 
             }
@@ -132,8 +132,8 @@ public class TransmissionExchangeOperatorA extends AbstractTreeOperator {
         if(parent==null){
             throw new RuntimeException("Can't exchange the root node");
         }
-        Integer[] possibleParentSwaps = c2cLikelihood.samePartition(parent, false);
-        for(Integer index: possibleParentSwaps){
+        int[] possibleParentSwaps = c2cLikelihood.samePartition(parent, false);
+        for(int index: possibleParentSwaps){
             NodeRef newParent = tree.getNode(index);
             if(!tree.isExternal(newParent) && newParent!=parent){
                 for(int i=0; i<2; i++){
@@ -68,10 +68,10 @@ public class TransmissionWilsonBaldingA extends AbstractTreeOperator {
         int eligibleNodeCount = eligibleNodes.size();
 
         final NodeRef iP = tree.getParent(i);
-        Integer[] samePaintings = c2cLikelihood.samePartition(iP, false);
+        int[] samePaintings = c2cLikelihood.samePartition(iP, false);
         HashSet<Integer> possibleDestinations = new HashSet<Integer>();
         // we can insert the node above OR BELOW any node in the same partition
-        for (Integer samePainting : samePaintings) {
+        for (int samePainting : samePaintings) {
             possibleDestinations.add(samePainting);
             if (!tree.isExternal(tree.getNode(samePainting))) {
                 possibleDestinations.add(tree.getChild(tree.getNode(samePainting), 0).getNumber());
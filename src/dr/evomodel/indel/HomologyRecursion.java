@@ -33,6 +33,7 @@ import dr.evolution.tree.Tree;
 import dr.evomodel.substmodel.SubstitutionModel;
 import dr.math.BFloat;
 
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class HomologyRecursion {
@@ -75,6 +76,31 @@ public class HomologyRecursion {
     /** Class that implements a fast version of treeLikelihood */
     private NativeTreeLikelihood iNativeMethod;
 
+    /** Alignment that iAlignment and iSequences were built from */
+    private Alignment iCurrentAlignment;
+
+    /** Branch lengths as computed from the tree, before checkConsistency() enforces the minimum */
+    private double[] iRawTau;
+
+    /** iH[node]*iTrans[node][from][to], and (iN[node]-iE[node]*iB[node])*iEquil[to], used in treeRecursion() */
+    private double[][][] iHTrans;
+    private double[][] iNEquil;
+
+    /**
+     *  Results of treeRecursion(), keyed by the homology signature and the nucleotides emitted at the
+     *  homologous leaves.  Many columns share a key, much like site patterns; the factors stay valid
+     *  until the tree or the model changes.
+     */
+    private final HashMap<IntMathVec, Double> iFactorCache = new HashMap<IntMathVec, Double>();
+    private IntMathVec iFactorKey;
+
+    /** DP table, reused between calls of recursion() */
+    private final HashMap<IntMathVec, BFloat> iTable = new HashMap<IntMathVec, BFloat>();
+
+    /** Work arrays for treeRecursion() */
+    private int[] iHomWork, iHomNumWork, iHomMultiplicityWork, iChild1Work, iChild2Work;
+    private double[][] iFhWork, iFiWork;
+
     /** Labels used in local array iState[] */
     static private final int eFree = 0, ePossible = 1, eEdgeUsed = 2, eUsed = 3;
 
@@ -160,17 +186,8 @@ public class HomologyRecursion {
     	// initialize the iParent and iTau arrays based on the given tree.
 	initTree(tree, mutationRate);
 	
-	int[] treeIndex = new int[tree.getTaxonCount()];
-	for (int i =0; i < treeIndex.length; i++) {
-	    treeIndex[i] = tree.getTaxonIndex(alignment.getTaxonId(i));
-	    //System.out.println("alignment[" + i + "] = tree[" + treeIndex[i] + "]");
-	}
-	  		
-    	// initialize the iAlignment array from the given alignment.
-    	initAlignment(alignment, treeIndex);
-    	
-    	// initialize the iSequences array from the given alignment.
-    	initSequences(alignment, treeIndex);
+    	// initialize the iAlignment and iSequences arrays from the given alignment.
+	initAlignment(tree, alignment);
     	
     	// initialize the iTrans array from the substitution model -- must be called after populating tree!
     	initSubstitutionModel(substModel);
@@ -185,6 +202,8 @@ public class HomologyRecursion {
 	
 	// Initialise TKF91 coefficients in iB, iH, iN, iE, and iInitial
 	initTKF91();
+	initWorkspace();
+	iFactorCache.clear();
 
 	// Check
 	checkConsistency();
@@ -194,14 +213,79 @@ public class HomologyRecursion {
 	iNativeMethod.init(iNumNucs, cMaxUnalignDimension, iParent, iEquil, iTrans, iSequences, iN, iH, iE, iB);
 
     }
+
+    /**
+     * Brings the recursion up to date after a change, recomputing only what depends on the change:
+     * the alignment arrays if the alignment object is a different one, the transition matrices of
+     * branches whose length changed (or all of them if the substitution model changed), and the
+     * TKF91 coefficients and cached column factors if anything about the tree or model changed.
+     */
+    public void update(Tree tree, Alignment alignment, SubstitutionModel substModel,
+		       double mutationRate, double lengthDistr, double deathRate, boolean substModelChanged) {
+
+	if (iParent == null || iParent.length != tree.getNodeCount()) {
+	    init(tree, alignment, substModel, mutationRate, lengthDistr, deathRate);
+	    return;
+	}
+
+	int[] iOldParent = iParent;
+	double[] iOldRawTau = iRawTau;
+	initTree(tree, mutationRate);
+
+	boolean iTreeChanged = !Arrays.equals(iOldParent, iParent);
+	boolean iModelChanged = updateSubstitutionModel(substModel, iOldRawTau, substModelChanged);
+
+	double iNewLambda = deathRate*lengthDistr;
+	if (iNewLambda != iLambda || deathRate != iMu) {
+	    iLambda = iNewLambda;
+	    iMu = deathRate;
+	    iModelChanged = true;
+	}
+
+	boolean iAlignmentChanged = (alignment != iCurrentAlignment);
+	if (iAlignmentChanged) {
+	    initAlignment(tree, alignment);
+	}
+
+	if (iTreeChanged || iModelChanged) {
+	    initTKF91();
+	    iFactorCache.clear();
+	}
+
+	// initTree() made new iParent and iTau arrays, so these are always checked and handed on
+	checkConsistency();
+	iNativeMethod.init(iNumNucs, cMaxUnalignDimension, iParent, iEquil, iTrans, iSequences, iN, iH, iE, iB);
+    }
     
     private void initTree(Tree tree, double mutationRate) {
 	iParent = new int[tree.getNodeCount()];
 	iTau = new double[tree.getNodeCount()-1];
 	populate(tree, tree.getRoot(), new int[] {tree.getExternalNodeCount()}, mutationRate);
 	iParent[tree.getNodeCount()-1] = -1;
+	iRawTau = iTau.clone();
 	
     } 
+
+    /**
+     * Initializes the iAlignment and iSequences arrays, with leaves in the order of the tree.
+     */
+    private void initAlignment(Tree tree, Alignment alignment) {
+
+	int[] treeIndex = new int[tree.getTaxonCount()];
+	for (int i =0; i < treeIndex.length; i++) {
+	    treeIndex[i] = tree.getTaxonIndex(alignment.getTaxonId(i));
+	    //System.out.println("alignment[" + i + "] = tree[" + treeIndex[i] + "]");
+	}
+
+    	// initialize the iAlignment array from the given alignment.
+    	initAlignment(alignment, treeIndex);
+    	
+    	// initialize the iSequences array from the given alignment.
+    	initSequences(alignment, treeIndex);
+
+	iCurrentAlignment = alignment;
+	iFactorKey = new IntMathVec(iSequences.length);
+    }
     
    /** 
     * initialize the iTrans array from the substitution model -- must be called after populating tree!
@@ -232,6 +316,41 @@ public class HomologyRecursion {
 			iEquil[k] = model.getFrequencyModel().getFrequency(k);
 		}
     }
+
+    /**
+     * Recomputes the transition matrices of the branches whose length differs from iOldRawTau, or of
+     * all branches (and the equilibrium distribution) if the substitution model changed.
+     * @return whether anything was recomputed
+     */
+    private boolean updateSubstitutionModel(SubstitutionModel model, double[] iOldRawTau, boolean modelChanged) {
+
+	int stateCount = iEquil.length;
+	double[] transProb = null;
+	boolean changed = modelChanged;
+	for (int i = 0; i < iTau.length; i++) {
+	    if (modelChanged || iTau[i] != iOldRawTau[i]) {
+		if (transProb == null) {
+		    transProb = new double[stateCount*stateCount];
+		}
+		model.getTransitionProbabilities(iTau[i], transProb);
+		int count = 0;
+		for (int j = 0; j < stateCount; j++) {
+		    for (int k = 0; k < stateCount; k++) {
+			iTrans[i][j][k] = transProb[count];
+			count += 1;
+		    }
+		}
+		changed = true;
+	    }
+	}
+
+	if (modelChanged) {
+	    for (int k = 0; k < stateCount; k++) {
+		iEquil[k] = model.getFrequencyModel().getFrequency(k);
+	    }
+	}
+	return changed;
+    }
     
     /**
      * Initializes the iAlignment array from the given alignment.
@@ -356,7 +475,35 @@ public class HomologyRecursion {
       iN[i] = (1.0-iMu*iBeta[i])*(1.0-iB[i]) - iH[i];
       iInitial *= (1.0 - iB[i]);
     }
+
+    // Products used for every column in treeRecursion()
+    if (iHTrans == null || iHTrans.length != iNumNodes - 1) {
+      iHTrans = new double[iNumNodes - 1][iNumNucs][iNumNucs];
+      iNEquil = new double[iNumNodes - 1][iNumNucs];
+    }
+    for (int i=0; i<iNumNodes-1; i++) {
+      for (int j=0; j<iNumNucs; j++) {
+	for (int k=0; k<iNumNucs; k++) {
+	  iHTrans[i][j][k] = iH[i] * iTrans[i][j][k];
+	}
+	iNEquil[i][j] = (iN[i] - iE[i]*iB[i]) * iEquil[j];
+      }
+    }
   }
+
+    /**
+     * Allocates the work arrays of treeRecursion()
+     */
+    private void initWorkspace() {
+	int iNumNodes = iParent.length;
+	iHomWork = new int[ iNumNodes ];
+	iHomNumWork = new int[ iNumNodes ];
+	iHomMultiplicityWork = new int[ cMaxUnalignDimension+1 ];
+	iChild1Work = new int[ iNumNodes ];
+	iChild2Work = new int[ iNumNodes ];
+	iFhWork = new double[ iNumNodes ][ iNumNucs ];
+	iFiWork = new double[ iNumNodes ][ iNumNucs + 1 ];   // Extra position for 'gap' entry
+    }
 	
 
     /** 
@@ -365,23 +512,47 @@ public class HomologyRecursion {
      */
     private double treeRecursion(IntMathVec iSignature, IntMathVec iPos) {
 
+	// The factor only depends on the signature and on the nucleotides at the homologous leaves
+	int iLeaves = iSignature.iV.length;
+	for (int i=0; i<iLeaves; i++) {
+	    int iSig = iSignature.iV[i];
+	    iFactorKey.iV[i] = (iSig == 0 ? 0 : (iSig-1)*iNumNucs + iSequences[i][iPos.iV[i]] + 1);
+	}
+	Double iCached = iFactorCache.get( iFactorKey );
+	if (iCached != null) {
+	    return iCached;
+	}
+
+	double iResult;
 	// See if we can use C code
 	if (iNativeMethod.isAvailable()) {
-	    return iNativeMethod.treeRecursion(iSignature, iPos);
+	    iResult = iNativeMethod.treeRecursion(iSignature, iPos);
+	} else {
+	    iResult = javaTreeRecursion(iSignature, iPos);
 	}
+	iFactorCache.put( iFactorKey.clone(), iResult );
+	return iResult;
+    }
+
+    private double javaTreeRecursion(IntMathVec iSignature, IntMathVec iPos) {
 
 	int iLeaves = iSignature.iV.length;          // Dimension of alignment columns, i.e. number of leaves
 	int iNumNodes = iParent.length;           // Number of internal nodes
-	int[] iHom = new int[ iNumNodes ];        // Homology for every node; 0 if node need not be homologous to an emitted nucleotide
-	int[] iHomNum = new int[ iNumNodes ];     // Number of homologous emissions accounted for by homologous nucleotide @ this node
-	int[] iHomMultiplicity = new int[ cMaxUnalignDimension+1 ];   	   // Number of emissions for each class of homologous nucleotides
-	int[] iChild1 = new int[ iNumNodes ], iChild2 = new int[ iNumNodes ];     	   // Left and right children
-	double[][] iFh = new double[ iNumNodes ][],  iFi = new double[ iNumNodes ][];      // Fhomolgous and Finhomologous arrays
+	int[] iHom = iHomWork;                    // Homology for every node; 0 if node need not be homologous to an emitted nucleotide
+	int[] iHomNum = iHomNumWork;              // Number of homologous emissions accounted for by homologous nucleotide @ this node
+	int[] iHomMultiplicity = iHomMultiplicityWork;   	   // Number of emissions for each class of homologous nucleotides
+	int[] iChild1 = iChild1Work, iChild2 = iChild2Work;     	   // Left and right children
+	double[][] iFh = iFhWork,  iFi = iFiWork;      // Fhomolgous and Finhomologous arrays
 
 	// Initialise stuff
+	Arrays.fill(iHom, 0);
+	Arrays.fill(iHomNum, 0);
+	Arrays.fill(iHomMultiplicity, 0);
+	Arrays.fill(iChild1, 0);
+	Arrays.fill(iChild2, 0);
 	for (int i=0; i<iNumNodes; i++) {
-	    iFh[i] = new double[ iNumNucs ];
-	    iFi[i] = new double[ iNumNucs + 1];   // Extra position for 'gap' entry
+	    Arrays.fill(iFh[i], 0.0);
+	    Arrays.fill(iFi[i], 0.0);
 	}
 	for (int i=0; i<iLeaves; i++) {
 	    iHomMultiplicity[ iSignature.iV[ i ] ]++;
@@ -451,8 +622,8 @@ public class HomologyRecursion {
 			    double iL = 0.0;
 			    double iR = 0.0;
 			    for (int k=0; k<iNumNucs; k++) {
-				iL += iFh[iChild1[i]][k] * iH[iChild1[i]] * iTrans[iChild1[i]][j][k];
-				iR += iFh[iChild2[i]][k] * iH[iChild2[i]] * iTrans[iChild2[i]][j][k];
+				iL += iFh[iChild1[i]][k] * iHTrans[iChild1[i]][j][k];
+				iR += iFh[iChild2[i]][k] * iHTrans[iChild2[i]][j][k];
 			    }
 			    iFh[i][j] = iL*iR;
 			}
@@ -474,10 +645,10 @@ public class HomologyRecursion {
 			    double iR = iE[iChildI] * iFi[iChildI][iNumNucs];
 			    for (int k=0; k<iNumNucs; k++) {
 
-					iL += iFh[iChildH][k] * iH[iChildH] * iTrans[iChildH][j][k];
+					iL += iFh[iChildH][k] * iHTrans[iChildH][j][k];
 					iR += 
-				    	(iFh[iChildI][k] + iFi[iChildI][k]) * (iN[iChildI] - iE[iChildI]*iB[iChildI]) * iEquil[k] +
-				    	iFi[iChildI][k] * iH[iChildI] * iTrans[iChildI][j][k];
+				    	(iFh[iChildI][k] + iFi[iChildI][k]) * iNEquil[iChildI][k] +
+				    	iFi[iChildI][k] * iHTrans[iChildI][j][k];
 
 			    	}
 
@@ -499,14 +670,14 @@ public class HomologyRecursion {
 			    //System.out.println(iR1);
 			    //System.out.println(iR2);
 			    for (int k=0; k<iNumNucs; k++) {
-			    	iL1 += iFh[iC1][k] * iH[iC1] * iTrans[iC1][j][k];
-					iL2 += iFh[iC2][k] * iH[iC2] * iTrans[iC2][j][k];
+			    	iL1 += iFh[iC1][k] * iHTrans[iC1][j][k];
+					iL2 += iFh[iC2][k] * iHTrans[iC2][j][k];
 					iR1 += 
-					    (iFh[iC1][k] + iFi[iC1][k]) * (iN[iC1] - iE[iC1]*iB[iC1]) * iEquil[k] +
-					    iFi[iC1][k] * iH[iC1] * iTrans[iC1][j][k];
+					    (iFh[iC1][k] + iFi[iC1][k]) * iNEquil[iC1][k] +
+					    iFi[iC1][k] * iHTrans[iC1][j][k];
 					iR2 += 
-					    (iFh[iC2][k] + iFi[iC2][k]) * (iN[iC2] - iE[iC2]*iB[iC2]) * iEquil[k] +
-					    iFi[iC2][k] * iH[iC2] * iTrans[iC2][j][k];
+					    (iFh[iC2][k] + iFi[iC2][k]) * iNEquil[iC2][k] +
+					    iFi[iC2][k] * iHTrans[iC2][j][k];
 			    }
 			    iFh[i][j] = iL1*iR2 + iL2*iR1;  // homology pops out below iC1 + homology pops out below iC2
 			    iFi[i][j] = iR1*iR2;            // no homology with j below i.
@@ -534,7 +705,7 @@ public class HomologyRecursion {
 
 	return iResult;
 
-    }  // treeRecursion
+    }  // javaTreeRecursion
 
 
 	/** 
@@ -550,7 +721,7 @@ public class HomologyRecursion {
 	int iFirstNotUsed = 0;                         // First not-'used' alignment vector (for efficiency) 
 	int iState[] = new int[ iLen ];                // Helper array, to traverse the region in the DP table corresp. to the alignment
 	IntMathVec iPos = new IntMathVec( iLeaves );   // Current position; sum of all used vectors
-        HashMap<IntMathVec, BFloat> iTable = new HashMap<IntMathVec, BFloat>();
+	iTable.clear();
 
 	// Calculate correction factor for null emissions ("wing folding", or linear equation solving.)
 
@@ -646,6 +817,10 @@ public class HomologyRecursion {
 			}
 	
 		} while (iFoundNonZero);
+
+		// All edges out of iPos have been followed, and no later position has an edge back into it,
+		// so only the band of positions ahead of iPos needs to stay in the table
+		BFloat iCurrent = iTable.remove( iPos );
 	
 		// Now find next entry in DP table.  Use farthest unused vector
 		--iPtr;
@@ -660,9 +835,9 @@ public class HomologyRecursion {
 	    
 	    if (iPtr == -1) {
 			// No more unused vectors, so we also fell through the edge loop above,
-			// hence iNewPos contains the final position
-			//System.out.println("Returning " + (BFloat)iTable.get( iNewPos ) + " = " + ((BFloat)iTable.get( iNewPos ) ).log());
-			return (iTable.get( iNewPos )).log();
+			// hence iPos (== iNewPos) is the final position
+			//System.out.println("Returning " + iCurrent + " = " + iCurrent.log());
+			return iCurrent.log();
 	    }
 
 	    // Now use this farthest-out possible vector
@@ -94,27 +94,41 @@ public class TKF91Likelihood extends AbstractModelLikelihood {
     }
 
     public void handleModelChangedEvent(Model m, Object o, int i) {
-        //throw new RuntimeException("Not implemented!");
+        if (m == siteModel) {
+            // the tree and tkf model changes are picked up by the recursion itself
+            substitutionModelChanged = true;
+        }
+        likelihoodKnown = false;
     }
 
     /**
      * Sets the alignment of this tkf91likelihood
      */
     public void setAlignment(Alignment a) {
-        alignment = a;
+        if (a != alignment) {
+            alignment = a;
+            likelihoodKnown = false;
+        }
         //System.out.println("Set new alignment");
     }
 
     protected void storeState() {
-        //super.storeState();
-        //storedAlignment = alignment;
+        storedAlignment = alignment;
+        storedLikelihoodKnown = likelihoodKnown;
+        storedLogLikelihood = logLikelihood;
+        substitutionModelUpdated = false;
         //System.out.println("Stored alignment");
 
     }
 
     protected void restoreState() {
-        //super.restoreState();
-        //alignment = storedAlignment;
+        alignment = storedAlignment;
+        likelihoodKnown = storedLikelihoodKnown;
+        logLikelihood = storedLogLikelihood;
+        if (substitutionModelUpdated) {
+            // the recursion still holds the matrices of the rejected substitution model
+            substitutionModelChanged = true;
+        }
         //System.out.println("restored alignment");
     }
 
@@ -130,7 +144,9 @@ public class TKF91Likelihood extends AbstractModelLikelihood {
         return treeModel;
     }
 
-    public void makeDirty() { // this is always dirty
+    public void makeDirty() {
+        likelihoodKnown = false;
+        substitutionModelChanged = true;
     }
 
     public Model getModel() {
@@ -144,18 +160,25 @@ public class TKF91Likelihood extends AbstractModelLikelihood {
      */
     public double getLogLikelihood() {
 
-        recursion.init(
-                treeModel,
-                alignment,
-                siteModel.getSubstitutionModel(),
-                siteModel.getMutationRateParameter().getParameterValue(0),
-                tkfModel.getLengthDistributionValue(),
-                tkfModel.getDeathRate(1));
-
-        double logL = recursion.recursion();
+        if (!likelihoodKnown) {
+            // the recursion works out for itself which branches, coefficients and columns need recomputing
+            recursion.update(
+                    treeModel,
+                    alignment,
+                    siteModel.getSubstitutionModel(),
+                    siteModel.getMutationRateParameter().getParameterValue(0),
+                    tkfModel.getLengthDistributionValue(),
+                    tkfModel.getDeathRate(1),
+                    substitutionModelChanged);
+            substitutionModelUpdated |= substitutionModelChanged;
+            substitutionModelChanged = false;
+
+            logLikelihood = recursion.recursion();
+            likelihoodKnown = true;
+        }
 
-        //System.out.println("logL = " + logL);
-        return logL;
+        //System.out.println("logL = " + logLikelihood);
+        return logLikelihood;
     }
 
     // **************************************************************
@@ -181,13 +204,20 @@ public class TKF91Likelihood extends AbstractModelLikelihood {
     }
 
     protected boolean getLikelihoodKnown() {
-        return false;
+        return likelihoodKnown;
     }
 
     private final TreeModel treeModel;
     private Alignment alignment;
-    //private Alignment storedAlignment;
+    private Alignment storedAlignment;
     private final GammaSiteModel siteModel;
     private final TKF91Model tkfModel;
     private dr.evomodel.indel.HomologyRecursion recursion = null;
+
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown = false;
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private boolean substitutionModelChanged = false;
+    private boolean substitutionModelUpdated = false;
 }
\ No newline at end of file
@@ -105,6 +105,14 @@ public abstract class AbstractImportanceDistributionOperator extends
         fillExternalNodes(tree.getRoot());
     }
 
+    /**
+     * Uses an importance distribution built beforehand, e.g. loaded from a file, so no trees are sampled first.
+     */
+    protected void setImportanceDistribution(AbstractCladeImportanceDistribution probabilityEstimater) {
+        this.probabilityEstimater = probabilityEstimater;
+        sampleCount = samples * sampleEvery;
+    }
+
     /*
       * (non-Javadoc)
       *
@@ -30,8 +30,12 @@ package dr.evomodel.operators;
 
 import dr.evomodel.tree.ConditionalCladeFrequency;
 import dr.evomodel.tree.TreeModel;
+import dr.util.FileHelpers;
 import dr.xml.*;
 
+import java.io.File;
+import java.io.IOException;
+
 /**
  * @author Sebastian Hoehna
  */
@@ -39,6 +43,7 @@ public class CCPImportanceDistributionOperator extends
         AbstractImportanceDistributionOperator {
 
     public static final String CCP_IMPORTANCE_DISTRIBUTION_OPERATOR = "CCPImportanceDistributionOperator";
+    public static final String INDEX_FILE = "indexFile";
 
     /**
      *
@@ -50,6 +55,17 @@ public class CCPImportanceDistributionOperator extends
         probabilityEstimater = new ConditionalCladeFrequency(tree, epsilon);
     }
 
+    /**
+     * Proposes trees from the clade counts saved by a conditional clade probability analysis instead of sampling
+     * trees during the run.
+     */
+    public CCPImportanceDistributionOperator(TreeModel tree, double weight,
+                                             File indexFile, double epsilon) throws IOException {
+        super(tree, weight);
+
+        setImportanceDistribution(ConditionalCladeFrequency.loadIndex(indexFile, tree, epsilon));
+    }
+
     /**
      *
      */
@@ -113,6 +129,16 @@ public class CCPImportanceDistributionOperator extends
                 sampleEvery = xo.getIntegerAttribute("sampleEvery");
             }
 
+            if (xo.hasAttribute(INDEX_FILE)) {
+                File indexFile = FileHelpers.getFile(xo.getStringAttribute(INDEX_FILE));
+                try {
+                    return new CCPImportanceDistributionOperator(treeModel, weight, indexFile, epsilon);
+                } catch (IOException ioe) {
+                    throw new XMLParseException("Unable to read the clade index, " + indexFile.getName() +
+                            ", for " + getParserName() + ": " + ioe.getMessage());
+                }
+            }
+
             return new CCPImportanceDistributionOperator(treeModel, weight,
                     samples, sampleEvery, epsilon);
         }
@@ -140,6 +166,7 @@ public class CCPImportanceDistributionOperator extends
                 AttributeRule.newIntegerRule("samples"),
                 AttributeRule.newIntegerRule("sampleEvery", true),
                 AttributeRule.newDoubleRule("epsilon", true),
+                AttributeRule.newStringRule(INDEX_FILE, true),
                 new ElementRule(TreeModel.class)};
 
     };
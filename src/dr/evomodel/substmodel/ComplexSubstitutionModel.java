@@ -6,6 +6,7 @@ import cern.colt.matrix.impl.DenseDoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
 import cern.colt.matrix.linalg.EigenvalueDecomposition;
 import cern.colt.matrix.linalg.Property;
+import dr.app.beagle.evomodel.substmodel.ComplexColtEigenSystem;
 import dr.evolution.datatype.DataType;
 import dr.inference.loggers.LogColumn;
 import dr.inference.loggers.NumberColumn;
@@ -14,7 +15,9 @@ import dr.math.matrixAlgebra.Matrix;
 import dr.math.matrixAlgebra.RobustEigenDecomposition;
 import dr.math.matrixAlgebra.RobustSingularValueDecomposition;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * <b>A general irreversible class for any
@@ -90,6 +93,7 @@ public class ComplexSubstitutionModel extends AbstractSubstitutionModel implemen
         storedEvec = Evec;
         Evec = tmp2;
 
+        flatEigenVectorsKnown = false;
     }
 
     protected void storeState() {
@@ -115,78 +119,83 @@ public class ComplexSubstitutionModel extends AbstractSubstitutionModel implemen
 
     public void getTransitionProbabilities(double distance, double[] matrix) {
 
-        double temp;
-
-        int i, j, k;
-
-        synchronized (this) {
-            if (updateMatrix) {
-                setupMatrix();
-            }
-        }
-
-        if (!wellConditioned) {
+        if (!updateDecomposition()) {
             Arrays.fill(matrix, 0.0);
             return;
         }
 
+        double[] iexp = popFlatIexp();
+        computeTransitionProbabilities(distance, iexp, matrix, 0);
+        pushFlatIexp(iexp);
+    }
 
-// Eigenvalues and eigenvectors of a real matrix A.
-//
-// If A is symmetric, then A = V*D*V' where the eigenvalue matrix D is diagonal
-// and the eigenvector matrix V is orthogonal. I.e. A = V D V^t and V V^t equals
-// the identity matrix.
-//
-// If A is not symmetric, then the eigenvalue matrix D is block diagonal with
-// the real eigenvalues in 1-by-1 blocks and any complex eigenvalues,
-// lambda + i*mu, in 2-by-2 blocks, [lambda, mu; -mu, lambda]. The columns
-// of V represent the eigenvectors in the sense that A*V = V*D. The matrix
-// V may be badly conditioned, or even singular, so the validity of the
-// equation A = V D V^{-1} depends on the conditioning of V.
+    /**
+     * Computes the transition probability matrices for several distances, such as all the branches of a
+     * tree, from the current eigen decomposition in one call.
+     *
+     * @param distances the expected numbers of substitutions
+     * @param count     the number of distances to use
+     * @param matrices  an array to store the matrices, one after the other
+     */
+    public void getTransitionProbabilities(double[] distances, int count, double[] matrices) {
 
-        double[][] iexp = popiexp();
+        final int matrixSize = stateCount * stateCount;
 
-        for (i = 0; i < stateCount; i++) {
+        if (!updateDecomposition()) {
+            Arrays.fill(matrices, 0, count * matrixSize, 0.0);
+            return;
+        }
 
-            if (EvalImag[i] == 0) {
-                // 1x1 block
-                temp = Math.exp(distance * Eval[i]);
-                for (j = 0; j < stateCount; j++) {
-                    iexp[i][j] = Ievc[i][j] * temp;
-                }
-            } else {
-                // 2x2 conjugate block
-                // If A is 2x2 with complex conjugate pair eigenvalues a +/- bi, then
-                // exp(At) = exp(at)*( cos(bt)I + \frac{sin(bt)}{b}(A - aI)).
-                int i2 = i + 1;
-                double b = EvalImag[i];
-                double expat = Math.exp(distance * Eval[i]);
-                double expatcosbt = expat * Math.cos(distance * b);
-                double expatsinbt = expat * Math.sin(distance * b);
-
-                for (j = 0; j < stateCount; j++) {
-                    iexp[i][j] = expatcosbt * Ievc[i][j] + expatsinbt * Ievc[i2][j];
-                    iexp[i2][j] = expatcosbt * Ievc[i2][j] - expatsinbt * Ievc[i][j];
-                }
-                i++; // processed two conjugate rows
-            }
+        double[] iexp = popFlatIexp();
+        for (int b = 0; b < count; b++) {
+            computeTransitionProbabilities(distances[b], iexp, matrices, b * matrixSize);
         }
+        pushFlatIexp(iexp);
+    }
 
-        int u = 0;
-        for (i = 0; i < stateCount; i++) {
-            for (j = 0; j < stateCount; j++) {
-                temp = 0.0;
-                for (k = 0; k < stateCount; k++) {
-                    temp += Evec[i][k] * iexp[k][j];
-                }
-                if (temp < 0.0)
-                    matrix[u] = minProb;
-                else
-                    matrix[u] = temp;
-                u++;
+    /**
+     * Sets up the eigen decomposition if needed, and the flat copies of the eigenvectors used for the exponential.
+     *
+     * @return whether the decomposition is well conditioned
+     */
+    private synchronized boolean updateDecomposition() {
+        if (updateMatrix) {
+            setupMatrix();
+        }
+        if (wellConditioned && !flatEigenVectorsKnown) {
+            if (flatEvec == null) {
+                flatEvec = new double[stateCount * stateCount];
+                flatIevc = new double[stateCount * stateCount];
             }
+            for (int i = 0; i < stateCount; i++) {
+                System.arraycopy(Evec[i], 0, flatEvec, i * stateCount, stateCount);
+                System.arraycopy(Ievc[i], 0, flatIevc, i * stateCount, stateCount);
+            }
+            flatEigenVectorsKnown = true;
         }
-        pushiexp(iexp);
+        return wellConditioned;
+    }
+
+    private void computeTransitionProbabilities(double distance, double[] iexp, double[] matrices, int offset) {
+        ComplexColtEigenSystem.computeExponential(stateCount, flatEvec, flatIevc, Eval, EvalImag, 0,
+                distance, iexp, matrices, offset);
+
+        final int end = offset + stateCount * stateCount;
+        for (int u = offset; u < end; u++) {
+            if (matrices[u] < 0.0)
+                matrices[u] = minProb;
+        }
+    }
+
+    private synchronized double[] popFlatIexp() {
+        if (flatIexpPool.size() == 0) {
+            flatIexpPool.add(new double[stateCount * stateCount]);
+        }
+        return flatIexpPool.remove(flatIexpPool.size() - 1);
+    }
+
+    private synchronized void pushFlatIexp(double[] iexp) {
+        flatIexpPool.add(iexp);
     }
 
     public double[] getStationaryDistribution() {
@@ -276,6 +285,7 @@ public class ComplexSubstitutionModel extends AbstractSubstitutionModel implemen
 
         Ievc = eigenVInv.toArray();
         Evec = eigenV.toArray();
+        flatEigenVectorsKnown = false;
         Eval = eigenVReal.toArray();
         EvalImag = eigenVImag.toArray();
 
@@ -490,6 +500,12 @@ public class ComplexSubstitutionModel extends AbstractSubstitutionModel implemen
     protected double[] EvalImag;
     protected double[] storedEvalImag;
 
+    // flat copies of Evec and Ievc, made when first needed after a new decomposition or a restore
+    private double[] flatEvec;
+    private double[] flatIevc;
+    private boolean flatEigenVectorsKnown = false;
+    private final List<double[]> flatIexpPool = new ArrayList<double[]>();
+
     protected boolean wellConditioned = true;
     private boolean storedWellConditioned;
 //    private double[] illConditionedProbabilities;
@@ -29,10 +29,10 @@
 package dr.evomodel.tree;
 
 import dr.evolution.io.Importer;
-import dr.evolution.io.NewickImporter;
 import dr.evolution.io.NexusImporter;
 import dr.evolution.io.TreeTrace;
 import dr.evolution.tree.Clade;
+import dr.evolution.tree.CladeIndex;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.SimpleTree;
 import dr.evolution.tree.Tree;
@@ -40,27 +40,38 @@ import dr.inference.model.Likelihood;
 import dr.inference.prior.Prior;
 import dr.math.MathUtils;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.Reader;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Sebastian Hoehna
  *         <p/>
  *         This class calculates the conditional clade probabilities for a set of trees.
  *         It can be used to estimate the marginal posterior for a given tree.
+ *         <p/>
+ *         The clades are kept in a CladeIndex, numbered by tip node number, with the number of times each clade
+ *         and each (parent, child) pair of clades has been seen in primitive arrays. A trace is counted in
+ *         blocks of trees on several threads and the counts merged, and the counts can be saved to and loaded
+ *         from a file.
  */
 public class ConditionalCladeFrequency extends
         AbstractCladeImportanceDistribution {
 
+    private static final String INDEX_HEADER = "ConditionalCladeFrequency";
+    private static final int INDEX_VERSION = 1;
+
+    // the smallest block of trees counted on its own thread
+    private static final int MIN_BLOCK_SIZE = 100;
+
     private double EPSILON;
 
     private long samples = 0;
 
-    private HashMap<BitSet, Clade> cladeProbabilities;
+    private CladeCounts counts;
 
-    private HashMap<BitSet, HashMap<BitSet, Clade>> cladeCoProbabilities;
+    // the taxon of each clade bit, by node number of the first tree or by taxon index when a taxon map is used
+    private String[] taxa;
 
     private TreeTrace[] traces;
 
@@ -73,8 +84,8 @@ public class ConditionalCladeFrequency extends
     public ConditionalCladeFrequency(Tree tree, double epsilon) {
 
         // initializing global variables
-        cladeProbabilities = new HashMap<BitSet, Clade>();
-        cladeCoProbabilities = new HashMap<BitSet, HashMap<BitSet, Clade>>();
+        counts = new CladeCounts(tree.getExternalNodeCount());
+        taxa = getTaxa(tree);
 
         // setting global variables
         EPSILON = epsilon;
@@ -90,10 +101,6 @@ public class ConditionalCladeFrequency extends
     public ConditionalCladeFrequency(TreeTrace[] traces, double epsilon,
                                      int burnIn, boolean verbose) {
 
-        // initializing global variables
-        cladeProbabilities = new HashMap<BitSet, Clade>();
-        cladeCoProbabilities = new HashMap<BitSet, HashMap<BitSet, Clade>>();
-
         // setting global variables
         EPSILON = epsilon;
         this.traces = traces;
@@ -115,10 +122,22 @@ public class ConditionalCladeFrequency extends
             this.burnin = burnIn;
         }
 
+        // initializing global variables
+        Tree tree = getTree(0);
+        counts = new CladeCounts(tree.getExternalNodeCount());
+        taxa = getTaxa(tree);
+
         // analyzing the whole trace -> reading the trees
         analyzeTrace(verbose);
     }
 
+    private ConditionalCladeFrequency(CladeCounts counts, String[] taxa, double epsilon, long samples) {
+        this.counts = counts;
+        this.taxa = taxa;
+        this.EPSILON = epsilon;
+        this.samples = samples;
+    }
+
     /**
      * Actually analyzes the trace given the burn-in. Each tree from the trace
      * is read and the conditional clade frequencies incremented.
@@ -126,50 +145,102 @@ public class ConditionalCladeFrequency extends
      * @param verbose if true then progress is logged to stdout
      */
     public void analyzeTrace(boolean verbose) {
+        analyzeTrace(verbose, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Analyzes the trace on the given number of threads. Each thread counts the clades of a block of
+     * consecutive trees and the blocks are merged in order.
+     *
+     * @param verbose     if true then progress is logged to stdout
+     * @param threadCount the number of threads to use
+     */
+    public void analyzeTrace(boolean verbose, int threadCount) {
 
         if (verbose) {
             if (traces.length > 1)
                 System.out.println("Combining " + traces.length + " traces.");
         }
 
-        // get first tree to extract the taxon
-        Tree tree = getTree(0);
-        // taxonMap = getTaxonMap(tree);
-
-        // read every tree from the trace
-        for (TreeTrace trace : traces) {
-            // do some output stuff
-            int treeCount = trace.getTreeCount(burnin * trace.getStepSize());
-            double stepSize = treeCount / 60.0;
-            int counter = 1;
-
-            if (verbose) {
-                System.out.println("Analyzing " + treeCount + " trees...");
-                System.out
-                        .println("0              25             50             75            100");
-                System.out
-                        .println("|--------------|--------------|--------------|--------------|");
-                System.out.print("*");
-            }
-            for (int i = 1; i < treeCount; i++) {
-                // get the next tree
-                tree = trace.getTree(i, burnin * trace.getStepSize());
+        ExecutorService pool = threadCount > 1 ? Executors.newFixedThreadPool(threadCount) : null;
+        try {
+            // read every tree from the trace
+            for (final TreeTrace trace : traces) {
+                // do some output stuff
+                final int treeCount = trace.getTreeCount(burnin * trace.getStepSize());
+                double stepSize = treeCount / 60.0;
+                int counter = 1;
+
+                if (verbose) {
+                    System.out.println("Analyzing " + treeCount + " trees...");
+                    System.out
+                            .println("0              25             50             75            100");
+                    System.out
+                            .println("|--------------|--------------|--------------|--------------|");
+                    System.out.print("*");
+                }
 
-                // add the tree and its clades to the frequencies
-                addTree(tree);
+                int blockSize = Math.max(MIN_BLOCK_SIZE, (treeCount + 4 * threadCount - 1) / (4 * threadCount));
+                List<Future<CladeCounts>> blocks = new ArrayList<Future<CladeCounts>>();
+                for (int first = 1; first < treeCount; first += blockSize) {
+                    final int from = first;
+                    final int to = Math.min(first + blockSize, treeCount);
+                    Callable<CladeCounts> block = new Callable<CladeCounts>() {
+                        public CladeCounts call() {
+                            CladeCounts blockCounts = new CladeCounts(counts.getTaxonCount());
+                            for (int i = from; i < to; i++) {
+                                // add the tree and its clades to the frequencies
+                                blockCounts.addTree(trace.getTree(i, burnin * trace.getStepSize()), null);
+                            }
+                            return blockCounts;
+                        }
+                    };
+                    if (pool != null) {
+                        blocks.add(pool.submit(block));
+                    } else {
+                        FutureTask<CladeCounts> task = new FutureTask<CladeCounts>(block);
+                        task.run();
+                        blocks.add(task);
+                    }
+                }
 
-                // some more output stuff
-                if (i >= (int) Math.round(counter * stepSize) && counter <= 60) {
-                    if (verbose) {
-                        System.out.print("*");
-                        System.out.flush();
+                int i = 1;
+                for (Future<CladeCounts> block : blocks) {
+                    CladeCounts blockCounts = getBlock(block);
+                    counts.merge(blockCounts);
+                    samples += blockCounts.getTreeCount();
+                    i += blockCounts.getTreeCount();
+
+                    // some more output stuff
+                    while (i > (int) Math.round(counter * stepSize) && counter <= 60) {
+                        if (verbose) {
+                            System.out.print("*");
+                            System.out.flush();
+                        }
+                        counter += 1;
                     }
-                    counter += 1;
+                }
+                if (verbose) {
+                    System.out.println("*");
                 }
             }
-            if (verbose) {
-                System.out.println("*");
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    private static CladeCounts getBlock(Future<CladeCounts> block) {
+        try {
+            return block.get();
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while counting clades");
+        } catch (ExecutionException ee) {
+            if (ee.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ee.getCause();
             }
+            throw new RuntimeException(ee.getCause());
         }
     }
 
@@ -212,54 +283,7 @@ public class ConditionalCladeFrequency extends
      * @return estimated posterior probability in log
      */
     public double getTreeProbability(Tree tree) {
-
-        double prob = 0.0;
-
-        List<Clade> clades = new ArrayList<Clade>();
-        List<Clade> parentClades = new ArrayList<Clade>();
-        // get clades contained in the tree
-        getNonComplementaryClades(tree, tree.getRoot(), parentClades, clades);
-
-        int size = clades.size();
-        // for every clade multiply its conditional clade probability to the tree probability
-        for (int i = 0; i < size; i++) {
-            Clade c = clades.get(i);
-
-            // get the bits of the clade
-            Clade parent = parentClades.get(i);
-
-            // set the occurrences to epsilon
-            double tmp = EPSILON;
-            double parentOccurrences = 0.0;
-            BitSet parentBits = parent.getBits();
-            if (cladeProbabilities.containsKey(parentBits)) {
-                // if we observed this clade in the trace, add the occurrences to epsilon
-                parentOccurrences += cladeProbabilities.get(parentBits)
-                        .getSampleCount();
-            }
-
-            if (cladeCoProbabilities.containsKey(parentBits)) {
-                // if we observed the parent clade
-                HashMap<BitSet, Clade> conditionalProbs = cladeCoProbabilities
-                        .get(parentBits);
-
-                BitSet bits = c.getBits();
-                if (conditionalProbs.containsKey(bits)) {
-                    // if we observed this conditional clade in the trace, add the occurrences to epsilon
-                    tmp += conditionalProbs.get(bits).getSampleCount();
-                }
-            }
-            // add epsilon for each clade
-            final double splits = Math.pow(2, parent.getSize() - 1) - 1;
-            parentOccurrences += EPSILON * splits;
-
-            // multiply the conditional clade probability to the tree
-            // probability
-            prob += Math.log(tmp / parentOccurrences);
-
-        }
-
-        return prob;
+        return counts.getTreeProbability(tree, null, EPSILON);
     }
 
     /**
@@ -270,59 +294,7 @@ public class ConditionalCladeFrequency extends
      */
     public double getTreeProbability(Tree tree,
                                      HashMap<String, Integer> taxonMap) {
-        double prob = 0.0;
-
-        List<Clade> clades = new ArrayList<Clade>();
-        List<Clade> parentClades = new ArrayList<Clade>();
-        // get clades contained in the tree
-        getNonComplementaryClades(tree, tree.getRoot(), parentClades, clades,
-                taxonMap);
-
-        int size = clades.size();
-        // for every clade multiply its conditional clade probability to the
-        // tree probability
-        for (int i = 0; i < size; i++) {
-            Clade c = clades.get(i);
-
-            // get the bits of the clade
-            Clade parent = parentClades.get(i);
-
-            // set the occurrences to epsilon
-            double tmp = EPSILON;
-            double parentOccurrences = 0.0;
-            BitSet parentBits = parent.getBits();
-            if (cladeProbabilities.containsKey(parentBits)) {
-                // if we observed this clade in the trace, add the
-                // occurrences
-                // to epsilon
-                parentOccurrences += cladeProbabilities.get(parentBits)
-                        .getSampleCount();
-            }
-
-            if (cladeCoProbabilities.containsKey(parentBits)) {
-                // if we observed the parent clade
-                HashMap<BitSet, Clade> conditionalProbs = cladeCoProbabilities
-                        .get(parentBits);
-
-                BitSet bits = c.getBits();
-                if (conditionalProbs.containsKey(bits)) {
-                    // if we observed this conditional clade in the trace,
-                    // add
-                    // the occurrences to epsilon
-                    tmp += conditionalProbs.get(bits).getSampleCount();
-                }
-            }
-            // add epsilon for each clade
-            final double splits = Math.pow(2, parent.getSize() - 1) - 1;
-            parentOccurrences += EPSILON * splits;
-
-            // multiply the conditional clade probability to the tree
-            // probability
-            prob += Math.log(tmp / parentOccurrences);
-
-        }
-
-        return prob;
+        return counts.getTreeProbability(tree, getTipIndices(tree, taxonMap), EPSILON);
     }
 
     public double splitClade(Clade parent, Clade[] children) {
@@ -336,20 +308,20 @@ public class ConditionalCladeFrequency extends
 
         double prob = 0;
 
-        if (cladeCoProbabilities.containsKey(parent.getBits())) {
-            HashMap<BitSet, Clade> childClades = cladeCoProbabilities
-                    .get(parent.getBits());
+        int parentIndex = counts.getCladeIndex(parent.getBits());
+        int firstChild = (parentIndex < 0 ? -1 : counts.getFirstPair(parentIndex));
+
+        if (firstChild >= 0) {
             double noChildClades = 0.0;
 
             double sum = 0.0;
-            Set<BitSet> keys = childClades.keySet();
-            for (BitSet child : keys) {
-                Clade tmp = childClades.get(child);
-                if (parent.getSize() > tmp.getSize() + 1) {
-                    sum += (tmp.getSampleCount() + EPSILON) / 2.0;
+            for (int pair = firstChild; pair >= 0; pair = counts.getNextPair(pair)) {
+                int sampleCount = counts.getPairCount(pair);
+                if (parent.getSize() > counts.getCladeSize(counts.getPairChild(pair)) + 1) {
+                    sum += (sampleCount + EPSILON) / 2.0;
                     noChildClades += 0.5;
                 } else {
-                    sum += (tmp.getSampleCount() + EPSILON);
+                    sum += (sampleCount + EPSILON);
                     noChildClades += 1.0;
                 }
             }
@@ -359,16 +331,16 @@ public class ConditionalCladeFrequency extends
 
             // roulette wheel
             double randomNumber = Math.random() * sum;
-            for (BitSet child : keys) {
-                Clade tmp = childClades.get(child);
-                if (parent.getSize() > tmp.getSize() + 1) {
-                    randomNumber -= (tmp.getSampleCount() + EPSILON) / 2.0;
+            for (int pair = firstChild; pair >= 0; pair = counts.getNextPair(pair)) {
+                int sampleCount = counts.getPairCount(pair);
+                if (parent.getSize() > counts.getCladeSize(counts.getPairChild(pair)) + 1) {
+                    randomNumber -= (sampleCount + EPSILON) / 2.0;
                 } else {
-                    randomNumber -= (tmp.getSampleCount() + EPSILON);
+                    randomNumber -= (sampleCount + EPSILON);
                 }
                 if (randomNumber < 0) {
-                    children[0] = tmp;
-                    prob = (tmp.getSampleCount() + EPSILON) / sum;
+                    children[0] = counts.getPairClade(pair);
+                    prob = (sampleCount + EPSILON) / sum;
                     break;
                 }
             }
@@ -392,8 +364,8 @@ public class ConditionalCladeFrequency extends
                             || newChild.cardinality() == parent.getSize());
                     inverseBits = (BitSet) newChild.clone();
                     inverseBits.xor(parent.getBits());
-                } while (childClades.containsKey(newChild)
-                        || childClades.containsKey(inverseBits));
+                } while (counts.getPair(parentIndex, newChild) >= 0
+                        || counts.getPair(parentIndex, inverseBits) >= 0);
 
                 Clade randomClade = new Clade(newChild, 0.9999 * parent
                         .getHeight());
@@ -406,8 +378,10 @@ public class ConditionalCladeFrequency extends
             } else {
                 BitSet secondChild = (BitSet) children[0].getBits().clone();
                 secondChild.xor(parent.getBits());
-                children[1] = childClades.get(secondChild);
-                if (children[1] == null) {
+                int pair = counts.getPair(parentIndex, secondChild);
+                if (pair >= 0) {
+                    children[1] = counts.getPairClade(pair);
+                } else {
                     children[1] = new Clade(secondChild, 0.9999 * parent
                             .getHeight());
                 }
@@ -510,64 +484,7 @@ public class ConditionalCladeFrequency extends
 
         samples++;
 
-        List<Clade> clades = new ArrayList<Clade>();
-        List<Clade> parentClades = new ArrayList<Clade>();
-        // get clades contained in the tree
-        getClades(tree, tree.getRoot(), parentClades, clades);
-        // add the clade containing all taxa as well so that it get counted
-        clades.add(parentClades.get(parentClades.size() - 1));
-        parentClades.add(clades.get(clades.size() - 1));
-
-        int size = clades.size();
-        // for every clade multiply its conditional clade probability to the
-        // tree probability
-        for (int i = 0; i < size; i++) {
-            Clade c = clades.get(i);
-
-            // get the bits of the clade
-            Clade parent = parentClades.get(i);
-
-            HashMap<BitSet, Clade> coFreqs;
-            // increment the clade occurrences
-            if (cladeProbabilities.containsKey(c.getBits())) {
-                Clade tmp = cladeProbabilities.get(c.getBits());
-                // tmp.addSample();
-                tmp.addHeight(c.getHeight());
-                // add the amount to the current occurences
-                // frequency += cladeProbabilities.get(c);
-            } else {
-                // just to set the first value of the height value list
-                // c.addSample();
-                c.addHeight(c.getHeight());
-                cladeProbabilities.put(c.getBits(), c);
-            }
-
-            // increment the conditional clade occurrences
-            if (!parent.equals(c)) {
-                if (cladeCoProbabilities.containsKey(parent.getBits())) {
-                    coFreqs = cladeCoProbabilities.get(parent.getBits());
-                } else {
-                    // if it's the first time we observe the parent then we need
-                    // a new list for its conditional clades
-                    coFreqs = new HashMap<BitSet, Clade>();
-                    cladeCoProbabilities.put(parent.getBits(), coFreqs);
-                }
-
-                // add the previous observed occurrences for this conditional
-                // clade
-                if (coFreqs.containsKey(c.getBits())) {
-                    Clade tmp = coFreqs.get(c.getBits());
-                    tmp.addHeight(c.getHeight());
-                    // coFrequency += coFreqs.get(c.getBits());
-                } else {
-                    // TODO check this code, especially if the cloning is needed
-                    // and not just the clade could be added
-                    Clade tmp = new Clade((BitSet) c.getBits().clone(), c.getHeight());
-                    tmp.addHeight(c.getHeight());
-                    coFreqs.put(c.getBits(), tmp);
-                }
-            }
-        }
+        counts.addTree(tree, null);
     }
 
     /**
@@ -579,64 +496,105 @@ public class ConditionalCladeFrequency extends
 
         samples++;
 
-        List<Clade> clades = new ArrayList<Clade>();
-        List<Clade> parentClades = new ArrayList<Clade>();
-        // get clades contained in the tree
-        getClades(tree, tree.getRoot(), parentClades, clades, taxonMap);
-        // add the clade containing all taxa as well so that it get counted
-        clades.add(parentClades.get(parentClades.size() - 1));
-        parentClades.add(clades.get(clades.size() - 1));
-
-        int size = clades.size();
-        // for every clade multiply its conditional clade probability to the
-        // tree probability
-        for (int i = 0; i < size; i++) {
-            Clade c = clades.get(i);
-
-            // get the bits of the clade
-            Clade parent = parentClades.get(i);
-
-            HashMap<BitSet, Clade> coFreqs;
-            // increment the clade occurrences
-            if (cladeProbabilities.containsKey(c.getBits())) {
-                Clade tmp = cladeProbabilities.get(c.getBits());
-                // tmp.addSample();
-                tmp.addHeight(c.getHeight());
-                // add the amount to the current occurences
-                // frequency += cladeProbabilities.get(c);
-            } else {
-                // just to set the first value of the height value list
-                // c.addSample();
-                c.addHeight(c.getHeight());
-                cladeProbabilities.put(c.getBits(), c);
+        int[] tipIndices = getTipIndices(tree, taxonMap);
+        counts.addTree(tree, tipIndices);
+
+        // the clades are counted by taxon index so the index is saved in that order
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            taxa[tipIndices[node.getNumber()]] = tree.getNodeTaxon(node).getId();
+        }
+    }
+
+    // the taxon index of each tip by node number
+    private static int[] getTipIndices(Tree tree, HashMap<String, Integer> taxonMap) {
+        int[] tipIndices = new int[tree.getNodeCount()];
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            String taxon = tree.getTaxon(node.getNumber()).getId();
+            tipIndices[node.getNumber()] = taxonMap.get(taxon);
+        }
+        return tipIndices;
+    }
+
+    private static String[] getTaxa(Tree tree) {
+        String[] taxa = new String[tree.getExternalNodeCount()];
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            taxa[node.getNumber()] = tree.getNodeTaxon(node).getId();
+        }
+        return taxa;
+    }
+
+    /**
+     * Writes the clade counts to a file that can be read back with
+     * {@link #loadIndex(java.io.File, dr.evolution.tree.Tree, double)}.
+     *
+     * @throws IOException if general I/O error occurs
+     */
+    public void saveIndex(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeUTF(INDEX_HEADER);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(samples);
+            out.writeInt(taxa.length);
+            for (String taxon : taxa) {
+                out.writeUTF(taxon);
             }
+            counts.write(out);
+        } finally {
+            out.close();
+        }
+    }
 
-            // increment the conditional clade occurrences
-            if (!parent.equals(c)) {
-                if (cladeCoProbabilities.containsKey(parent.getBits())) {
-                    coFreqs = cladeCoProbabilities.get(parent.getBits());
-                } else {
-                    // if it's the first time we observe the parent then we need
-                    // a new list for its conditional clades
-                    coFreqs = new HashMap<BitSet, Clade>();
-                    cladeCoProbabilities.put(parent.getBits(), coFreqs);
-                }
+    /**
+     * Reads the clade counts written by {@link #saveIndex(java.io.File)}. The clades are renumbered to the
+     * node numbers of the tips of the given tree, which must have the same taxa.
+     *
+     * @param tree    a tree with the taxa of the index, e.g. the tree being sampled
+     * @param epsilon the default number of occurences for each clade which wasn't observed
+     * @throws IOException if general I/O error occurs or the taxa do not match
+     */
+    public static ConditionalCladeFrequency loadIndex(File file, Tree tree, double epsilon) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (!INDEX_HEADER.equals(in.readUTF()) || in.readInt() != INDEX_VERSION) {
+                throw new IOException("The file, " + file.getName() + ", is not a conditional clade frequency index");
+            }
+            long samples = in.readLong();
+            String[] taxa = new String[in.readInt()];
+            for (int i = 0; i < taxa.length; i++) {
+                taxa[i] = in.readUTF();
+            }
+            CladeCounts counts = CladeCounts.read(in);
 
-                // add the previous observed occurrences for this conditional
-                // clade
-                if (coFreqs.containsKey(c.getBits())) {
-                    Clade tmp = coFreqs.get(c.getBits());
-                    tmp.addHeight(c.getHeight());
-                    // coFrequency += coFreqs.get(c.getBits());
-                } else {
-                    // TODO check this code, especially if the cloning is needed
-                    // and not just the clade could be added
-                    Clade tmp = new Clade((BitSet) c.getBits().clone(), c
-                            .getHeight());
-                    tmp.addHeight(c.getHeight());
-                    coFreqs.put(c.getBits(), tmp);
+            // the node number in this tree for each taxon index in the file
+            Map<String, Integer> nodeNumbers = new HashMap<String, Integer>();
+            for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+                NodeRef node = tree.getExternalNode(i);
+                nodeNumbers.put(tree.getNodeTaxon(node).getId(), node.getNumber());
+            }
+            if (nodeNumbers.size() != taxa.length) {
+                throw new IOException("The tree has " + nodeNumbers.size() + " taxa but the clade index has " + taxa.length);
+            }
+            int[] permutation = new int[taxa.length];
+            boolean identity = true;
+            for (int i = 0; i < taxa.length; i++) {
+                Integer number = nodeNumbers.get(taxa[i]);
+                if (number == null) {
+                    throw new IOException("Taxon, " + taxa[i] + ", in the clade index is not in the tree");
                 }
+                permutation[i] = number;
+                identity &= (number == i);
+            }
+            if (!identity) {
+                counts = counts.permute(permutation);
             }
+
+            return new ConditionalCladeFrequency(counts, getTaxa(tree), epsilon, samples);
+        } finally {
+            in.close();
         }
     }
 
@@ -663,4 +621,367 @@ public class ConditionalCladeFrequency extends
 
         return new ConditionalCladeFrequency(trace, e, burnin, verbose);
     }
+
+    /**
+     * The number of times each clade, and each clade given its parent clade, has been seen. The clades are
+     * numbered by a CladeIndex and the (parent, child) pairs by an open addressing hash table on the two
+     * clade numbers, with the pairs of each parent in a linked list.
+     */
+    private static class CladeCounts {
+        private final CladeIndex clades;
+        private int[] cladeCounts = new int[1024];
+
+        private int pairCount = 0;
+        private long[] pairKeys = new long[1024];
+        private int[] pairCounts = new int[1024];
+        private double[] pairHeights = new double[1024];
+        private int[] nextPairs = new int[1024];
+        private int[] firstPairs = new int[1024];
+        // the index of each pair plus one, zero for an empty slot
+        private int[] pairTable = new int[2048];
+
+        private int treeCount = 0;
+
+        // working space for the clades of each node of a tree, indexed by node number
+        private long[] nodeClades;
+        private int[] nodeIndices;
+        private int[] nodeSizes;
+
+        CladeCounts(int taxonCount) {
+            this(new CladeIndex(taxonCount));
+        }
+
+        CladeCounts(CladeIndex clades) {
+            this.clades = clades;
+            Arrays.fill(firstPairs, -1);
+        }
+
+        int getTaxonCount() {
+            return clades.getTaxonCount();
+        }
+
+        int getTreeCount() {
+            return treeCount;
+        }
+
+        int getCladeIndex(BitSet bits) {
+            return clades.getIndex(bits);
+        }
+
+        int getCladeSize(int clade) {
+            return clades.getCladeSize(clade);
+        }
+
+        int getFirstPair(int parent) {
+            return firstPairs[parent];
+        }
+
+        int getNextPair(int pair) {
+            return nextPairs[pair];
+        }
+
+        int getPairChild(int pair) {
+            return (int) pairKeys[pair];
+        }
+
+        int getPairCount(int pair) {
+            return pairCounts[pair];
+        }
+
+        Clade getPairClade(int pair) {
+            return new Clade(clades.getBitSet(getPairChild(pair)), pairHeights[pair]);
+        }
+
+        /**
+         * @return the index of the pair or -1 if the child has not been seen with this parent
+         */
+        int getPair(int parent, BitSet child) {
+            int childIndex = clades.getIndex(child);
+            return childIndex < 0 ? -1 : getPair(parent, childIndex);
+        }
+
+        int getPair(int parent, int child) {
+            long key = pairKey(parent, child);
+            int mask = pairTable.length - 1;
+            int slot = pairHashCode(key) & mask;
+            while (pairTable[slot] != 0) {
+                int pair = pairTable[slot] - 1;
+                if (pairKeys[pair] == key) {
+                    return pair;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private int addClade(long[] clade, int offset, int count) {
+            int index = clades.add(clade, offset);
+            if (index == cladeCounts.length) {
+                cladeCounts = Arrays.copyOf(cladeCounts, index * 2);
+                int length = firstPairs.length;
+                firstPairs = Arrays.copyOf(firstPairs, index * 2);
+                Arrays.fill(firstPairs, length, firstPairs.length, -1);
+            }
+            cladeCounts[index] += count;
+            return index;
+        }
+
+        private void addPair(int parent, int child, int count, double height) {
+            long key = pairKey(parent, child);
+            int mask = pairTable.length - 1;
+            int slot = pairHashCode(key) & mask;
+            while (pairTable[slot] != 0) {
+                int pair = pairTable[slot] - 1;
+                if (pairKeys[pair] == key) {
+                    pairCounts[pair] += count;
+                    pairHeights[pair] = height;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (pairCount == pairKeys.length) {
+                int capacity = pairCount * 2;
+                pairKeys = Arrays.copyOf(pairKeys, capacity);
+                pairCounts = Arrays.copyOf(pairCounts, capacity);
+                pairHeights = Arrays.copyOf(pairHeights, capacity);
+                nextPairs = Arrays.copyOf(nextPairs, capacity);
+            }
+            int pair = pairCount;
+            pairKeys[pair] = key;
+            pairCounts[pair] = count;
+            pairHeights[pair] = height;
+            nextPairs[pair] = firstPairs[parent];
+            firstPairs[parent] = pair;
+            pairCount++;
+
+            pairTable[slot] = pair + 1;
+            // keep the table at most half full
+            if (pairCount * 2 > pairTable.length) {
+                pairTable = new int[pairTable.length * 2];
+                mask = pairTable.length - 1;
+                for (int i = 0; i < pairCount; i++) {
+                    slot = pairHashCode(pairKeys[i]) & mask;
+                    while (pairTable[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    pairTable[slot] = i + 1;
+                }
+            }
+        }
+
+        private static long pairKey(int parent, int child) {
+            return ((long) parent << 32) | (child & 0xFFFFFFFFL);
+        }
+
+        private static int pairHashCode(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+
+        /**
+         * Counts the clades of every internal node and the clade of each internal child given its parent.
+         *
+         * @param tipIndices the taxon index of each tip by node number or null to use the node numbers
+         */
+        void addTree(Tree tree, int[] tipIndices) {
+            treeCount++;
+            fillNodeClades(tree, tree.getRoot(), tipIndices, true);
+            // add the clade containing all taxa as well so that it gets counted
+            addClade(nodeClades, tree.getRoot().getNumber() * clades.getWordCount(), 1);
+        }
+
+        /**
+         * @return the log probability of the tree from the conditional probabilities of its non-complementary
+         *         clades given their parents
+         */
+        double getTreeProbability(Tree tree, int[] tipIndices, double epsilon) {
+            fillNodeClades(tree, tree.getRoot(), tipIndices, false);
+            return getNodeProbability(tree, tree.getRoot(), epsilon, 0.0);
+        }
+
+        // adds the log probabilities to prob in postorder, the order the clades were summed in before
+        private double getNodeProbability(Tree tree, NodeRef node, double epsilon, double prob) {
+            if (tree.isExternal(node)) {
+                return prob;
+            }
+
+            NodeRef leftChild = tree.getChild(node, 0);
+            NodeRef rightChild = tree.getChild(node, 1);
+            prob = getNodeProbability(tree, leftChild, epsilon, prob);
+            prob = getNodeProbability(tree, rightChild, epsilon, prob);
+
+            // just the first child with at least two tips, the second is complementary to it
+            NodeRef child = null;
+            if (nodeSizes[leftChild.getNumber()] >= 2) {
+                child = leftChild;
+            } else if (nodeSizes[rightChild.getNumber()] >= 2) {
+                child = rightChild;
+            }
+
+            if (child != null) {
+                int parent = nodeIndices[node.getNumber()];
+
+                // set the occurrences to epsilon
+                double tmp = epsilon;
+                double parentOccurrences = 0.0;
+                if (parent >= 0) {
+                    // if we observed this clade in the trace, add the occurrences to epsilon
+                    parentOccurrences += cladeCounts[parent];
+
+                    int childIndex = nodeIndices[child.getNumber()];
+                    int pair = (childIndex < 0 ? -1 : getPair(parent, childIndex));
+                    if (pair >= 0) {
+                        // if we observed this conditional clade in the trace, add the occurrences to epsilon
+                        tmp += pairCounts[pair];
+                    }
+                }
+                // add epsilon for each clade
+                final double splits = Math.pow(2, nodeSizes[node.getNumber()] - 1) - 1;
+                parentOccurrences += epsilon * splits;
+
+                // multiply the conditional clade probability to the tree probability
+                prob += Math.log(tmp / parentOccurrences);
+            }
+
+            return prob;
+        }
+
+        /**
+         * Fills in the clade of each node below this one, either adding the clades and their pairs to the counts
+         * or just finding their indices (-1 when unseen).
+         */
+        private void fillNodeClades(Tree tree, NodeRef node, int[] tipIndices, boolean add) {
+            int wordCount = clades.getWordCount();
+            if (node == tree.getRoot() && (nodeClades == null || nodeSizes.length < tree.getNodeCount())) {
+                nodeClades = new long[tree.getNodeCount() * wordCount];
+                nodeIndices = new int[tree.getNodeCount()];
+                nodeSizes = new int[tree.getNodeCount()];
+            }
+
+            int number = node.getNumber();
+            int offset = number * wordCount;
+            Arrays.fill(nodeClades, offset, offset + wordCount, 0L);
+
+            if (tree.isExternal(node)) {
+                int index = (tipIndices == null ? number : tipIndices[number]);
+                nodeClades[offset + (index >>> 6)] |= 1L << index;
+                nodeSizes[number] = 1;
+                nodeIndices[number] = -1;
+                return;
+            }
+
+            int size = 0;
+            for (int i = 0; i < tree.getChildCount(node); i++) {
+                NodeRef child = tree.getChild(node, i);
+                fillNodeClades(tree, child, tipIndices, add);
+
+                int childOffset = child.getNumber() * wordCount;
+                for (int j = 0; j < wordCount; j++) {
+                    nodeClades[offset + j] |= nodeClades[childOffset + j];
+                }
+                size += nodeSizes[child.getNumber()];
+            }
+            nodeSizes[number] = size;
+
+            if (add) {
+                // the clade is counted when added as a child (or as the root) so only its index is needed here
+                int parent = addClade(nodeClades, offset, 0);
+                nodeIndices[number] = parent;
+                double height = tree.getNodeHeight(node);
+                for (int i = 0; i < tree.getChildCount(node); i++) {
+                    NodeRef child = tree.getChild(node, i);
+                    if (nodeSizes[child.getNumber()] >= 2) {
+                        int childIndex = nodeIndices[child.getNumber()];
+                        cladeCounts[childIndex] += 1;
+                        addPair(parent, childIndex, 1, tree.getNodeHeight(child));
+                    }
+                }
+            } else {
+                nodeIndices[number] = clades.getIndex(nodeClades, offset);
+            }
+        }
+
+        /**
+         * Adds the counts of another set, e.g. from a later block of trees.
+         */
+        void merge(CladeCounts other) {
+            int[] indices = new int[other.clades.getCladeCount()];
+            long[] clade = new long[clades.getWordCount()];
+            for (int i = 0; i < indices.length; i++) {
+                other.clades.getClade(i, clade, 0);
+                indices[i] = addClade(clade, 0, other.cladeCounts[i]);
+            }
+            for (int pair = 0; pair < other.pairCount; pair++) {
+                long key = other.pairKeys[pair];
+                addPair(indices[(int) (key >>> 32)], indices[(int) key], other.pairCounts[pair],
+                        other.pairHeights[pair]);
+            }
+            treeCount += other.treeCount;
+        }
+
+        /**
+         * @return a copy with the taxon i of each clade moved to permutation[i]
+         */
+        CladeCounts permute(int[] permutation) {
+            CladeCounts permuted = new CladeCounts(clades.getTaxonCount());
+            int wordCount = clades.getWordCount();
+            long[] clade = new long[wordCount];
+            long[] permutedClade = new long[wordCount];
+            for (int i = 0; i < clades.getCladeCount(); i++) {
+                clades.getClade(i, clade, 0);
+                Arrays.fill(permutedClade, 0L);
+                for (int word = 0; word < wordCount; word++) {
+                    for (long bits = clade[word]; bits != 0; bits &= bits - 1) {
+                        int index = permutation[word * 64 + Long.numberOfTrailingZeros(bits)];
+                        permutedClade[index >>> 6] |= 1L << index;
+                    }
+                }
+                if (permuted.addClade(permutedClade, 0, cladeCounts[i]) != i) {
+                    throw new IllegalArgumentException("Clade index permutation is not one to one");
+                }
+            }
+            for (int pair = 0; pair < pairCount; pair++) {
+                long key = pairKeys[pair];
+                permuted.addPair((int) (key >>> 32), (int) key, pairCounts[pair], pairHeights[pair]);
+            }
+            permuted.treeCount = treeCount;
+            return permuted;
+        }
+
+        void write(DataOutput out) throws IOException {
+            clades.write(out);
+            for (int i = 0; i < clades.getCladeCount(); i++) {
+                out.writeInt(cladeCounts[i]);
+            }
+            out.writeInt(pairCount);
+            for (int pair = 0; pair < pairCount; pair++) {
+                out.writeLong(pairKeys[pair]);
+                out.writeInt(pairCounts[pair]);
+                out.writeDouble(pairHeights[pair]);
+            }
+            out.writeInt(treeCount);
+        }
+
+        static CladeCounts read(DataInput in) throws IOException {
+            CladeIndex clades = CladeIndex.read(in);
+            CladeCounts counts = new CladeCounts(clades);
+            int cladeCount = clades.getCladeCount();
+            counts.cladeCounts = new int[Math.max(cladeCount, 1)];
+            counts.firstPairs = new int[Math.max(cladeCount, 1)];
+            Arrays.fill(counts.firstPairs, -1);
+            for (int i = 0; i < cladeCount; i++) {
+                counts.cladeCounts[i] = in.readInt();
+            }
+            int pairCount = in.readInt();
+            for (int pair = 0; pair < pairCount; pair++) {
+                long key = in.readLong();
+                int count = in.readInt();
+                double height = in.readDouble();
+                counts.addPair((int) (key >>> 32), (int) key, count, height);
+            }
+            counts.treeCount = in.readInt();
+            return counts;
+        }
+    }
 }
@@ -27,6 +27,7 @@ package dr.evomodel.tree;
 
 import dr.app.tools.NexusExporter;
 import dr.evolution.tree.*;
+import dr.inference.loggers.AsynchronousLogFormatter;
 import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.MCLogger;
 
@@ -218,16 +219,134 @@ public class TreeLogger extends MCLogger {
 
             buffer.append(" = [&R] ");
 
+            TreeSnapshot snapshot = null;
+            String line = null;
+            for (LogFormatter formatter : formatters) {
+                if (formatter instanceof AsynchronousLogFormatter) {
+                    // the newick string is put together on the writer thread from a copy of the tree
+                    if (snapshot == null) {
+                        snapshot = new TreeSnapshot(buffer.toString());
+                    }
+                    ((AsynchronousLogFormatter) formatter).log(snapshot);
+                } else {
+                    if (line == null) {
+                        line = getTreeLine(tree, branchRates, treeTraitProviders, new StringBuffer(buffer));
+                    }
+                    formatter.logLine(line);
+                }
+            }
+        }
+    }
+
+    private String getTreeLine(Tree tree, BranchRates branchRates, TreeTraitProvider[] treeTraitProviders,
+                               StringBuffer buffer) {
+        if (substitutions) {
+            Tree.Utils.newick(tree, tree.getRoot(), false, Tree.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS,
+                    format, branchRates, treeTraitProviders, idMap, buffer);
+        } else {
+            Tree.Utils.newick(tree, tree.getRoot(), !mapNames, Tree.BranchLengthType.LENGTHS_AS_TIME,
+                    format, null, treeTraitProviders, idMap, buffer);
+        }
+
+        buffer.append(";");
+        return buffer.toString();
+    }
+
+    /**
+     * A copy of the tree with the branch rates and the trait strings of every node, taken when the state is
+     * logged. The traits still have to be evaluated on the chain's thread as they depend on the state of the
+     * model.
+     */
+    private class TreeSnapshot implements AsynchronousLogFormatter.Entry {
+        private final String header;
+        private final Tree tree;
+        private final BranchRates branchRates;
+        private final TreeTraitProvider[] treeTraitProviders;
+
+        TreeSnapshot(String header) {
+            this.header = header;
+            this.tree = new SimpleTree(TreeLogger.this.tree);
+
+            final int nodeCount = tree.getNodeCount();
+            final Tree source = TreeLogger.this.tree;
+
             if (substitutions) {
-                Tree.Utils.newick(tree, tree.getRoot(), false, Tree.BranchLengthType.LENGTHS_AS_SUBSTITUTIONS,
-                        format, branchRates, treeTraitProviders, idMap, buffer);
+                final double[] rates = new double[nodeCount];
+                for (int i = 0; i < nodeCount; i++) {
+                    NodeRef node = source.getNode(i);
+                    if (!source.isRoot(node)) {
+                        rates[i] = TreeLogger.this.branchRates.getBranchRate(source, node);
+                    }
+                }
+                branchRates = new BranchRates() {
+                    public double getBranchRate(Tree tree, NodeRef node) {
+                        return rates[node.getNumber()];
+                    }
+                };
+            } else {
+                branchRates = null;
+            }
+
+            if (TreeLogger.this.treeTraitProviders != null) {
+                List<TreeTrait> traits = new ArrayList<TreeTrait>();
+                for (TreeTraitProvider ttp : TreeLogger.this.treeTraitProviders) {
+                    for (TreeTrait treeTrait : ttp.getTreeTraits()) {
+                        if (treeTrait.getLoggable()) {
+                            String[] values = new String[nodeCount];
+                            for (int i = 0; i < nodeCount; i++) {
+                                values[i] = treeTrait.getTraitString(source, source.getNode(i));
+                            }
+                            traits.add(new TraitSnapshot(treeTrait.getTraitName(), treeTrait.getIntent(), values));
+                        }
+                    }
+                }
+                // keeps the traits in the order they were written in
+                final TreeTrait[] treeTraits = traits.toArray(new TreeTrait[traits.size()]);
+                treeTraitProviders = new TreeTraitProvider[]{new TreeTraitProvider() {
+                    public TreeTrait[] getTreeTraits() {
+                        return treeTraits;
+                    }
+
+                    public TreeTrait getTreeTrait(String key) {
+                        for (TreeTrait treeTrait : treeTraits) {
+                            if (treeTrait.getTraitName().equals(key)) {
+                                return treeTrait;
+                            }
+                        }
+                        return null;
+                    }
+                }};
             } else {
-                Tree.Utils.newick(tree, tree.getRoot(), !mapNames, Tree.BranchLengthType.LENGTHS_AS_TIME,
-                        format, null, treeTraitProviders, idMap, buffer);
+                treeTraitProviders = null;
             }
+        }
+
+        public void write(LogFormatter formatter) {
+            formatter.logLine(getTreeLine(tree, branchRates, treeTraitProviders, new StringBuffer(header)));
+        }
+    }
+
+    private static class TraitSnapshot extends TreeTrait.S {
+        private final String name;
+        private final Intent intent;
+        private final String[] values;
+
+        TraitSnapshot(String name, Intent intent, String[] values) {
+            this.name = name;
+            this.intent = intent;
+            this.values = values;
+        }
+
+        public String getTraitName() {
+            return name;
+        }
+
+        public Intent getIntent() {
+            return intent;
+        }
 
-            buffer.append(";");
-            logLine(buffer.toString());
+        public String getTrait(Tree tree, NodeRef node) {
+            return values[node.getNumber()];
         }
     }
 
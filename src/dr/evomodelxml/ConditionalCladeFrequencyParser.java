@@ -52,6 +52,7 @@ public class ConditionalCladeFrequencyParser extends AbstractXMLObjectParser {
     public final static String EPSILON = "epsilon";
     public final static String MIN_CLADE_PROBABILITY = "minCladeProbability";
     public static final String FILE_NAME = "fileName";
+    public static final String INDEX_FILE = "indexFile";
 
     public final static String REFERENCE_TREE = "referenceTree";
 
@@ -118,6 +119,15 @@ public class ConditionalCladeFrequencyParser extends AbstractXMLObjectParser {
             // creates a new analyzer object
             ConditionalCladeFrequency analysis = ConditionalCladeFrequency.analyzeLogFile(new Reader[]{reader}, e, burnin, true);
 
+            // save the clade counts so that they can be loaded by an importance distribution operator
+            if (xo.hasAttribute(INDEX_FILE)) {
+                File indexFile = new File(xo.getStringAttribute(INDEX_FILE));
+                if (!indexFile.isAbsolute()) {
+                    indexFile = new File(System.getProperty("user.dir"), indexFile.getName());
+                }
+                analysis.saveIndex(indexFile);
+            }
+
             // analyze the reference tree and print its estimated posterior
             analysis.report(refReader);
 
@@ -151,7 +161,8 @@ public class ConditionalCladeFrequencyParser extends AbstractXMLObjectParser {
             AttributeRule.newIntegerRule(BURN_IN, true, "The number of trees discarded because of the burn-in period."),
             AttributeRule.newDoubleRule(MIN_CLADE_PROBABILITY, true, "The frequency in % that a clade must achieve to be considered for the evaulation. Otherwise it's set to epsilon."),
             AttributeRule.newDoubleRule(EPSILON, true, "Epsilon is the default number of occurences for a clade if a clade wasn't observed. The default is 1.0"),
-            AttributeRule.newStringRule(REFERENCE_TREE, false, "File in newick format containing a tree which is evaluated with the statistic.")
+            AttributeRule.newStringRule(REFERENCE_TREE, false, "File in newick format containing a tree which is evaluated with the statistic."),
+            AttributeRule.newStringRule(INDEX_FILE, true, "File to which the clade counts are written so they can be reused without reading the trees again.")
     };
 
 }
@@ -3,6 +3,7 @@ package dr.evomodelxml.tree;
 import dr.evolution.colouring.TreeColouringProvider;
 import dr.evolution.tree.*;
 import dr.evomodel.tree.TreeLogger;
+import dr.inference.loggers.AsynchronousLogFormatter;
 import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Loggable;
 import dr.inference.loggers.TabDelimitedFormatter;
@@ -301,6 +302,9 @@ public class TreeLoggerParser extends LoggerParser {
         final PrintWriter pw = getLogFile(xo, getParserName());
 
         formatter = new TabDelimitedFormatter(pw);
+        if (xo.getAttribute(ASYNCHRONOUS, false)) {
+            formatter = new AsynchronousLogFormatter(formatter);
+        }
 
         treeAttributeProviders = new TreeAttributeProvider[taps.size()];
         taps.toArray(treeAttributeProviders);
@@ -356,6 +360,8 @@ public class TreeLoggerParser extends LoggerParser {
     private final XMLSyntaxRule[] rules = {
             AttributeRule.newIntegerRule(LOG_EVERY, true),
             AttributeRule.newBooleanRule(ALLOW_OVERWRITE_LOG, true),
+            AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                    "Whether the trees are written on a separate thread to the chain"),
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
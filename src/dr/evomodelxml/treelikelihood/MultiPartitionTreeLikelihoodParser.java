@@ -0,0 +1,114 @@
+package dr.evomodelxml.treelikelihood;
+
+import dr.evolution.alignment.PatternList;
+import dr.evomodel.branchratemodel.BranchRateModel;
+import dr.evomodel.sitemodel.SiteModel;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+import dr.inference.loggers.LogColumn;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The likelihood of several partitions which share a tree, a site model and a clock. Without BEAGLE this is
+ * a compound of one tree likelihood per partition; the BEAGLE parser of the same name computes all the
+ * partitions in a single instance.
+ */
+public class MultiPartitionTreeLikelihoodParser extends AbstractXMLObjectParser {
+
+    public static final String MULTI_PARTITION_TREE_LIKELIHOOD = "multiPartitionTreeLikelihood";
+    public static final String PARTITION = "partition";
+    public static final String NAME = "name";
+
+    public String getParserName() {
+        return MULTI_PARTITION_TREE_LIKELIHOOD;
+    }
+
+    public Object parseXMLObject(XMLObject xo) throws XMLParseException {
+
+        boolean useAmbiguities = xo.getAttribute(TreeLikelihoodParser.USE_AMBIGUITIES, false);
+        boolean forceJavaCore = Boolean.valueOf(System.getProperty("java.only"));
+
+        TreeModel treeModel = (TreeModel) xo.getChild(TreeModel.class);
+        SiteModel siteModel = (SiteModel) xo.getChild(SiteModel.class);
+        BranchRateModel branchRateModel = (BranchRateModel) xo.getChild(BranchRateModel.class);
+
+        final List<Likelihood> likelihoods = new ArrayList<Likelihood>();
+        for (int i = 0; i < xo.getChildCount(); i++) {
+            if (xo.getChild(i) instanceof XMLObject && ((XMLObject) xo.getChild(i)).getName().equals(PARTITION)) {
+                XMLObject cxo = (XMLObject) xo.getChild(i);
+                PatternList patternList = (PatternList) cxo.getChild(PatternList.class);
+
+                TreeLikelihood treeLikelihood = new TreeLikelihood(
+                        patternList,
+                        treeModel,
+                        siteModel,
+                        branchRateModel,
+                        null,
+                        useAmbiguities, false, true, forceJavaCore, false);
+                treeLikelihood.setId(getPartitionName(cxo, patternList, xo.getId(), likelihoods.size()));
+                likelihoods.add(treeLikelihood);
+            }
+        }
+
+        return new CompoundLikelihood(likelihoods) {
+            public LogColumn[] getColumns() {
+                // the total followed by the likelihood of each partition
+                List<LogColumn> columns = new ArrayList<LogColumn>();
+                for (LogColumn column : super.getColumns()) {
+                    columns.add(column);
+                }
+                for (Likelihood likelihood : likelihoods) {
+                    for (LogColumn column : likelihood.getColumns()) {
+                        columns.add(column);
+                    }
+                }
+                return columns.toArray(new LogColumn[columns.size()]);
+            }
+        };
+    }
+
+    /**
+     * @return the name given to the partition, or the id of its patterns
+     */
+    public static String getPartitionName(XMLObject cxo, PatternList patternList, String id, int index) throws XMLParseException {
+        if (cxo.hasAttribute(NAME)) {
+            return cxo.getStringAttribute(NAME);
+        }
+        if (patternList.getId() != null) {
+            return patternList.getId();
+        }
+        return id + "." + (index + 1);
+    }
+
+    //************************************************************************
+    // AbstractXMLObjectParser implementation
+    //************************************************************************
+
+    public String getParserDescription() {
+        return "This element represents the likelihood of several patternlists on a tree given a shared site model.";
+    }
+
+    public Class getReturnType() {
+        return Likelihood.class;
+    }
+
+    public XMLSyntaxRule[] getSyntaxRules() {
+        return rules;
+    }
+
+    private final XMLSyntaxRule[] rules = {
+            AttributeRule.newBooleanRule(TreeLikelihoodParser.USE_AMBIGUITIES, true),
+            new ElementRule(PARTITION, new XMLSyntaxRule[]{
+                    AttributeRule.newStringRule(NAME, true),
+                    new ElementRule(PatternList.class)
+            }, 1, Integer.MAX_VALUE),
+            new ElementRule(TreeModel.class),
+            new ElementRule(SiteModel.class),
+            new ElementRule(BranchRateModel.class, true)
+    };
+}
@@ -2,6 +2,8 @@ package dr.geo;
 
 import cern.colt.list.DoubleArrayList;
 import cern.jet.stat.Descriptive;
+import dr.math.ComplexArray;
+import dr.math.FastFourierTransform;
 import dr.math.distributions.NormalDistribution;
 import dr.math.matrixAlgebra.Matrix;
 import dr.math.matrixAlgebra.Vector;
@@ -11,7 +13,14 @@ import dr.geo.contouring.ContourAttrib;
 import dr.geo.contouring.ContourPath;
 import dr.geo.contouring.ContourMaker;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * KernelDensityEstimator2D creates a bi-variate kernel density smoother for data
@@ -21,6 +30,13 @@ import java.util.Arrays;
 
 public class KernelDensityEstimator2D implements ContourMaker {
 
+    // samples at least this large are binned before smoothing
+    public static final int MINIMUM_BINNED_SAMPLE_SIZE = 500;
+
+    private static final double BINS_PER_BANDWIDTH = 8.0;
+    private static final int MAXIMUM_BIN_COUNT = 4096;
+    private static final double CUT = 6.0;
+
 //    kde2d =
 //    function (x, y, h, n = 25, lims = c(range(x), range(y)))
 //    {
@@ -95,6 +111,15 @@ public class KernelDensityEstimator2D implements ContourMaker {
     public void doKDE2D() {
         gx = makeSequence(lims[0], lims[1], n);
         gy = makeSequence(lims[2], lims[3], n);
+        if (nx >= MINIMUM_BINNED_SAMPLE_SIZE && n > 1 && h[0] > 0 && h[1] > 0 &&
+                lims[1] > lims[0] && lims[3] > lims[2]) {
+            doBinnedKDE2D();
+        } else {
+            doExactKDE2D();
+        }
+    }
+
+    private void doExactKDE2D() {
         double[][] ax = outerMinusScaled(gx, x, h[0]);
         double[][] ay = outerMinusScaled(gy, y, h[1]);
         normalize(ax);
@@ -112,6 +137,169 @@ public class KernelDensityEstimator2D implements ContourMaker {
         }
     }
 
+    /*
+     * The observations are linearly binned onto a grid which refines the smoothed grid and reaches CUT
+     * bandwidths past it, and the bins are convolved with the kernel by FFT, one dimension at a time as the
+     * kernel is a product of normals. This is O(n log n) in the grid size plus O(nx), rather than O(n^2 nx).
+     */
+    private void doBinnedKDE2D() {
+        final BinnedAxis binsX = new BinnedAxis(gx, h[0]);
+        final BinnedAxis binsY = new BinnedAxis(gy, h[1]);
+
+        final double[][] counts = new double[binsX.binCount][binsY.binCount];
+        final double mass = 1.0 / (nx * h[0] * h[1]);
+        for (int k = 0; k < nx; k++) {
+            final double posX = (x[k] - binsX.start) / binsX.delta;
+            final double posY = (y[k] - binsY.start) / binsY.delta;
+            final int ix = (int) Math.floor(posX);
+            final int iy = (int) Math.floor(posY);
+            // anything further out than the bins adds less than a normal density CUT sd from its mean
+            if (ix >= 0 && ix < binsX.binCount - 1 && iy >= 0 && iy < binsY.binCount - 1) {
+                final double fx = posX - ix;
+                final double fy = posY - iy;
+                counts[ix][iy] += (1 - fx) * (1 - fy) * mass;
+                counts[ix][iy + 1] += (1 - fx) * fy * mass;
+                counts[ix + 1][iy] += fx * (1 - fy) * mass;
+                counts[ix + 1][iy + 1] += fx * fy * mass;
+            }
+        }
+
+        // smooth along y, keeping only the columns on the grid
+        final double[][] smoothedY = new double[binsX.binCount][];
+        for (int i = 0; i < binsX.binCount; i++) {
+            smoothedY[i] = binsY.smooth(counts[i]);
+        }
+
+        // then along x
+        z = new double[n][n];
+        final double[] column = new double[binsX.binCount];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < binsX.binCount; i++) {
+                column[i] = smoothedY[i][j];
+            }
+            final double[] smoothed = binsX.smooth(column);
+            for (int i = 0; i < n; i++) {
+                z[i][j] = smoothed[i];
+            }
+        }
+    }
+
+    /**
+     * The bins and transformed kernel along one dimension of the grid
+     */
+    private static class BinnedAxis {
+
+        BinnedAxis(double[] grid, double bandwidth) {
+            final int gridSize = grid.length;
+            final double gridDelta = grid[1] - grid[0];
+
+            refinement = Math.max(1, Math.min((int) Math.ceil(gridDelta * BINS_PER_BANDWIDTH / bandwidth),
+                    MAXIMUM_BIN_COUNT / gridSize));
+            delta = gridDelta / refinement;
+            offset = (int) Math.ceil(CUT * bandwidth / delta);
+            binCount = (gridSize - 1) * refinement + 1 + 2 * offset;
+            start = grid[0] - offset * delta;
+            this.gridSize = gridSize;
+
+            // zero padded so that the circular convolution doesn't wrap around
+            int length = 1;
+            while (length < binCount + offset) {
+                length <<= 1;
+            }
+            final double[] ordinates = new double[length];
+            for (int l = 0; l <= offset; l++) {
+                final double value = NormalDistribution.pdf(l * delta / bandwidth, 0, 1);
+                ordinates[l] = value;
+                if (l > 0) {
+                    ordinates[length - l] = value;
+                }
+            }
+            kernel = new ComplexArray(ordinates);
+            FastFourierTransform.fft(kernel, false);
+        }
+
+        /**
+         * @return the binned values convolved with the kernel at the points of the grid
+         */
+        double[] smooth(double[] binned) {
+            final int length = kernel.length;
+            final double[] real = new double[length];
+            System.arraycopy(binned, 0, real, 0, binCount);
+
+            ComplexArray transform = new ComplexArray(real);
+            FastFourierTransform.fft(transform, false);
+            transform = transform.product(kernel);
+            FastFourierTransform.fft(transform, true);
+
+            final double[] smoothed = new double[gridSize];
+            for (int i = 0; i < gridSize; i++) {
+                // rounding in the transforms can leave tiny negative values where there is no density
+                smoothed[i] = Math.max(0.0, transform.real[offset + i * refinement] / length);
+            }
+            return smoothed;
+        }
+
+        final int refinement; // bins per grid step
+        final double delta; // bin width
+        final int offset; // bins before the first grid point
+        final int binCount;
+        final double start; // position of the first bin
+        final int gridSize;
+        final ComplexArray kernel; // transformed kernel ordinates
+    }
+
+    /**
+     * Estimates the densities of several samples, such as the time slices of a set of trees, on a pool of threads.
+     *
+     * @param x           x-coordinates of the observations of each sample
+     * @param y           y-coordinates of the observations of each sample
+     * @param n           smoothed grid size
+     * @param limitBandwidth whether to limit the bandwidths
+     * @param threadCount the number of threads to use
+     * @return the density estimate of each sample
+     */
+    public static KernelDensityEstimator2D[] estimate(final double[][] x, final double[][] y, final int n,
+                                                      final boolean limitBandwidth, int threadCount) {
+        if (x.length != y.length)
+            throw new RuntimeException("must have the same number of x and y samples");
+
+        final KernelDensityEstimator2D[] estimates = new KernelDensityEstimator2D[x.length];
+        if (threadCount <= 1 || x.length <= 1) {
+            for (int i = 0; i < x.length; i++) {
+                estimates[i] = new KernelDensityEstimator2D(x[i], y[i], null, n, null, limitBandwidth);
+            }
+            return estimates;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threadCount, x.length));
+        try {
+            List<Future<KernelDensityEstimator2D>> futures = new ArrayList<Future<KernelDensityEstimator2D>>();
+            for (int i = 0; i < x.length; i++) {
+                final int sample = i;
+                futures.add(pool.submit(new Callable<KernelDensityEstimator2D>() {
+                    public KernelDensityEstimator2D call() {
+                        return new KernelDensityEstimator2D(x[sample], y[sample], null, n, null, limitBandwidth);
+                    }
+                }));
+            }
+            for (int i = 0; i < x.length; i++) {
+                try {
+                    estimates[i] = futures.get(i).get();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException("Interrupted while estimating densities");
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ee.getCause();
+                    }
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return estimates;
+    }
+
     public double findLevelCorrespondingToMass(double probabilityMass) {
         double level = 0;
         double[] sz = new double[n*n];
@@ -0,0 +1,215 @@
+/*
+ * AsynchronousLogFormatter.java
+ *
+ * Copyright (C) 2002-2009 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A formatter which hands everything it is given to another formatter on a background thread, so the chain
+ * doesn't wait for the log to be formatted and written. Entries wait in a bounded queue and the chain blocks
+ * when it is full. Loggers can pass an {@link Entry}, a snapshot of the values to be logged, so that the
+ * formatting itself is done on the writer thread.
+ * <p/>
+ * Everything queued is written before stopLogging() returns, or before the program exits if the logging
+ * isn't stopped.
+ */
+public class AsynchronousLogFormatter implements LogFormatter {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Something to be written by the writer thread.
+     */
+    public interface Entry {
+        void write(LogFormatter formatter);
+    }
+
+    private static final Entry STOP = new Entry() {
+        public void write(LogFormatter formatter) {
+            formatter.stopLogging();
+        }
+    };
+
+    private final LogFormatter formatter;
+    private final BlockingQueue<Entry> queue;
+
+    private Thread writer = null;
+    private Thread shutdownHook = null;
+    private volatile Throwable error = null;
+
+    public AsynchronousLogFormatter(LogFormatter formatter) {
+        this(formatter, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of entries which can wait to be written
+     */
+    public AsynchronousLogFormatter(LogFormatter formatter, int capacity) {
+        this.formatter = formatter;
+        this.queue = new ArrayBlockingQueue<Entry>(capacity);
+    }
+
+    /**
+     * @return the formatter which does the writing
+     */
+    public LogFormatter getFormatter() {
+        return formatter;
+    }
+
+    public void startLogging(final String title) {
+        log(new Entry() {
+            public void write(LogFormatter formatter) {
+                formatter.startLogging(title);
+            }
+        });
+    }
+
+    public void logHeading(final String heading) {
+        log(new Entry() {
+            public void write(LogFormatter formatter) {
+                formatter.logHeading(heading);
+            }
+        });
+    }
+
+    public void logLine(final String line) {
+        log(new Entry() {
+            public void write(LogFormatter formatter) {
+                formatter.logLine(line);
+            }
+        });
+    }
+
+    public void logLabels(final String[] labels) {
+        log(new Entry() {
+            public void write(LogFormatter formatter) {
+                formatter.logLabels(labels);
+            }
+        });
+    }
+
+    /**
+     * The array is written later so it mustn't be changed by the caller.
+     */
+    public void logValues(final String[] values) {
+        log(new Entry() {
+            public void write(LogFormatter formatter) {
+                formatter.logValues(values);
+            }
+        });
+    }
+
+    /**
+     * Queues an entry to be written, waiting if the queue is full.
+     */
+    public void log(Entry entry) {
+        checkError();
+        if (writer == null) {
+            // not all loggers pass startLogging() on to their formatters
+            startWriter();
+        }
+        try {
+            put(entry);
+        } catch (InterruptedException ie) {
+            throw new RuntimeException("Interrupted while waiting to log");
+        }
+        checkError();
+    }
+
+    private synchronized void startWriter() {
+        writer = new Thread("log writer") {
+            public void run() {
+                try {
+                    Entry entry;
+                    do {
+                        entry = queue.take();
+                        entry.write(formatter);
+                    } while (entry != STOP);
+                } catch (Throwable t) {
+                    // the chain reports this the next time it logs
+                    error = t;
+                    queue.clear();
+                }
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+
+        shutdownHook = new Thread() {
+            public void run() {
+                finish();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // waits for space in the queue unless the writer has failed
+    private void put(Entry entry) throws InterruptedException {
+        while (!queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+            if (error != null) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes everything queued and stops the writer thread.
+     */
+    public void stopLogging() {
+        finish();
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ise) {
+                // already shutting down
+            }
+            shutdownHook = null;
+        }
+        checkError();
+    }
+
+    private synchronized void finish() {
+        if (writer != null) {
+            if (error == null) {
+                try {
+                    put(STOP);
+                    writer.join();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException("Interrupted while waiting for the log to be written");
+                }
+            }
+            writer = null;
+        }
+    }
+
+    private void checkError() {
+        if (error != null) {
+            throw new RuntimeException("Unable to write log: " + error.getMessage(), error);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * BinaryLogFormatter.java
+ *
+ * Copyright (C) 2002-2009 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A class that writes a log in a compact columnar binary format. Rows are collected into blocks and each block
+ * is written column by column, numbers as raw doubles, with an index of the blocks written every so often so a
+ * reader can find a given state without decoding the whole file. The format is read by {@link BinaryLogReader}.
+ * <p/>
+ * The file starts with {@link #MAGIC} and a version number, followed by a sequence of records, each a tag byte:
+ * <pre>
+ * HEADING  a line of the heading
+ * LINE     a line logged with logLine
+ * LABELS   the column labels, the first being the state
+ * BLOCK    row count, first and last state, the states, then for each column its type, its length in bytes
+ *          and its values
+ * INDEX    the offset of the previous index (or -1), then the offset, first state and row count of each block
+ *          since the previous index
+ * END      the offset of the last index
+ * </pre>
+ * Numbers are big-endian as written by DataOutputStream and strings are an int length followed by UTF-8 bytes.
+ * <p/>
+ * A block is written when it is full or when the flush interval has passed since the last one, and the stream is
+ * flushed after each block, so a run that is killed loses few rows and a running log can be followed (the reader
+ * stops at a partly written record).
+ */
+public class BinaryLogFormatter implements LogFormatter {
+
+    public static final byte[] MAGIC = {'B', 'E', 'A', 'S', 'T', 'L', 'O', 'G'};
+    public static final int VERSION = 1;
+
+    public static final byte HEADING = 'H';
+    public static final byte LINE = 'T';
+    public static final byte LABELS = 'L';
+    public static final byte BLOCK = 'B';
+    public static final byte INDEX = 'I';
+    public static final byte END = 'E';
+
+    public static final byte DOUBLE_COLUMN = 0;
+    public static final byte STRING_COLUMN = 1;
+
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+    // the longest time, in milliseconds, that logged rows are held before they are written as a shorter block
+    public static final long DEFAULT_FLUSH_INTERVAL = 10000;
+    public static final int BLOCKS_PER_INDEX = 64;
+
+    private final CountingOutputStream counter;
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final long flushInterval;
+    private long lastWriteTime = System.currentTimeMillis();
+
+    private int columnCount = -1;
+    private long[] states;
+    private double[][] values;
+    // the values of columns which have had a non-numeric value in this block, otherwise null
+    private String[][] strings;
+    private int rowCount = 0;
+
+    private long lastIndexOffset = -1;
+    private final List<long[]> unindexedBlocks = new ArrayList<long[]>();
+
+    private final ByteArrayOutputStream columnBytes = new ByteArrayOutputStream();
+    private final DataOutputStream columnOut = new DataOutputStream(columnBytes);
+
+    public BinaryLogFormatter(OutputStream stream) {
+        this(stream, DEFAULT_BLOCK_SIZE);
+    }
+
+    public BinaryLogFormatter(OutputStream stream, int blockSize) {
+        this(stream, blockSize, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * @param blockSize     the largest number of rows in a block, rows are written when a block is full, when
+     *                      flushInterval has passed since the last block and when logging stops
+     * @param flushInterval the longest time in milliseconds between blocks so that a stopped run loses few
+     *                      rows and a running log can be followed
+     */
+    public BinaryLogFormatter(OutputStream stream, int blockSize, long flushInterval) {
+        this.counter = new CountingOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        this.out = new DataOutputStream(counter);
+        this.blockSize = blockSize;
+        this.flushInterval = flushInterval;
+    }
+
+    public void startLogging(String title) {
+        try {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage());
+        }
+    }
+
+    public void logHeading(String heading) {
+        if (heading != null) {
+            String[] lines = heading.split("[\r\n]");
+            for (String line : lines) {
+                writeRecord(HEADING, line);
+            }
+        }
+    }
+
+    public void logLine(String line) {
+        writeRecord(LINE, line);
+    }
+
+    public void logLabels(String[] labels) {
+        // the state is kept apart from the other columns
+        columnCount = labels.length - 1;
+        states = new long[blockSize];
+        values = new double[columnCount][blockSize];
+        strings = new String[columnCount][];
+
+        try {
+            out.writeByte(LABELS);
+            out.writeInt(labels.length);
+            for (String label : labels) {
+                writeString(out, label);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Logs a row of formatted values, the first being the state. Values beyond the labelled columns (such as
+     * the performance report of a screen log) are ignored.
+     */
+    public void logValues(String[] values) {
+        checkLabels();
+
+        states[rowCount] = (long) Double.parseDouble(values[0]);
+        for (int i = 0; i < columnCount; i++) {
+            addValue(i, values[i + 1]);
+        }
+        endRow();
+    }
+
+    /**
+     * Logs a row straight from the columns so that numerical columns are never formatted as text.
+     */
+    public void logValues(long state, List<LogColumn> columns) {
+        checkLabels();
+
+        states[rowCount] = state;
+        for (int i = 0; i < columnCount; i++) {
+            LogColumn column = columns.get(i);
+            if (column instanceof NumberColumn) {
+                addValue(i, ((NumberColumn) column).getDoubleValue());
+            } else {
+                addValue(i, column.getFormatted());
+            }
+        }
+        endRow();
+    }
+
+    /**
+     * Logs a row of values taken earlier, numbers unless the string of a column is not null.
+     */
+    public void logValues(long state, double[] numbers, String[] strings) {
+        checkLabels();
+
+        states[rowCount] = state;
+        for (int i = 0; i < columnCount; i++) {
+            if (strings[i] != null) {
+                addValue(i, strings[i]);
+            } else {
+                addValue(i, numbers[i]);
+            }
+        }
+        endRow();
+    }
+
+    public void stopLogging() {
+        try {
+            if (rowCount > 0) {
+                writeBlock();
+            }
+            if (unindexedBlocks.size() > 0) {
+                writeIndex();
+            }
+            out.writeByte(END);
+            out.writeLong(lastIndexOffset);
+            out.close();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage());
+        }
+    }
+
+    private void checkLabels() {
+        if (columnCount < 0) {
+            throw new IllegalStateException("logLabels() must be called before logValues()");
+        }
+    }
+
+    private void addValue(int column, double value) {
+        if (strings[column] != null) {
+            strings[column][rowCount] = Double.toString(value);
+        } else {
+            values[column][rowCount] = value;
+        }
+    }
+
+    private void addValue(int column, String value) {
+        double number;
+        try {
+            number = Double.parseDouble(value);
+        } catch (NumberFormatException nfe) {
+            if (strings[column] == null) {
+                // this column holds text for the rest of this block
+                strings[column] = new String[blockSize];
+                for (int row = 0; row < rowCount; row++) {
+                    strings[column][row] = Double.toString(values[column][row]);
+                }
+            }
+            strings[column][rowCount] = value;
+            return;
+        }
+        addValue(column, number);
+    }
+
+    private void endRow() {
+        rowCount++;
+        if (rowCount == blockSize || System.currentTimeMillis() - lastWriteTime >= flushInterval) {
+            try {
+                writeBlock();
+            } catch (IOException ioe) {
+                throw new RuntimeException("Unable to write log: " + ioe.getMessage());
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        unindexedBlocks.add(new long[]{counter.count, states[0], rowCount});
+
+        out.writeByte(BLOCK);
+        out.writeInt(rowCount);
+        out.writeLong(states[0]);
+        out.writeLong(states[rowCount - 1]);
+        for (int row = 0; row < rowCount; row++) {
+            out.writeLong(states[row]);
+        }
+
+        for (int i = 0; i < columnCount; i++) {
+            columnBytes.reset();
+            if (strings[i] != null) {
+                for (int row = 0; row < rowCount; row++) {
+                    writeString(columnOut, strings[i][row]);
+                }
+                out.writeByte(STRING_COLUMN);
+            } else {
+                for (int row = 0; row < rowCount; row++) {
+                    columnOut.writeDouble(values[i][row]);
+                }
+                out.writeByte(DOUBLE_COLUMN);
+            }
+            columnOut.flush();
+            out.writeInt(columnBytes.size());
+            columnBytes.writeTo(out);
+            strings[i] = null;
+        }
+        rowCount = 0;
+
+        if (unindexedBlocks.size() == BLOCKS_PER_INDEX) {
+            writeIndex();
+        }
+        out.flush();
+        lastWriteTime = System.currentTimeMillis();
+    }
+
+    private void writeIndex() throws IOException {
+        long offset = counter.count;
+
+        out.writeByte(INDEX);
+        out.writeLong(lastIndexOffset);
+        out.writeInt(unindexedBlocks.size());
+        for (long[] block : unindexedBlocks) {
+            out.writeLong(block[0]);
+            out.writeLong(block[1]);
+            out.writeInt((int) block[2]);
+        }
+        unindexedBlocks.clear();
+        lastIndexOffset = offset;
+    }
+
+    private void writeRecord(byte tag, String text) {
+        try {
+            out.writeByte(tag);
+            writeString(out, text);
+            out.flush();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Unable to write log: " + ioe.getMessage());
+        }
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // keeps the offset into the file, which DataOutputStream.size() can't beyond 2GB
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * BinaryLogReader.java
+ *
+ * Copyright (C) 2002-2009 Alexei Drummond and Andrew Rambaut
+ *
+ * This file is part of BEAST.
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership and licensing.
+ *
+ * BEAST is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ *  BEAST is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with BEAST; if not, write to the
+ * Free Software Foundation, Inc., 51 Franklin St, Fifth Floor,
+ * Boston, MA  02110-1301  USA
+ */
+
+package dr.inference.loggers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads a log written by {@link BinaryLogFormatter} a block at a time. The headings, lines and labels are
+ * collected as they are passed and the values of the current block can be taken column by column. Columns
+ * which are not selected are skipped without being decoded.
+ */
+public class BinaryLogReader {
+
+    private DataInputStream in;
+
+    private final List<String> headings = new ArrayList<String>();
+    private final List<String> lines = new ArrayList<String>();
+    private String[] labels = null;
+
+    private boolean[] selected = null;
+
+    private int rowCount = 0;
+    private long[] states = new long[0];
+    private double[][] values;
+    private String[][] strings;
+
+    private boolean finished = false;
+
+    public BinaryLogReader(InputStream stream) throws IOException {
+        this.in = new DataInputStream(stream instanceof BufferedInputStream ? stream :
+                new BufferedInputStream(stream, 1 << 16));
+        readMagic(in);
+    }
+
+    /**
+     * Opens a log and moves to the block holding the given state, using the block indices, so that earlier
+     * blocks are never read. The headings and labels are read first.
+     */
+    public BinaryLogReader(File file, long fromState) throws IOException {
+        long offset = -1;
+        for (long[] block : readIndex(file)) {
+            if (block[1] <= fromState && block[0] > offset) {
+                offset = block[0];
+            }
+        }
+
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        readMagic(in);
+        // read up to the first block so the heading and labels are known
+        readHeader();
+
+        if (offset > 0) {
+            in.close();
+            FileInputStream stream = new FileInputStream(file);
+            stream.getChannel().position(offset);
+            in = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+        }
+    }
+
+    private void readMagic(DataInputStream in) throws IOException {
+        byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogFormatter.MAGIC)) {
+            throw new IOException("Not a binary log file");
+        }
+        int version = in.readInt();
+        if (version > BinaryLogFormatter.VERSION) {
+            throw new IOException("Binary log file version " + version + " is not supported");
+        }
+    }
+
+    /**
+     * @return true if the stream starts like a binary log. The stream is reset to where it was.
+     */
+    public static boolean isBinaryLog(InputStream stream) throws IOException {
+        byte[] magic = new byte[BinaryLogFormatter.MAGIC.length];
+        stream.mark(magic.length);
+        int count = 0;
+        while (count < magic.length) {
+            int read = stream.read(magic, count, magic.length - count);
+            if (read < 0) {
+                break;
+            }
+            count += read;
+        }
+        stream.reset();
+        return count == magic.length && Arrays.equals(magic, BinaryLogFormatter.MAGIC);
+    }
+
+    public static boolean isBinaryLog(File file) throws IOException {
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return isBinaryLog(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Reads the block indices from the end of a complete log.
+     *
+     * @return the file offset, first state and row count of each block in order, or an empty list if the log
+     *         was not closed properly
+     */
+    public static List<long[]> readIndex(File file) throws IOException {
+        List<long[]> blocks = new ArrayList<long[]>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 9) {
+                return blocks;
+            }
+            raf.seek(raf.length() - 9);
+            if (raf.readByte() != BinaryLogFormatter.END) {
+                return blocks;
+            }
+            long offset = raf.readLong();
+            List<List<long[]>> indices = new ArrayList<List<long[]>>();
+            while (offset >= 0) {
+                raf.seek(offset);
+                if (raf.readByte() != BinaryLogFormatter.INDEX) {
+                    throw new IOException("Binary log index is corrupt");
+                }
+                offset = raf.readLong();
+                int count = raf.readInt();
+                List<long[]> index = new ArrayList<long[]>(count);
+                for (int i = 0; i < count; i++) {
+                    index.add(new long[]{raf.readLong(), raf.readLong(), raf.readInt()});
+                }
+                indices.add(0, index);
+            }
+            for (List<long[]> index : indices) {
+                blocks.addAll(index);
+            }
+        } finally {
+            raf.close();
+        }
+        return blocks;
+    }
+
+    public List<String> getHeadings() {
+        return headings;
+    }
+
+    public List<String> getLines() {
+        return lines;
+    }
+
+    /**
+     * @return the column labels, the first being the state, or null if they haven't been read yet
+     */
+    public String[] getLabels() {
+        return labels;
+    }
+
+    /**
+     * Only decode the given columns (not counting the state), the others are skipped.
+     */
+    public void setSelectedColumns(boolean[] selected) {
+        this.selected = selected;
+    }
+
+    /**
+     * Reads the headings and labels up to the first block.
+     */
+    public void readHeader() throws IOException {
+        while (!finished && labels == null) {
+            in.mark(1);
+            int tag = in.read();
+            if (tag == BinaryLogFormatter.BLOCK) {
+                in.reset();
+                break;
+            }
+            readRecord(tag);
+        }
+    }
+
+    /**
+     * Moves to the next block.
+     *
+     * @return false when the end of the log has been reached
+     */
+    public boolean nextBlock() throws IOException {
+        try {
+            while (!finished) {
+                int tag = in.read();
+                if (tag == BinaryLogFormatter.BLOCK) {
+                    readBlock();
+                    return true;
+                }
+                readRecord(tag);
+            }
+        } catch (EOFException eofe) {
+            // the run was stopped while the last record was being written
+            finished = true;
+        }
+        rowCount = 0;
+        return false;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public long getState(int row) {
+        return states[row];
+    }
+
+    public boolean isNumeric(int column) {
+        return strings[column] == null;
+    }
+
+    public double getValue(int column, int row) {
+        if (strings[column] != null) {
+            return Double.parseDouble(strings[column][row]);
+        }
+        return values[column][row];
+    }
+
+    public String getString(int column, int row) {
+        if (strings[column] != null) {
+            return strings[column][row];
+        }
+        return Double.toString(values[column][row]);
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // reads any record other than a block
+    private void readRecord(int tag) throws IOException {
+        switch (tag) {
+            case -1:
+                // a log which wasn't closed properly ends after its last block
+                finished = true;
+                break;
+            case BinaryLogFormatter.HEADING:
+                headings.add(readString(in));
+                break;
+            case BinaryLogFormatter.LINE:
+                lines.add(readString(in));
+                break;
+            case BinaryLogFormatter.LABELS:
+                labels = new String[in.readInt()];
+                for (int i = 0; i < labels.length; i++) {
+                    labels[i] = readString(in);
+                }
+                values = new double[labels.length - 1][];
+                strings = new String[labels.length - 1][];
+                break;
+            case BinaryLogFormatter.INDEX:
+                in.readLong();
+                skipFully(in.readInt() * 20L);
+                break;
+            case BinaryLogFormatter.END:
+                in.readLong();
+                finished = true;
+                break;
+            default:
+                throw new IOException("Binary log file is corrupt (unknown record " + tag + ")");
+        }
+    }
+
+    private void readBlock() throws IOException {
+        if (labels == null) {
+            throw new IOException("Binary log file has values before its labels");
+        }
+        rowCount = in.readInt();
+        in.readLong();
+        in.readLong();
+        if (states.length < rowCount) {
+            states = new long[rowCount];
+        }
+        for (int row = 0; row < rowCount; row++) {
+            states[row] = in.readLong();
+        }
+
+        for (int i = 0; i < values.length; i++) {
+            byte type = in.readByte();
+            int length = in.readInt();
+            strings[i] = null;
+            if (selected != null && (i >= selected.length || !selected[i])) {
+                skipFully(length);
+                continue;
+            }
+            if (type == BinaryLogFormatter.STRING_COLUMN) {
+                strings[i] = new String[rowCount];
+                for (int row = 0; row < rowCount; row++) {
+                    strings[i][row] = readString(in);
+                }
+            } else {
+                if (values[i] == null || values[i].length < rowCount) {
+                    values[i] = new double[rowCount];
+                }
+                for (int row = 0; row < rowCount; row++) {
+                    values[i][row] = in.readDouble();
+                }
+            }
+        }
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -211,6 +211,13 @@ public class MCLogger implements Logger {
         }
 
         if (logEvery > 0 && (state % logEvery == 0)) {
+            // binary logs take the numbers straight from the columns and asynchronous logs
+            // take a snapshot of them to be formatted on their writer thread
+            logBinaryValues(state);
+            logAsynchronousValues(state);
+        }
+
+        if (logEvery > 0 && (state % logEvery == 0) && hasTextFormatters()) {
 
             final int columnCount = getColumnCount();
 
@@ -223,33 +230,125 @@ public class MCLogger implements Logger {
             }
 
             if (performanceReport) {
-                if (performanceReportStarted) {
+                values[columnCount + 1] = getPerformanceReport(state);
+            }
+
+            logTextValues(values);
+        }
+
+        if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
+            performanceReportStarted = true;
+        }
+
+    }
+
+    private String getPerformanceReport(long state) {
+        if (performanceReportStarted) {
+
+            long time = System.currentTimeMillis();
+
+            double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
 
-                    long time = System.currentTimeMillis();
+            String hpm = formatter.format(hoursPerMillionStates);
+            if (hpm.equals("0")) {
+                // test cases can run fast :)
+                hpm = formatter.format(1000 * hoursPerMillionStates);
+                return hpm + " hours/billion states";
+            } else {
+                return hpm + " hours/million states";
+            }
+
+        } else {
+            return "-";
+        }
+    }
+
+    private void logAsynchronousValues(long state) {
+        ValuesSnapshot snapshot = null;
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof AsynchronousLogFormatter) {
+                if (snapshot == null) {
+                    snapshot = new ValuesSnapshot(state);
+                }
+                ((AsynchronousLogFormatter) formatter).log(snapshot);
+            }
+        }
+    }
 
-                    double hoursPerMillionStates = (double) (time - startTime) / (3.6 * (double) (state - startState));
+    /**
+     * The values of the columns at one state. Numbers are kept as doubles and formatted when the snapshot is
+     * written, anything else is formatted when the snapshot is taken.
+     */
+    private class ValuesSnapshot implements AsynchronousLogFormatter.Entry {
+        private final long state;
+        private final double[] numbers;
+        private final String[] strings;
+        private final String performance;
 
-                    String hpm = formatter.format(hoursPerMillionStates);
-                    if (hpm.equals("0")) {
-                        // test cases can run fast :)
-                        hpm = formatter.format(1000 * hoursPerMillionStates);
-                        values[columnCount + 1] = hpm + " hours/billion states";
-                    } else {
-                        values[columnCount + 1] = hpm + " hours/million states";
-                    }
+        ValuesSnapshot(long state) {
+            this.state = state;
 
+            final int columnCount = getColumnCount();
+            numbers = new double[columnCount];
+            strings = new String[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                LogColumn column = getColumn(i);
+                if (column instanceof NumberColumn) {
+                    numbers[i] = ((NumberColumn) column).getDoubleValue();
                 } else {
-                    values[columnCount + 1] = "-";
+                    strings[i] = column.getFormatted();
                 }
             }
 
-            logValues(values);
+            performance = (performanceReport ? getPerformanceReport(state) : null);
         }
 
-        if (performanceReport && !performanceReportStarted && state >= performanceReportDelay) {
-            performanceReportStarted = true;
+        public void write(LogFormatter formatter) {
+            if (formatter instanceof BinaryLogFormatter) {
+                ((BinaryLogFormatter) formatter).logValues(state, numbers, strings);
+                return;
+            }
+
+            final int columnCount = numbers.length;
+            String[] values = new String[columnCount + (performance != null ? 2 : 1)];
+
+            values[0] = Long.toString(state);
+
+            for (int i = 0; i < columnCount; i++) {
+                values[i + 1] = (strings[i] != null ? strings[i] : ((NumberColumn) getColumn(i)).getFormatted(numbers[i]));
+            }
+
+            if (performance != null) {
+                values[columnCount + 1] = performance;
+            }
+
+            formatter.logValues(values);
         }
+    }
 
+    private void logBinaryValues(long state) {
+        for (LogFormatter formatter : formatters) {
+            if (formatter instanceof BinaryLogFormatter) {
+                ((BinaryLogFormatter) formatter).logValues(state, columns);
+            }
+        }
+    }
+
+    private boolean hasTextFormatters() {
+        for (LogFormatter formatter : formatters) {
+            if (!(formatter instanceof BinaryLogFormatter || formatter instanceof AsynchronousLogFormatter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void logTextValues(String[] values) {
+        for (LogFormatter formatter : formatters) {
+            if (!(formatter instanceof BinaryLogFormatter || formatter instanceof AsynchronousLogFormatter)) {
+                formatter.logValues(values);
+            }
+        }
     }
 
     public void stopLogging() {
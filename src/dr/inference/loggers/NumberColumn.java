@@ -101,7 +101,7 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	public int getDecimalPlaces() { return dp; }
 	
 
-    public String formatValue(double value) {
+    public synchronized String formatValue(double value) {
        if (dp < 0 && sf < 0) {
 			// return it at full precision
 			return Double.toString(value);
@@ -139,7 +139,21 @@ public abstract class NumberColumn extends LogColumn.Abstract {
 	 * @return the formatted string.
 	 */
 	protected String getFormattedValue() {
-		return formatValue(getDoubleValue());
+		return getFormattedValue(getDoubleValue());
+	}
+
+	/**
+	 * Returns a value taken earlier from getDoubleValue() formatted as getFormatted()
+	 * would have formatted it, so a log can be formatted after the chain has moved on.
+	 *
+	 * @return the formatted string.
+	 */
+	public String getFormatted(double value) {
+		return padToMinimumWidth(getFormattedValue(value));
+	}
+
+	protected String getFormattedValue(double value) {
+		return formatValue(value);
 	}
 	
 	private int getNumFractionDigits(double value) {
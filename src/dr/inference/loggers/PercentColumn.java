@@ -33,12 +33,11 @@ public class PercentColumn extends NumberColumn {
         return column.getMinimumWidth();
     }
 
-    public String getFormattedValue() {
-        double val = column.getDoubleValue();
+    public String getFormattedValue(double val) {
         if( val >= 0 && val <= 1 ) {
             return column.formatValue(val * 100) + "%";
         }
-        return column.getFormattedValue();
+        return column.getFormattedValue(val);
     }
 
     public double getDoubleValue() {
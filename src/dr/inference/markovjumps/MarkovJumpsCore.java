@@ -23,6 +23,7 @@ public class MarkovJumpsCore {
         tmp1 = new double[stateCount2];
         tmp2 = new double[stateCount2];
         expEvalScalar = new double[stateCount];
+        cachedEval = new double[stateCount];
     }
 
 //SEXP aux_mat1(SEXP x, SEXP y){
@@ -56,6 +57,12 @@ public class MarkovJumpsCore {
 
     private void populateAuxInt(double[] eval, double scalar, double[] auxInt) {
 
+        // auxInt depends only on the eigenvalues and time, so consecutive calls for the same branch (e.g., across
+        // registers sharing this core) reuse it
+        if (scalar == cachedScalar && Arrays.equals(eval, cachedEval)) {
+            return;
+        }
+
         for (int i = 0; i < stateCount; i++) {
             expEvalScalar[i] = Math.exp(eval[i] * scalar);
         }
@@ -73,6 +80,9 @@ public class MarkovJumpsCore {
                 index++;
             }
         }
+
+        System.arraycopy(eval, 0, cachedEval, 0, stateCount);
+        cachedScalar = scalar;
     }
 
     public void computeCondStatMarkovJumps(double[] evec,
@@ -101,6 +111,23 @@ public class MarkovJumpsCore {
         }
     }
 
+    /**
+     * Conditional expectation for a single pair of end states. This costs O(stateCount^2) rather than the
+     * O(stateCount^3) needed for the full matrix, so is much cheaper when only a few entries are required, as for
+     * discrete traits with many states and few patterns.
+     */
+    public double computeCondStatMarkovJumpsPrecompute(double[] evec,
+                                                       double[] ievc,
+                                                       double[] eval,
+                                                       double[] ievcRateRegEvc,
+                                                       double   time,
+                                                       int      from,
+                                                       int      to,
+                                                       double   transitionProb) {
+        return computeJointStatMarkovJumpsPrecompute(evec, ievc, eval, ievcRateRegEvc, time, from, to)
+                / transitionProb;
+    }
+
 //joint.mean.markov.jumps = function(rate.eigen, regist.matrix, interval.len){
 //
 //  if (!("eigen" %in% class(rate.eigen)))
@@ -193,6 +220,30 @@ public class MarkovJumpsCore {
         matrixMultiply(evec, tmp1, stateCount, countMatrix);
     }
 
+    public double computeJointStatMarkovJumpsPrecompute(double[] evec,
+                                                        double[] ievc,
+                                                        double[] eval,
+                                                        double[] ievcRateRegEvc,
+                                                        double   time,
+                                                        int      from,
+                                                        int      to) {
+        // Equation (37) from Minin and Suchard
+        populateAuxInt(eval,time,auxInt);
+
+        // Row 'from' of evec %*% (int.matrix*(ievc %*% rate.reg %*% evec)) %*% column 'to' of ievc
+        double total = 0;
+        int index = 0;
+        for (int k = 0; k < stateCount; k++) {
+            double inner = 0;
+            for (int l = 0; l < stateCount; l++) {
+                inner += auxInt[index] * ievcRateRegEvc[index] * ievc[l * stateCount + to];
+                index++;
+            }
+            total += evec[from * stateCount + k] * inner;
+        }
+        return total;
+    }
+
     // Computes C = A %*% B for square matrices A and B
     public static void matrixMultiply(final double[] A,
                                       final double[] B,
@@ -259,4 +310,6 @@ public class MarkovJumpsCore {
     private double[] tmp1;
     private double[] tmp2;
     private double[] expEvalScalar;
+    private double[] cachedEval;
+    private double cachedScalar = Double.NaN;
 }
@@ -25,21 +25,30 @@
 
 package dr.inference.mcmc;
 
+import dr.app.beagle.evomodel.branchmodel.lineagespecific.CountableRealizationsParameter;
+import dr.app.beagle.evomodel.branchmodel.lineagespecific.RatioParameter;
+import dr.app.beagle.evomodel.substmodel.ExposeRateCategoriesWrapper;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.distribution.AbstractDistributionLikelihood;
+import dr.inference.loggers.LogFormatter;
 import dr.inference.loggers.Logger;
 import dr.inference.loggers.MCLogger;
 import dr.inference.markovchain.MarkovChain;
 import dr.inference.markovchain.MarkovChainListener;
-import dr.inference.model.Model;
-import dr.inference.model.PathLikelihood;
+import dr.inference.model.*;
 import dr.inference.operators.*;
 import dr.inference.prior.Prior;
+import dr.util.Attribute;
 import dr.util.Identifiable;
 import dr.xml.*;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.BetaDistributionImpl;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * @author Andrew Rambaut
@@ -79,6 +88,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         mc = new MarkovChain(Prior.UNIFORM_PRIOR, pathLikelihood, schedule, criterion, 0, 0, 0.0, true);
 
         this.loggers = loggers;
+        chainListener = new PathChainListener(loggers, schedule);
     }
 
     private void setDefaultBurnin() {
@@ -89,7 +99,37 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         }
     }
 
+    /**
+     * Adds an independent copy of the model so that path steps can be run concurrently. Models cannot be
+     * cloned, so the copy has to be declared in full (in the XML, the same elements with different ids):
+     * its models and parameters must match those of the estimator one by one, and it must have its own
+     * samplers, path likelihood and loggers. The loggers should match those of the estimator one-to-one;
+     * their rows are written to the estimator's logs.
+     *
+     * @throws IllegalArgumentException if the copy does not match the model or shares part of it
+     */
+    public void addReplicate(PathLikelihood pathLikelihood, OperatorSchedule schedule, List<MCLogger> loggers) {
+        if (loggers.size() != this.loggers.size()) {
+            throw new IllegalArgumentException("A replicate must have the same number of loggers as the marginal likelihood estimator");
+        }
+        if (replicates.isEmpty()) {
+            replicatedState.addAll(getStateComponents(this.pathLikelihood));
+            checkOperators(this.schedule, replicatedState);
+        }
+        checkReplicate(getStateComponents(this.pathLikelihood), getStateComponents(pathLikelihood), replicatedState);
+        checkOperators(schedule, replicatedState);
+
+        pathLikelihood.setPathParameter(pathParameter);
+        MarkovChain chain = new MarkovChain(Prior.UNIFORM_PRIOR, pathLikelihood, schedule, new MCMCCriterion(), 0, 0, 0.0, true);
+        replicates.add(new PathReplicate(chain, pathLikelihood, schedule, loggers, new PathChainListener(loggers, schedule)));
+    }
+
     public void integrate(Integrator scheme) {
+        if (replicates.size() > 0) {
+            integrateConcurrently(scheme);
+            return;
+        }
+
         setDefaultBurnin();
         mc.setCurrentLength(burnin);
         scheme.init();
@@ -118,6 +158,471 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         }
     }
 
+    /**
+     * Runs the path steps in contiguous blocks, one block per copy of the model. Before the blocks are run
+     * the state is carried down the path to the first step of each block: each copy takes the state of the
+     * copy before it and is equilibrated at its first path parameter, so every block starts from the state
+     * its neighbour's model reached along the path. The state numbers and the rows logged are those of the
+     * sequential integration, and the rows and progress output are written from this thread in the order
+     * of the path schedule.
+     */
+    private void integrateConcurrently(Integrator scheme) {
+        setDefaultBurnin();
+
+        final List<Double> pathParameters = new ArrayList<Double>();
+        scheme.init();
+        for (double theta = scheme.nextPathParameter(); theta >= 0; theta = scheme.nextPathParameter()) {
+            pathParameters.add(theta);
+        }
+        final int stepCount = pathParameters.size();
+        final int totalSteps = scheme.pathSteps;
+
+        final List<PathReplicate> workers = new ArrayList<PathReplicate>();
+        workers.add(new PathReplicate(mc, pathLikelihood, schedule, loggers, chainListener));
+        workers.addAll(replicates);
+        final int workerCount = Math.max(1, Math.min(workers.size(), stepCount));
+
+        int[] blockStarts = new int[workerCount + 1];
+        int blockSize = stepCount / workerCount;
+        int remainder = stepCount % workerCount;
+        for (int i = 0; i < workerCount; i++) {
+            blockStarts[i + 1] = blockStarts[i] + blockSize + (i < remainder ? 1 : 0);
+        }
+
+        // carry the state along the path to the first step of each block
+        for (int i = 1; i < workerCount; i++) {
+            PathReplicate replicate = workers.get(i);
+            copyState(workers.get(i - 1).components, replicate.components);
+            replicate.setPathParameter(pathParameters.get(blockStarts[i]));
+            replicate.chain.setCurrentLength(0);
+            replicate.chain.runChain(burnin, false);
+        }
+
+        final PathStepLog[] stepLogs = new PathStepLog[stepCount];
+        for (int i = 0; i < stepCount; i++) {
+            stepLogs[i] = new PathStepLog(loggers.size());
+        }
+
+        // the rows are collected per step and written out to the estimator's own formatters in order
+        List<List<LogFormatter>> destinations = new ArrayList<List<LogFormatter>>();
+        for (MCLogger logger : loggers) {
+            destinations.add(logger.getFormatters());
+        }
+        for (int i = 1; i < workerCount; i++) {
+            workers.get(i).chain.addMarkovChainListener(workers.get(i).listener);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(workerCount);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        try {
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(pool.submit(new PathStepRunner(workers.get(i), pathParameters,
+                        blockStarts[i], blockStarts[i + 1], totalSteps, stepLogs)));
+            }
+
+            for (PathStepLog stepLog : stepLogs) {
+                try {
+                    stepLog.done.await();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException("Interrupted while waiting for path steps");
+                }
+                System.out.print(stepLog.output.toString());
+                System.out.flush();
+                if (!stepLog.completed) {
+                    break;
+                }
+                for (int j = 0; j < destinations.size(); j++) {
+                    for (String[] values : stepLog.rows.get(j)) {
+                        for (LogFormatter formatter : destinations.get(j)) {
+                            formatter.logValues(values);
+                        }
+                    }
+                }
+                stepLog.rows = null;
+            }
+
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ie) {
+                    throw new RuntimeException("Interrupted while waiting for path steps");
+                } catch (ExecutionException ee) {
+                    if (ee.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) ee.getCause();
+                    }
+                    throw new RuntimeException(ee.getCause());
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            for (int i = 0; i < workerCount; i++) {
+                workers.get(i).restoreFormatters();
+            }
+            for (int i = 1; i < workerCount; i++) {
+                workers.get(i).chain.removeMarkovChainListener(workers.get(i).listener);
+            }
+            // the formatters only saw the row collectors stop, so flush and close them now
+            for (PathReplicate worker : workers) {
+                for (MCLogger logger : worker.loggers) {
+                    logger.stopLogging();
+                }
+            }
+        }
+    }
+
+    /**
+     * A copy of the model sampled along the path.
+     */
+    private class PathReplicate {
+        final MarkovChain chain;
+        final PathLikelihood pathLikelihood;
+        final OperatorSchedule schedule;
+        final List<MCLogger> loggers;
+        final PathChainListener listener;
+        final List<Object> components;
+
+        private final List<List<LogFormatter>> formatters = new ArrayList<List<LogFormatter>>();
+
+        PathReplicate(MarkovChain chain, PathLikelihood pathLikelihood, OperatorSchedule schedule,
+                      List<MCLogger> loggers, PathChainListener listener) {
+            this.chain = chain;
+            this.pathLikelihood = pathLikelihood;
+            this.schedule = schedule;
+            this.loggers = loggers;
+            this.listener = listener;
+            this.components = getStateComponents(pathLikelihood);
+            for (MCLogger logger : loggers) {
+                formatters.add(logger.getFormatters());
+            }
+        }
+
+        void setPathParameter(double theta) {
+            pathLikelihood.setPathParameter(theta);
+            for (int i = 0; i < schedule.getOperatorCount(); ++i) {
+                MCMCOperator operator = schedule.getOperator(i);
+                if (operator instanceof GibbsOperator) {
+                    ((GibbsOperator) operator).setPathParameter(theta);
+                }
+            }
+        }
+
+        void logTo(PathStepLog stepLog) {
+            for (int j = 0; j < loggers.size(); j++) {
+                loggers.get(j).setFormatters(Collections.<LogFormatter>singletonList(new RowCollector(stepLog.rows.get(j))));
+            }
+        }
+
+        void restoreFormatters() {
+            for (int j = 0; j < loggers.size(); j++) {
+                loggers.get(j).setFormatters(formatters.get(j));
+            }
+        }
+    }
+
+    private static class PathStepLog {
+        final CountDownLatch done = new CountDownLatch(1);
+        // the progress and operator analysis printed while the step was run
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        volatile boolean completed = false;
+        List<List<String[]>> rows;
+
+        PathStepLog(int loggerCount) {
+            rows = new ArrayList<List<String[]>>();
+            for (int j = 0; j < loggerCount; j++) {
+                rows.add(new ArrayList<String[]>());
+            }
+        }
+    }
+
+    /**
+     * Keeps the logged values so they can be written out later.
+     */
+    private static class RowCollector implements LogFormatter {
+        private final List<String[]> rows;
+
+        RowCollector(List<String[]> rows) {
+            this.rows = rows;
+        }
+
+        public void startLogging(String title) {
+        }
+
+        public void logHeading(String heading) {
+        }
+
+        public void logLine(String line) {
+        }
+
+        public void logLabels(String[] labels) {
+        }
+
+        public void logValues(String[] values) {
+            rows.add(values);
+        }
+
+        public void stopLogging() {
+        }
+    }
+
+    private class PathStepRunner implements Callable<Object> {
+        private final PathReplicate replicate;
+        private final List<Double> pathParameters;
+        private final int from;
+        private final int to;
+        private final int totalSteps;
+        private final PathStepLog[] stepLogs;
+
+        PathStepRunner(PathReplicate replicate, List<Double> pathParameters, int from, int to, int totalSteps, PathStepLog[] stepLogs) {
+            this.replicate = replicate;
+            this.pathParameters = pathParameters;
+            this.from = from;
+            this.to = to;
+            this.totalSteps = totalSteps;
+            this.stepLogs = stepLogs;
+        }
+
+        public Object call() {
+            int step = from;
+            try {
+                ((CombinedOperatorSchedule) replicate.schedule).reset();
+                for (; step < to; step++) {
+                    double theta = pathParameters.get(step);
+                    PrintStream out = new PrintStream(stepLogs[step].output, true);
+                    replicate.listener.setOutput(out);
+                    replicate.logTo(stepLogs[step]);
+                    replicate.setPathParameter(theta);
+                    reportIteration(out, theta, chainLength, burnin, totalSteps, step + 1);
+
+                    MarkovChain chain = replicate.chain;
+                    chain.setCurrentLength(0);
+                    chain.runChain(burnin, false);
+                    // number the states as the sequential integration would
+                    chain.setCurrentLength(burnin + step * chainLength);
+                    chain.runChain(chainLength, false);
+
+                    if (SHOW_OPERATOR_ANALYSIS) {
+                        (new OperatorAnalysisPrinter(replicate.schedule)).showOperatorAnalysis(out);
+                    }
+                    ((CombinedOperatorSchedule) replicate.schedule).reset();
+                    out.flush();
+
+                    stepLogs[step].completed = true;
+                    stepLogs[step].done.countDown();
+                }
+            } finally {
+                replicate.listener.setOutput(System.out);
+                // release any steps that will not be run
+                for (; step < to; step++) {
+                    stepLogs[step].done.countDown();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The models and parameters that make up the state sampled with a likelihood, in the order they are
+     * found (child models before their own parameters, as in AbstractModel.sendState). A tree model is
+     * taken whole, with the parameters of its nodes.
+     */
+    private static List<Object> getStateComponents(Likelihood likelihood) {
+        List<Object> components = new ArrayList<Object>();
+        addStateComponents(likelihood, components, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()));
+        return components;
+    }
+
+    private static void addStateComponents(Likelihood likelihood, List<Object> components, Set<Object> visited) {
+        if (likelihood == null || !visited.add(likelihood)) {
+            return;
+        }
+        if (likelihood instanceof PathLikelihood) {
+            addStateComponents(((PathLikelihood) likelihood).getSourceLikelihood(), components, visited);
+            addStateComponents(((PathLikelihood) likelihood).getDestinationLikelihood(), components, visited);
+        } else if (likelihood instanceof CompoundLikelihood) {
+            for (Likelihood child : ((CompoundLikelihood) likelihood).getLikelihoods()) {
+                addStateComponents(child, components, visited);
+            }
+        } else if (likelihood instanceof AbstractDistributionLikelihood) {
+            // the parameters a prior is placed on are not necessarily part of any model
+            for (Attribute<double[]> data : ((AbstractDistributionLikelihood) likelihood).getDataList()) {
+                if (data instanceof Parameter && visited.add(data)) {
+                    components.add(data);
+                }
+            }
+        }
+        addStateComponents(likelihood.getModel(), components, visited);
+    }
+
+    private static void addStateComponents(Model model, List<Object> components, Set<Object> visited) {
+        if (model == null || !visited.add(model)) {
+            return;
+        }
+        components.add(model);
+        if (model instanceof TreeModel) {
+            return;
+        }
+        for (int i = 0; i < model.getModelCount(); i++) {
+            addStateComponents(model.getModel(i), components, visited);
+        }
+        for (int i = 0; i < model.getVariableCount(); i++) {
+            Variable variable = model.getVariable(i);
+            if (variable instanceof Parameter && visited.add(variable)) {
+                components.add(variable);
+            }
+        }
+    }
+
+    /**
+     * Checks that a replicate is a separate copy of the model: its models and parameters must match those
+     * of the estimator one by one and none of them, nor any of its operators, may be used elsewhere.
+     */
+    private static void checkReplicate(List<Object> model, List<Object> copy, Set<Object> used) {
+        if (model.size() != copy.size()) {
+            throw new IllegalArgumentException("A " + REPLICATE + " must repeat the model of the " +
+                    MARGINAL_LIKELIHOOD_ESTIMATOR + " element for element, but it has " + copy.size() +
+                    " models and parameters rather than " + model.size());
+        }
+        for (int i = 0; i < model.size(); i++) {
+            Object original = model.get(i);
+            Object replicate = copy.get(i);
+            if (used.contains(replicate)) {
+                throw new IllegalArgumentException("The " + describe(replicate) + " is used by more than one " +
+                        REPLICATE + " of the model; each " + REPLICATE + " must declare its own copy of every " +
+                        "model and parameter, with its own ids");
+            }
+            if (original.getClass() != replicate.getClass()) {
+                throw new IllegalArgumentException("The " + describe(replicate) + " in a " + REPLICATE +
+                        " does not match the " + describe(original) + " of the model it should copy");
+            }
+            if (original instanceof Parameter &&
+                    ((Parameter) original).getDimension() != ((Parameter) replicate).getDimension()) {
+                throw new IllegalArgumentException("The " + describe(replicate) + " in a " + REPLICATE +
+                        " has a different dimension from the " + describe(original) + " it should copy");
+            }
+            if (original instanceof TreeModel) {
+                TreeModel tree = (TreeModel) original;
+                TreeModel treeCopy = (TreeModel) replicate;
+                boolean sameTaxa = (tree.getExternalNodeCount() == treeCopy.getExternalNodeCount());
+                for (int j = 0; sameTaxa && j < tree.getExternalNodeCount(); j++) {
+                    sameTaxa = treeCopy.getTaxonIndex(tree.getTaxonId(j)) >= 0;
+                }
+                if (!sameTaxa) {
+                    throw new IllegalArgumentException("The " + describe(replicate) + " in a " + REPLICATE +
+                            " does not have the same taxa as the " + describe(original) + " it should copy");
+                }
+            }
+        }
+        used.addAll(copy);
+    }
+
+    private static void checkOperators(OperatorSchedule schedule, Set<Object> used) {
+        for (int i = 0; i < schedule.getOperatorCount(); i++) {
+            MCMCOperator operator = schedule.getOperator(i);
+            if (!used.add(operator)) {
+                throw new IllegalArgumentException("The operator " + operator.getOperatorName() +
+                        " is used by more than one " + REPLICATE + " of the model; each " + REPLICATE +
+                        " must have its own " + MCMC + " element and operators");
+            }
+        }
+    }
+
+    private static String describe(Object component) {
+        String id = (component instanceof Identifiable ? ((Identifiable) component).getId() : null);
+        return component.getClass().getSimpleName() + (id != null ? " '" + id + "'" : "");
+    }
+
+    /**
+     * Copies the state of one copy of the model into another, as checked by checkReplicate.
+     */
+    private static void copyState(List<Object> from, List<Object> to) {
+        for (int i = 0; i < from.size(); i++) {
+            if (from.get(i) instanceof TreeModel) {
+                copyTree((TreeModel) from.get(i), (TreeModel) to.get(i));
+            } else if (from.get(i) instanceof Parameter) {
+                copyParameter((Parameter) from.get(i), (Parameter) to.get(i));
+            }
+        }
+    }
+
+    private static void copyParameter(Parameter from, Parameter to) {
+        if (isDeterministic(to)) {
+            // parameters computed from others cannot be set and follow their sources
+            return;
+        }
+        for (int i = 0; i < from.getDimension(); i++) {
+            to.setParameterValueQuietly(i, from.getParameterValue(i));
+        }
+        to.fireParameterChangedEvent();
+    }
+
+    private static boolean isDeterministic(Parameter parameter) {
+        if (parameter instanceof CompoundParameter) {
+            CompoundParameter compound = (CompoundParameter) parameter;
+            for (int i = 0; i < compound.getParameterCount(); i++) {
+                if (isDeterministic(compound.getParameter(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return parameter instanceof ProductParameter
+                || parameter instanceof MatrixVectorProductParameter
+                || parameter instanceof MatrixMatrixProduct
+                || parameter instanceof RatioParameter
+                || parameter instanceof CountableRealizationsParameter
+                || parameter instanceof ExposeRateCategoriesWrapper;
+    }
+
+    private static void copyTree(TreeModel from, TreeModel to) {
+        to.beginTreeEdit();
+
+        List<NodeRef> parents = new ArrayList<NodeRef>();
+        List<NodeRef> children = new ArrayList<NodeRef>();
+        for (int i = 0; i < to.getInternalNodeCount(); i++) {
+            NodeRef node = to.getInternalNode(i);
+            for (int j = 0; j < to.getChildCount(node); j++) {
+                parents.add(node);
+                children.add(to.getChild(node, j));
+            }
+        }
+        for (int i = 0; i < parents.size(); i++) {
+            to.removeChild(parents.get(i), children.get(i));
+        }
+
+        for (int i = 0; i < from.getNodeCount(); i++) {
+            NodeRef node = from.getNode(i);
+            NodeRef copy = getCopiedNode(from, to, node);
+            for (int j = 0; j < from.getChildCount(node); j++) {
+                to.addChild(copy, getCopiedNode(from, to, from.getChild(node, j)));
+            }
+            to.setNodeHeight(copy, from.getNodeHeight(node));
+        }
+        to.setRoot(getCopiedNode(from, to, from.getRoot()));
+
+        to.endTreeEdit();
+
+        for (int i = 0; i < from.getNodeCount(); i++) {
+            NodeRef node = from.getNode(i);
+            NodeRef copy = getCopiedNode(from, to, node);
+            if (from.hasRates() && !from.isRoot(node)) {
+                to.setNodeRate(copy, from.getNodeRate(node));
+            }
+            if (from.hasNodeTraits()) {
+                for (Map.Entry<String, Parameter> trait : from.getTraitMap(node).entrySet()) {
+                    copyParameter(trait.getValue(), to.getNodeTraitParameter(copy, trait.getKey()));
+                }
+            }
+        }
+    }
+
+    // the node of the other tree model with the same taxon, or the same number for internal nodes
+    private static NodeRef getCopiedNode(TreeModel from, TreeModel to, NodeRef node) {
+        if (from.isExternal(node)) {
+            return to.getNode(to.getTaxonIndex(from.getNodeTaxon(node).getId()));
+        }
+        return to.getNode(node.getNumber());
+    }
+
     public abstract class Integrator {
         protected int step;
         protected int pathSteps;
@@ -302,10 +807,14 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
     }*/
 
     private void reportIteration(double pathParameter, long chainLength, long burnin, long totalSteps, long steps) {
+        reportIteration(System.out, pathParameter, chainLength, burnin, totalSteps, steps);
+    }
+
+    private void reportIteration(PrintStream out, double pathParameter, long chainLength, long burnin, long totalSteps, long steps) {
     	if (scheme == PathScheme.FIXED) {
-    		System.out.println("Attempting fixed theta ("+steps+"/" + (totalSteps) +") = " + pathParameter + " for " + chainLength + " iterations + " + burnin + " burnin.");
+    		out.println("Attempting fixed theta ("+steps+"/" + (totalSteps) +") = " + pathParameter + " for " + chainLength + " iterations + " + burnin + " burnin.");
     	} else {
-    		System.out.println("Attempting theta ("+steps+"/" + (totalSteps+1) +") = " + pathParameter + " for " + chainLength + " iterations + " + burnin + " burnin.");
+    		out.println("Attempting theta ("+steps+"/" + (totalSteps+1) +") = " + pathParameter + " for " + chainLength + " iterations + " + burnin + " burnin.");
     	}
     }
 
@@ -362,7 +871,24 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         mc.removeMarkovChainListener(chainListener);
     }
 
-    private final MarkovChainListener chainListener = new MarkovChainListener() {
+    private final PathChainListener chainListener;
+
+    private class PathChainListener implements MarkovChainListener {
+
+        private final List<MCLogger> loggers;
+        private final OperatorSchedule schedule;
+
+        // where the operator analysis goes, a buffer for the step being run when the steps run concurrently
+        private PrintStream out = System.out;
+
+        PathChainListener(List<MCLogger> loggers, OperatorSchedule schedule) {
+            this.loggers = loggers;
+            this.schedule = schedule;
+        }
+
+        void setOutput(PrintStream out) {
+            this.out = out;
+        }
 
         // MarkovChainListener interface *******************************************
         // for receiving messages from subordinate MarkovChain
@@ -372,9 +898,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
          */
         public void currentState(long state, Model currentModel) {
 
-            currentState = state;
-
-            if (currentState >= burnin) {
+            if (state >= burnin) {
                 for (MCLogger logger : loggers) {
                     logger.log(state);
                 }
@@ -385,21 +909,19 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
          * Called when a new new best posterior state is found.
          */
         public void bestState(long state, Model bestModel) {
-            currentState = state;
         }
 
         /**
          * cleans up when the chain finishes (possibly early).
          */
         public void finished(long chainLength) {
-            currentState = chainLength;
-            (new OperatorAnalysisPrinter(schedule)).showOperatorAnalysis(System.out);
+            (new OperatorAnalysisPrinter(schedule)).showOperatorAnalysis(out);
 //            logger.log(currentState);
             for (MCLogger logger : loggers) {
                 logger.stopLogging();
             }
         }
-    };
+    }
 
     // TRANSIENT PUBLIC METHODS *****************************************
 
@@ -446,12 +968,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
 
             PathLikelihood pathLikelihood = (PathLikelihood) xo.getChild(PathLikelihood.class);
 
-            List<MCLogger> loggerList = new ArrayList<MCLogger>();
-            for (int i = 0; i < xo.getChildCount(); i++) {
-                if (xo.getChild(i) instanceof MCLogger) {
-                    loggerList.add((MCLogger)xo.getChild(i));
-                }
-            }
+            List<MCLogger> loggerList = parseLoggers(xo);
 
             //MCLogger logger = (MCLogger) xo.getChild(MCLogger.class);
 
@@ -501,30 +1018,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
                 }
             }
 
-            CombinedOperatorSchedule os = new CombinedOperatorSchedule();
-
-            XMLObject mcmcXML = xo.getChild(MCMC);
-            for (int i = 0; i < mcmcXML.getChildCount(); ++i) {
-                if (mcmcXML.getChild(i) instanceof MCMC) {
-                    MCMC mcmc = (MCMC) mcmcXML.getChild(i);
-                    if (prerunLength > 0) {
-                        java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tEquilibrating chain " + mcmc.getId() + " for " + prerunLength + " iterations.");
-                        for (Logger log : mcmc.getLoggers()) { // Stop the loggers, so nothing gets written to normal output
-                            log.stopLogging();
-                        }
-                        mcmc.getMarkovChain().runChain(prerunLength, false);
-                    }
-                    if (xo.getChild(OperatorSchedule.class) != null) {
-                    	os.addOperatorSchedule((OperatorSchedule)xo.getChild(OperatorSchedule.class));
-                    } else {
-                    	os.addOperatorSchedule(mcmc.getOperatorSchedule());
-                    }
-                }
-            }
-
-            if (os.getScheduleCount() == 0) {
-                System.err.println("Error: no mcmc objects provided in construction. Bayes Factor estimation will likely fail.");
-            }
+            CombinedOperatorSchedule os = parseSamplers(xo, prerunLength);
 
             MarginalLikelihoodEstimator mle = new MarginalLikelihoodEstimator(MARGINAL_LIKELIHOOD_ESTIMATOR, chainLength,
                     burninLength, pathSteps, fixedRunValues, scheme, pathLikelihood, os, loggerList);
@@ -532,6 +1026,23 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
             if (!xo.getAttribute(SPAWN, true))
                 mle.setSpawnable(false);
 
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                if (xo.getChild(i) instanceof XMLObject && ((XMLObject) xo.getChild(i)).getName().equals(REPLICATE)) {
+                    XMLObject cxo = (XMLObject) xo.getChild(i);
+                    List<MCLogger> replicateLoggers = parseLoggers(cxo);
+                    if (replicateLoggers.size() != loggerList.size()) {
+                        throw new XMLParseException("Each " + REPLICATE + " in " + getParserName() +
+                                " must have the same number of loggers as the estimator itself");
+                    }
+                    try {
+                        mle.addReplicate((PathLikelihood) cxo.getChild(PathLikelihood.class),
+                                parseSamplers(cxo, prerunLength), replicateLoggers);
+                    } catch (IllegalArgumentException iae) {
+                        throw new XMLParseException(iae.getMessage());
+                    }
+                }
+            }
+
             if (xo.hasAttribute(ALPHA)) {
                 mle.setAlphaFactor(xo.getAttribute(ALPHA, 0.5));
             }
@@ -564,6 +1075,45 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
             return mle;
         }
 
+        private List<MCLogger> parseLoggers(XMLObject xo) {
+            List<MCLogger> loggerList = new ArrayList<MCLogger>();
+            for (int i = 0; i < xo.getChildCount(); i++) {
+                if (xo.getChild(i) instanceof MCLogger) {
+                    loggerList.add((MCLogger)xo.getChild(i));
+                }
+            }
+            return loggerList;
+        }
+
+        private CombinedOperatorSchedule parseSamplers(XMLObject xo, int prerunLength) {
+            CombinedOperatorSchedule os = new CombinedOperatorSchedule();
+
+            XMLObject mcmcXML = xo.getChild(MCMC);
+            for (int i = 0; i < mcmcXML.getChildCount(); ++i) {
+                if (mcmcXML.getChild(i) instanceof MCMC) {
+                    MCMC mcmc = (MCMC) mcmcXML.getChild(i);
+                    if (prerunLength > 0) {
+                        java.util.logging.Logger.getLogger("dr.inference").info("Path Sampling Marginal Likelihood Estimator:\n\tEquilibrating chain " + mcmc.getId() + " for " + prerunLength + " iterations.");
+                        for (Logger log : mcmc.getLoggers()) { // Stop the loggers, so nothing gets written to normal output
+                            log.stopLogging();
+                        }
+                        mcmc.getMarkovChain().runChain(prerunLength, false);
+                    }
+                    if (xo.getChild(OperatorSchedule.class) != null) {
+                    	os.addOperatorSchedule((OperatorSchedule)xo.getChild(OperatorSchedule.class));
+                    } else {
+                    	os.addOperatorSchedule(mcmc.getOperatorSchedule());
+                    }
+                }
+            }
+
+            if (os.getScheduleCount() == 0) {
+                System.err.println("Error: no mcmc objects provided in construction. Bayes Factor estimation will likely fail.");
+            }
+
+            return os;
+        }
+
         //************************************************************************
         // AbstractXMLObjectParser implementation
         //************************************************************************
@@ -597,7 +1147,15 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
                         new XMLSyntaxRule[]{new ElementRule(MCMC.class, 1, Integer.MAX_VALUE)}, false),
                 //new ElementRule(MCMC.class),
                 new ElementRule(PathLikelihood.class),
-                new ElementRule(MCLogger.class, 1, Integer.MAX_VALUE)
+                new ElementRule(MCLogger.class, 1, Integer.MAX_VALUE),
+                new ElementRule(REPLICATE, new XMLSyntaxRule[]{
+                        new ElementRule(MCMC,
+                                new XMLSyntaxRule[]{new ElementRule(MCMC.class, 1, Integer.MAX_VALUE)}, false),
+                        new ElementRule(PathLikelihood.class),
+                        new ElementRule(MCLogger.class, 1, Integer.MAX_VALUE)
+                }, "A separate copy of the model on which path steps are run concurrently. Models cannot be " +
+                        "cloned, so every model and parameter must be declared again with its own id, in the same " +
+                        "order as for the estimator, with its own samplers, path likelihood and loggers", 0, Integer.MAX_VALUE)
         };
 
     };
@@ -610,7 +1168,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
         this.id = id;
     }
 
-    enum PathScheme {
+    public enum PathScheme {
         FIXED("fixed"),
         LINEAR("linear"),
         GEOMETRIC("geometric"),
@@ -649,7 +1207,6 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
 
     private String id = null;
 
-    private long currentState;
     private final long chainLength;
 
     private long burnin;
@@ -668,6 +1225,11 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
 
     private final PathLikelihood pathLikelihood;
 
+    private final List<PathReplicate> replicates = new ArrayList<PathReplicate>();
+
+    // the models, parameters and operators of the model and its replicates, which must all be distinct
+    private final Set<Object> replicatedState = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
     public static final String MARGINAL_LIKELIHOOD_ESTIMATOR = "marginalLikelihoodEstimator";
     public static final String CHAIN_LENGTH = "chainLength";
     public static final String PATH_STEPS = "pathSteps";
@@ -682,6 +1244,7 @@ public class MarginalLikelihoodEstimator implements Runnable, Identifiable {
     public static final String ALPHA = "alpha";
     public static final String BETA = "beta";
     public static final String PRERUN = "prerun";
+    public static final String REPLICATE = "replicate";
     public static final String PRINT_OPERATOR_ANALYSIS = "printOperatorAnalysis";
     
     private static boolean SHOW_OPERATOR_ANALYSIS = false;
@@ -61,10 +61,6 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
     private boolean likelihoodKnown = false;
     private boolean isDataScaled=false;
     private boolean storedLikelihoodKnown;
-    private boolean residualKnown=false;
-    private boolean LxFKnown=false;
-    private boolean storedResidualKnown=false;
-    private boolean storedLxFKnown;
     private boolean traceKnown=false;
     private boolean storedTraceKnown;
     private boolean logDetColKnown=false;
@@ -75,13 +71,33 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
     private double storedLogLikelihood;
     private double logDetCol;
     private double storedLogDetCol;
-    private boolean[][] changed;
-    private boolean[][] storedChanged;
 
-    private double[] residual;
-    private double[] LxF;
-    private double[] storedResidual;
-    private double[] storedLxF;
+    // traits that enter the likelihood (the continuous ones, or all of them under the new model)
+    private final boolean[] activeRow;
+
+    // The residuals are kept up to date incrementally. The values of the loadings, factors and data that
+    // they were computed with are kept so that the loadings rows, factor columns and data entries that have
+    // changed since can be found and only the affected residuals recomputed. Restoring a state just marks
+    // the parameters that were touched as changed, so nothing needs to be copied on store.
+    private final double[] loadingsValues;
+    private final double[] factorsValues;
+    private final double[] dataValues;
+    private final double[] residual;
+    private final double[] LxF;
+    private final double[] rowSumSquares;
+    private final boolean[] rowChanged;
+    private final boolean[] columnChanged;
+    private boolean residualsInitialized = false;
+    private boolean loadingsChanged = true;
+    private boolean factorsChanged = true;
+    private boolean dataChanged = true;
+    private boolean loadingsTouched;
+    private boolean factorsTouched;
+    private boolean dataTouched;
+    private boolean sumSquaresKnown = true;
+    private int sumSquaresUpdates = 0;
+
+    private static final int BLOCK_SIZE = 256;
 
     private double pathParameter=1.0;
 
@@ -118,15 +134,6 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
 //        loadings.addBounds();
 
 
-        changed=new boolean[loadings.getRowDimension()][factors.getColumnDimension()];
-        storedChanged=new boolean[loadings.getRowDimension()][factors.getColumnDimension()];
-
-        for (int i = 0; i <loadings.getRowDimension() ; i++) {
-            for (int j = 0; j <factors.getColumnDimension() ; j++) {
-                changed[i][j]=true;
-            }
-        }
-
         this.rowPrecision = rowPrecision;
         this.colPrecision = colPrecision;
 
@@ -163,10 +170,19 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
             throw new RuntimeException("MUST HAVE FEWER FACTORS THAN DATA POINTS\n");
         }
 
-        residual=new double[loadings.getRowDimension()*factors.getColumnDimension()];
-        LxF=new double[loadings.getRowDimension()*factors.getColumnDimension()];
-        storedResidual=new double[residual.length];
-        storedLxF=new double[LxF.length];
+        activeRow=new boolean[dimData];
+        for (int i = 0; i < dimData; i++) {
+            activeRow[i] = continuous.getParameterValue(i) != 0 || newModel;
+        }
+
+        loadingsValues=new double[dimData*dimFactors];
+        factorsValues=new double[dimFactors*nTaxa];
+        dataValues=new double[dimData*nTaxa];
+        residual=new double[dimData*nTaxa];
+        LxF=new double[dimData*nTaxa];
+        rowSumSquares=new double[dimData];
+        rowChanged=new boolean[dimData];
+        columnChanged=new boolean[nTaxa];
 
         if(!isDataScaled & !scaleData){
             sData=this.data;
@@ -228,7 +244,7 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
     public MatrixParameter getData(){return data;}
 
     public Parameter returnIntermediate(){
-        if(!residualKnown && checkLoadings()){
+        if(!isResidualKnown() && checkLoadings()){
             computeResiduals();
         }
         return data;
@@ -249,67 +265,186 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
 
     public int getFactorDimension(){return factors.getRowDimension();}
 
-    private void Multiply(MatrixParameter Left, MatrixParameter Right, double[] answer){
-        int dim=Left.getColumnDimension();
-        int n=Left.getRowDimension();
-        int p=Right.getColumnDimension();
-
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < p; j++) {
-                if((changed[i][j]==true && continuous.getParameterValue(i)!=0) || newModel){
-                double sum = 0;
-                for (int k = 0; k < dim; k++)
-                    sum += Left.getParameterValue(i, k) * Right.getParameterValue(k,j);
-                answer[i*p+j]=sum;
-                //changed[i][j]=false;
+    private boolean isResidualKnown() {
+        return residualsInitialized && !loadingsChanged && !factorsChanged && !dataChanged;
+    }
+
+    // Full recompute: the loadings times factors product is done on dense copies in column blocks
+    // so that the rows of the factors being swept stay in cache
+    private void computeAllResiduals() {
+        for (int i = 0; i < dimData; i++) {
+            if (activeRow[i]) {
+                for (int k = 0; k < dimFactors; k++) {
+                    loadingsValues[i * dimFactors + k] = loadings.getParameterValue(i, k);
+                }
+                for (int j = 0; j < nTaxa; j++) {
+                    dataValues[i * nTaxa + j] = data.getParameterValue(i, j);
+                }
+            }
+        }
+        for (int k = 0; k < dimFactors; k++) {
+            for (int j = 0; j < nTaxa; j++) {
+                factorsValues[k * nTaxa + j] = factors.getParameterValue(k, j);
+            }
+        }
+
+        for (int from = 0; from < nTaxa; from += BLOCK_SIZE) {
+            int to = Math.min(nTaxa, from + BLOCK_SIZE);
+            for (int i = 0; i < dimData; i++) {
+                if (activeRow[i]) {
+                    int offset = i * nTaxa;
+                    for (int j = from; j < to; j++) {
+                        LxF[offset + j] = 0;
+                    }
+                    for (int k = 0; k < dimFactors; k++) {
+                        double l = loadingsValues[i * dimFactors + k];
+                        int factorOffset = k * nTaxa;
+                        for (int j = from; j < to; j++) {
+                            LxF[offset + j] += l * factorsValues[factorOffset + j];
+                        }
+                    }
+                    for (int j = from; j < to; j++) {
+                        residual[offset + j] = dataValues[offset + j] - LxF[offset + j];
+                    }
                 }
             }
         }
-    }
 
-    private void add(MatrixParameter Left, MatrixParameter Right, double[] answer){
-        int row=Left.getRowDimension();
-        int col=Left.getColumnDimension();
-        for (int i = 0; i <row ; i++) {
-            for (int j = 0; j < col; j++) {
-                answer[i*col+j]=Left.getParameterValue(i,j)+Right.getParameterValue(i,j);
+        for (int i = 0; i < dimData; i++) {
+            if (activeRow[i]) {
+                computeRowSumSquares(i);
             }
+        }
+        sumSquaresUpdates = 0;
+        residualsInitialized = true;
+    }
+
+    private void computeRowSumSquares(int i) {
+        double sum = 0;
+        int offset = i * nTaxa;
+        for (int j = 0; j < nTaxa; j++) {
+            sum += residual[offset + j] * residual[offset + j];
+        }
+        rowSumSquares[i] = sum;
+    }
 
+    private void updateResidual(int i, int j) {
+        int index = i * nTaxa + j;
+        double sum = 0;
+        for (int k = 0; k < dimFactors; k++) {
+            sum += loadingsValues[i * dimFactors + k] * factorsValues[k * nTaxa + j];
         }
+        LxF[index] = sum;
+        double r = dataValues[index] - sum;
+        rowSumSquares[i] += r * r - residual[index] * residual[index];
+        residual[index] = r;
+        sumSquaresUpdates++;
     }
 
-    private void subtract(MatrixParameter Left, double[] Right, double[] answer){
-        int row=Left.getRowDimension();
-        int col=Left.getColumnDimension();
-        for (int i = 0; i <row ; i++) {
-            if(continuous.getParameterValue(i)!=0 ||newModel){
-                for (int j = 0; j < col; j++) {
-                       answer[i*col+j]=Left.getParameterValue(i,j)-Right[i*col+j];
+    private int findChangedLoadings() {
+        int count = 0;
+        for (int i = 0; i < dimData; i++) {
+            rowChanged[i] = false;
+            if (activeRow[i]) {
+                for (int k = 0; k < dimFactors; k++) {
+                    double value = loadings.getParameterValue(i, k);
+                    if (value != loadingsValues[i * dimFactors + k]) {
+                        loadingsValues[i * dimFactors + k] = value;
+                        rowChanged[i] = true;
+                    }
+                }
+                if (rowChanged[i]) {
+                    count++;
                 }
             }
-//            else{
-//                for (int j = 0; j <col; j++) {
-//                    Left.setParameterValueQuietly(i,j, Right[i*col+j]);
-//                }
-//                containsDiscrete=true;
-//            }
+        }
+        return count;
+    }
 
+    private int findChangedFactors() {
+        int count = 0;
+        for (int j = 0; j < nTaxa; j++) {
+            columnChanged[j] = false;
+            for (int k = 0; k < dimFactors; k++) {
+                double value = factors.getParameterValue(k, j);
+                if (value != factorsValues[k * nTaxa + j]) {
+                    factorsValues[k * nTaxa + j] = value;
+                    columnChanged[j] = true;
+                }
+            }
+            if (columnChanged[j]) {
+                count++;
+            }
         }
-//        if(containsDiscrete){
-//            Left.fireParameterChangedEvent();}
+        return count;
     }
 
-    private double TDTTrace(double[] array, DiagonalMatrix middle){
-        int innerDim=middle.getRowDimension();
-        int outerDim=array.length/innerDim;
-        double sum=0;
-        for (int j = 0; j <innerDim ; j++){
-            if(continuous.getParameterValue(j)!=0 || newModel) {
-                for (int i = 0; i < outerDim; i++) {
-                        double s1 = array[j * outerDim + i];
-                        double s2 = middle.getParameterValue(j, j);
-                        sum += s1 * s1 * s2;
+    private void computeResiduals() {
+        if (!residualsInitialized) {
+            computeAllResiduals();
+        } else {
+            int changedRows = loadingsChanged ? findChangedLoadings() : 0;
+            int changedColumns = factorsChanged ? findChangedFactors() : 0;
+
+            if ((long) changedRows * nTaxa + (long) changedColumns * dimData > (long) dimData * nTaxa / 2) {
+                computeAllResiduals();
+            } else {
+                if (dataChanged) {
+                    for (int i = 0; i < dimData; i++) {
+                        if (activeRow[i]) {
+                            for (int j = 0; j < nTaxa; j++) {
+                                double value = data.getParameterValue(i, j);
+                                if (value != dataValues[i * nTaxa + j]) {
+                                    dataValues[i * nTaxa + j] = value;
+                                    if (!(changedRows > 0 && rowChanged[i]) && !(changedColumns > 0 && columnChanged[j])) {
+                                        updateResidual(i, j);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+                for (int i = 0; changedRows > 0 && i < dimData; i++) {
+                    if (rowChanged[i]) {
+                        for (int j = 0; j < nTaxa; j++) {
+                            updateResidual(i, j);
+                        }
+                        computeRowSumSquares(i);
+                    }
                 }
+                for (int j = 0; changedColumns > 0 && j < nTaxa; j++) {
+                    if (columnChanged[j]) {
+                        for (int i = 0; i < dimData; i++) {
+                            if (activeRow[i] && !(changedRows > 0 && rowChanged[i])) {
+                                updateResidual(i, j);
+                            }
+                        }
+                    }
+                }
+
+                // the sums of squares are updated by differences so recompute them after a restore and
+                // once in a while, so that rounding errors cannot build up over a long chain
+                if (!sumSquaresKnown || sumSquaresUpdates > dimData * nTaxa) {
+                    for (int i = 0; i < dimData; i++) {
+                        if (activeRow[i]) {
+                            computeRowSumSquares(i);
+                        }
+                    }
+                    sumSquaresUpdates = 0;
+                }
+            }
+        }
+        loadingsChanged = false;
+        factorsChanged = false;
+        dataChanged = false;
+        sumSquaresKnown = true;
+    }
+
+    private double computeTrace() {
+        double sum = 0;
+        for (int i = 0; i < dimData; i++) {
+            if (activeRow[i]) {
+                sum += rowSumSquares[i] * colPrecision.getParameterValue(i, i);
             }
         }
         return sum;
@@ -381,33 +516,6 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
         return new Matrix(parameter.getParameterValues(), dimMajor, dimMinor);
     }
 
-    private void computeResiduals() {
-//    LxFKnown=false;
-
-
-
-//        if(firstTime || (!factorVariablesChanged.empty() && !loadingVariablesChanged.empty())){
-    if(!LxFKnown){
-    Multiply(loadings, factors, LxF);
-        LxFKnown=true;
-    }
-        subtract(data, LxF, residual);
-        residualKnown=true;
-//        firstTime=false;}
-//        else{
-//            while(!factorVariablesChanged.empty()){
-//
-//            }
-//            while(!loadingVariablesChanged.empty()){
-//
-//            }
-//        }
-//
-
-
-    }
-
-
     @Override
     protected void handleModelChangedEvent(Model model, Object object, int index) {
         // Do nothing
@@ -427,13 +535,9 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
         storedLogDetCol=logDetCol;
         storedTrace=trace;
         storedTraceKnown=traceKnown;
-        storedResidualKnown=residualKnown;
-        storedLxFKnown=LxFKnown;
-        System.arraycopy(residual, 0, storedResidual, 0, residual.length);
-
-        System.arraycopy(LxF, 0, storedLxF, 0, residual.length);
-        System.arraycopy(changed, 0, storedChanged, 0, changed.length);
-
+        loadingsTouched=false;
+        factorsTouched=false;
+        dataTouched=false;
     }
 
     /**
@@ -443,37 +547,25 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
      */
     @Override
     protected void restoreState() {
-        changed=storedChanged;
         data.restoreParameterValues();
         loadings.restoreValues();
         factors.restoreValues();
         logLikelihood = storedLogLikelihood;
         likelihoodKnown = storedLikelihoodKnown;
-        trace=storedTrace;
-        traceKnown=storedTraceKnown;
-        residualKnown=storedResidualKnown;
-        LxFKnown=storedLxFKnown;
-        residual=storedResidual;
-        storedResidual=new double[residual.length];
-        LxF=storedLxF;
-        storedLxF=new double[LxF.length];
         logDetCol=storedLogDetCol;
         logDetColKnown=storedLogDetColKnown;
 
-//        System.out.println(data.getParameterValue(10, 19));
-
-
-
-
-//        int index=0;
-//        for (int i = 0; i <continuous.getDimension() ; i++) {
-//            if(continuous.getParameterValue(i)==0){
-//                for (int j = 0; j <data.getParameter(i).getDimension() ; j++) {
-//                    data.getParameter(i).setParameterValueQuietly(j, storedData.getParameter(index).getParameterValue(j));
-//                }
-//                index++;
-//            }
-//        }
+        // the residuals of anything touched since the store are found and recomputed when next needed
+        loadingsChanged |= loadingsTouched;
+        factorsChanged |= factorsTouched;
+        dataChanged |= dataTouched;
+        if (loadingsTouched || factorsTouched || dataTouched) {
+            traceKnown=false;
+            sumSquaresKnown=false;
+        } else {
+            trace=storedTrace;
+            traceKnown=storedTraceKnown;
+        }
     }
 
     /**
@@ -496,46 +588,20 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
     @Override
     protected void handleVariableChangedEvent(Variable variable, int index, Parameter.ChangeType type) {
         if(variable==getScaledData()){
-            residualKnown=false;
+            dataChanged=true;
+            dataTouched=true;
             traceKnown=false;
             likelihoodKnown=false;
         }
         if(variable==factors){
-
-
-
-
-//            for (int i = 0; i <loadings.getRowDimension() ; i++) {
-//                changed[i][index/factors.getRowDimension()]=true;
-//            }
-
-
-
-
-//            factorVariablesChanged.push(index);
-
-
-            LxFKnown=false;
-            residualKnown=false;
+            factorsChanged=true;
+            factorsTouched=true;
             traceKnown=false;
             likelihoodKnown = false;
         }
         if(variable==loadings){
-//            System.out.println("Loadings Changed");
-//            System.out.println(index);
-//            System.out.println(index/loadings.getRowDimension());
-
-
-//            for (int i = 0; i <factors.getColumnDimension(); i++) {
-//                changed[index%loadings.getRowDimension()][i]=true;
-//            }
-
-
-//            factorVariablesChanged.push(index);
-
-
-            LxFKnown=false;
-            residualKnown=false;
+            loadingsChanged=true;
+            loadingsTouched=true;
             traceKnown=false;
             likelihoodKnown = false;
         }
@@ -572,7 +638,6 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
      */
     @Override
     public double getLogLikelihood() {
-       likelihoodKnown=false;
         if (!likelihoodKnown) {
             logLikelihood = calculateLogLikelihood();
             likelihoodKnown = true;
@@ -585,6 +650,9 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
      */
     @Override
     public void makeDirty() {
+        residualsInitialized = false;
+        logDetColKnown = false;
+        traceKnown = false;
         likelihoodKnown = false;
     }
 
@@ -611,7 +679,7 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
 
 
 //        residualKnown=false;
-        if(!residualKnown){
+        if(!isResidualKnown()){
             computeResiduals();
         }
 
@@ -622,20 +690,21 @@ public class LatentFactorModel extends AbstractModelLikelihood implements Citabl
  //       logDetColKnown=false;
         if(!logDetColKnown){
             logDetColKnown=true;
-            double product=1;
+            // sum the logs as the product over thousands of traits would overflow
+            double sum=0;
             for (int i = 0; i <colPrecision.getRowDimension() ; i++) {
                 if (continuous.getParameterValue(i)!=0)
-                    product*=colPrecision.getParameterValue(i,i);
+                    sum+=StrictMath.log(colPrecision.getParameterValue(i,i));
             }
 
-            logDetCol=StrictMath.log(product);
+            logDetCol=sum;
         }
 //            System.out.println(logDetCol);
 //            System.out.println(logDetRow);
 //        traceKnown=false;
         if(!traceKnown){
             traceKnown=true;
-            trace=TDTTrace(residual, colPrecision);
+            trace=computeTrace();
         }
 //        if(expPart.getRowDimension()!=expPart.getColumnDimension())
 //        {
@@ -24,6 +24,8 @@
  */
 package dr.inference.trace;
 
+import dr.inference.loggers.BinaryLogReader;
+
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
@@ -173,9 +175,104 @@ public class LogFileTraces extends AbstractTraceList {
     }
 
     public void loadTraces() throws TraceException, IOException {
-        FileReader reader = new FileReader(file);
-        loadTraces(reader);
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        loadTraces(in);
+        in.close();
+    }
+
+    /**
+     * Loads either a tab delimited log or a binary log written by BinaryLogFormatter.
+     *
+     * @param in the log
+     * @throws TraceException
+     * @throws java.io.IOException
+     */
+    public void loadTraces(InputStream in) throws TraceException, IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in, 1 << 16);
+        }
+        if (BinaryLogReader.isBinaryLog(in)) {
+            loadTraces(new BinaryLogReader(in));
+        } else {
+            loadTraces(new InputStreamReader(in));
+        }
+    }
+
+    private void loadTraces(BinaryLogReader reader) throws TraceException, IOException {
+
+        reader.readHeader();
+
+        // the heading lines are read for trace types as the comment lines of a text log would be
+        for (String heading : reader.getHeadings()) {
+            StringTokenizer tokens = new StringTokenizer("# " + heading, "\t");
+            readTraceType(tokens.nextToken(), tokens);
+        }
+
+        String[] labels = reader.getLabels();
+        if (labels == null) {
+            throw new TraceException("Trace file is empty.");
+        }
+
+        // skip the first column which should be the state number; the traces are also kept by the type of
+        // their values so that the values can be added to them directly
+        List<Trace<Double>> numberTraces = new ArrayList<Trace<Double>>();
+        List<Trace<String>> stringTraces = new ArrayList<Trace<String>>();
+        for (int i = 1; i < labels.length; i++) {
+            String name = labels[i];
+            TraceFactory.TraceType type = tracesType.get(name);
+            if (type == TraceFactory.TraceType.STRING) {
+                Trace<String> trace = new Trace<String>(name, type);
+                traces.add(trace);
+                numberTraces.add(null);
+                stringTraces.add(trace);
+            } else {
+                if (type == null) {
+                    type = TraceFactory.TraceType.DOUBLE;
+                    tracesType.put(name, type);
+                }
+                // integers are kept as doubles, as for a text log
+                Trace<Double> trace = new Trace<Double>(name, type);
+                traces.add(trace);
+                numberTraces.add(trace);
+                stringTraces.add(null);
+            }
+        }
+
+        int traceCount = getTraceCount();
+
+        boolean firstState = true;
+
+        while (reader.nextBlock()) {
+            for (int row = 0; row < reader.getRowCount(); row++) {
+                int state = (int) reader.getState(row);
+
+                if (firstState) {
+                    // as for a text log, force a first state of 1 to 0
+                    if (state == 1) state = 0;
+                    firstState = false;
+                }
+
+                if (!addState(state)) {
+                    throw new TraceException("State " + state + " is not consistent with previous spacing");
+                }
+
+                for (int i = 0; i < traceCount; i++) {
+                    try {
+                        if (stringTraces.get(i) != null) {
+                            stringTraces.get(i).add(reader.getString(i, row));
+                        } else {
+                            numberTraces.get(i).add(reader.getValue(i, row));
+                        }
+                    } catch (NumberFormatException nfe) {
+                        throw new TraceException("State " + state + ": Expected correct number type (Double, Integer or String) in column "
+                                + (i + 1));
+                    }
+                }
+            }
+        }
         reader.close();
+
+        burnIn = (int) (0.1 * lastState);
     }
 
     /**
@@ -34,6 +34,8 @@ import dr.util.Property;
 import dr.xml.*;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.PrintWriter;
 import java.util.Date;
 
@@ -53,8 +55,10 @@ public class LoggerParser extends AbstractXMLObjectParser {
     public static final String TAB = "tab";
     public static final String HTML = "html";
     public static final String PRETTY = "pretty";
+    public static final String BINARY = "binary";
     public static final String LOG_EVERY = "logEvery";
     public static final String ALLOW_OVERWRITE_LOG = "overwrite";
+    public static final String ASYNCHRONOUS = "asynchronous";
 
     public static final String COLUMNS = "columns";
     public static final String COLUMN = "column";
@@ -75,9 +79,27 @@ public class LoggerParser extends AbstractXMLObjectParser {
         // You must say how often you want to log
         final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
 
-        final PrintWriter pw = getLogFile(xo, getParserName());
+        LogFormatter formatter;
+        if (xo.getAttribute(FORMAT, TAB).equalsIgnoreCase(BINARY)) {
+            if (!xo.hasAttribute(FILE_NAME)) {
+                throw new XMLParseException("A binary log needs a file name");
+            }
+            File logFile = XMLParser.getLogFile(xo, FILE_NAME);
+            try {
+                formatter = new BinaryLogFormatter(new FileOutputStream(logFile));
+            } catch (FileNotFoundException fnfe) {
+                throw new XMLParseException("File '" + logFile.getAbsolutePath() +
+                        "' can not be opened for " + getParserName() + " element.");
+            }
+        } else {
+            final PrintWriter pw = getLogFile(xo, getParserName());
 
-        final LogFormatter formatter = new TabDelimitedFormatter(pw);
+            formatter = new TabDelimitedFormatter(pw);
+        }
+
+        if (xo.getAttribute(ASYNCHRONOUS, false)) {
+            formatter = new AsynchronousLogFormatter(formatter);
+        }
 
         boolean performanceReport = false;
 
@@ -159,6 +181,11 @@ public class LoggerParser extends AbstractXMLObjectParser {
             new StringAttributeRule(FILE_NAME,
                     "The name of the file to send log output to. " +
                             "If no file name is specified then log is sent to standard output", true),
+            new StringAttributeRule(FORMAT,
+                    "The format of the log file, tab delimited text (the default) or a compact columnar binary format",
+                    new String[]{TAB, BINARY}, true),
+            AttributeRule.newBooleanRule(ASYNCHRONOUS, true,
+                    "Whether the log is formatted and written on a separate thread to the chain"),
             new StringAttributeRule(TITLE,
                     "The title of the log", true),
             new StringAttributeRule(HEADER,
@@ -132,6 +132,60 @@ public class KroneckerOperation {
         }
     }
 
+    // Computes y = (A_1 %x% A_2 %x% ... %x% A_k) x for square A_i (dims[i]-by-dims[i]) one factor at a time,
+    // without forming the product, in O(length(x) * sum(dims)) rather than O(length(x)^2)
+    public static void product(double[][] A, int[] dims, double[] x, double[] y) {
+
+        int dim = 1;
+        for (int i = 0; i < dims.length; i++) {
+            if (A[i].length != dims[i] * dims[i]) {
+                throw new RuntimeException("Wrong dimensions in Kronecker product");
+            }
+            dim *= dims[i];
+        }
+        if (x.length < dim || y.length < dim) {
+            throw new RuntimeException("Wrong dimensions in Kronecker product");
+        }
+
+        double[] in = new double[dim];
+        double[] out = new double[dim];
+        System.arraycopy(x, 0, in, 0, dim);
+
+        int outer = 1;
+        int inner = dim;
+        for (int f = 0; f < dims.length; f++) {
+            final double[] Af = A[f];
+            final int n = dims[f];
+            inner /= n;
+
+            // out[o, i, r] = sum_j Af[i, j] in[o, j, r]
+            for (int o = 0; o < outer; o++) {
+                final int offset = o * n * inner;
+                for (int i = 0; i < n; i++) {
+                    final int outOffset = offset + i * inner;
+                    for (int r = 0; r < inner; r++) {
+                        out[outOffset + r] = 0.0;
+                    }
+                    for (int j = 0; j < n; j++) {
+                        final double aij = Af[i * n + j];
+                        if (aij != 0.0) {
+                            final int inOffset = offset + j * inner;
+                            for (int r = 0; r < inner; r++) {
+                                out[outOffset + r] += aij * in[inOffset + r];
+                            }
+                        }
+                    }
+                }
+            }
+            outer *= n;
+
+            double[] tmp = in;
+            in = out;
+            out = tmp;
+        }
+        System.arraycopy(in, 0, y, 0, dim);
+    }
+
     public static double[][] product(double[][] A, double[][] B) {
         final int m = A.length;
         final int n = A[0].length;
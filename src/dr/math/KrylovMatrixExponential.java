@@ -0,0 +1,388 @@
+package dr.math;
+
+import java.util.Arrays;
+
+/**
+ * Computes the action of the exponential of a large sparse matrix on a vector, w = exp(tA) v, by projecting A onto
+ * a Krylov subspace of small dimension and taking the exponential of the projection, after the DGEXPV routine of
+ * Expokit. Only products of A with vectors are needed, so there is no decomposition of A and A need not be
+ * symmetric or reversible. This is the pure Java counterpart of SparseMatrixExponential, which calls Expokit
+ * through JNI.
+ * <p/>
+ * Sidje RB (1998) Expokit: a software package for computing matrix exponentials. ACM Transactions on Mathematical
+ * Software, 24, 130-156
+ */
+public class KrylovMatrixExponential {
+
+    public static final int DEFAULT_MAX_BASIS_SIZE = 30;
+    public static final double DEFAULT_TOLERANCE = 1E-7;
+
+    private static final double BREAKDOWN_TOLERANCE = 1E-7;
+    private static final double GAMMA = 0.9; // safety factor for the step size
+    private static final double DELTA = 1.2; // allowance on the local error
+    private static final int MAX_REJECTIONS = 10;
+
+    public KrylovMatrixExponential(int order) {
+        this(order, DEFAULT_MAX_BASIS_SIZE, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param order        the dimension of the matrix
+     * @param maxBasisSize the largest Krylov subspace to project onto
+     * @param tolerance    the error allowed in the result, relative to the size of the operand vector
+     */
+    public KrylovMatrixExponential(int order, int maxBasisSize, double tolerance) {
+        if (order < 1) {
+            throw new IllegalArgumentException("Order must be positive");
+        }
+        if (tolerance <= 0.0) {
+            throw new IllegalArgumentException("Tolerance must be positive");
+        }
+        this.order = order;
+        this.basisSize = Math.max(1, Math.min(maxBasisSize, order - 1));
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Stores the non-zero entries of a square matrix
+     *
+     * @param matrix the matrix in row-major order
+     */
+    public void setMatrix(double[] matrix) {
+        int nonZeroCount = 0;
+        for (int i = 0; i < order * order; i++) {
+            if (matrix[i] != 0.0) {
+                nonZeroCount++;
+            }
+        }
+
+        if (values == null || values.length < nonZeroCount) {
+            values = new double[nonZeroCount];
+            columns = new int[nonZeroCount];
+        }
+        rowStarts = new int[order + 1];
+
+        int k = 0;
+        norm = 0.0;
+        for (int i = 0; i < order; i++) {
+            rowStarts[i] = k;
+            double rowSum = 0.0;
+            for (int j = 0; j < order; j++) {
+                final double value = matrix[i * order + j];
+                if (value != 0.0) {
+                    values[k] = value;
+                    columns[k] = j;
+                    rowSum += Math.abs(value);
+                    k++;
+                }
+            }
+            norm = Math.max(norm, rowSum);
+        }
+        rowStarts[order] = k;
+    }
+
+    /**
+     * @return the number of non-zero entries in the matrix
+     */
+    public int getNonZeroCount() {
+        return rowStarts == null ? 0 : rowStarts[order];
+    }
+
+    /**
+     * Computes w = exp(time * A) v. This may be called from several threads at once.
+     *
+     * @param time the multiple of the matrix to exponentiate
+     * @param v    the operand vector
+     * @param w    the result, which may be the same array as v
+     */
+    public void apply(double time, double[] v, double[] w) {
+        if (rowStarts == null) {
+            throw new IllegalStateException("No matrix has been set");
+        }
+
+        if (order == 1) {
+            w[0] = Math.exp(time * (rowStarts[1] > 0 ? values[0] : 0.0)) * v[0];
+            return;
+        }
+
+        final int m = basisSize;
+        final double[] result = new double[order];
+        System.arraycopy(v, 0, result, 0, order);
+
+        double beta = norm2(result);
+        if (beta == 0.0 || time == 0.0 || norm == 0.0) {
+            System.arraycopy(result, 0, w, 0, order);
+            return;
+        }
+
+        final double sign = (time < 0.0 ? -1.0 : 1.0);
+        final double timeOut = Math.abs(time);
+
+        final double[][] basis = new double[m + 1][order];
+        final double[][] hessenberg = new double[m + 2][m + 2];
+        final double[] p = new double[order];
+
+        final double fact = Math.pow((m + 1) / Math.E, m + 1) * Math.sqrt(2.0 * Math.PI * (m + 1));
+        double xm = 1.0 / m;
+        double timeNew = roundStep((1.0 / norm) * Math.pow((fact * tolerance) / (4.0 * beta * norm), xm));
+        double timeNow = 0.0;
+
+        while (timeNow < timeOut) {
+            double timeStep = Math.min(timeOut - timeNow, timeNew);
+
+            for (double[] row : hessenberg) {
+                Arrays.fill(row, 0.0);
+            }
+            for (int i = 0; i < order; i++) {
+                basis[0][i] = result[i] / beta;
+            }
+
+            // Arnoldi process
+            int basisUsed = m;
+            int k1 = 2;
+            for (int j = 0; j < m; j++) {
+                multiply(basis[j], p);
+                for (int i = 0; i <= j; i++) {
+                    final double h = dot(basis[i], p);
+                    hessenberg[i][j] = sign * h;
+                    axpy(-h, basis[i], p);
+                }
+                final double s = norm2(p);
+                if (s < BREAKDOWN_TOLERANCE) {
+                    // the subspace is invariant, so its exponential is exact and can cover the rest of the time
+                    k1 = 0;
+                    basisUsed = j + 1;
+                    timeStep = timeOut - timeNow;
+                    break;
+                }
+                hessenberg[j + 1][j] = sign * s;
+                for (int i = 0; i < order; i++) {
+                    basis[j + 1][i] = p[i] / s;
+                }
+            }
+
+            double avnorm = 0.0;
+            if (k1 != 0) {
+                hessenberg[m + 1][m] = 1.0;
+                multiply(basis[m], p);
+                avnorm = norm2(p);
+            }
+
+            // exponentiate the projection, shrinking the step until the local error is small enough
+            double[][] exponential;
+            double errorLocal;
+            int rejections = 0;
+            while (true) {
+                final int size = basisUsed + k1;
+                exponential = padeExponential(hessenberg, size, timeStep);
+                if (k1 == 0) {
+                    errorLocal = BREAKDOWN_TOLERANCE;
+                    break;
+                }
+                final double phi1 = Math.abs(beta * exponential[m][0]);
+                final double phi2 = Math.abs(beta * exponential[m + 1][0] * avnorm);
+                if (phi1 > 10.0 * phi2) {
+                    errorLocal = phi2;
+                    xm = 1.0 / m;
+                } else if (phi1 > phi2) {
+                    errorLocal = (phi1 * phi2) / (phi1 - phi2);
+                    xm = 1.0 / m;
+                } else {
+                    errorLocal = phi1;
+                    xm = 1.0 / Math.max(1, m - 1);
+                }
+                if (errorLocal <= DELTA * timeStep * tolerance) {
+                    break;
+                }
+                if (++rejections > MAX_REJECTIONS) {
+                    throw new RuntimeException("Krylov exponential failed to reach the tolerance of " + tolerance);
+                }
+                timeStep = roundStep(GAMMA * timeStep * Math.pow(timeStep * tolerance / errorLocal, xm));
+            }
+
+            // w = beta * V * exp(tH) e_1
+            final int used = basisUsed + Math.max(0, k1 - 1);
+            Arrays.fill(result, 0.0);
+            for (int j = 0; j < used; j++) {
+                axpy(beta * exponential[j][0], basis[j], result);
+            }
+            beta = norm2(result);
+            timeNow += timeStep;
+
+            if (beta == 0.0) {
+                break;
+            }
+            timeNew = roundStep(GAMMA * timeStep * Math.pow(timeStep * tolerance / Math.max(errorLocal, Double.MIN_VALUE), xm));
+        }
+
+        System.arraycopy(result, 0, w, 0, order);
+    }
+
+    // y = A x
+    private void multiply(double[] x, double[] y) {
+        for (int i = 0; i < order; i++) {
+            double sum = 0.0;
+            for (int k = rowStarts[i]; k < rowStarts[i + 1]; k++) {
+                sum += values[k] * x[columns[k]];
+            }
+            y[i] = sum;
+        }
+    }
+
+    private static double dot(double[] x, double[] y) {
+        double sum = 0.0;
+        for (int i = 0; i < x.length; i++) {
+            sum += x[i] * y[i];
+        }
+        return sum;
+    }
+
+    private static double norm2(double[] x) {
+        return Math.sqrt(dot(x, x));
+    }
+
+    // y += a x
+    private static void axpy(double a, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += a * x[i];
+        }
+    }
+
+    // rounds a step size to two significant digits, as in Expokit
+    private static double roundStep(double step) {
+        if (step <= 0.0 || Double.isInfinite(step) || Double.isNaN(step)) {
+            return step;
+        }
+        final double scale = Math.pow(10.0, Math.floor(Math.log10(step)) - 1);
+        return Math.ceil(step / scale) * scale;
+    }
+
+    /**
+     * The exponential of time * H for the leading size-by-size block of H, by a degree 6 Pade approximant with
+     * scaling and squaring
+     */
+    private static double[][] padeExponential(double[][] H, int size, double time) {
+        final int degree = 6;
+
+        double[][] A = new double[size][size];
+        double normA = 0.0;
+        for (int i = 0; i < size; i++) {
+            double rowSum = 0.0;
+            for (int j = 0; j < size; j++) {
+                A[i][j] = time * H[i][j];
+                rowSum += Math.abs(A[i][j]);
+            }
+            normA = Math.max(normA, rowSum);
+        }
+
+        int squarings = 0;
+        if (normA > 0.5) {
+            squarings = Math.max(0, (int) Math.ceil(Math.log(normA / 0.5) / Math.log(2.0)));
+            final double scale = Math.pow(2.0, -squarings);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    A[i][j] *= scale;
+                }
+            }
+        }
+
+        // numerator N = sum c_k A^k and denominator D = sum (-1)^k c_k A^k
+        double[][] numerator = identity(size);
+        double[][] denominator = identity(size);
+        double[][] power = identity(size);
+        double c = 1.0;
+        for (int k = 1; k <= degree; k++) {
+            c *= (double) (degree - k + 1) / (k * (2 * degree - k + 1));
+            power = product(power, A);
+            final double sign = (k % 2 == 0 ? 1.0 : -1.0);
+            for (int i = 0; i < size; i++) {
+                for (int j = 0; j < size; j++) {
+                    numerator[i][j] += c * power[i][j];
+                    denominator[i][j] += sign * c * power[i][j];
+                }
+            }
+        }
+
+        double[][] F = solve(denominator, numerator);
+        for (int s = 0; s < squarings; s++) {
+            F = product(F, F);
+        }
+        return F;
+    }
+
+    private static double[][] identity(int size) {
+        double[][] I = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            I[i][i] = 1.0;
+        }
+        return I;
+    }
+
+    private static double[][] product(double[][] A, double[][] B) {
+        final int size = A.length;
+        double[][] C = new double[size][size];
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < size; k++) {
+                final double aik = A[i][k];
+                if (aik != 0.0) {
+                    for (int j = 0; j < size; j++) {
+                        C[i][j] += aik * B[k][j];
+                    }
+                }
+            }
+        }
+        return C;
+    }
+
+    // solves A X = B by Gaussian elimination with partial pivoting; A and B are overwritten
+    private static double[][] solve(double[][] A, double[][] B) {
+        final int size = A.length;
+        for (int col = 0; col < size; col++) {
+            int pivot = col;
+            for (int i = col + 1; i < size; i++) {
+                if (Math.abs(A[i][col]) > Math.abs(A[pivot][col])) {
+                    pivot = i;
+                }
+            }
+            double[] tmp = A[col];
+            A[col] = A[pivot];
+            A[pivot] = tmp;
+            tmp = B[col];
+            B[col] = B[pivot];
+            B[pivot] = tmp;
+
+            final double diagonal = A[col][col];
+            for (int i = col + 1; i < size; i++) {
+                final double factor = A[i][col] / diagonal;
+                if (factor != 0.0) {
+                    for (int j = col; j < size; j++) {
+                        A[i][j] -= factor * A[col][j];
+                    }
+                    for (int j = 0; j < size; j++) {
+                        B[i][j] -= factor * B[col][j];
+                    }
+                }
+            }
+        }
+        for (int col = size - 1; col >= 0; col--) {
+            for (int j = 0; j < size; j++) {
+                double sum = B[col][j];
+                for (int k = col + 1; k < size; k++) {
+                    sum -= A[col][k] * B[k][j];
+                }
+                B[col][j] = sum / A[col][col];
+            }
+        }
+        return B;
+    }
+
+    private final int order;
+    private final int basisSize;
+    private final double tolerance;
+
+    // the matrix in compressed sparse row form
+    private double[] values;
+    private int[] columns;
+    private int[] rowStarts;
+    private double norm; // infinity norm
+}
@@ -0,0 +1,139 @@
+package test.dr.app.beagle;
+
+import dr.app.beagle.evomodel.branchmodel.BranchModel;
+import dr.app.beagle.evomodel.branchmodel.HomogeneousBranchModel;
+import dr.app.beagle.evomodel.sitemodel.GammaSiteRateModel;
+import dr.app.beagle.evomodel.substmodel.FrequencyModel;
+import dr.app.beagle.evomodel.substmodel.HKY;
+import dr.app.beagle.evomodel.treelikelihood.BeagleTreeLikelihood;
+import dr.app.beagle.evomodel.treelikelihood.MultiPartitionTreeLikelihood;
+import dr.app.beagle.evomodel.treelikelihood.PartialsRescalingScheme;
+import dr.evolution.alignment.PatternList;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.alignment.SiteList;
+import dr.evolution.alignment.SitePatterns;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.loggers.LogColumn;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that partitions computed together in one BEAGLE instance give the same likelihood as separate tree
+ * likelihoods, in total and through a change to the tree.
+ */
+public class MultiPartitionTreeLikelihoodTest extends TestCase {
+
+    private TreeModel treeModel;
+    private GammaSiteRateModel siteRateModel;
+    private BranchModel branchModel;
+    private List<PatternList> patternLists;
+
+    public MultiPartitionTreeLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NewickImporter importer = new NewickImporter("((0:1.0,1:1.0):0.5,(2:0.5,3:0.5):1.0);");
+        treeModel = new TreeModel("treeModel", (FlexibleTree) importer.importTree(null));
+
+        // the taxa are in a different order in the second alignment
+        SimpleAlignment first = new SimpleAlignment();
+        first.addSequence(new Sequence(new Taxon("0"), "ACGTTACG"));
+        first.addSequence(new Sequence(new Taxon("1"), "ACGATACC"));
+        first.addSequence(new Sequence(new Taxon("2"), "ATGTTGCG"));
+        first.addSequence(new Sequence(new Taxon("3"), "ATGTCGCG"));
+
+        SimpleAlignment second = new SimpleAlignment();
+        second.addSequence(new Sequence(new Taxon("3"), "GGCATT"));
+        second.addSequence(new Sequence(new Taxon("2"), "GGCTTA"));
+        second.addSequence(new Sequence(new Taxon("1"), "GACTAA"));
+        second.addSequence(new Sequence(new Taxon("0"), "AACTAA"));
+
+        patternLists = new ArrayList<PatternList>();
+        patternLists.add(new SitePatterns((SiteList) first));
+        patternLists.add(new SitePatterns((SiteList) second));
+
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.1, 0.3, 0.2, 0.4}));
+        HKY hky = new HKY(new Parameter.Default(1, 2.0), frequencies);
+
+        siteRateModel = new GammaSiteRateModel("gammaModel", new Parameter.Default(1, 1.0),
+                new Parameter.Default(1, 0.5), 4, null);
+        siteRateModel.setSubstitutionModel(hky);
+
+        branchModel = new HomogeneousBranchModel(hky);
+    }
+
+    public void testPartitionLikelihoods() {
+        MultiPartitionTreeLikelihood multiPartition = new MultiPartitionTreeLikelihood(patternLists, siteRateModel,
+                treeModel, branchModel, null, null, false, PartialsRescalingScheme.NONE);
+
+        BeagleTreeLikelihood[] separate = new BeagleTreeLikelihood[patternLists.size()];
+        for (int i = 0; i < separate.length; i++) {
+            separate[i] = new BeagleTreeLikelihood(patternLists.get(i), treeModel, branchModel, siteRateModel,
+                    null, null, false, PartialsRescalingScheme.NONE);
+        }
+
+        assertLikelihoods(multiPartition, separate);
+
+        // lower the parent of the tips 2 and 3 and check the partial update
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            NodeRef tip = treeModel.getExternalNode(i);
+            if (treeModel.getNodeTaxon(tip).getId().equals("2")) {
+                NodeRef parent = treeModel.getParent(tip);
+                treeModel.setNodeHeight(parent, 0.8 * treeModel.getNodeHeight(parent));
+            }
+        }
+        assertLikelihoods(multiPartition, separate);
+
+        // a rejected move: the partition likelihoods are those of the restored state
+        multiPartition.storeModelState();
+        treeModel.setNodeHeight(treeModel.getRoot(), 1.5 * treeModel.getNodeHeight(treeModel.getRoot()));
+        multiPartition.getLogLikelihood();
+        multiPartition.restoreModelState();
+        for (BeagleTreeLikelihood likelihood : separate) {
+            likelihood.makeDirty();
+        }
+        assertLikelihoods(multiPartition, separate);
+    }
+
+    public void testColumns() {
+        MultiPartitionTreeLikelihood multiPartition = new MultiPartitionTreeLikelihood(patternLists, siteRateModel,
+                treeModel, branchModel, null, null, false, PartialsRescalingScheme.NONE);
+        multiPartition.setId("multiPartition");
+
+        LogColumn[] columns = multiPartition.getColumns();
+        if (Double.isNaN(multiPartition.getPartitionLogLikelihood(0))) {
+            // only the total from the Java implementation of BEAGLE
+            assertEquals(1, columns.length);
+        } else {
+            assertEquals(patternLists.size() + 1, columns.length);
+        }
+        assertEquals("multiPartition", columns[0].getLabel());
+    }
+
+    private void assertLikelihoods(MultiPartitionTreeLikelihood multiPartition, BeagleTreeLikelihood[] separate) {
+        double total = 0.0;
+        for (int i = 0; i < separate.length; i++) {
+            double logL = separate[i].getLogLikelihood();
+            total += logL;
+            double partitionLogL = multiPartition.getPartitionLogLikelihood(i);
+            if (!Double.isNaN(partitionLogL)) {
+                // the Java implementation of BEAGLE can only give the total
+                assertEquals(logL, partitionLogL, 1E-10);
+            }
+        }
+        assertEquals(total, multiPartition.getLogLikelihood(), 1E-10);
+    }
+}
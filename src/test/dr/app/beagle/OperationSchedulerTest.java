@@ -0,0 +1,115 @@
+package test.dr.app.beagle;
+
+import beagle.Beagle;
+import dr.app.beagle.evomodel.treelikelihood.OperationScheduler;
+import junit.framework.TestCase;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the operations of a post-order traversal are grouped into levels of independent operations, keeping
+ * the order within each level.
+ */
+public class OperationSchedulerTest extends TestCase {
+
+    public OperationSchedulerTest(String name) {
+        super(name);
+    }
+
+    public void testBalanced() {
+        // ((0,1)5,(2,3)6)7 with 4 hanging off the root: (((0,1)5,(2,3)6)7,4)8
+        int[] operations = operations(new int[][]{{5, 0, 1}, {6, 2, 3}, {7, 5, 6}, {8, 7, 4}});
+
+        OperationScheduler scheduler = new OperationScheduler(9);
+        assertEquals(3, scheduler.schedule(operations, 4));
+        assertDestinations(new int[]{5, 6, 7, 8}, operations);
+        assertEquals(0, scheduler.getLevelStart(0));
+        assertEquals(2, scheduler.getLevelStart(1));
+        assertEquals(4, scheduler.getLevelStart(3));
+    }
+
+    public void testReordered() {
+        // a ladder with a cherry at the bottom and another cherry joining higher up: the second cherry
+        // comes late in the post-order but doesn't depend on anything
+        int[] operations = operations(new int[][]{{6, 0, 1}, {7, 6, 2}, {8, 3, 4}, {9, 7, 8}, {10, 9, 5}});
+
+        OperationScheduler scheduler = new OperationScheduler(11);
+        assertEquals(4, scheduler.schedule(operations, 5));
+        assertDestinations(new int[]{6, 8, 7, 9, 10}, operations);
+        assertEquals(2, scheduler.getLevelStart(1));
+
+        // only part of the tree is updated next time, reading partials from before
+        operations = operations(new int[][]{{7, 6, 2}, {9, 7, 8}, {10, 9, 5}});
+        assertEquals(3, scheduler.schedule(operations, 3));
+        assertDestinations(new int[]{7, 9, 10}, operations);
+    }
+
+    public void testUpdatePartialsByLevel() {
+        int[] operations = operations(new int[][]{{6, 0, 1}, {7, 6, 2}, {8, 3, 4}, {9, 7, 8}, {10, 9, 5}});
+
+        // records the destinations of each updatePartials call
+        final List<int[]> calls = new ArrayList<int[]>();
+        Beagle beagle = (Beagle) Proxy.newProxyInstance(Beagle.class.getClassLoader(), new Class[]{Beagle.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        assertEquals("updatePartials", method.getName());
+                        int[] operations = (int[]) args[0];
+                        int[] destinations = new int[(Integer) args[1]];
+                        for (int i = 0; i < destinations.length; i++) {
+                            destinations[i] = operations[i * Beagle.OPERATION_TUPLE_SIZE];
+                        }
+                        calls.add(destinations);
+                        return null;
+                    }
+                });
+
+        OperationScheduler scheduler = new OperationScheduler(11);
+        scheduler.updatePartials(beagle, operations, 5, Beagle.NONE);
+
+        assertEquals(4, calls.size());
+        assertCall(new int[]{6, 8}, calls.get(0));
+        assertCall(new int[]{7}, calls.get(1));
+        assertCall(new int[]{9}, calls.get(2));
+        assertCall(new int[]{10}, calls.get(3));
+
+        calls.clear();
+        scheduler.updatePartials(beagle, operations, 0, Beagle.NONE);
+        assertEquals(0, calls.size());
+    }
+
+    private static void assertCall(int[] expected, int[] destinations) {
+        assertEquals(expected.length, destinations.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], destinations[i]);
+        }
+    }
+
+    private static int[] operations(int[][] nodes) {
+        int[] operations = new int[nodes.length * Beagle.OPERATION_TUPLE_SIZE];
+        for (int i = 0; i < nodes.length; i++) {
+            int x = i * Beagle.OPERATION_TUPLE_SIZE;
+            operations[x] = nodes[i][0];
+            operations[x + 1] = Beagle.NONE;
+            operations[x + 2] = Beagle.NONE;
+            operations[x + 3] = nodes[i][1];
+            operations[x + 4] = nodes[i][1];
+            operations[x + 5] = nodes[i][2];
+            operations[x + 6] = nodes[i][2];
+        }
+        return operations;
+    }
+
+    private static void assertDestinations(int[] destinations, int[] operations) {
+        for (int i = 0; i < destinations.length; i++) {
+            int x = i * Beagle.OPERATION_TUPLE_SIZE;
+            assertEquals(destinations[i], operations[x]);
+            // the whole operation moves with its destination
+            assertEquals(operations[x + 3], operations[x + 4]);
+            assertEquals(operations[x + 5], operations[x + 6]);
+        }
+    }
+}
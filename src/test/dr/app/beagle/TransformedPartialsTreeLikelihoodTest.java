@@ -0,0 +1,249 @@
+package test.dr.app.beagle;
+
+import dr.app.beagle.evomodel.sitemodel.GammaSiteRateModel;
+import dr.app.beagle.evomodel.sitemodel.SiteRateModel;
+import dr.app.beagle.evomodel.substmodel.ComplexSubstitutionModel;
+import dr.app.beagle.evomodel.substmodel.EigenDecomposition;
+import dr.app.beagle.evomodel.substmodel.FrequencyModel;
+import dr.app.beagle.evomodel.substmodel.HKY;
+import dr.app.beagle.evomodel.substmodel.ProductChainSubstitutionModel;
+import dr.app.beagle.evomodel.substmodel.SubstitutionModel;
+import dr.app.beagle.evomodel.treelikelihood.TransformedPartialsTreeLikelihood;
+import dr.evolution.alignment.Patterns;
+import dr.evolution.datatype.DataType;
+import dr.evolution.datatype.GeneralDataType;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.util.Taxa;
+import dr.evolution.util.Taxon;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.tree.TreeModel;
+import dr.evomodel.treelikelihood.TreeLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the likelihood from partials carried up each branch by the substitution model, with the model's own
+ * transition probabilities over several rate categories against the likelihood core that does not use BEAGLE, and
+ * with Krylov subspace exponentials against the eigen-decomposition, and for a product chain from its base models
+ * against the eigen-decomposition of the full product space, through changes to the tree and the rates and a
+ * rejected move.
+ */
+public class TransformedPartialsTreeLikelihoodTest extends TestCase {
+
+    private static final String NEWICK =
+            "((((t0:0.3,t1:0.2):0.4,t2:0.6):0.5,(t3:0.1,t4:0.7):0.4):0.3,((t5:0.8,t6:0.2):0.2,t7:0.9):0.6);";
+    private static final int TAXON_COUNT = 8;
+
+    private TreeModel treeModel;
+
+    public TransformedPartialsTreeLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+        NewickImporter importer = new NewickImporter(NEWICK);
+        treeModel = new TreeModel("treeModel", (FlexibleTree) importer.importTree(null));
+    }
+
+    public void testKrylov() {
+        final int stateCount = 40;
+        String[] codes = new String[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            codes[i] = "L" + i;
+        }
+        GeneralDataType dataType = new GeneralDataType(codes);
+
+        double[] frequencies = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            frequencies[i] = 1.0 / stateCount;
+        }
+        FrequencyModel freqModel = new FrequencyModel(dataType, frequencies);
+
+        // an irreversible ring of locations with a few other connections
+        double[] rates = new double[stateCount * (stateCount - 1)];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = (MathUtils.nextDouble() < 0.1 ? MathUtils.nextDouble() : 0.0);
+        }
+        for (int i = 0; i < stateCount - 1; i++) {
+            rates[i * (stateCount - 1) - i * (i - 1) / 2] = 1.0;
+        }
+        Parameter ratesParameter = new Parameter.Default(rates);
+        ComplexSubstitutionModel model = new ComplexSubstitutionModel("complex", dataType, freqModel,
+                ratesParameter);
+        model.setKrylovTolerance(1E-12);
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel");
+        siteRateModel.setSubstitutionModel(model);
+
+        // the same rates with transition probabilities from the eigen-decomposition
+        ComplexSubstitutionModel eigenModel = new ComplexSubstitutionModel("complex", dataType, freqModel,
+                ratesParameter);
+        GammaSiteRateModel eigenSiteRateModel = new GammaSiteRateModel("siteModel");
+        eigenSiteRateModel.setSubstitutionModel(eigenModel);
+
+        Patterns patterns = createPatterns(dataType, 3, 0.0);
+
+        TransformedPartialsTreeLikelihood transformed = new TransformedPartialsTreeLikelihood(patterns, treeModel,
+                model, siteRateModel, null);
+        TransformedPartialsTreeLikelihood reference = new TransformedPartialsTreeLikelihood(patterns, treeModel,
+                eigenModel, eigenSiteRateModel, null);
+        assertLikelihoods(transformed, reference);
+
+        // a change to a node height
+        treeModel.setNodeHeight(treeModel.getInternalNode(0), 0.9 * treeModel.getNodeHeight(treeModel.getInternalNode(0)));
+        assertLikelihoods(transformed, reference);
+
+        // a change to the rates rebuilds the sparse rate matrix
+        ratesParameter.setParameterValue(5, 2.5);
+        assertLikelihoods(transformed, reference);
+
+        // a rejected change to the rates and the root height
+        double logL = transformed.getLogLikelihood();
+        transformed.storeModelState();
+        ratesParameter.setParameterValue(7, 3.0);
+        treeModel.setNodeHeight(treeModel.getRoot(), 1.2 * treeModel.getNodeHeight(treeModel.getRoot()));
+        assertTrue(transformed.getLogLikelihood() != logL);
+        transformed.restoreModelState();
+        assertEquals(logL, transformed.getLogLikelihood(), 0.0);
+        transformed.makeDirty();
+        reference.makeDirty();
+        assertLikelihoods(transformed, reference);
+    }
+
+    public void testTransitionProbabilities() {
+        FrequencyModel freqModel = new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.1, 0.3, 0.2, 0.4}));
+        Parameter kappa = new Parameter.Default(1, 2.0);
+        HKY hky = new HKY(kappa, freqModel);
+
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("gammaModel", new Parameter.Default(1, 1.0),
+                new Parameter.Default(1, 0.5), 4, null);
+        siteRateModel.setSubstitutionModel(hky);
+
+        // the same model for the likelihood core that does not use BEAGLE
+        Parameter oldKappa = new Parameter.Default(1, 2.0);
+        dr.evomodel.substmodel.HKY oldHKY = new dr.evomodel.substmodel.HKY(oldKappa,
+                new dr.evomodel.substmodel.FrequencyModel(Nucleotides.INSTANCE,
+                        new Parameter.Default(new double[]{0.1, 0.3, 0.2, 0.4})));
+        GammaSiteModel siteModel = new GammaSiteModel(oldHKY, 0.5, 4);
+
+        Patterns patterns = createPatterns(Nucleotides.INSTANCE, 20, 0.1);
+
+        TransformedPartialsTreeLikelihood transformed = new TransformedPartialsTreeLikelihood(patterns, treeModel,
+                hky, siteRateModel, null);
+        TreeLikelihood reference = new TreeLikelihood(patterns, treeModel, siteModel, null, null, true, false, true,
+                true, false);
+        assertLikelihoods(transformed, reference);
+
+        kappa.setParameterValue(0, 5.0);
+        oldKappa.setParameterValue(0, 5.0);
+        treeModel.setNodeHeight(treeModel.getRoot(), 2.0 * treeModel.getNodeHeight(treeModel.getRoot()));
+        assertLikelihoods(transformed, reference);
+    }
+
+    public void testProductChain() {
+        Parameter kappa0 = new Parameter.Default(1, 2.0);
+        Parameter kappa1 = new Parameter.Default(1, 6.0);
+        List<SubstitutionModel> baseModels = new ArrayList<SubstitutionModel>();
+        baseModels.add(new HKY(kappa0, new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.1, 0.3, 0.2, 0.4}))));
+        baseModels.add(new HKY(kappa1, new FrequencyModel(Nucleotides.INSTANCE,
+                new Parameter.Default(new double[]{0.25, 0.25, 0.3, 0.2}))));
+
+        Parameter mu1 = new Parameter.Default(1, 2.0);
+        List<SiteRateModel> rateModels = new ArrayList<SiteRateModel>();
+        rateModels.add(new GammaSiteRateModel("rate0", new Parameter.Default(1, 0.5), null, -1, null));
+        rateModels.add(new GammaSiteRateModel("rate1", mu1, null, -1, null));
+
+        // the product chain must never form the eigen-system of the full product space
+        ProductChainSubstitutionModel model = new ProductChainSubstitutionModel("productChain", baseModels,
+                rateModels) {
+            public EigenDecomposition getEigenDecomposition() {
+                throw new RuntimeException("The eigen-system of the product space should not be needed");
+            }
+        };
+        GammaSiteRateModel siteRateModel = new GammaSiteRateModel("siteModel");
+        siteRateModel.setSubstitutionModel(model);
+
+        // the same chain through the transition probabilities of the full product space
+        ProductChainSubstitutionModel productSpaceModel = new ProductChainSubstitutionModel("productChain",
+                baseModels, rateModels) {
+            protected boolean isKroneckerSum() {
+                return false;
+            }
+        };
+        GammaSiteRateModel productSpaceSiteRateModel = new GammaSiteRateModel("siteModel");
+        productSpaceSiteRateModel.setSubstitutionModel(productSpaceModel);
+
+        Patterns patterns = createPatterns(model.getDataType(), 10, 0.0);
+
+        TransformedPartialsTreeLikelihood transformed = new TransformedPartialsTreeLikelihood(patterns, treeModel,
+                model, siteRateModel, null);
+        TransformedPartialsTreeLikelihood reference = new TransformedPartialsTreeLikelihood(patterns, treeModel,
+                productSpaceModel, productSpaceSiteRateModel, null);
+        assertLikelihoods(transformed, reference);
+
+        // a base model, the rate of a base model and the tree
+        kappa0.setParameterValue(0, 4.0);
+        assertLikelihoods(transformed, reference);
+        mu1.setParameterValue(0, 0.7);
+        assertLikelihoods(transformed, reference);
+        treeModel.setNodeHeight(treeModel.getInternalNode(1), 0.8 * treeModel.getNodeHeight(treeModel.getInternalNode(1)));
+        assertLikelihoods(transformed, reference);
+
+        // a rejected change to a base model, after which the kept base transition probabilities are not reused
+        double logL = transformed.getLogLikelihood();
+        transformed.storeModelState();
+        reference.storeModelState();
+        kappa1.setParameterValue(0, 1.5);
+        assertLikelihoods(transformed, reference);
+        double[] partials = new double[model.getDataType().getStateCount()];
+        double[] out = new double[model.getDataType().getStateCount()];
+        partials[3] = 1.0;
+        model.transformPartials(0.37, partials, out);
+        transformed.restoreModelState();
+        reference.restoreModelState();
+        assertEquals(logL, transformed.getLogLikelihood(), 0.0);
+
+        double[] expected = new double[model.getDataType().getStateCount()];
+        productSpaceModel.transformPartials(0.37, partials, expected);
+        model.transformPartials(0.37, partials, out);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], out[i], 1E-12);
+        }
+        transformed.makeDirty();
+        reference.makeDirty();
+        assertLikelihoods(transformed, reference);
+    }
+
+    // random patterns of the taxon names, with some gaps so that some tips are ambiguous
+    private static Patterns createPatterns(DataType dataType, int patternCount, double gapProportion) {
+        Taxa taxa = new Taxa();
+        for (int i = 0; i < TAXON_COUNT; i++) {
+            taxa.addTaxon(new Taxon("t" + i));
+        }
+        Patterns patterns = new Patterns(dataType, taxa);
+        for (int k = 0; k < patternCount; k++) {
+            int[] pattern = new int[TAXON_COUNT];
+            for (int i = 0; i < TAXON_COUNT; i++) {
+                pattern[i] = (MathUtils.nextDouble() < gapProportion ? dataType.getGapState() :
+                        MathUtils.nextInt(dataType.getStateCount()));
+            }
+            patterns.addPattern(pattern, 1.0 + k % 3);
+        }
+        return patterns;
+    }
+
+    private static void assertLikelihoods(TransformedPartialsTreeLikelihood transformed, Likelihood reference) {
+        double expected = reference.getLogLikelihood();
+        assertEquals(expected, transformed.getLogLikelihood(), 1E-8 * Math.abs(expected));
+    }
+}
@@ -0,0 +1,156 @@
+package test.dr.app.pathogen;
+
+import dr.app.pathogen.TemporalRooting;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Date;
+import dr.evolution.util.Units;
+import dr.math.MathUtils;
+import dr.stats.Regression;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the global root found from the branch sufficient statistics with an exhaustive search that reroots a
+ * copy of the tree on every branch, including trees whose current root is already the best one.
+ */
+public class TemporalRootingTest extends TestCase {
+
+    private static final TemporalRooting.RootingFunction[] FUNCTIONS = {
+            TemporalRooting.RootingFunction.RESIDUAL_MEAN_SQUARED,
+            TemporalRooting.RootingFunction.CORRELATION,
+            TemporalRooting.RootingFunction.R_SQUARED
+    };
+
+    public TemporalRootingTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testRandomTrees() throws Exception {
+        for (int replicate = 0; replicate < 20; replicate++) {
+            Tree tree = randomDatedTree(4 + MathUtils.nextInt(30), Math.pow(10.0, -4.0 * MathUtils.nextDouble()));
+            TemporalRooting rooting = new TemporalRooting(tree);
+
+            for (TemporalRooting.RootingFunction function : FUNCTIONS) {
+                for (Tree oriented : new Tree[]{tree, swapRootChildren(tree)}) {
+                    double expected = score(findRootExhaustively(rooting, oriented, function), function);
+                    double found = score(rooting.findRoot(oriented, function), function);
+                    assertEquals(expected, found, 1E-10 * Math.max(1.0, Math.abs(expected)));
+                }
+            }
+        }
+    }
+
+    public void testCurrentRoot() throws Exception {
+        for (int replicate = 0; replicate < 20; replicate++) {
+            Tree tree = randomDatedTree(4 + MathUtils.nextInt(30), Math.pow(10.0, -4.0 * MathUtils.nextDouble()));
+            TemporalRooting rooting = new TemporalRooting(tree);
+
+            for (TemporalRooting.RootingFunction function : FUNCTIONS) {
+                // the tree is already rooted on the best branch, with the root's children in either order
+                Tree best = findRootExhaustively(rooting, tree, function);
+                for (Tree oriented : new Tree[]{best, swapRootChildren(best)}) {
+                    double expected = score(findRootExhaustively(rooting, oriented, function), function);
+                    double found = score(rooting.findRoot(oriented, function), function);
+                    assertEquals(expected, found, 1E-10 * Math.max(1.0, Math.abs(expected)));
+                }
+            }
+        }
+    }
+
+    // the search as it was done before the sufficient statistics: every branch is tried on a copy of the tree
+    private static Tree findRootExhaustively(TemporalRooting rooting, Tree source,
+                                             TemporalRooting.RootingFunction function) {
+        Tree bestTree = rooting.findLocalRoot(source, function);
+        double minF = score(bestTree, function);
+
+        for (int i = 0; i < source.getNodeCount(); i++) {
+            FlexibleTree tmpTree = new FlexibleTree(source);
+            NodeRef node = tmpTree.getNode(i);
+            if (!tmpTree.isRoot(node)) {
+                double length = tmpTree.getBranchLength(node);
+                tmpTree.changeRoot(node, length * 0.5, length * 0.5);
+
+                Tree localTree = rooting.findLocalRoot(tmpTree, function);
+                double f = score(localTree, function);
+                if (f < minF) {
+                    minF = f;
+                    bestTree = localTree;
+                }
+            }
+        }
+        return bestTree;
+    }
+
+    // the same tree and node numbers with the order of the root's children reversed
+    private static Tree swapRootChildren(Tree source) {
+        FlexibleTree tree = new FlexibleTree(source);
+        NodeRef root = tree.getRoot();
+        NodeRef child = tree.getChild(root, 0);
+        tree.beginTreeEdit();
+        tree.removeChild(root, child);
+        tree.addChild(root, child);
+        tree.endTreeEdit();
+        return tree;
+    }
+
+    private static double score(Tree tree, TemporalRooting.RootingFunction function) {
+        TemporalRooting rooting = new TemporalRooting(tree);
+        Regression regression = rooting.getRootToTipRegression(tree);
+        switch (function) {
+            case CORRELATION:
+                return -regression.getCorrelationCoefficient();
+            case R_SQUARED:
+                return -(regression.getCorrelationCoefficient() * regression.getCorrelationCoefficient());
+            case RESIDUAL_MEAN_SQUARED:
+                return regression.getResidualMeanSquared();
+            default:
+                throw new IllegalArgumentException("Unknown function");
+        }
+    }
+
+    // a random binary tree (branch lengths roughly clock-like with noise, in substitutions per site) with dated tips
+    private static Tree randomDatedTree(int tipCount, double rate) throws Exception {
+        List<String> subtrees = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 0; i < tipCount; i++) {
+            subtrees.add("t" + i);
+            heights.add(MathUtils.nextDouble() * 10.0);
+        }
+        double[] dates = new double[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            dates[i] = 2000.0 - heights.get(i);
+        }
+
+        while (subtrees.size() > 1) {
+            int i = MathUtils.nextInt(subtrees.size());
+            String subtree1 = subtrees.remove(i);
+            double height1 = heights.remove(i);
+            int j = MathUtils.nextInt(subtrees.size());
+            String subtree2 = subtrees.remove(j);
+            double height2 = heights.remove(j);
+
+            double height = Math.max(height1, height2) + MathUtils.nextDouble() * 5.0;
+            double length1 = rate * (height - height1) * (0.5 + MathUtils.nextDouble());
+            double length2 = rate * (height - height2) * (0.5 + MathUtils.nextDouble());
+            subtrees.add("(" + subtree1 + ":" + length1 + "," + subtree2 + ":" + length2 + ")");
+            heights.add(height);
+        }
+
+        Tree tree = new NewickImporter(subtrees.get(0) + ";").importTree(null);
+        for (int i = 0; i < tree.getTaxonCount(); i++) {
+            int k = Integer.parseInt(tree.getTaxonId(i).substring(1));
+            tree.getTaxon(i).setAttribute("date", Date.createTimeSinceOrigin(dates[k], Units.Type.YEARS, 0.0));
+        }
+        return tree;
+    }
+}
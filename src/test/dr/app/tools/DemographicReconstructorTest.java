@@ -0,0 +1,580 @@
+package test.dr.app.tools;
+
+import dr.app.tools.DemographicReconstructor;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceDistribution;
+import dr.inference.trace.TraceFactory;
+import dr.math.MathUtils;
+import dr.stats.Variate;
+import jebl.evolution.coalescent.IntervalList;
+import jebl.evolution.coalescent.Intervals;
+import jebl.evolution.graphs.Node;
+import jebl.evolution.io.NewickImporter;
+import jebl.evolution.io.NexusImporter;
+import jebl.evolution.io.TreeImporter;
+import jebl.evolution.trees.RootedTree;
+import jebl.evolution.trees.Tree;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the tree scanning of DemographicReconstructor with the trees imported by jebl, and each of its
+ * reconstructions with the loops of Tracer's temporal analysis dialogs on a small log and tree file.
+ */
+public class DemographicReconstructorTest extends TestCase {
+
+    private static final int TIP_COUNT = 10;
+    private static final int STATE_COUNT = 101;
+    private static final int STEP = 100;
+    private static final int BURNIN = 1000;
+    private static final int BIN_COUNT = 50;
+
+    private static final int SKYLINE_GROUP_COUNT = 4;
+    private static final int SKYGRID_POP_SIZE_COUNT = 6;
+
+    private File directory;
+    private File logFile;
+    private File treeFile;
+    private File newickFile;
+
+    public DemographicReconstructorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+
+        directory = File.createTempFile("demographic", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        logFile = new File(directory, "run.log");
+        treeFile = new File(directory, "run.trees");
+        newickFile = new File(directory, "run.newick");
+        writeFiles();
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testTreeLineReader() throws Exception {
+        for (File file : new File[]{treeFile, newickFile}) {
+            List<Tree> trees = importTrees(file);
+            assertEquals(STATE_COUNT, trees.size());
+
+            List<String> lines = readTreeLines(file);
+            assertEquals(trees.size(), lines.size());
+        }
+    }
+
+    public void testNodeHeights() throws Exception {
+        for (File file : new File[]{treeFile, newickFile}) {
+            List<Tree> trees = importTrees(file);
+            List<String> lines = readTreeLines(file);
+
+            DemographicReconstructor.NodeHeights nodeHeights = new DemographicReconstructor.NodeHeights();
+            for (int i = 0; i < trees.size(); i++) {
+                RootedTree tree = (RootedTree) trees.get(i);
+                nodeHeights.parse(lines.get(i));
+
+                assertEquals(getBranchingTimes(tree), nodeHeights.getBranchingTimes());
+                assertEquals(getCoalescentTimes(tree), nodeHeights.getCoalescentTimes());
+            }
+        }
+    }
+
+    public void testReconstructions() throws Exception {
+        for (double ageOfYoungest : new double[]{0.0, 2010.0}) {
+            checkReconstruction(DemographicReconstructor.Model.STEPWISE_SKYLINE, ageOfYoungest, false);
+            checkReconstruction(DemographicReconstructor.Model.LINEAR_SKYLINE, ageOfYoungest, false);
+            checkReconstruction(DemographicReconstructor.Model.LINEAR_SKYLINE, ageOfYoungest, true);
+            checkReconstruction(DemographicReconstructor.Model.SKYRIDE, ageOfYoungest, false);
+            checkReconstruction(DemographicReconstructor.Model.SKYGRID, ageOfYoungest, false);
+            checkReconstruction(DemographicReconstructor.Model.LINEAGES_THROUGH_TIME, ageOfYoungest, false);
+        }
+    }
+
+    private void checkReconstruction(DemographicReconstructor.Model model, double ageOfYoungest, boolean ratePlot)
+            throws Exception {
+        LogFileTraces traces = new LogFileTraces(logFile.getName(), logFile);
+        traces.loadTraces();
+        traces.setBurnIn(BURNIN);
+
+        DemographicReconstructor reconstructor = new DemographicReconstructor(model, BIN_COUNT, ageOfYoungest,
+                DemographicReconstructor.MaxHeight.MEDIAN, 3);
+        if (model == DemographicReconstructor.Model.LINEAR_SKYLINE) {
+            reconstructor.setPopSizeTrace("linear.popSize");
+            reconstructor.setSecondTrace("linear.groupSize");
+        }
+        reconstructor.setRatePlot(ratePlot);
+        DemographicReconstructor.Reconstruction reconstruction = reconstructor.reconstruct(traces, treeFile);
+
+        List<double[]> expected = new ArrayList<double[]>();
+        double[] expectedRootTimes = tracerReconstruction(model, traces, ageOfYoungest, ratePlot, expected);
+
+        String message = model + (ratePlot ? " rate" : "") + " youngest=" + ageOfYoungest;
+        assertEquals(message, expected.size(), reconstruction.getRowCount());
+        assertTrue(message, expected.size() > 1);
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(message + " row " + i, expected.get(i), reconstruction.getRow(i));
+        }
+        assertEquals(message, expectedRootTimes, reconstruction.getRootTimes());
+    }
+
+    /**
+     * The reconstruction as the loops of BayesianSkylineDialog, GMRFSkyrideDialog, SkyGridDialog and
+     * LineagesThroughTimeDialog do it, with the trees imported by jebl.
+     *
+     * @return the times of the root
+     */
+    private double[] tracerReconstruction(DemographicReconstructor.Model model, LogFileTraces traceList,
+                                          double ageOfYoungest, boolean isRatePlot, List<double[]> rows)
+            throws Exception {
+        int stateCount = traceList.getStateCount();
+
+        int heightIndex = traceList.getTraceIndex("treeModel.rootHeight");
+        TraceDistribution<Double> distribution = new TraceDistribution<Double>(getValues(traceList, heightIndex),
+                traceList.getTrace(heightIndex).getTraceType(), traceList.getStepSize());
+
+        double timeMean = distribution.getMean();
+        double timeMedian = distribution.getMedian();
+        double timeUpper = distribution.getUpperHPD();
+        double timeLower = distribution.getLowerHPD();
+        double maxHeight = timeMedian;
+
+        double minTime, maxTime;
+        if (ageOfYoungest > 0.0) {
+            minTime = ageOfYoungest - maxHeight;
+            maxTime = ageOfYoungest;
+        } else {
+            minTime = 0.0;
+            maxTime = maxHeight - ageOfYoungest;
+        }
+
+        if (ageOfYoungest > 0.0) {
+            timeMean = ageOfYoungest - timeMean;
+            timeMedian = ageOfYoungest - timeMedian;
+            timeUpper = ageOfYoungest - timeUpper;
+            timeLower = ageOfYoungest - timeLower;
+
+            if (minTime >= timeLower) timeLower = -1;
+            if (minTime >= timeMean) timeMean = -1;
+            if (minTime >= timeMedian) timeMedian = -1;
+            if (minTime >= timeUpper) timeUpper = -1;
+        } else {
+            timeMean = timeMean - ageOfYoungest;
+            timeMedian = timeMedian - ageOfYoungest;
+            timeUpper = timeUpper - ageOfYoungest;
+            timeLower = timeLower - ageOfYoungest;
+
+            if (maxTime <= timeLower) timeLower = -1;
+            if (maxTime <= timeMean) timeMean = -1;
+            if (maxTime <= timeMedian) timeMedian = -1;
+            if (maxTime <= timeUpper) timeUpper = -1;
+        }
+        double[] rootTimes = new double[]{timeMean, timeMedian, timeUpper, timeLower};
+
+        if (model == DemographicReconstructor.Model.SKYGRID) {
+            int firstPopSize = traceList.getTraceIndex("skygrid.logPopSize1");
+            double gridHeight = (Double) traceList.getTrace(traceList.getTraceIndex("skygrid.cutOff")).getValue(0);
+
+            double delta = gridHeight / (double) (SKYGRID_POP_SIZE_COUNT - 1);
+            double height;
+            if (ageOfYoungest > 0.0) {
+                height = ageOfYoungest;
+                delta = -delta;
+            } else {
+                height = 0.0;
+            }
+
+            for (int i = 0; i < SKYGRID_POP_SIZE_COUNT; ++i) {
+                if (height >= minTime && height <= maxTime) {
+                    TraceDistribution<Double> dist = new TraceDistribution<Double>(
+                            getValues(traceList, firstPopSize + i), TraceFactory.TraceType.DOUBLE);
+                    double[] row = new double[]{height, Math.exp(dist.getMean()), Math.exp(dist.getMedian()),
+                            Math.exp(dist.getUpperHPD()), Math.exp(dist.getLowerHPD())};
+                    rows.add(row);
+
+                    if (i == SKYGRID_POP_SIZE_COUNT - 1) {
+                        while (height >= minTime && height <= maxTime) {
+                            row = row.clone();
+                            row[0] = height;
+                            rows.add(row);
+                            height += delta;
+                        }
+                    }
+                }
+                height += delta;
+            }
+            return rootTimes;
+        }
+
+        // the trees after the burn-in, each imported in full
+        int skip = traceList.getBurnIn() / traceList.getStepSize();
+        List<Tree> trees = importTrees(treeFile);
+        trees = trees.subList(skip, trees.size());
+        assertEquals(stateCount, trees.size());
+
+        String popSizeName = (model == DemographicReconstructor.Model.LINEAR_SKYLINE ? "linear" :
+                (model == DemographicReconstructor.Model.SKYRIDE ? "skyride" : "skyline"));
+        List<List<Double>> popSizes = getValueRange(traceList,
+                popSizeName + (model == DemographicReconstructor.Model.SKYRIDE ? ".logPopSize1" : ".popSize1"));
+        List<List<Double>> groupSizes = getValueRange(traceList, popSizeName + ".groupSize1");
+
+        double[][] times = new double[stateCount][];
+        for (int state = 0; state < stateCount; state++) {
+            RootedTree tree = (RootedTree) trees.get(state);
+            switch (model) {
+                case STEPWISE_SKYLINE:
+                case LINEAR_SKYLINE:
+                    times[state] = getGroupTimes(tree, groupSizes, state);
+                    break;
+                case SKYRIDE:
+                    times[state] = getCoalescentTimes(tree);
+                    break;
+                case LINEAGES_THROUGH_TIME:
+                    times[state] = getBranchingTimes(tree);
+                    break;
+            }
+        }
+
+        double delta = (maxTime - minTime) / (BIN_COUNT - 1);
+        Variate.D[] bins = new Variate.D[BIN_COUNT];
+        double height;
+        if (ageOfYoungest > 0.0) {
+            height = ageOfYoungest - maxTime;
+        } else {
+            height = ageOfYoungest;
+        }
+
+        for (int k = 0; k < BIN_COUNT; k++) {
+            bins[k] = new Variate.D();
+
+            if (height >= 0.0 && height <= maxHeight) {
+                for (int state = 0; state < stateCount; state++) {
+                    double[] stateTimes = times[state];
+
+                    double lastTime = 0.0;
+                    int index = 0;
+                    while (index < stateTimes.length && stateTimes[index] < height) {
+                        lastTime = stateTimes[index];
+                        index += 1;
+                    }
+
+                    switch (model) {
+                        case STEPWISE_SKYLINE:
+                            if (index < stateTimes.length) {
+                                bins[k].add(popSizes.get(index).get(state));
+                            }
+                            break;
+                        case LINEAR_SKYLINE:
+                            if (index < stateTimes.length - 1) {
+                                double t = (height - lastTime) / (stateTimes[index] - lastTime);
+                                double p1 = popSizes.get(index).get(state);
+                                double p2 = popSizes.get(index + 1).get(state);
+                                if (isRatePlot) {
+                                    bins[k].add((Math.log(p1) - Math.log(p2)) / (stateTimes[index] - lastTime));
+                                } else {
+                                    bins[k].add(p1 + ((p2 - p1) * t));
+                                }
+                            }
+                            break;
+                        case SKYRIDE:
+                            if (index < popSizes.size() - 1) {
+                                double t = (height - lastTime) / (stateTimes[index] - lastTime);
+                                double p1 = Math.exp(popSizes.get(index).get(state));
+                                double p2 = Math.exp(popSizes.get(index + 1).get(state));
+                                bins[k].add(p1 + ((p2 - p1) * t));
+                            }
+                            break;
+                        case LINEAGES_THROUGH_TIME:
+                            double n = times[0].length;
+                            double lineageCount = 1;
+                            if (index < stateTimes.length) {
+                                lineageCount = n - index + 1;
+                            }
+                            bins[k].add(lineageCount);
+                            break;
+                    }
+                }
+            }
+            height += delta;
+        }
+
+        double t;
+        if (ageOfYoungest > 0.0) {
+            t = maxTime;
+        } else {
+            t = minTime;
+        }
+        for (Variate.D bin : bins) {
+            if (bin.getCount() > 0) {
+                rows.add(new double[]{t, bin.getMean(), bin.getQuantile(0.5), bin.getQuantile(0.975),
+                        bin.getQuantile(0.025)});
+            } else {
+                rows.add(new double[]{t, Double.NaN, Double.NaN, Double.NaN, Double.NaN});
+            }
+            if (ageOfYoungest > 0.0) {
+                t -= delta;
+            } else {
+                t += delta;
+            }
+        }
+        return rootTimes;
+    }
+
+    // the age of the end of each group of coalescent intervals, as BayesianSkylineDialog
+    private static double[] getGroupTimes(RootedTree tree, List<List<Double>> groupSizes, int state) {
+        IntervalList intervals = new Intervals(tree);
+
+        double[] groupTimes = new double[groupSizes.size()];
+        double totalTime = 0.0;
+        int groupIndex = 0;
+        int subIndex = 0;
+        int groupSize = (int) Math.round(groupSizes.get(groupIndex).get(state));
+        for (int j = 0; j < intervals.getIntervalCount(); j++) {
+            totalTime += intervals.getInterval(j);
+            if (intervals.getIntervalType(j) == IntervalList.IntervalType.COALESCENT) {
+                subIndex += 1;
+                if (subIndex == groupSize) {
+                    groupTimes[groupIndex] = totalTime;
+                    subIndex = 0;
+                    groupIndex += 1;
+                    if (groupIndex < groupSizes.size()) {
+                        groupSize = (int) Math.round(groupSizes.get(groupIndex).get(state));
+                    }
+                }
+            }
+        }
+        return groupTimes;
+    }
+
+    // the times of the coalescent events from the intervals, as GMRFSkyrideDialog
+    private static double[] getCoalescentTimes(RootedTree tree) {
+        IntervalList intervals = new Intervals(tree);
+
+        List<Double> times = new ArrayList<Double>();
+        double totalTime = 0.0;
+        for (int j = 0; j < intervals.getIntervalCount(); j++) {
+            totalTime += intervals.getInterval(j);
+            if (intervals.getIntervalType(j) == IntervalList.IntervalType.COALESCENT) {
+                times.add(totalTime);
+            }
+        }
+        return toArray(times);
+    }
+
+    // the sorted heights of the internal nodes, as LineagesThroughTimeDialog
+    private static double[] getBranchingTimes(RootedTree tree) {
+        double[] times = new double[tree.getInternalNodes().size()];
+        int i = 0;
+        for (Node node : tree.getInternalNodes()) {
+            times[i] = tree.getHeight(node);
+            i++;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static List<Tree> importTrees(File file) throws Exception {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        TreeImporter importer;
+        reader.mark(1024);
+        String line = reader.readLine();
+        if (line.toUpperCase().startsWith("#NEXUS")) {
+            importer = new NexusImporter(reader);
+        } else {
+            reader.reset();
+            importer = new NewickImporter(reader, false);
+        }
+        List<Tree> trees = importer.importTrees();
+        reader.close();
+        return trees;
+    }
+
+    private static List<String> readTreeLines(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        DemographicReconstructor.TreeLineReader treeReader = new DemographicReconstructor.TreeLineReader(reader);
+        List<String> lines = new ArrayList<String>();
+        String line = treeReader.readTree();
+        while (line != null) {
+            lines.add(line);
+            line = treeReader.readTree();
+        }
+        reader.close();
+        return lines;
+    }
+
+    private static List<Double> getValues(LogFileTraces traces, int index) {
+        List<Double> values = new ArrayList<Double>();
+        for (Object value : traces.getValues(index)) {
+            values.add((Double) value);
+        }
+        return values;
+    }
+
+    private static List<List<Double>> getValueRange(LogFileTraces traces, String firstName) {
+        List<List<Double>> range = new ArrayList<List<Double>>();
+        int index = traces.getTraceIndex(firstName);
+        if (index >= 0) {
+            String root = firstName.substring(0, firstName.length() - 1);
+            for (int i = 1; index < traces.getTraceCount() && traces.getTraceName(index).equals(root + i); i++) {
+                range.add(getValues(traces, index));
+                index++;
+            }
+        }
+        return range;
+    }
+
+    private static double[] toArray(List<Double> values) {
+        double[] array = new double[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    private static void assertEquals(double[] expected, double[] actual) {
+        assertEquals(null, expected, actual);
+    }
+
+    private static void assertEquals(String message, double[] expected, double[] actual) {
+        assertEquals(message, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (Double.isNaN(expected[i])) {
+                assertTrue(message, Double.isNaN(actual[i]));
+            } else {
+                assertEquals(message, expected[i], actual[i], 1E-10 * Math.max(1.0, Math.abs(expected[i])));
+            }
+        }
+    }
+
+    /**
+     * Writes a log and the matching trees, in BEAST's NEXUS form with annotated nodes and as plain Newick. The tips
+     * have different dates and each state has its own skyline grouping.
+     */
+    private void writeFiles() throws IOException {
+        PrintWriter log = new PrintWriter(new FileWriter(logFile));
+        PrintWriter trees = new PrintWriter(new FileWriter(treeFile));
+        PrintWriter newick = new PrintWriter(new FileWriter(newickFile));
+
+        log.println("# BEAST test log");
+        StringBuilder header = new StringBuilder("state\ttreeModel.rootHeight");
+        appendNames(header, "skyline.popSize", SKYLINE_GROUP_COUNT);
+        appendNames(header, "skyline.groupSize", SKYLINE_GROUP_COUNT);
+        appendNames(header, "linear.popSize", SKYLINE_GROUP_COUNT + 1);
+        appendNames(header, "linear.groupSize", SKYLINE_GROUP_COUNT);
+        appendNames(header, "skyride.logPopSize", TIP_COUNT - 1);
+        appendNames(header, "skygrid.logPopSize", SKYGRID_POP_SIZE_COUNT);
+        header.append("\tskygrid.cutOff");
+        log.println(header);
+
+        trees.println("#NEXUS");
+        trees.println();
+        trees.println("Begin taxa;");
+        trees.println("\tDimensions ntax=" + TIP_COUNT + ";");
+        trees.println("\tTaxlabels");
+        for (int i = 0; i < TIP_COUNT; i++) {
+            trees.println("\t\ttaxon" + i);
+        }
+        trees.println("\t\t;");
+        trees.println("End;");
+        trees.println();
+        trees.println("Begin trees;");
+        trees.println("\tTranslate");
+        for (int i = 0; i < TIP_COUNT; i++) {
+            trees.println("\t\t" + (i + 1) + " taxon" + i + (i < TIP_COUNT - 1 ? "," : ""));
+        }
+        trees.println("\t\t;");
+
+        double[] tipHeights = new double[TIP_COUNT];
+        for (int i = 1; i < TIP_COUNT; i++) {
+            tipHeights[i] = MathUtils.nextDouble() * 2.0;
+        }
+
+        for (int k = 0; k < STATE_COUNT; k++) {
+            double[] rootHeight = new double[1];
+            String tree = randomTree(tipHeights, rootHeight);
+            trees.println("tree STATE_" + (k * STEP) + " [&lnP=" + (-1000.0 - k) + "] = [&R] " + tree);
+            newick.println(tree.replaceAll("\\[[^]]*\\]", ""));
+
+            StringBuilder row = new StringBuilder();
+            row.append(k * STEP).append("\t").append(rootHeight[0]);
+            appendValues(row, SKYLINE_GROUP_COUNT, 1.0, 10.0);
+            appendGroupSizes(row, TIP_COUNT - 1, SKYLINE_GROUP_COUNT);
+            appendValues(row, SKYLINE_GROUP_COUNT + 1, 1.0, 10.0);
+            appendGroupSizes(row, TIP_COUNT - 1, SKYLINE_GROUP_COUNT);
+            appendValues(row, TIP_COUNT - 1, -1.0, 3.0);
+            appendValues(row, SKYGRID_POP_SIZE_COUNT, -1.0, 3.0);
+            row.append("\t").append(8.0);
+            log.println(row);
+        }
+        trees.println("End;");
+
+        log.close();
+        trees.close();
+        newick.close();
+    }
+
+    // a random binary tree over tips of the given heights, numbered from 1 and with some nodes annotated
+    private static String randomTree(double[] tipHeights, double[] rootHeight) {
+        List<String> subtrees = new ArrayList<String>();
+        List<Double> heights = new ArrayList<Double>();
+        for (int i = 0; i < tipHeights.length; i++) {
+            subtrees.add((i + 1) + (i % 3 == 0 ? "[&rate=" + MathUtils.nextDouble() + "]" : ""));
+            heights.add(tipHeights[i]);
+        }
+        while (subtrees.size() > 1) {
+            int i = MathUtils.nextInt(subtrees.size());
+            String subtree1 = subtrees.remove(i);
+            double height1 = heights.remove(i);
+            int j = MathUtils.nextInt(subtrees.size());
+            String subtree2 = subtrees.remove(j);
+            double height2 = heights.remove(j);
+
+            double height = Math.max(height1, height2) + MathUtils.nextDouble();
+            String annotation = (MathUtils.nextBoolean() ? "[&rate=" + MathUtils.nextDouble() + ",pop={1.0,2.0}]" : "");
+            subtrees.add("(" + subtree1 + ":" + (height - height1) + "," + subtree2 + ":" + (height - height2) + ")" +
+                    annotation);
+            heights.add(height);
+        }
+        rootHeight[0] = heights.get(0);
+        return subtrees.get(0) + ";";
+    }
+
+    private static void appendNames(StringBuilder builder, String name, int count) {
+        for (int i = 1; i <= count; i++) {
+            builder.append("\t").append(name).append(i);
+        }
+    }
+
+    private static void appendValues(StringBuilder builder, int count, double lower, double upper) {
+        for (int i = 0; i < count; i++) {
+            builder.append("\t").append(lower + MathUtils.nextDouble() * (upper - lower));
+        }
+    }
+
+    // a random division of the coalescent events into the given number of groups
+    private static void appendGroupSizes(StringBuilder builder, int eventCount, int groupCount) {
+        int[] sizes = new int[groupCount];
+        Arrays.fill(sizes, 1);
+        for (int i = groupCount; i < eventCount; i++) {
+            sizes[MathUtils.nextInt(groupCount)]++;
+        }
+        for (int size : sizes) {
+            builder.append("\t").append(size);
+        }
+    }
+}
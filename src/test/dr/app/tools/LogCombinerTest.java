@@ -0,0 +1,244 @@
+package test.dr.app.tools;
+
+import dr.app.tools.LogCombiner;
+import dr.evolution.io.NexusImporter;
+import dr.evolution.tree.Tree;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Combines small logs and tree files with burn-in and resampling and checks the output against the files combined
+ * one line at a time, as LogCombiner did before the files were read concurrently.
+ */
+public class LogCombinerTest extends TestCase {
+
+    private File directory;
+
+    public LogCombinerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        directory = File.createTempFile("logcombiner", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    public void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+        super.tearDown();
+    }
+
+    public void testLogs() throws Exception {
+        String[] inputs = {
+                writeLog("run1.log", 2000, 100, 1),
+                writeLog("run2.log", 1500, 100, 2),
+                writeLog("run3.log", 1800, 100, 3)
+        };
+
+        checkLogs(inputs, new long[]{0}, -1, false);
+        checkLogs(inputs, new long[]{500}, -1, false);
+        checkLogs(inputs, new long[]{500}, 200, false);
+        checkLogs(inputs, new long[]{300, 600, 0}, 400, true);
+        checkLogs(inputs, new long[]{0}, 100, true);
+    }
+
+    public void testTrees() throws Exception {
+        // the second file numbers the taxa differently so its trees are renumbered
+        String[] inputs = {
+                writeTrees("run1.trees", new String[]{"A", "B", "C", "D"}, 1000, 100, 1, null),
+                writeTrees("run2.trees", new String[]{"C", "A", "D", "B"}, 800, 100, 2, null)
+        };
+
+        for (long resample : new long[]{-1, 200}) {
+            // verbatim copying of the tree lines
+            String verbatim = new File(directory, "verbatim.trees").getPath();
+            new LogCombiner(new long[]{300}, resample, inputs, verbatim, true, false, false, false, 1.0);
+
+            // parsing and writing every tree, as before
+            String parsed = new File(directory, "parsed.trees").getPath();
+            new LogCombiner(new long[]{300}, resample, inputs, parsed, true, true, false, false, 1.0);
+
+            List<String> verbatimTrees = readTrees(verbatim);
+            List<String> parsedTrees = readTrees(parsed);
+            assertEquals(resample < 0 ? 14 : 7, parsedTrees.size());
+            assertEquals(parsedTrees, verbatimTrees);
+        }
+    }
+
+    public void testReaderFailure() throws Exception {
+        // a taxon number that is not an int stops the reader with a runtime exception
+        final String[] inputs = {
+                writeTrees("run1.trees", new String[]{"A", "B", "C", "D"}, 500, 100, 1, null),
+                writeTrees("run2.trees", new String[]{"C", "A", "D", "B"}, 500, 100, 2,
+                        "tree STATE_600 = [&R] ((99999999999:0.1,2:0.1):0.1,(3:0.1,4:0.1):0.1);")
+        };
+
+        final Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    new LogCombiner(new long[]{0}, -1, inputs, new File(directory, "out.trees").getPath(),
+                            true, false, false, false, 1.0);
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        thread.join(60000);
+
+        assertFalse("the writer is still waiting on the failed reader", thread.isAlive());
+        assertTrue(thrown[0] instanceof NumberFormatException);
+    }
+
+    private void checkLogs(String[] inputs, long[] burnins, long resample, boolean renumber) throws IOException {
+        String output = new File(directory, "combined.log").getPath();
+        new LogCombiner(burnins, resample, inputs, output, false, false, renumber, false, 1.0);
+
+        assertEquals(combineSequentially(inputs, burnins, resample, renumber), readFile(output));
+    }
+
+    /**
+     * The log combining loop as it was before the files were read concurrently.
+     */
+    private static String combineSequentially(String[] inputs, long[] burnins, long resample, boolean renumber)
+            throws IOException {
+        StringBuilder builder = new StringBuilder();
+
+        long stateCount = (renumber ? -1 : 0);
+        long stateStep = -1;
+        int columnCount = 0;
+
+        for (int i = 0; i < inputs.length; i++) {
+            long burnin = (burnins.length > i ? burnins[i] : burnins[0]);
+
+            BufferedReader reader = new BufferedReader(new FileReader(inputs[i]));
+            String line = reader.readLine();
+            while (line.startsWith("#")) {
+                line = reader.readLine();
+            }
+            if (i == 0) {
+                builder.append(line).append("\n");
+            }
+
+            line = reader.readLine();
+            while (line != null) {
+                String[] parts = line.split("\t");
+                long state = Long.parseLong(parts[0]);
+                if (stateStep < 0 && state > 0) {
+                    stateStep = state;
+                    columnCount = parts.length;
+                }
+
+                if (state >= burnin && parts.length == columnCount) {
+                    if (stateStep > 0) {
+                        stateCount += (renumber ? 1 : stateStep);
+                    }
+
+                    boolean logThis;
+                    if (resample < 0) {
+                        logThis = true;
+                    } else if (!renumber) {
+                        logThis = (stateCount % resample == 0);
+                    } else {
+                        logThis = ((stateCount * stateStep) % resample == 0);
+                    }
+
+                    if (logThis) {
+                        builder.append(renumber ? stateCount / (resample / stateStep) : stateCount);
+                        for (int j = 1; j < parts.length; j++) {
+                            builder.append("\t").append(parts[j]);
+                        }
+                        builder.append("\n");
+                    }
+                }
+                line = reader.readLine();
+            }
+            reader.close();
+        }
+        return builder.toString();
+    }
+
+    private String writeLog(String name, long lastState, long step, int seed) throws IOException {
+        File file = new File(directory, name);
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("# BEAST test log");
+        writer.println("state\tposterior\tclock.rate\ttreeModel.rootHeight");
+        for (long state = 0; state <= lastState; state += step) {
+            writer.println(state + "\t" + (-1000.0 - (state % 977) * 0.25 * seed) + "\t" +
+                    (0.001 * seed + state * 1.0E-7) + "\t" + (10.0 + (state % 13) * 0.5));
+        }
+        writer.close();
+        return file.getPath();
+    }
+
+    private String writeTrees(String name, String[] taxa, long lastState, long step, int seed, String lastTree)
+            throws IOException {
+        File file = new File(directory, name);
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        writer.println("#NEXUS");
+        writer.println();
+        writer.println("Begin taxa;");
+        writer.println("\tDimensions ntax=" + taxa.length + ";");
+        writer.println("\tTaxlabels");
+        for (String taxon : taxa) {
+            writer.println("\t\t" + taxon);
+        }
+        writer.println("\t\t;");
+        writer.println("End;");
+        writer.println();
+        writer.println("Begin trees;");
+        writer.println("\tTranslate");
+        for (int i = 0; i < taxa.length; i++) {
+            writer.println("\t\t" + (i + 1) + " " + taxa[i] + (i < taxa.length - 1 ? "," : ""));
+        }
+        writer.println("\t\t;");
+        for (long state = 0; state <= lastState; state += step) {
+            int k = (int) ((state / step + seed) % 3);
+            String first = "(" + (k + 1) + ":0.125," + ((k + 1) % 4 + 1) + ":0.25)";
+            String second = "(" + ((k + 2) % 4 + 1) + ":0.5," + ((k + 3) % 4 + 1) + ":0.375)";
+            writer.println("tree STATE_" + state + " [&lnP=-1234.5] = [&R] (" + first + ":0.0625," + second + ":" +
+                    (0.001 * (state / step + 1)) + ");");
+        }
+        if (lastTree != null) {
+            writer.println(lastTree);
+        }
+        writer.println("End;");
+        writer.close();
+        return file.getPath();
+    }
+
+    private static List<String> readTrees(String fileName) throws Exception {
+        List<String> trees = new ArrayList<String>();
+        NexusImporter importer = new NexusImporter(new FileReader(fileName));
+        while (importer.hasTree()) {
+            Tree tree = importer.importNextTree();
+            trees.add(tree.getId() + " " + Tree.Utils.newick(tree));
+        }
+        return trees;
+    }
+
+    private static String readFile(String fileName) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        String line = reader.readLine();
+        while (line != null) {
+            builder.append(line).append("\n");
+            line = reader.readLine();
+        }
+        reader.close();
+        return builder.toString();
+    }
+}
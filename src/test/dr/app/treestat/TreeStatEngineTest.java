@@ -0,0 +1,122 @@
+package test.dr.app.treestat;
+
+import dr.app.treestat.TreeStatEngine;
+import dr.app.treestat.statistics.CollessIndex;
+import dr.app.treestat.statistics.LineageCountStatistic;
+import dr.app.treestat.statistics.TreeHeight;
+import dr.app.treestat.statistics.TreeLength;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the command line tree statistics engine over a tree file with one and with several threads, and checks that
+ * the tables are the same, that the rows come out in the order of the trees, and the tree height and length against
+ * those of the trees as they were written.
+ */
+public class TreeStatEngineTest extends TestCase {
+
+    private static final int TIP_COUNT = 12;
+    // enough trees for several batches to be in flight at once
+    private static final int TREE_COUNT = 1500;
+
+    private File treeFile;
+    private double[] treeHeights;
+    private double[] treeLengths;
+
+    public TreeStatEngineTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(1234);
+
+        treeFile = File.createTempFile("treestat", ".trees");
+        treeHeights = new double[TREE_COUNT];
+        treeLengths = new double[TREE_COUNT];
+        writeTrees();
+    }
+
+    public void tearDown() throws Exception {
+        treeFile.delete();
+        super.tearDown();
+    }
+
+    public void testThreads() throws Exception {
+        String single = runEngine(1);
+        String multiple = runEngine(4);
+        assertEquals(single, multiple);
+
+        String[] lines = single.split("\n");
+        assertEquals(TREE_COUNT + 1, lines.length);
+        assertEquals("state", lines[0].split("\t")[0]);
+        int columnCount = lines[0].split("\t").length;
+
+        for (int i = 0; i < TREE_COUNT; i++) {
+            String[] columns = lines[i + 1].split("\t");
+            assertEquals(columnCount, columns.length);
+            assertEquals(i, Integer.parseInt(columns[0]));
+            assertEquals(treeHeights[i], Double.parseDouble(columns[1]), 1E-8);
+            assertEquals(treeLengths[i], Double.parseDouble(columns[2]), 1E-8);
+        }
+    }
+
+    private String runEngine(int threadCount) throws Exception {
+        List<TreeStatEngine.Selection> selections = new ArrayList<TreeStatEngine.Selection>();
+        selections.add(new TreeStatEngine.Selection(TreeHeight.FACTORY, null));
+        selections.add(new TreeStatEngine.Selection(TreeLength.FACTORY, null));
+        selections.add(new TreeStatEngine.Selection(CollessIndex.FACTORY, null));
+        selections.add(new TreeStatEngine.Selection(LineageCountStatistic.FACTORY, "0.5"));
+
+        StringWriter output = new StringWriter();
+        PrintWriter writer = new PrintWriter(output);
+        TreeStatEngine engine = new TreeStatEngine(selections, threadCount);
+        assertEquals(TREE_COUNT, engine.process(TreeStatEngine.createImporter(treeFile), writer));
+        writer.close();
+        return output.toString();
+    }
+
+    // random coalescent trees, keeping the height and the length of each
+    private void writeTrees() throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(treeFile));
+        writer.println("#NEXUS");
+        writer.println();
+        writer.println("Begin trees;");
+        for (int t = 0; t < TREE_COUNT; t++) {
+            List<String> subtrees = new ArrayList<String>();
+            List<Double> heights = new ArrayList<Double>();
+            for (int i = 0; i < TIP_COUNT; i++) {
+                subtrees.add("taxon" + i);
+                heights.add(0.0);
+            }
+
+            double height = 0;
+            double length = 0;
+            while (subtrees.size() > 1) {
+                int k = subtrees.size();
+                height += MathUtils.nextExponential(k * (k - 1) / 2.0);
+
+                int first = MathUtils.nextInt(k);
+                String left = subtrees.remove(first);
+                double leftHeight = heights.remove(first);
+                int second = MathUtils.nextInt(k - 1);
+                String right = subtrees.remove(second);
+                double rightHeight = heights.remove(second);
+
+                length += (height - leftHeight) + (height - rightHeight);
+                subtrees.add("(" + left + ":" + (height - leftHeight) + "," + right + ":" + (height - rightHeight) + ")");
+                heights.add(height);
+            }
+            treeHeights[t] = height;
+            treeLengths[t] = length;
+
+            writer.println("tree STATE_" + t + " = [&R] " + subtrees.get(0) + ";");
+        }
+        writer.println("End;");
+        writer.close();
+    }
+}
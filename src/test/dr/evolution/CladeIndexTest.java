@@ -0,0 +1,70 @@
+package test.dr.evolution;
+
+import dr.evolution.tree.CladeIndex;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * Checks that clades of more than one word are numbered, found and written back consistently.
+ */
+public class CladeIndexTest extends TestCase {
+
+    public CladeIndexTest(String name) {
+        super(name);
+    }
+
+    public void testAddAndFind() {
+        CladeIndex index = new CladeIndex(130);
+        assertEquals(3, index.getWordCount());
+
+        // enough clades to make the table grow a few times
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, index.add(clade(index, i), 0));
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, index.add(clade(index, i), 0));
+            assertEquals(i, index.getIndex(clade(index, i), 0));
+            assertEquals(i, index.getIndex(index.getBitSet(i)));
+        }
+        assertEquals(5000, index.getCladeCount());
+        assertEquals(-1, index.getIndex(clade(index, 5000), 0));
+
+        BitSet outside = new BitSet();
+        outside.set(200);
+        assertEquals(-1, index.getIndex(outside));
+    }
+
+    public void testReadWrite() throws IOException {
+        CladeIndex index = new CladeIndex(70);
+        for (int i = 0; i < 100; i++) {
+            index.add(clade(index, i), 0);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes));
+        CladeIndex copy = CladeIndex.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(index.getTaxonCount(), copy.getTaxonCount());
+        assertEquals(index.getCladeCount(), copy.getCladeCount());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(index.getBitSet(i), copy.getBitSet(i));
+            assertEquals(index.getCladeSize(i), copy.getCladeSize(i));
+        }
+    }
+
+    // a different clade for each i, spread across the words, with the last taxon in every clade
+    private static long[] clade(CladeIndex index, int i) {
+        BitSet bits = new BitSet();
+        for (int k = 0; (i >>> k) != 0; k++) {
+            if (((i >>> k) & 1) != 0) {
+                bits.set(k * 9);
+            }
+        }
+        bits.set(index.getTaxonCount() - 1);
+        long[] clade = new long[index.getWordCount()];
+        index.toWords(bits, clade, 0);
+        return clade;
+    }
+}
@@ -0,0 +1,195 @@
+package test.dr.evomodel.coalescent;
+
+import dr.evomodel.coalescent.operators.GMRFTridiagonalProposal;
+import dr.inference.operators.OperatorFailedException;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+import no.uib.cipr.matrix.BandCholesky;
+import no.uib.cipr.matrix.DenseVector;
+import no.uib.cipr.matrix.SPDTridiagMatrix;
+import no.uib.cipr.matrix.SymmTridiagMatrix;
+import no.uib.cipr.matrix.UpperSPDBandMatrix;
+import no.uib.cipr.matrix.UpperTriangBandMatrix;
+import no.uib.cipr.matrix.Vector;
+
+/**
+ * Checks the in-place tridiagonal proposal of the GMRF block update operators against the dense computation
+ * with MTJ band matrices that the operators used before: the mean, the proposed values and the log Hastings ratio.
+ */
+public class GMRFTridiagonalProposalTest extends TestCase {
+
+    private static final int FIELD_LENGTH = 12;
+    private static final int MAX_ITERATIONS = 200;
+    private static final double STOP_VALUE = 1E-8;
+
+    private double[] sufficientStatistics;
+    private double[] currentGamma;
+
+    public GMRFTridiagonalProposalTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(123);
+
+        sufficientStatistics = new double[FIELD_LENGTH];
+        currentGamma = new double[FIELD_LENGTH];
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            sufficientStatistics[i] = 0.5 + 3.0 * MathUtils.nextDouble();
+            currentGamma[i] = MathUtils.nextGaussian();
+        }
+    }
+
+    public void testSkyride() throws OperatorFailedException {
+        double[] numCoalEvents = new double[FIELD_LENGTH];
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            numCoalEvents[i] = 1.0;
+        }
+        assertSameProposal(numCoalEvents, 2.0, 3.5);
+    }
+
+    public void testMultilocus() throws OperatorFailedException {
+        double[] numCoalEvents = new double[FIELD_LENGTH];
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            numCoalEvents[i] = MathUtils.nextInt(4);
+        }
+        assertSameProposal(numCoalEvents, 0.8, 0.3);
+    }
+
+    private void assertSameProposal(double[] numCoalEvents, double currentPrecision, double proposedPrecision)
+            throws OperatorFailedException {
+
+        double[] standardNormal = new double[FIELD_LENGTH];
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            standardNormal[i] = MathUtils.nextGaussian();
+        }
+
+        // the tridiagonal computation of the operators
+        GMRFTridiagonalProposal forwardProposal = new GMRFTridiagonalProposal(FIELD_LENGTH, "test");
+        GMRFTridiagonalProposal backwardProposal = new GMRFTridiagonalProposal(FIELD_LENGTH, "test");
+        fillWeightMatrix(currentPrecision, backwardProposal.getQDiagonal(), backwardProposal.getQOffDiagonal());
+        fillWeightMatrix(proposedPrecision, forwardProposal.getQDiagonal(), forwardProposal.getQOffDiagonal());
+
+        forwardProposal.fit(numCoalEvents, sufficientStatistics, currentGamma, MAX_ITERATIONS, STOP_VALUE);
+        double[] proposedGamma = new double[FIELD_LENGTH];
+        forwardProposal.draw(standardNormal, proposedGamma);
+        double[] forwardMean = forwardProposal.getMean().clone();
+
+        backwardProposal.fit(numCoalEvents, sufficientStatistics, proposedGamma, MAX_ITERATIONS, STOP_VALUE);
+
+        double standardNormalSS = 0;
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            standardNormalSS += standardNormal[i] * standardNormal[i];
+        }
+        double hRatio = backwardProposal.getLogGeneralizedDeterminant()
+                - 0.5 * backwardProposal.getQuadraticForm(currentGamma)
+                - forwardProposal.getLogGeneralizedDeterminant() + 0.5 * standardNormalSS;
+
+        // the dense computation
+        SymmTridiagMatrix currentQ = weightMatrix(currentPrecision);
+        SymmTridiagMatrix proposedQ = weightMatrix(proposedPrecision);
+
+        UpperSPDBandMatrix forwardQW = new UpperSPDBandMatrix(proposedQ, 1);
+        DenseVector expectedForwardMean = new DenseVector(FIELD_LENGTH);
+        BandCholesky forwardCholesky = fitDense(numCoalEvents, new DenseVector(currentGamma), proposedQ, forwardQW,
+                expectedForwardMean);
+
+        DenseVector expectedProposedGamma = new DenseVector(FIELD_LENGTH);
+        forwardCholesky.getU().solve(new DenseVector(standardNormal), expectedProposedGamma);
+        expectedProposedGamma.add(expectedForwardMean);
+
+        UpperSPDBandMatrix backwardQW = new UpperSPDBandMatrix(currentQ, 1);
+        DenseVector backwardMean = new DenseVector(FIELD_LENGTH);
+        BandCholesky backwardCholesky = fitDense(numCoalEvents, expectedProposedGamma, currentQ, backwardQW,
+                backwardMean);
+
+        DenseVector residual = new DenseVector(FIELD_LENGTH);
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            residual.set(i, currentGamma[i] - backwardMean.get(i));
+        }
+        DenseVector product = new DenseVector(FIELD_LENGTH);
+        backwardQW.mult(residual, product);
+
+        double expectedHRatio = logGeneralizedDeterminant(backwardCholesky.getU()) - 0.5 * residual.dot(product)
+                - logGeneralizedDeterminant(forwardCholesky.getU()) + 0.5 * standardNormalSS;
+
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            assertEquals(expectedForwardMean.get(i), forwardMean[i], 1E-10);
+            assertEquals(expectedProposedGamma.get(i), proposedGamma[i], 1E-10);
+            assertEquals(backwardMean.get(i), backwardProposal.getMean()[i], 1E-10);
+        }
+        assertEquals(expectedHRatio, hRatio, 1E-9);
+    }
+
+    // Newton-Raphson for the mode, then the mean and the Cholesky factor of Q + diag(w exp(-mode))
+    private BandCholesky fitDense(double[] numCoalEvents, DenseVector start, SymmTridiagMatrix Q,
+                                  UpperSPDBandMatrix QW, DenseVector mean) {
+
+        DenseVector mode = start.copy();
+        DenseVector step = start.copy();
+        int numberIterations = 0;
+        while (gradient(numCoalEvents, mode, Q).norm(Vector.Norm.Two) > STOP_VALUE) {
+            SPDTridiagMatrix jacobian = new SPDTridiagMatrix(Q, true);
+            for (int i = 0; i < FIELD_LENGTH; i++) {
+                jacobian.set(i, i, jacobian.get(i, i) + Math.exp(-mode.get(i)) * sufficientStatistics[i]);
+            }
+            jacobian.solve(gradient(numCoalEvents, mode, Q), step);
+            mode.add(step);
+            numberIterations++;
+            assertTrue(numberIterations <= MAX_ITERATIONS);
+        }
+
+        DenseVector canonical = new DenseVector(FIELD_LENGTH);
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            double d = sufficientStatistics[i] * Math.exp(-mode.get(i));
+            QW.set(i, i, d + QW.get(i, i));
+            canonical.set(i, d * (mode.get(i) + 1) - numCoalEvents[i]);
+        }
+
+        BandCholesky cholesky = new BandCholesky(FIELD_LENGTH, 1, true);
+        cholesky.factor(QW.copy());
+
+        DenseVector omega = new DenseVector(FIELD_LENGTH);
+        cholesky.getU().transSolve(canonical, omega);
+        cholesky.getU().solve(omega, mean);
+        return cholesky;
+    }
+
+    private DenseVector gradient(double[] numCoalEvents, DenseVector value, SymmTridiagMatrix Q) {
+        DenseVector returnValue = new DenseVector(FIELD_LENGTH);
+        Q.mult(value, returnValue);
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            returnValue.set(i, -returnValue.get(i) - numCoalEvents[i]
+                    + sufficientStatistics[i] * Math.exp(-value.get(i)));
+        }
+        return returnValue;
+    }
+
+    private static double logGeneralizedDeterminant(UpperTriangBandMatrix matrix) {
+        double returnValue = 0;
+        for (int i = 0; i < matrix.numColumns(); i++) {
+            if (matrix.get(i, i) > 0.0000001) {
+                returnValue += Math.log(matrix.get(i, i));
+            }
+        }
+        return returnValue;
+    }
+
+    // the intrinsic first-order random walk precision, scaled by precision
+    private static void fillWeightMatrix(double precision, double[] diagonal, double[] offDiagonal) {
+        for (int i = 0; i < FIELD_LENGTH; i++) {
+            diagonal[i] = precision * (i == 0 || i == FIELD_LENGTH - 1 ? 1.0 : 2.0);
+        }
+        for (int i = 0; i < FIELD_LENGTH - 1; i++) {
+            offDiagonal[i] = -precision;
+        }
+    }
+
+    private static SymmTridiagMatrix weightMatrix(double precision) {
+        double[] diagonal = new double[FIELD_LENGTH];
+        double[] offDiagonal = new double[FIELD_LENGTH - 1];
+        fillWeightMatrix(precision, diagonal, offDiagonal);
+        return new SymmTridiagMatrix(diagonal, offDiagonal);
+    }
+}
@@ -0,0 +1,167 @@
+package test.dr.evomodel.continuous;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.continuous.FullyConjugateMultivariateTraitLikelihood;
+import dr.evomodel.continuous.MultivariateDiffusionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.CompoundParameter;
+import dr.inference.model.MatrixParameter;
+import dr.inference.model.Parameter;
+import dr.math.distributions.WishartSufficientStatistics;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that a trait likelihood that caches its branches, and so only recomputes the nodes above a change, gives
+ * the same log likelihood and Wishart outer products as one that recomputes every node, through changes to the
+ * tree, the tip-branch delta and the tips, and after a rejected move.
+ */
+public class IntegratedMultivariateTraitLikelihoodTest extends TestCase {
+
+    private static final double[] TIPS = {
+            0.1, 1.1, 0.3, 0.9, -0.5, 0.2, 1.7, -1.2, 1.4, -0.8, 0.6, 0.4, -1.1, 2.0
+    };
+    private static final int DIM = 2;
+
+    private TreeModel treeModel;
+    private CompoundParameter traitParameter;
+    private Parameter deltaParameter;
+    private MultivariateDiffusionModel diffusionModel;
+    private FullyConjugateMultivariateTraitLikelihood cached;
+    private FullyConjugateMultivariateTraitLikelihood uncached;
+
+    public IntegratedMultivariateTraitLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NewickImporter importer = new NewickImporter(
+                "((((0:1.0,1:1.0):0.5,2:1.5):1.0,(3:0.5,4:0.5):2.0):0.5,(5:0.7,6:0.7):2.3);");
+        treeModel = new TreeModel("treeModel", (FlexibleTree) importer.importTree(null));
+
+        traitParameter = new CompoundParameter("trait");
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            double[] tipValues = new double[DIM];
+            System.arraycopy(TIPS, i * DIM, tipValues, 0, DIM);
+            traitParameter.addParameter(new Parameter.Default(tipValues));
+        }
+        deltaParameter = new Parameter.Default("delta", 0.2, 0.0, Double.POSITIVE_INFINITY);
+
+        MatrixParameter precision = new MatrixParameter("precision", new Parameter[]{
+                new Parameter.Default(new double[]{1.5, 0.4}),
+                new Parameter.Default(new double[]{0.4, 0.9})});
+        diffusionModel = new MultivariateDiffusionModel(precision);
+
+        cached = createLikelihood(true);
+        uncached = createLikelihood(false);
+    }
+
+    private FullyConjugateMultivariateTraitLikelihood createLikelihood(boolean cacheBranches) {
+        // the second dimension of tip 4 is missing
+        List<Integer> missingIndices = new ArrayList<Integer>();
+        missingIndices.add(4 * DIM + 1);
+
+        return new FullyConjugateMultivariateTraitLikelihood("trait", treeModel, diffusionModel, traitParameter,
+                deltaParameter, missingIndices, cacheBranches, false, false, null, null, true, new double[DIM], 0.1,
+                false);
+    }
+
+    public void testMoves() {
+        assertSameLikelihoods();
+
+        // a node height
+        NodeRef node = treeModel.getParent(treeModel.getExternalNode(0));
+        treeModel.setNodeHeight(node, 0.6);
+        assertSameLikelihoods();
+
+        // the root height
+        treeModel.setNodeHeight(treeModel.getRoot(), 4.5);
+        assertSameLikelihoods();
+
+        // the extra length of the tip branches
+        deltaParameter.setParameterValue(0, 0.05);
+        assertSameLikelihoods();
+
+        // one tip trait
+        traitParameter.getParameter(3).setParameterValue(1, 0.25);
+        assertSameLikelihoods();
+
+        // a tip and a node height together
+        traitParameter.getParameter(6).setParameterValue(0, -0.4);
+        treeModel.setNodeHeight(treeModel.getParent(treeModel.getExternalNode(5)), 1.2);
+        assertSameLikelihoods();
+    }
+
+    public void testRestore() {
+        double logLikelihood = cached.getLogLikelihood();
+        double[][] outerProducts = copy(cached.getWishartStatistics().getScaleMatrix());
+        assertSameLikelihoods();
+
+        storeState();
+        treeModel.setNodeHeight(treeModel.getRoot(), 5.0);
+        deltaParameter.setParameterValue(0, 0.4);
+        traitParameter.getParameter(1).setParameterValue(0, 3.0);
+        assertSameLikelihoods();
+        restoreState();
+
+        // without cached branches the tips are not restored, so the reference starts again from the restored state
+        uncached = createLikelihood(false);
+
+        assertEquals(logLikelihood, cached.getLogLikelihood(), 1E-12);
+        assertSameLikelihoods();
+        assertMatrixEquals(outerProducts, cached.getWishartStatistics().getScaleMatrix());
+
+        // the caches restored from the rejected move are used by the next traversal
+        storeState();
+        treeModel.setNodeHeight(treeModel.getParent(treeModel.getExternalNode(3)), 0.3);
+        assertSameLikelihoods();
+        traitParameter.getParameter(2).setParameterValue(1, -2.0);
+        assertSameLikelihoods();
+    }
+
+    private void storeState() {
+        treeModel.storeModelState();
+        cached.storeModelState();
+        uncached.storeModelState();
+    }
+
+    private void restoreState() {
+        treeModel.restoreModelState();
+        cached.restoreModelState();
+        uncached.restoreModelState();
+    }
+
+    private void assertSameLikelihoods() {
+        assertEquals(uncached.getLogLikelihood(), cached.getLogLikelihood(), 1E-10);
+
+        WishartSufficientStatistics expected = uncached.getWishartStatistics();
+        double[][] expectedOuterProducts = copy(expected.getScaleMatrix());
+        int expectedDf = expected.getDf();
+
+        WishartSufficientStatistics statistics = cached.getWishartStatistics();
+        assertEquals(expectedDf, statistics.getDf());
+        assertMatrixEquals(expectedOuterProducts, statistics.getScaleMatrix());
+    }
+
+    private static void assertMatrixEquals(double[][] expected, double[][] actual) {
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < expected[i].length; j++) {
+                assertEquals(expected[i][j], actual[i][j], 1E-10);
+            }
+        }
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        double[][] copy = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            copy[i] = matrix[i].clone();
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,129 @@
+package test.dr.evomodel.continuous;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evomodel.continuous.FullyConjugateMultivariateTraitLikelihood;
+import dr.evomodel.continuous.MultiTraitLikelihood;
+import dr.evomodel.continuous.MultivariateDiffusionModel;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.CompoundParameter;
+import dr.inference.model.MatrixParameter;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that traits evaluated together in one traversal have the same likelihoods as on their own, through
+ * changes to the tree, the tips and the diffusion models, and when a change is rejected.
+ */
+public class MultiTraitLikelihoodTest extends TestCase {
+
+    private TreeModel treeModel;
+    private List<FullyConjugateMultivariateTraitLikelihood> traits;
+    private MatrixParameter sharedPrecision;
+    private CompoundParameter bivariateTips;
+
+    public MultiTraitLikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        NewickImporter importer = new NewickImporter("(((0:1.0,1:1.0):0.5,2:1.5):1.0,(3:0.5,4:0.5):2.0);");
+        treeModel = new TreeModel("treeModel", (FlexibleTree) importer.importTree(null));
+
+        sharedPrecision = new MatrixParameter("precision1", new Parameter[]{new Parameter.Default(1, 2.0)});
+        MultivariateDiffusionModel shared = new MultivariateDiffusionModel(sharedPrecision);
+
+        traits = new ArrayList<FullyConjugateMultivariateTraitLikelihood>();
+        traits.add(createTrait("a", shared, new double[]{1.2, 0.8, -0.3, 2.5, 2.1}, 1, null));
+        traits.add(createTrait("b", shared, new double[]{-1.0, -0.7, 0.4, 0.1, 0.0}, 1, new int[]{4}));
+
+        MatrixParameter precision = new MatrixParameter("precision2", new Parameter[]{
+                new Parameter.Default(new double[]{1.5, 0.4}),
+                new Parameter.Default(new double[]{0.4, 0.9})});
+        traits.add(createTrait("c", new MultivariateDiffusionModel(precision),
+                new double[]{0.1, 1.1, 0.3, 0.9, -0.5, 0.2, 1.7, -1.2, 1.4, -0.8}, 2, null));
+        bivariateTips = traits.get(2).getTraitParameter();
+    }
+
+    private FullyConjugateMultivariateTraitLikelihood createTrait(String name, MultivariateDiffusionModel diffusionModel,
+                                                                  double[] values, int dim, int[] missingTips) {
+        CompoundParameter traitParameter = new CompoundParameter(name);
+        for (int i = 0; i < treeModel.getExternalNodeCount(); i++) {
+            double[] tipValues = new double[dim];
+            System.arraycopy(values, i * dim, tipValues, 0, dim);
+            traitParameter.addParameter(new Parameter.Default(tipValues));
+        }
+
+        List<Integer> missingIndices = new ArrayList<Integer>();
+        if (missingTips != null) {
+            for (int tip : missingTips) {
+                for (int i = 0; i < dim; i++) {
+                    missingIndices.add(tip * dim + i);
+                }
+            }
+        }
+
+        // the traits cache their branches so that they restore their own tips after a rejected move
+        FullyConjugateMultivariateTraitLikelihood trait = new FullyConjugateMultivariateTraitLikelihood(name, treeModel,
+                diffusionModel, traitParameter, null, missingIndices, true, false, false, null, null, true,
+                new double[dim], 0.1, false);
+        trait.setId(name);
+        return trait;
+    }
+
+    public void testTraitLikelihoods() {
+        MultiTraitLikelihood multiTrait = new MultiTraitLikelihood(traits);
+        assertLikelihoods(multiTrait);
+
+        // move an internal node
+        NodeRef node = treeModel.getParent(treeModel.getExternalNode(0));
+        treeModel.setNodeHeight(node, 0.6);
+        assertLikelihoods(multiTrait);
+
+        // change a tip of one trait
+        bivariateTips.getParameter(3).setParameterValue(1, 0.25);
+        assertLikelihoods(multiTrait);
+
+        // change the diffusion model shared by two traits
+        sharedPrecision.getParameter(0).setParameterValue(0, 0.7);
+        assertLikelihoods(multiTrait);
+    }
+
+    public void testRestore() {
+        MultiTraitLikelihood multiTrait = new MultiTraitLikelihood(traits);
+        double logLikelihood = multiTrait.getLogLikelihood();
+        double logLikelihoodC = multiTrait.getTraitLogLikelihood(2);
+
+        multiTrait.storeModelState();
+        treeModel.setNodeHeight(treeModel.getRoot(), 4.0);
+        bivariateTips.getParameter(1).setParameterValue(0, 3.0);
+        assertLikelihoods(multiTrait);
+        multiTrait.restoreModelState();
+
+        assertEquals(logLikelihood, multiTrait.getLogLikelihood(), 1E-12);
+        assertEquals(logLikelihoodC, multiTrait.getTraitLogLikelihood(2), 1E-12);
+
+        // the tips restored from the rejected move are used by the next traversal
+        multiTrait.storeModelState();
+        sharedPrecision.getParameter(0).setParameterValue(0, 3.0);
+        treeModel.setNodeHeight(treeModel.getRoot(), 3.5);
+        assertLikelihoods(multiTrait);
+    }
+
+    private void assertLikelihoods(MultiTraitLikelihood multiTrait) {
+        double total = 0.0;
+        for (int i = 0; i < traits.size(); i++) {
+            traits.get(i).makeDirty();
+            double logL = traits.get(i).getLogLikelihood();
+            total += logL;
+            assertEquals(logL, multiTrait.getTraitLogLikelihood(i), 1E-10);
+        }
+        assertEquals(total, multiTrait.getLogLikelihood(), 1E-10);
+    }
+}
@@ -0,0 +1,179 @@
+package test.dr.evomodel.indel;
+
+import dr.evolution.alignment.Alignment;
+import dr.evolution.alignment.SimpleAlignment;
+import dr.evolution.datatype.Nucleotides;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.sequence.Sequence;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.util.Taxon;
+import dr.evolution.util.Units;
+import dr.evomodel.indel.HomologyRecursion;
+import dr.evomodel.indel.TKF91Likelihood;
+import dr.evomodel.indel.TKF91Model;
+import dr.evomodel.sitemodel.GammaSiteModel;
+import dr.evomodel.substmodel.FrequencyModel;
+import dr.evomodel.substmodel.HKY;
+import dr.evomodel.tree.TreeModel;
+import dr.inference.model.Parameter;
+import junit.framework.TestCase;
+
+/**
+ * Checks the log likelihood that TKF91Likelihood keeps up to date incrementally against a freshly initialised
+ * homology recursion, through changes to a branch, the substitution model, the TKF91 model and the alignment,
+ * each of them stored before and restored after.
+ */
+public class TKF91LikelihoodTest extends TestCase {
+
+    private static final String[] TAXA = {"a", "b", "c", "d"};
+    private static final String[] SEQUENCES = {
+            "ACG-TAC", "AC-GTTC", "A-CGTA-", "TACGTAC"};
+    // the same sequences aligned differently
+    private static final String[] OTHER_SEQUENCES = {
+            "ACGT-AC", "ACG-TTC", "AC-G-TA", "TACGTAC"};
+
+    private TreeModel treeModel;
+    private Alignment alignment;
+    private Alignment otherAlignment;
+    private HKY hky;
+    private GammaSiteModel siteModel;
+    private TKF91Model tkfModel;
+    private Parameter kappa;
+    private Parameter deathRate;
+    private TKF91Likelihood likelihood;
+
+    public TKF91LikelihoodTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        Taxon[] taxa = new Taxon[TAXA.length];
+        for (int i = 0; i < TAXA.length; i++) {
+            taxa[i] = new Taxon(TAXA[i]);
+        }
+        alignment = createAlignment(taxa, SEQUENCES);
+        otherAlignment = createAlignment(taxa, OTHER_SEQUENCES);
+
+        NewickImporter importer = new NewickImporter("((a:0.1,b:0.2):0.15,(c:0.05,d:0.15):0.2);");
+        treeModel = new TreeModel(importer.importTree(null));
+
+        kappa = new Parameter.Default(2.0);
+        FrequencyModel frequencies = new FrequencyModel(Nucleotides.INSTANCE,
+                new double[]{0.3, 0.2, 0.2, 0.3});
+        hky = new HKY(kappa, frequencies);
+        siteModel = new GammaSiteModel(hky);
+        siteModel.setMutationRateParameter(new Parameter.Default(1.0));
+
+        deathRate = new Parameter.Default(0.3);
+        tkfModel = new TKF91Model(new Parameter.Default(0.99), deathRate, Units.Type.SUBSTITUTIONS);
+
+        likelihood = new TKF91Likelihood(treeModel, alignment, siteModel, tkfModel);
+    }
+
+    public void testBranchHeight() {
+        NodeRef node = treeModel.getParent(treeModel.getExternalNode(0));
+        double height = treeModel.getNodeHeight(node);
+
+        assertRestored(new Runnable() {
+            public void run() {
+                treeModel.setNodeHeight(treeModel.getParent(treeModel.getExternalNode(0)), 0.3);
+            }
+        });
+        assertEquals(height, treeModel.getNodeHeight(node));
+    }
+
+    public void testSubstitutionModel() {
+        assertRestored(new Runnable() {
+            public void run() {
+                kappa.setParameterValue(0, 5.0);
+            }
+        });
+        assertEquals(2.0, kappa.getParameterValue(0));
+    }
+
+    public void testTKF91Model() {
+        assertRestored(new Runnable() {
+            public void run() {
+                deathRate.setParameterValue(0, 0.6);
+            }
+        });
+        assertEquals(0.3, deathRate.getParameterValue(0));
+    }
+
+    public void testAlignment() {
+        assertRestored(new Runnable() {
+            public void run() {
+                likelihood.setAlignment(otherAlignment);
+            }
+        });
+        assertSame(alignment, likelihood.getAlignment());
+    }
+
+    public void testAcceptedChanges() {
+        // accepted moves followed by a rejected one
+        likelihood.getLogLikelihood();
+        likelihood.storeModelState();
+        kappa.setParameterValue(0, 3.0);
+        assertFreshRecursion();
+        likelihood.acceptModelState();
+
+        likelihood.storeModelState();
+        likelihood.setAlignment(otherAlignment);
+        deathRate.setParameterValue(0, 0.45);
+        assertFreshRecursion();
+        likelihood.acceptModelState();
+
+        assertRestored(new Runnable() {
+            public void run() {
+                treeModel.setNodeHeight(treeModel.getRoot(), 0.5);
+                kappa.setParameterValue(0, 1.5);
+            }
+        });
+    }
+
+    // store, change, evaluate, restore and evaluate again, then change the root height, checking each evaluation
+    // against a fresh recursion
+    private void assertRestored(Runnable change) {
+        assertFreshRecursion();
+        double logLikelihood = likelihood.getLogLikelihood();
+
+        likelihood.storeModelState();
+        change.run();
+        assertFreshRecursion();
+        assertFalse(logLikelihood == likelihood.getLogLikelihood());
+
+        likelihood.restoreModelState();
+        assertFreshRecursion();
+        assertEquals(logLikelihood, likelihood.getLogLikelihood());
+
+        // a later change must not pick up anything left over from the rejected one
+        double rootHeight = treeModel.getNodeHeight(treeModel.getRoot());
+        treeModel.setNodeHeight(treeModel.getRoot(), rootHeight + 0.1);
+        assertFreshRecursion();
+        treeModel.setNodeHeight(treeModel.getRoot(), rootHeight);
+        assertFreshRecursion();
+        assertEquals(logLikelihood, likelihood.getLogLikelihood(), 1E-10);
+    }
+
+    private void assertFreshRecursion() {
+        HomologyRecursion recursion = new HomologyRecursion();
+        recursion.init(treeModel, likelihood.getAlignment(), hky,
+                siteModel.getMutationRateParameter().getParameterValue(0),
+                tkfModel.getLengthDistributionValue(), tkfModel.getDeathRate(1));
+        assertEquals(recursion.recursion(), likelihood.getLogLikelihood(), 1E-10);
+    }
+
+    private static Alignment createAlignment(Taxon[] taxa, String[] sequences) {
+        SimpleAlignment alignment = new SimpleAlignment();
+        alignment.setDataType(Nucleotides.INSTANCE);
+        for (int i = 0; i < taxa.length; i++) {
+            Sequence sequence = new Sequence(sequences[i]);
+            sequence.setTaxon(taxa[i]);
+            sequence.setDataType(Nucleotides.INSTANCE);
+            alignment.addSequence(sequence);
+        }
+        return alignment;
+    }
+}
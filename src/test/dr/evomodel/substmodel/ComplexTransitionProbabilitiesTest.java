@@ -0,0 +1,116 @@
+package test.dr.evomodel.substmodel;
+
+import dr.evolution.datatype.GeneralDataType;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import test.dr.math.MathTestCase;
+
+/**
+ * Checks the transition probabilities of irreversible models with complex eigenvalues, computed one branch at a
+ * time and for all branches in one call, in both the BEAST and the BEAGLE substitution model classes.
+ */
+public class ComplexTransitionProbabilitiesTest extends MathTestCase {
+
+    private static final int STATE_COUNT = 12;
+    private static final double[] DISTANCES = {0.0, 0.05, 0.3, 1.0, 2.5};
+
+    private GeneralDataType dataType;
+    private double[] frequencies;
+    private double[] rates;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(1234);
+
+        String[] codes = new String[STATE_COUNT];
+        for (int i = 0; i < STATE_COUNT; i++) {
+            codes[i] = "L" + i;
+        }
+        dataType = new GeneralDataType(codes);
+
+        frequencies = new double[STATE_COUNT];
+        double total = 0.0;
+        for (int i = 0; i < STATE_COUNT; i++) {
+            frequencies[i] = 0.5 + MathUtils.nextDouble();
+            total += frequencies[i];
+        }
+        for (int i = 0; i < STATE_COUNT; i++) {
+            frequencies[i] /= total;
+        }
+
+        // mostly one way round a cycle, so that the rate matrix has complex conjugate eigenvalues
+        rates = new double[STATE_COUNT * (STATE_COUNT - 1)];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = 0.1 * MathUtils.nextDouble();
+        }
+        for (int i = 0; i < STATE_COUNT - 1; i++) {
+            rates[i * (STATE_COUNT - 1) - i * (i - 1) / 2] = 5.0;
+        }
+        rates[rates.length / 2 + STATE_COUNT - 2] = 5.0;
+    }
+
+    public void testBeastModel() {
+        dr.evomodel.substmodel.ComplexSubstitutionModel model = new dr.evomodel.substmodel.ComplexSubstitutionModel(
+                "complex", dataType, new dr.evomodel.substmodel.FrequencyModel(dataType, frequencies),
+                new Parameter.Default(rates));
+
+        final int matrixSize = STATE_COUNT * STATE_COUNT;
+        double[] matrices = new double[DISTANCES.length * matrixSize];
+        model.getTransitionProbabilities(DISTANCES, DISTANCES.length, matrices);
+
+        checkMatrices(matrices, matrixSize);
+
+        double[] matrix = new double[matrixSize];
+        for (int b = 0; b < DISTANCES.length; b++) {
+            model.getTransitionProbabilities(DISTANCES[b], matrix);
+            for (int u = 0; u < matrixSize; u++) {
+                assertEquals(matrix[u], matrices[b * matrixSize + u], 0.0);
+            }
+        }
+    }
+
+    public void testBeagleModel() {
+        dr.app.beagle.evomodel.substmodel.ComplexSubstitutionModel model =
+                new dr.app.beagle.evomodel.substmodel.ComplexSubstitutionModel("complex", dataType,
+                        new dr.app.beagle.evomodel.substmodel.FrequencyModel(dataType, frequencies),
+                        new Parameter.Default(rates));
+
+        final int matrixSize = STATE_COUNT * STATE_COUNT;
+        double[] matrices = new double[DISTANCES.length * matrixSize];
+        model.getTransitionProbabilities(DISTANCES, DISTANCES.length, matrices);
+
+        // the imaginary parts of the eigenvalues follow the real parts
+        double[] eigenValues = model.getEigenDecomposition().getEigenValues();
+        boolean complex = false;
+        for (int i = STATE_COUNT; i < 2 * STATE_COUNT; i++) {
+            complex |= (eigenValues[i] != 0.0);
+        }
+        assertTrue(complex);
+
+        checkMatrices(matrices, matrixSize);
+
+        double[] matrix = new double[matrixSize];
+        for (int b = 0; b < DISTANCES.length; b++) {
+            model.getTransitionProbabilities(DISTANCES[b], matrix);
+            for (int u = 0; u < matrixSize; u++) {
+                assertEquals(matrix[u], matrices[b * matrixSize + u], 0.0);
+            }
+        }
+    }
+
+    private void checkMatrices(double[] matrices, int matrixSize) {
+        for (int b = 0; b < DISTANCES.length; b++) {
+            for (int i = 0; i < STATE_COUNT; i++) {
+                double rowSum = 0.0;
+                for (int j = 0; j < STATE_COUNT; j++) {
+                    double p = matrices[b * matrixSize + i * STATE_COUNT + j];
+                    if (DISTANCES[b] == 0.0) {
+                        assertEquals(i == j ? 1.0 : 0.0, p, 1E-8);
+                    }
+                    rowSum += p;
+                }
+                assertEquals(1.0, rowSum, 1E-8);
+            }
+        }
+    }
+}
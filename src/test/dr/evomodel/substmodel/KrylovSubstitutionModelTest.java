@@ -0,0 +1,87 @@
+package test.dr.evomodel.substmodel;
+
+import dr.app.beagle.evomodel.substmodel.ComplexSubstitutionModel;
+import dr.app.beagle.evomodel.substmodel.FrequencyModel;
+import dr.evolution.datatype.GeneralDataType;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import test.dr.math.MathTestCase;
+
+/**
+ * Compares transition probabilities and partials from Krylov subspace projections with those from the
+ * eigen-decomposition, for an irreversible rate matrix over many locations in which most pairs of locations are not
+ * connected, before and after the rates change.
+ */
+public class KrylovSubstitutionModelTest extends MathTestCase {
+
+    private ComplexSubstitutionModel createModel(int stateCount, double connectedProportion) {
+        String[] codes = new String[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            codes[i] = "L" + i;
+        }
+        GeneralDataType dataType = new GeneralDataType(codes);
+
+        double[] frequencies = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            frequencies[i] = 1.0 / stateCount;
+        }
+        FrequencyModel freqModel = new FrequencyModel(dataType, frequencies);
+
+        double[] rates = new double[stateCount * (stateCount - 1)];
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = (MathUtils.nextDouble() < connectedProportion ? MathUtils.nextDouble() : 0.0);
+        }
+        // a ring makes sure every location can be reached
+        for (int i = 0; i < stateCount - 1; i++) {
+            rates[i * (stateCount - 1) - i * (i - 1) / 2] = 1.0;
+        }
+
+        return new ComplexSubstitutionModel("complex", dataType, freqModel, new Parameter.Default("rates", rates));
+    }
+
+    public void testTransitionProbabilities() {
+        MathUtils.setSeed(666);
+        final int stateCount = 20;
+        ComplexSubstitutionModel model = createModel(stateCount, 0.2);
+
+        double[] dense = new double[stateCount * stateCount];
+        model.getTransitionProbabilities(0.7, dense);
+
+        model.setKrylovTolerance(1E-10);
+        double[] krylov = new double[stateCount * stateCount];
+        model.getTransitionProbabilities(0.7, krylov);
+
+        assertEquals(dense, krylov, 1E-8);
+    }
+
+    public void testPartials() {
+        MathUtils.setSeed(666);
+        final int stateCount = 300;
+        ComplexSubstitutionModel model = createModel(stateCount, 0.02);
+
+        double[] partials = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            partials[i] = MathUtils.nextDouble();
+        }
+
+        double[] dense = new double[stateCount];
+        model.transformPartials(0.5, partials, dense);
+
+        model.setKrylovTolerance(1E-9);
+        double[] krylov = new double[stateCount];
+        for (double distance = 0.1; distance < 1.0; distance += 0.1) {
+            model.transformPartials(distance, partials, krylov);
+        }
+        model.transformPartials(0.5, partials, krylov);
+        assertEquals(dense, krylov, 1E-6);
+
+        // the sparse rate matrix is rebuilt when the rates change
+        Parameter rates = (Parameter) model.getVariable(0);
+        rates.setParameterValue(3, 5.0);
+        model.transformPartials(0.5, partials, krylov);
+
+        model.setKrylovTolerance(1E-9);
+        model.transformPartials(0.5, partials, dense);
+        assertEquals(dense, krylov, 1E-6);
+    }
+}
@@ -100,6 +100,35 @@ public class MarkovJumpsSubstitutionModelTest extends MathTestCase {
         assertEquals(rMarkovRewardsC, c, tolerance);
     }
 
+    public void testMarkovJumpsCountsByEntry() {
+        HKY substModel = new HKY(2.0,
+                new FrequencyModel(Nucleotides.INSTANCE,
+                        new double[]{0.3, 0.2, 0.25, 0.25})); // A,C,G,T
+
+        int states = substModel.getDataType().getStateCount();
+
+        MarkovJumpsSubstitutionModel markovjumps = new MarkovJumpsSubstitutionModel(substModel,
+                MarkovJumpsType.COUNTS);
+        double[] r = new double[states * states];
+        double[] c = new double[states * states];
+        double[] p = new double[states * states];
+
+        double time = 1.0;
+        MarkovJumpsCore.fillRegistrationMatrix(r, states);
+        markovjumps.setRegistration(r);
+
+        substModel.getTransitionProbabilities(time, p);
+        markovjumps.computeCondStatMarkovJumps(time, p, c);
+
+        for (int from = 0; from < states; from++) {
+            for (int to = 0; to < states; to++) {
+                int index = from * states + to;
+                assertEquals(c[index],
+                        markovjumps.computeCondStatMarkovJumps(from, to, time, p[index]), tolerance);
+            }
+        }
+    }
+
     public void testMarginalRates() {
          HKY substModel = new HKY(2.0,
                 new FrequencyModel(Nucleotides.INSTANCE,
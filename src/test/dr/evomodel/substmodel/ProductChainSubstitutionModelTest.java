@@ -168,6 +168,21 @@ public class ProductChainSubstitutionModelTest extends MathTestCase {
         System.out.println("Finite time (0.5) probabilities = ");
         printSquareMatrix(testProbs, stateCount);
         assertEquals(testProbs, markovJumpsProbs, accuracy);
+
+        double[] partials = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            partials[i] = 1.0 / (i + 1);
+        }
+        double[] truePartials = new double[stateCount];
+        for (int i = 0; i < stateCount; i++) {
+            for (int j = 0; j < stateCount; j++) {
+                truePartials[i] += markovJumpsProbs[i * stateCount + j] * partials[j];
+            }
+        }
+        double[] testPartials = new double[stateCount];
+        productChainModel.transformPartials(0.5, partials, testPartials);
+        System.out.println("Partials after 0.5 = " + new Vector(testPartials));
+        assertEquals(testPartials, truePartials, accuracy);
     }
 
     List<SubstitutionModel> baseModels;
@@ -0,0 +1,178 @@
+package test.dr.evomodel.tree;
+
+import dr.evolution.io.NewickImporter;
+import dr.evolution.io.TreeTrace;
+import dr.evolution.tree.FlexibleNode;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+import dr.evomodel.tree.ConditionalCladeFrequency;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that the conditional clade frequencies give the same tree probabilities after the counts are saved and
+ * loaded, when the taxa are numbered differently, and when the counts of blocks of trees are merged.
+ */
+public class ConditionalCladeFrequencyTest extends TestCase {
+
+    private static final String[] TAXA = {"A", "B", "C", "D", "E", "F", "G", "H"};
+
+    private static final double EPSILON = 1.0;
+
+    private File file;
+
+    public ConditionalCladeFrequencyTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+        file = File.createTempFile("ccf", ".index");
+    }
+
+    public void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        List<Tree> trees = randomTrees(300, TAXA);
+        Tree reference = trees.get(0);
+
+        ConditionalCladeFrequency ccf = new ConditionalCladeFrequency(reference, EPSILON);
+        for (Tree tree : trees) {
+            ccf.addTree(tree);
+        }
+        ccf.saveIndex(file);
+
+        ConditionalCladeFrequency loaded = ConditionalCladeFrequency.loadIndex(file, reference, EPSILON);
+        for (Tree tree : randomTrees(50, TAXA)) {
+            assertEquals(ccf.getTreeProbability(tree), loaded.getTreeProbability(tree), 1E-12);
+        }
+    }
+
+    public void testTaxonPermutation() throws Exception {
+        List<Tree> trees = randomTrees(300, TAXA);
+        Tree reference = trees.get(0);
+
+        ConditionalCladeFrequency ccf = new ConditionalCladeFrequency(reference, EPSILON);
+        for (Tree tree : trees) {
+            ccf.addTree(tree);
+        }
+        ccf.saveIndex(file);
+
+        // the same taxa numbered in the reverse order
+        String[] reversed = new String[TAXA.length];
+        for (int i = 0; i < TAXA.length; i++) {
+            reversed[i] = TAXA[TAXA.length - 1 - i];
+        }
+        Tree permuted = numberedTree("(((A:1,B:1):1,(C:1,D:1):1):1,((E:1,F:1):1,(G:1,H:1):1):1);", reversed);
+        assertFalse(permuted.getNodeTaxon(permuted.getExternalNode(0)).getId().equals(
+                reference.getNodeTaxon(reference.getExternalNode(0)).getId()));
+        ConditionalCladeFrequency loaded = ConditionalCladeFrequency.loadIndex(file, permuted, EPSILON);
+
+        for (Tree tree : randomTrees(50, TAXA)) {
+            assertEquals(ccf.getTreeProbability(tree, getTaxonMap(reference)),
+                    loaded.getTreeProbability(tree, getTaxonMap(permuted)), 1E-12);
+        }
+    }
+
+    public void testTaxonMap() throws Exception {
+        List<Tree> trees = randomTrees(300, TAXA);
+        Tree reference = trees.get(0);
+
+        // counts built by taxon index rather than by node number
+        HashMap<String, Integer> taxonMap = new HashMap<String, Integer>();
+        for (int i = 0; i < TAXA.length; i++) {
+            taxonMap.put(TAXA[TAXA.length - 1 - i], i);
+        }
+        ConditionalCladeFrequency ccf = new ConditionalCladeFrequency(reference, EPSILON);
+        for (Tree tree : trees) {
+            ccf.addTree(tree, taxonMap);
+        }
+        ccf.saveIndex(file);
+
+        ConditionalCladeFrequency loaded = ConditionalCladeFrequency.loadIndex(file, reference, EPSILON);
+        for (Tree tree : randomTrees(50, TAXA)) {
+            assertEquals(ccf.getTreeProbability(tree, taxonMap),
+                    loaded.getTreeProbability(tree, getTaxonMap(reference)), 1E-12);
+        }
+    }
+
+    public void testMerge() throws Exception {
+        List<Tree> trees = randomTrees(450, TAXA);
+        Tree reference = trees.get(0);
+
+        TreeTrace trace = new TreeTrace();
+        trace.setMinimumState(0);
+        trace.setStepSize(1);
+        for (Tree tree : trees) {
+            trace.add(tree);
+        }
+
+        // the trace is counted in blocks once by the constructor and again on several threads
+        ConditionalCladeFrequency merged = new ConditionalCladeFrequency(new TreeTrace[]{trace}, EPSILON, 0, false);
+        merged.analyzeTrace(false, 4);
+
+        // the first tree of the trace is not counted
+        ConditionalCladeFrequency sequential = new ConditionalCladeFrequency(reference, EPSILON);
+        for (int i = 1; i < trace.getTreeCount(0); i++) {
+            sequential.addTree(trace.getTree(i, 0));
+            sequential.addTree(trace.getTree(i, 0));
+        }
+
+        for (Tree tree : randomTrees(50, TAXA)) {
+            assertEquals(sequential.getTreeProbability(tree), merged.getTreeProbability(tree), 1E-12);
+        }
+    }
+
+    // random topologies from a few favoured splits so that the clades are seen many times
+    private static List<Tree> randomTrees(int count, String[] taxa) throws Exception {
+        List<Tree> trees = new ArrayList<Tree>();
+        for (int k = 0; k < count; k++) {
+            List<String> subtrees = new ArrayList<String>();
+            for (String taxon : taxa) {
+                subtrees.add(taxon);
+            }
+            while (subtrees.size() > 1) {
+                int i = (MathUtils.nextDouble() < 0.7 ? 0 : MathUtils.nextInt(subtrees.size()));
+                String subtree1 = subtrees.remove(i);
+                int j = (MathUtils.nextDouble() < 0.7 ? 0 : MathUtils.nextInt(subtrees.size()));
+                String subtree2 = subtrees.remove(j);
+                subtrees.add("(" + subtree1 + ":1.0," + subtree2 + ":1.0)");
+            }
+            trees.add(numberedTree(subtrees.get(0) + ";", taxa));
+        }
+        return trees;
+    }
+
+    // the tree with the tips numbered in the order of the given taxa
+    private static Tree numberedTree(String newick, String[] taxa) throws Exception {
+        FlexibleTree tree = (FlexibleTree) new NewickImporter(newick).importTree(null);
+        Map<Taxon, Integer> numbers = new HashMap<Taxon, Integer>();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            Taxon taxon = tree.getNodeTaxon(tree.getExternalNode(i));
+            numbers.put(taxon, Arrays.asList(taxa).indexOf(taxon.getId()));
+        }
+        return new FlexibleTree((FlexibleNode) tree.getRoot(), numbers);
+    }
+
+    private static HashMap<String, Integer> getTaxonMap(Tree tree) {
+        HashMap<String, Integer> taxonMap = new HashMap<String, Integer>();
+        for (int i = 0; i < tree.getExternalNodeCount(); i++) {
+            NodeRef node = tree.getExternalNode(i);
+            taxonMap.put(tree.getNodeTaxon(node).getId(), node.getNumber());
+        }
+        return taxonMap;
+    }
+}
@@ -0,0 +1,80 @@
+package test.dr.geo;
+
+import dr.geo.KernelDensityEstimator2D;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+/**
+ * Checks the binned estimate against the sum over all observations at every grid point.
+ */
+public class KernelDensityEstimator2DTest extends TestCase {
+
+    public KernelDensityEstimator2DTest(String name) {
+        super(name);
+    }
+
+    public void testBinnedDensity() {
+        MathUtils.setSeed(666);
+
+        // two clusters, one much tighter than the other
+        final int count = 2000;
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int k = 0; k < count; k++) {
+            if (k % 4 == 0) {
+                x[k] = 5.0 + 0.2 * MathUtils.nextGaussian();
+                y[k] = -3.0 + 0.1 * MathUtils.nextGaussian();
+            } else {
+                x[k] = MathUtils.nextGaussian();
+                y[k] = 2.0 * MathUtils.nextGaussian();
+            }
+        }
+
+        KernelDensityEstimator2D kde = new KernelDensityEstimator2D(x, y, 60);
+        assertDensity(kde, x, y, null);
+
+        // some of the observations lie outside these limits but still add to the density inside them
+        final double[] lims = {-1.0, 5.5, -4.0, 1.0};
+        final double[] h = {0.3, 0.4};
+        kde = new KernelDensityEstimator2D(x, y, h, 40, lims);
+        assertDensity(kde, x, y, h);
+
+        // the densities of several samples at once
+        KernelDensityEstimator2D[] kdes = KernelDensityEstimator2D.estimate(
+                new double[][]{x, y}, new double[][]{y, x}, 50, true, 2);
+        for (int i = 0; i < kdes.length; i++) {
+            KernelDensityEstimator2D single = new KernelDensityEstimator2D(i == 0 ? x : y, i == 0 ? y : x, true);
+            for (int j = 0; j < 50; j++) {
+                for (int k = 0; k < 50; k++) {
+                    assertEquals(single.getKDE()[j][k], kdes[i].getKDE()[j][k], 0.0);
+                }
+            }
+        }
+    }
+
+    private void assertDensity(KernelDensityEstimator2D kde, double[] x, double[] y, double[] h) {
+        if (h == null) {
+            h = new double[]{kde.bandwidthNRD(x) / 4, kde.bandwidthNRD(y) / 4};
+        }
+        final double[] gx = kde.getXGrid();
+        final double[] gy = kde.getYGrid();
+        final double[][] z = kde.getKDE();
+
+        double max = 0.0;
+        double maxError = 0.0;
+        for (int i = 0; i < gx.length; i++) {
+            for (int j = 0; j < gy.length; j++) {
+                double density = 0.0;
+                for (int k = 0; k < x.length; k++) {
+                    density += NormalDistribution.pdf((gx[i] - x[k]) / h[0], 0, 1) *
+                            NormalDistribution.pdf((gy[j] - y[k]) / h[1], 0, 1);
+                }
+                density /= x.length * h[0] * h[1];
+                max = Math.max(max, density);
+                maxError = Math.max(maxError, Math.abs(density - z[i][j]));
+            }
+        }
+        assertTrue(maxError / max < 0.002);
+    }
+}
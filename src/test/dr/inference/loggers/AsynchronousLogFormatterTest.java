@@ -0,0 +1,62 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.AsynchronousLogFormatter;
+import dr.inference.loggers.LogFormatter;
+import dr.inference.loggers.TabDelimitedFormatter;
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Checks that everything queued on an asynchronous formatter is written in order when it is stopped, through a
+ * queue smaller than the log, and that a failure on the writer thread reaches the chain.
+ */
+public class AsynchronousLogFormatterTest extends TestCase {
+
+    public AsynchronousLogFormatterTest(String name) {
+        super(name);
+    }
+
+    public void testOrderAndFlush() {
+        StringWriter expected = new StringWriter();
+        LogFormatter direct = new TabDelimitedFormatter(new PrintWriter(expected));
+
+        StringWriter written = new StringWriter();
+        LogFormatter asynchronous = new AsynchronousLogFormatter(new TabDelimitedFormatter(new PrintWriter(written)), 4);
+
+        for (LogFormatter formatter : new LogFormatter[]{direct, asynchronous}) {
+            formatter.startLogging("test");
+            formatter.logLabels(new String[]{"state", "x"});
+            for (int i = 0; i < 1000; i++) {
+                formatter.logValues(new String[]{Integer.toString(i), Double.toString(i / 7.0)});
+            }
+            formatter.logLine("end");
+            formatter.stopLogging();
+        }
+
+        assertEquals(expected.toString(), written.toString());
+    }
+
+    public void testWriterError() {
+        AsynchronousLogFormatter formatter = new AsynchronousLogFormatter(
+                new TabDelimitedFormatter(new PrintWriter(new StringWriter())), 4);
+
+        formatter.log(new AsynchronousLogFormatter.Entry() {
+            public void write(LogFormatter formatter) {
+                throw new IllegalArgumentException("unwritable");
+            }
+        });
+
+        try {
+            // the failure is reported on a later call, at the latest when logging stops
+            for (int i = 0; i < 100; i++) {
+                formatter.logLine("line");
+            }
+            formatter.stopLogging();
+            fail("The error on the writer thread wasn't reported");
+        } catch (RuntimeException re) {
+            assertTrue(re.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
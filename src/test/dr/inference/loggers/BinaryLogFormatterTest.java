@@ -0,0 +1,130 @@
+package test.dr.inference.loggers;
+
+import dr.inference.loggers.BinaryLogFormatter;
+import dr.inference.loggers.BinaryLogReader;
+import dr.inference.trace.LogFileTraces;
+import dr.inference.trace.TraceFactory;
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.List;
+
+/**
+ * Writes a log of several blocks in the binary format and reads it back, in whole, from a given state and
+ * through LogFileTraces.
+ */
+public class BinaryLogFormatterTest extends TestCase {
+
+    private static final int BLOCK_SIZE = 10;
+    private static final int STATE_COUNT = 95;
+
+    private File file;
+
+    public BinaryLogFormatterTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("binaryLog", ".blog");
+        file.deleteOnExit();
+
+        BinaryLogFormatter formatter = new BinaryLogFormatter(new FileOutputStream(file), BLOCK_SIZE);
+        formatter.startLogging("test");
+        // y is marked as categorical, as a text log would be
+        formatter.logHeading("test log\ncategorical\ty");
+        formatter.logLabels(new String[]{"state", "x", "y"});
+        for (int i = 0; i < STATE_COUNT; i++) {
+            // y is text in some blocks
+            formatter.logValues(new String[]{Integer.toString(i * 100), Double.toString(i / 3.0),
+                    (i == 42 ? "NA" : Integer.toString(i))});
+        }
+        formatter.stopLogging();
+    }
+
+    public void testRead() throws IOException {
+        BinaryLogReader reader = new BinaryLogReader(new FileInputStream(file));
+        int row = 0;
+        while (reader.nextBlock()) {
+            assertEquals(2, reader.getHeadings().size());
+            assertEquals(3, reader.getLabels().length);
+            for (int i = 0; i < reader.getRowCount(); i++) {
+                assertEquals(row * 100L, reader.getState(i));
+                assertEquals(row / 3.0, reader.getValue(0, i));
+                assertEquals(row == 42 ? "NA" : Double.toString(row), reader.getString(1, i));
+                row++;
+            }
+        }
+        reader.close();
+        assertEquals(STATE_COUNT, row);
+    }
+
+    public void testIndex() throws IOException {
+        List<long[]> blocks = BinaryLogReader.readIndex(file);
+        assertEquals((STATE_COUNT + BLOCK_SIZE - 1) / BLOCK_SIZE, blocks.size());
+
+        BinaryLogReader reader = new BinaryLogReader(file, 4550);
+        assertEquals("x", reader.getLabels()[1]);
+        assertTrue(reader.nextBlock());
+        assertEquals(4000L, reader.getState(0));
+        reader.close();
+    }
+
+    public void testTruncated() throws IOException {
+        // a run stopped part way through writing the last block
+        List<long[]> blocks = BinaryLogReader.readIndex(file);
+        byte[] bytes = new byte[(int) blocks.get(blocks.size() - 1)[0] + 50];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(bytes);
+        in.close();
+
+        BinaryLogReader reader = new BinaryLogReader(new ByteArrayInputStream(bytes));
+        int rowCount = 0;
+        while (reader.nextBlock()) {
+            rowCount += reader.getRowCount();
+        }
+        assertEquals(STATE_COUNT - STATE_COUNT % BLOCK_SIZE, rowCount);
+    }
+
+    public void testFlushInterval() throws IOException {
+        File liveFile = File.createTempFile("binaryLog", ".blog");
+        liveFile.deleteOnExit();
+
+        // rows are written as soon as they are logged when the interval has always passed
+        BinaryLogFormatter formatter = new BinaryLogFormatter(new FileOutputStream(liveFile), 1000, 0);
+        formatter.startLogging("test");
+        formatter.logLabels(new String[]{"state", "x"});
+        for (int i = 0; i < 5; i++) {
+            formatter.logValues(new String[]{Integer.toString(i * 100), Double.toString(i / 3.0)});
+        }
+
+        // the log is read while it is still being written
+        BinaryLogReader reader = new BinaryLogReader(new FileInputStream(liveFile));
+        int rowCount = 0;
+        while (reader.nextBlock()) {
+            for (int i = 0; i < reader.getRowCount(); i++) {
+                assertEquals(rowCount * 100L, reader.getState(i));
+                rowCount++;
+            }
+        }
+        reader.close();
+        assertEquals(5, rowCount);
+
+        formatter.stopLogging();
+    }
+
+    public void testLogFileTraces() throws Exception {
+        LogFileTraces traces = new LogFileTraces(file.getName(), file);
+        traces.loadTraces();
+
+        assertEquals(2, traces.getTraceCount());
+        assertEquals(TraceFactory.TraceType.STRING, traces.getTrace(1).getTraceType());
+        assertEquals("NA", traces.getTrace(1).getValue(42));
+        assertEquals("43.0", traces.getTrace(1).getValue(43));
+        assertEquals((STATE_COUNT - 1) * 100, traces.getMaxState());
+        assertEquals(100, traces.getStepSize());
+        assertEquals(STATE_COUNT, traces.getTrace(0).getValuesSize());
+        assertEquals(10 / 3.0, (Double) traces.getTrace(0).getValue(10), 0.0);
+    }
+}
@@ -0,0 +1,185 @@
+package test.dr.inference.mcmc;
+
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.distribution.NormalDistributionModel;
+import dr.inference.loggers.ArrayLogFormatter;
+import dr.inference.loggers.MCLogger;
+import dr.inference.mcmc.MarginalLikelihoodEstimator;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.inference.model.PathLikelihood;
+import dr.inference.operators.CombinedOperatorSchedule;
+import dr.inference.operators.CoercionMode;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.SimpleOperatorSchedule;
+import dr.inference.trace.Trace;
+import dr.math.MathUtils;
+import dr.math.distributions.NormalDistribution;
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Estimates the marginal likelihood of a normal mean with a normal prior, for which it is known exactly, by
+ * path sampling with the steps run one after another and on several copies of the model at once.
+ */
+public class MarginalLikelihoodEstimatorTest extends TestCase {
+
+    private static final double DATA = 1.0;
+
+    private static final int CHAIN_LENGTH = 20000;
+    private static final int PATH_STEPS = 10;
+
+    public MarginalLikelihoodEstimatorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(666);
+    }
+
+    public void testConcurrentAndSequential() {
+        // x ~ N(0, 1) and DATA ~ N(x, 1) so the marginal likelihood is N(DATA; 0, 2)
+        double expected = -0.5 * Math.log(2.0 * Math.PI * 2.0) - DATA * DATA / 4.0;
+
+        NormalModel sequentialModel = new NormalModel();
+        MarginalLikelihoodEstimator sequential = sequentialModel.createEstimator();
+        sequential.run();
+        List<Trace> sequentialTraces = sequentialModel.formatter.getTraces();
+
+        NormalModel concurrentModel = new NormalModel();
+        MarginalLikelihoodEstimator concurrent = concurrentModel.createEstimator();
+        for (int i = 0; i < 3; i++) {
+            NormalModel replicate = new NormalModel();
+            concurrent.addReplicate(replicate.pathLikelihood, replicate.schedule, replicate.loggers);
+        }
+        concurrent.run();
+        List<Trace> concurrentTraces = concurrentModel.formatter.getTraces();
+
+        // the same states and path parameters in the same order
+        assertEquals(traceValues(sequentialTraces, "state"), traceValues(concurrentTraces, "state"));
+        assertEquals(traceValues(sequentialTraces, "path.theta"), traceValues(concurrentTraces, "path.theta"));
+
+        double sequentialEstimate = pathSamplingEstimate(sequentialTraces);
+        double concurrentEstimate = pathSamplingEstimate(concurrentTraces);
+        assertEquals(expected, sequentialEstimate, 0.05);
+        assertEquals(expected, concurrentEstimate, 0.05);
+        assertEquals(sequentialEstimate, concurrentEstimate, 0.05);
+    }
+
+    public void testSharedReplicate() {
+        NormalModel model = new NormalModel();
+        MarginalLikelihoodEstimator estimator = model.createEstimator();
+
+        // a replicate that samples the same parameter as the model
+        NormalModel shared = new NormalModel(model.x);
+        try {
+            estimator.addReplicate(shared.pathLikelihood, shared.schedule, shared.loggers);
+            fail("a replicate sharing a parameter with the model should not be accepted");
+        } catch (IllegalArgumentException iae) {
+            assertTrue(iae.getMessage().contains("'x'"));
+        }
+
+        // a replicate that uses the model's operators
+        NormalModel separate = new NormalModel();
+        try {
+            estimator.addReplicate(separate.pathLikelihood, model.schedule, separate.loggers);
+            fail("a replicate sharing operators with the model should not be accepted");
+        } catch (IllegalArgumentException iae) {
+            assertTrue(iae.getMessage().contains("operator"));
+        }
+    }
+
+    // the trapezoidal rule over the mean log likelihood ratio at each path parameter, as PathSamplingAnalysis
+    private static double pathSamplingEstimate(List<Trace> traces) {
+        List<Double> thetas = traceValues(traces, "path.theta");
+        List<Double> deltas = traceValues(traces, "path.delta");
+
+        SortedMap<Double, double[]> sums = new TreeMap<Double, double[]>();
+        for (int i = 0; i < thetas.size(); i++) {
+            double[] sum = sums.get(thetas.get(i));
+            if (sum == null) {
+                sum = new double[2];
+                sums.put(thetas.get(i), sum);
+            }
+            sum[0] += deltas.get(i);
+            sum[1] += 1.0;
+        }
+        assertEquals(PATH_STEPS + 1, sums.size());
+
+        double estimate = 0.0;
+        Double previousTheta = null;
+        double previousMean = 0.0;
+        for (Map.Entry<Double, double[]> entry : sums.entrySet()) {
+            double mean = entry.getValue()[0] / entry.getValue()[1];
+            if (previousTheta != null) {
+                estimate += (mean + previousMean) / 2.0 * (entry.getKey() - previousTheta);
+            }
+            previousTheta = entry.getKey();
+            previousMean = mean;
+        }
+        return estimate;
+    }
+
+    private static List<Double> traceValues(List<Trace> traces, String name) {
+        for (Trace trace : traces) {
+            if (trace.getName().equals(name)) {
+                List<Double> values = new ArrayList<Double>();
+                for (int i = 0; i < trace.getValuesSize(); i++) {
+                    values.add((Double) trace.getValue(i));
+                }
+                return values;
+            }
+        }
+        throw new IllegalArgumentException("No trace called " + name);
+    }
+
+    /**
+     * A normal mean with a standard normal prior and one observation with unit variance.
+     */
+    private static class NormalModel {
+        final Parameter x;
+        final PathLikelihood pathLikelihood;
+        final CombinedOperatorSchedule schedule = new CombinedOperatorSchedule();
+        final ArrayLogFormatter formatter = new ArrayLogFormatter(false);
+        final List<MCLogger> loggers = new ArrayList<MCLogger>();
+
+        NormalModel() {
+            this(new Parameter.Default("x", 0.0, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        }
+
+        NormalModel(Parameter x) {
+            this.x = x;
+
+            DistributionLikelihood prior = new DistributionLikelihood(new NormalDistribution(0.0, 1.0));
+            prior.addData(x);
+
+            Parameter sd = new Parameter.Default("sd", 1.0, 0.0, Double.POSITIVE_INFINITY);
+            DistributionLikelihood likelihood = new DistributionLikelihood(new NormalDistributionModel(x, sd, false));
+            likelihood.addData(new Parameter.Default("data", DATA, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+
+            List<Likelihood> posterior = new ArrayList<Likelihood>();
+            posterior.add(prior);
+            posterior.add(likelihood);
+            pathLikelihood = new PathLikelihood(new CompoundLikelihood(posterior),
+                    new CompoundLikelihood(Collections.<Likelihood>singletonList(prior)));
+            pathLikelihood.setId("path");
+
+            SimpleOperatorSchedule operators = new SimpleOperatorSchedule();
+            operators.addOperator(new RandomWalkOperator(x, 2.0, RandomWalkOperator.BoundaryCondition.reflecting,
+                    1.0, CoercionMode.COERCION_OFF));
+            schedule.addOperatorSchedule(operators);
+
+            MCLogger logger = new MCLogger(formatter, 10, false);
+            logger.add(pathLikelihood);
+            loggers.add(logger);
+        }
+
+        MarginalLikelihoodEstimator createEstimator() {
+            return new MarginalLikelihoodEstimator("mle", CHAIN_LENGTH, -1, PATH_STEPS, null,
+                    MarginalLikelihoodEstimator.PathScheme.LINEAR, pathLikelihood, schedule, loggers);
+        }
+    }
+}
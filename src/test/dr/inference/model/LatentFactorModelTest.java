@@ -0,0 +1,160 @@
+package test.dr.inference.model;
+
+import dr.inference.model.DiagonalMatrix;
+import dr.inference.model.LatentFactorModel;
+import dr.inference.model.MatrixParameter;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import junit.framework.TestCase;
+
+/**
+ * Checks that the residuals and the trace that the latent factor model keeps up to date incrementally give the
+ * same log likelihood as a full evaluation, through changes to single loadings, factors and data entries, to whole
+ * rows and columns, to the column precisions, and after rejected moves.
+ */
+public class LatentFactorModelTest extends TestCase {
+
+    private static final int DIM_DATA = 6;
+    private static final int DIM_FACTORS = 2;
+    private static final int N_TAXA = 9;
+
+    private MatrixParameter data;
+    private MatrixParameter factors;
+    private MatrixParameter loadings;
+    private Parameter colPrecisionDiagonal;
+    private LatentFactorModel model;
+    private LatentFactorModel reference;
+
+    public LatentFactorModelTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MathUtils.setSeed(42);
+
+        data = randomMatrix("data", DIM_DATA, N_TAXA);
+        factors = randomMatrix("factors", DIM_FACTORS, N_TAXA);
+        loadings = randomMatrix("loadings", DIM_DATA, DIM_FACTORS);
+        for (int i = 0; i < DIM_FACTORS; i++) {
+            loadings.setParameterValue(i, i, Math.abs(loadings.getParameterValue(i, i)));
+        }
+
+        colPrecisionDiagonal = new Parameter.Default(DIM_DATA, 1.0);
+        for (int i = 0; i < DIM_DATA; i++) {
+            colPrecisionDiagonal.setParameterValue(i, 0.5 + MathUtils.nextDouble());
+        }
+        DiagonalMatrix colPrecision = new DiagonalMatrix(colPrecisionDiagonal);
+        DiagonalMatrix rowPrecision = DiagonalMatrix.buildIdentityTimesElementMatrix(N_TAXA, 1.0);
+        Parameter continuous = new Parameter.Default(DIM_DATA, 1.0);
+
+        model = new LatentFactorModel(data, factors, loadings, rowPrecision, colPrecision, false, continuous, false);
+        // a second model on the same parameters that is made dirty before each evaluation
+        reference = new LatentFactorModel(data, factors, loadings, rowPrecision, colPrecision, false, continuous,
+                false);
+    }
+
+    public void testIncrementalUpdates() {
+        assertFullEvaluation();
+
+        // single entries
+        loadings.setParameterValue(3, 1, 0.7);
+        assertFullEvaluation();
+        factors.setParameterValue(0, 4, -1.3);
+        assertFullEvaluation();
+        data.setParameterValue(5, 2, 2.1);
+        assertFullEvaluation();
+        colPrecisionDiagonal.setParameterValue(2, 3.0);
+        assertFullEvaluation();
+
+        // a whole row of loadings and a whole column of factors together
+        for (int k = 0; k < DIM_FACTORS; k++) {
+            loadings.setParameterValue(4, k, MathUtils.nextGaussian());
+            factors.setParameterValue(k, 7, MathUtils.nextGaussian());
+        }
+        assertFullEvaluation();
+
+        // most of the factors, as after a Gibbs sweep
+        for (int j = 0; j < N_TAXA; j++) {
+            factors.setParameterValue(j % DIM_FACTORS, j, MathUtils.nextGaussian());
+        }
+        assertFullEvaluation();
+
+        // a change without an event is only picked up after makeDirty
+        factors.getParameter(3).setParameterValueQuietly(1, 0.9);
+        data.getParameter(6).setParameterValueQuietly(0, -0.4);
+        model.makeDirty();
+        assertFullEvaluation();
+    }
+
+    public void testRestore() {
+        for (int step = 0; step < 200; step++) {
+            double logLikelihood = model.getLogLikelihood();
+            model.storeModelState();
+            reference.storeModelState();
+
+            switch (step % 3) {
+                case 0:
+                    loadings.setParameterValue(MathUtils.nextInt(DIM_DATA), MathUtils.nextInt(DIM_FACTORS),
+                            MathUtils.nextGaussian());
+                    break;
+                case 1:
+                    factors.setParameterValue(MathUtils.nextInt(DIM_FACTORS), MathUtils.nextInt(N_TAXA),
+                            MathUtils.nextGaussian());
+                    break;
+                default:
+                    data.setParameterValue(MathUtils.nextInt(DIM_DATA), MathUtils.nextInt(N_TAXA),
+                            MathUtils.nextGaussian());
+            }
+            assertFullEvaluation();
+
+            if (step % 2 == 0) {
+                model.restoreModelState();
+                reference.restoreModelState();
+                assertEquals(logLikelihood, model.getLogLikelihood(), 1E-10);
+                assertFullEvaluation();
+            } else {
+                model.acceptModelState();
+                reference.acceptModelState();
+            }
+        }
+    }
+
+    private void assertFullEvaluation() {
+        double logLikelihood = model.getLogLikelihood();
+        reference.makeDirty();
+        assertEquals(reference.getLogLikelihood(), logLikelihood, 1E-10);
+        assertEquals(directLogLikelihood(), logLikelihood, 1E-10);
+    }
+
+    // -tr(C R'R) / 2 + n log|C| / 2 - np log(2 pi) / 2 with the residuals R = data - loadings x factors
+    private double directLogLikelihood() {
+        double trace = 0;
+        double logDet = 0;
+        for (int i = 0; i < DIM_DATA; i++) {
+            double sum = 0;
+            for (int j = 0; j < N_TAXA; j++) {
+                double r = data.getParameterValue(i, j);
+                for (int k = 0; k < DIM_FACTORS; k++) {
+                    r -= loadings.getParameterValue(i, k) * factors.getParameterValue(k, j);
+                }
+                sum += r * r;
+            }
+            trace += colPrecisionDiagonal.getParameterValue(i) * sum;
+            logDet += Math.log(colPrecisionDiagonal.getParameterValue(i));
+        }
+        return -0.5 * trace + 0.5 * N_TAXA * logDet - 0.5 * DIM_DATA * N_TAXA * Math.log(2.0 * Math.PI);
+    }
+
+    private static MatrixParameter randomMatrix(String name, int rows, int columns) {
+        Parameter[] parameters = new Parameter[columns];
+        for (int j = 0; j < columns; j++) {
+            double[] values = new double[rows];
+            for (int i = 0; i < rows; i++) {
+                values[i] = MathUtils.nextGaussian();
+            }
+            parameters[j] = new Parameter.Default(values);
+        }
+        return new MatrixParameter(name, parameters);
+    }
+}
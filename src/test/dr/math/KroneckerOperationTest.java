@@ -154,4 +154,27 @@ public class KroneckerOperationTest extends MathTestCase {
         testKroneckerProduct(DD, EE, trueFF);
 
     }
+
+    public void testKroneckerProductVector() {
+        double[] A = {1, 2, 3, 4};
+        double[] B = {0, 1, 2, 3, 4, 5, 6, 7, 8};
+        double[] C = {-1, 2, 0.5, 1};
+        double[] x = new double[2 * 3 * 2];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = i - 4.5;
+        }
+
+        double[] ABC = KroneckerOperation.product(KroneckerOperation.product(A, 2, 2, B, 3, 3), 6, 6, C, 2, 2);
+        double[] trueY = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            for (int j = 0; j < x.length; j++) {
+                trueY[i] += ABC[i * x.length + j] * x[j];
+            }
+        }
+
+        double[] y = new double[x.length];
+        KroneckerOperation.product(new double[][]{A, B, C}, new int[]{2, 3, 2}, x, y);
+        System.out.println("(A %x% B %x% C) x = " + new Vector(y));
+        assertEquals(trueY, y, 1E-10);
+    }
 }